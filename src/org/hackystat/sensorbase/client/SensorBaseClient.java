@@ -1,22 +1,22 @@
 package org.hackystat.sensorbase.client;
 
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.hackystat.sensorbase.resource.projects.jaxb.Invitations;
 import org.hackystat.sensorbase.resource.projects.jaxb.MultiDayProjectSummary;
@@ -24,11 +24,13 @@ import org.hackystat.sensorbase.resource.projects.jaxb.Project;
 import org.hackystat.sensorbase.resource.projects.jaxb.ProjectIndex;
 import org.hackystat.sensorbase.resource.projects.jaxb.ProjectRef;
 import org.hackystat.sensorbase.resource.projects.jaxb.ProjectSummary;
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
 import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.Property;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataIndex;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRows;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDatas;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataType;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataTypeIndex;
@@ -43,6 +45,7 @@ import org.hackystat.utilities.uricache.UriCache;
 import org.restlet.Client;
 import org.restlet.data.ChallengeResponse;
 import org.restlet.data.ChallengeScheme;
+import org.restlet.data.CharacterSet;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Method;
@@ -52,11 +55,16 @@ import org.restlet.data.Reference;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.resource.Representation;
-import org.w3c.dom.Document;
+import org.restlet.resource.StringRepresentation;
 
 /**
  * Provides a high-level interface for Clients wishing to communicate with a SensorBase.
+ * <p>
+ * A single instance may be shared by many threads, whose requests proceed concurrently. 
+ * The methods whose names end in Async make their request in the background and return a
+ * Future; all clients of a host share a bounded set of threads for these requests.
  * 
  * @author Philip Johnson
  * 
@@ -67,21 +75,21 @@ public class SensorBaseClient {
   public enum InvitationReply { ACCEPT, DECLINE }
 
   /** Holds the userEmail to be associated with this client. */
-  private String userEmail;
+  private final String userEmail;
   /** Holds the password to be associated with this client. */
-  private String password;
-  /** The SensorBase host, such as "http://localhost:9876/sensorbase". */
-  private String sensorBaseHost;
+  private final String password;
+  /** The SensorBase host, such as "http://localhost:9876/sensorbase/". */
+  private final String sensorBaseHost;
   /** The Restlet Client instance used to communicate with the server. */
-  private Client client;
-  /** SDT JAXBContext. */
-  private static final JAXBContext sdtJAXB;
-  /** Users JAXBContext. */
-  private static final JAXBContext userJAXB;
-  /** SensorData JAXBContext. */
-  private static final JAXBContext sensordataJAXB;
-  /** Project JAXBContext. */
-  private static final JAXBContext projectJAXB;
+  private final Client client;
+  /** SDT serializer. */
+  private static final JaxbSerializer sdtJAXB;
+  /** Users serializer. */
+  private static final JaxbSerializer userJAXB;
+  /** SensorData serializer. */
+  private static final JaxbSerializer sensordataJAXB;
+  /** Project serializer. */
+  private static final JaxbSerializer projectJAXB;
   /** The http authentication approach. */
   private ChallengeScheme scheme = ChallengeScheme.HTTP_BASIC;
   /** The preferred representation type. */
@@ -96,32 +104,47 @@ public class SensorBaseClient {
   //private static final String sensorbaseclient = "sensorbaseclient";
   
   /** To facilitate debugging of problems using this system. */
-  private boolean isTraceEnabled = false;
+  private volatile boolean isTraceEnabled = false;
 
   /** An associated UriCache to improve responsiveness. */
-  private UriCache uriCache = null;
+  private volatile UriCache uriCache = null;
   
-  /** Indicates whether or not cache is enabled. */
-  private boolean isCacheEnabled = false;
+  /** Indicates whether or not cache is enabled. Set after uriCache, so readers see the cache. */
+  private volatile boolean isCacheEnabled = false;
+  
+  /** Prefixes the uriCache keys of the representations saved for conditional GETs. */
+  private static final String validatedKeyPrefix = "validated:";
   
   /** Timestamp of last time we tried to contact a server and failed, since this is expensive. */
-  private static Map<String, Long> lastHostNotAvailable = new HashMap<String, Long>();
+  private static Map<String, Long> lastHostNotAvailable = 
+    new ConcurrentHashMap<String, Long>();
+  
+  /** The threads running the asynchronous requests to each host, keyed by sensorBaseHost. */
+  private static ConcurrentMap<String, ExecutorService> hostExecutors = 
+    new ConcurrentHashMap<String, ExecutorService>();
   
   /** The System property key used to retrieve the default timeout value in milliseconds. */
   public static final String SENSORBASECLIENT_TIMEOUT_KEY = "sensorbaseclient.timeout";
+  
+  /** 
+   * The System property key used to retrieve the maximum number of asynchronous requests 
+   * in progress to each host. 
+   */
+  public static final String SENSORBASECLIENT_MAXREQUESTS_KEY = "sensorbaseclient.maxrequests";
 
   // JAXBContexts are thread safe, so we can share them across all instances and threads.
   // https://jaxb.dev.java.net/guide/Performance_and_thread_safety.html
+  // The serializers keep a Marshaller and Unmarshaller per thread.
   static {
     try {
-      sdtJAXB = JAXBContext
-          .newInstance(org.hackystat.sensorbase.resource.sensordatatypes.jaxb.ObjectFactory.class);
-      userJAXB = JAXBContext
-          .newInstance(org.hackystat.sensorbase.resource.users.jaxb.ObjectFactory.class);
-      sensordataJAXB = JAXBContext
-          .newInstance(org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class);
-      projectJAXB = JAXBContext
-          .newInstance(org.hackystat.sensorbase.resource.projects.jaxb.ObjectFactory.class);
+      sdtJAXB = new JaxbSerializer(JAXBContext
+          .newInstance(org.hackystat.sensorbase.resource.sensordatatypes.jaxb.ObjectFactory.class));
+      userJAXB = new JaxbSerializer(JAXBContext
+          .newInstance(org.hackystat.sensorbase.resource.users.jaxb.ObjectFactory.class));
+      sensordataJAXB = new JaxbSerializer(JAXBContext
+          .newInstance(org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class));
+      projectJAXB = new JaxbSerializer(JAXBContext
+          .newInstance(org.hackystat.sensorbase.resource.projects.jaxb.ObjectFactory.class));
     }
     catch (Exception e) {
       throw new RuntimeException("Couldn't create JAXB context instances.", e);
@@ -143,26 +166,38 @@ public class SensorBaseClient {
     RestletLoggerUtil.disableLogging();
     this.userEmail = email;
     this.password = password;
-    this.sensorBaseHost = host;
-    if (!this.sensorBaseHost.endsWith("/")) {
-      this.sensorBaseHost = this.sensorBaseHost + "/";
-    }
+    this.sensorBaseHost = host.endsWith("/") ? host : host + "/";
     if (this.isTraceEnabled) {
       System.out.println("SensorBaseClient Tracing: INITIALIZE " + "host='" + host + "', email='"
           + email + "', password='" + password + "'");
     }
     this.client = new Client(Protocol.HTTP);
     setTimeout(getDefaultTimeout());
+    // Start the connector now, rather than letting concurrent first requests race to start it.
+    try {
+      this.client.start();
+    }
+    catch (Exception e) { //NOPMD
+      // The first request will try again to start it.
+    }
   }
   
   /**
    * Attempts to provide a timeout value for this SensorBaseClient.  
    * @param milliseconds The number of milliseconds to wait before timing out. 
    */
-  public final synchronized void setTimeout(int milliseconds) {
+  public final void setTimeout(int milliseconds) {
     setClientTimeout(this.client, milliseconds);
   }
   
+  /**
+   * Returns the SensorBase host of this client.
+   * @return The host, such as "http://localhost:9876/sensorbase/".
+   */
+  public String getHost() {
+    return this.sensorBaseHost;
+  }
+  
   /**
    * Returns the default timeout in milliseconds. 
    * The default timeout is set to 2000 ms, but clients can change this by creating a 
@@ -188,7 +223,7 @@ public class SensorBaseClient {
    * 
    * @param enable If true, trace output will be generated.
    */
-  public synchronized void enableHttpTracing(boolean enable) {
+  public void enableHttpTracing(boolean enable) {
     this.isTraceEnabled = enable;
   }
 
@@ -198,7 +233,7 @@ public class SensorBaseClient {
    * @return This SensorBaseClient instance.
    * @throws SensorBaseClientException If authentication is not successful.
    */
-  public synchronized SensorBaseClient authenticate() throws SensorBaseClientException {
+  public SensorBaseClient authenticate() throws SensorBaseClientException {
     String uri = "ping?user=" + this.userEmail + "&password=" + this.password;
     Response response = makeRequest(Method.GET, uri, null);
     if (!response.getStatus().isSuccess()) {
@@ -236,7 +271,7 @@ public class SensorBaseClient {
    * @return A SensorData instance.
    * @throws SensorBaseClientException If errors occur parsing the contents of the keyValMap.
    */
-  public synchronized SensorData makeSensorData(Map<String, String> keyValMap)
+  public SensorData makeSensorData(Map<String, String> keyValMap)
       throws SensorBaseClientException {
     // Begin by creating the sensor data instance.
     SensorData data = new SensorData();
@@ -294,7 +329,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java SensorDataTypeIndex instance.
    */
-  public synchronized SensorDataTypeIndex getSensorDataTypeIndex() 
+  public SensorDataTypeIndex getSensorDataTypeIndex() 
                                                       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, "sensordatatypes", null);
     SensorDataTypeIndex index;
@@ -319,7 +354,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the SDT or returns something
    *         that cannot be marshalled into Java SensorDataType instance.
    */
-  public synchronized SensorDataType getSensorDataType(String sdtName)
+  public SensorDataType getSensorDataType(String sdtName)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, "sensordatatypes/" + sdtName, null);
     SensorDataType sdt;
@@ -344,7 +379,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the SDT or returns something
    *         that cannot be marshalled into Java SensorDataType instance.
    */
-  public synchronized SensorDataType getSensorDataType(SensorDataTypeRef ref)
+  public SensorDataType getSensorDataType(SensorDataTypeRef ref)
       throws SensorBaseClientException {
     Response response = getUri(ref.getHref());
     SensorDataType sdt;
@@ -368,7 +403,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the user is not the admin or if there is some problem with
    *         the SDT instance.
    */
-  public synchronized void putSensorDataType(SensorDataType sdt) throws SensorBaseClientException {
+  public void putSensorDataType(SensorDataType sdt) throws SensorBaseClientException {
     try {
       String xmlData = makeSensorDataType(sdt);
       Representation representation = SensorBaseResource.getStringRepresentation(xmlData);
@@ -394,7 +429,7 @@ public class SensorBaseClient {
    * @param sdtName The name of the SDT to delete.
    * @throws SensorBaseClientException If the server does not indicate success.
    */
-  public synchronized void deleteSensorDataType(String sdtName) throws SensorBaseClientException {
+  public void deleteSensorDataType(String sdtName) throws SensorBaseClientException {
     Response response = makeRequest(Method.DELETE, "sensordatatypes/" + sdtName, null);
     if (!response.getStatus().isSuccess()) {
       throw new SensorBaseClientException(response.getStatus());
@@ -408,7 +443,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java UserIndex instance.
    */
-  public synchronized UserIndex getUserIndex() throws SensorBaseClientException {
+  public UserIndex getUserIndex() throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, "users", null);
     UserIndex index;
     if (!response.getStatus().isSuccess()) {
@@ -430,7 +465,7 @@ public class SensorBaseClient {
    * @return The User instance for the user associated with this SensorBaseClient.
    * @throws SensorBaseClientException If problems occur.
    */
-  public synchronized User getUser() throws SensorBaseClientException {
+  public User getUser() throws SensorBaseClientException {
     return getUser(this.userEmail);
   }
 
@@ -442,7 +477,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the SDT or returns something
    *         that cannot be marshalled into Java User instance.
    */
-  public synchronized User getUser(String email) throws SensorBaseClientException {
+  public User getUser(String email) throws SensorBaseClientException {
     /* Bugfix Martin Imme: use email rather than userEmail 
      * in order to retrieve the correct user data
      */
@@ -470,7 +505,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the user or returns something
    *         that cannot be marshalled into Java User instance.
    */
-  public synchronized User getUser(UserRef ref) throws SensorBaseClientException {
+  public User getUser(UserRef ref) throws SensorBaseClientException {
     Response response = getUri(ref.getHref());
     User user;
     if (!response.getStatus().isSuccess()) {
@@ -492,7 +527,7 @@ public class SensorBaseClient {
    * @param email The email of the User to delete.
    * @throws SensorBaseClientException If the server does not indicate success.
    */
-  public synchronized void deleteUser(String email) throws SensorBaseClientException {
+  public void deleteUser(String email) throws SensorBaseClientException {
     Response response = makeRequest(Method.DELETE, "users/" + email, null);
     if (!response.getStatus().isSuccess()) {
       throw new SensorBaseClientException(response.getStatus());
@@ -506,7 +541,7 @@ public class SensorBaseClient {
    * @param properties The properties to post.
    * @throws SensorBaseClientException If the server does not indicate success.
    */
-  public synchronized void updateUserProperties(String email, Properties properties)
+  public void updateUserProperties(String email, Properties properties)
       throws SensorBaseClientException {
     String xmlData;
     try {
@@ -529,7 +564,7 @@ public class SensorBaseClient {
    * @return The response instance if the GET request succeeded.
    * @throws SensorBaseClientException If the server indicates that a problem occurred.
    */
-  public synchronized Response getUri(String uriString) throws SensorBaseClientException {
+  public Response getUri(String uriString) throws SensorBaseClientException {
     Reference reference = new Reference(uriString);
     Request request = new Request(Method.GET, reference);
     request.getClientInfo().getAcceptedMediaTypes().add(xmlMedia);
@@ -556,7 +591,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getSensorDataIndex() throws SensorBaseClientException {
+  public SensorDataIndex getSensorDataIndex() throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, "sensordata", null);
     SensorDataIndex index;
     if (!response.getStatus().isSuccess()) {
@@ -605,7 +640,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getSensorDataIndex(String email)
+  public SensorDataIndex getSensorDataIndex(String email)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, sensordataUri + email, null);
     SensorDataIndex index;
@@ -632,7 +667,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getSensorDataIndex(String email, String sdtName)
+  public SensorDataIndex getSensorDataIndex(String email, String sdtName)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, sensordataUri + email + "?sdt=" + sdtName, null);
     SensorDataIndex index;
@@ -670,7 +705,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getSensorDataIndexLastMod(String email,
+  public SensorDataIndex getSensorDataIndexLastMod(String email,
       XMLGregorianCalendar lastModStartTime, XMLGregorianCalendar lastModEndTime)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, sensordataUri + email + "?lastModStartTime="
@@ -699,7 +734,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the success code or returns a
    *         String that cannot be marshalled into Java SensorData instance.
    */
-  public synchronized SensorData getSensorData(String email, XMLGregorianCalendar timestamp)
+  public SensorData getSensorData(String email, XMLGregorianCalendar timestamp)
       throws SensorBaseClientException {
     SensorData data;
     String uri = sensordataUri + email + "/" + timestamp;
@@ -739,7 +774,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the success code or returns a
    *         String that cannot be marshalled into Java SensorData instance.
    */
-  public synchronized SensorData getSensorData(String uriString) throws SensorBaseClientException {
+  public SensorData getSensorData(String uriString) throws SensorBaseClientException {
     SensorData data;
     // Check the cache, and return the sensor data instance from it if available. 
     if (this.isCacheEnabled) {
@@ -775,7 +810,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the data or returns something
    *         that cannot be marshalled into Java SensorData instance.
    */
-  public synchronized SensorData getSensorData(SensorDataRef ref) throws SensorBaseClientException {
+  public SensorData getSensorData(SensorDataRef ref) throws SensorBaseClientException {
     SensorData data;
     String uri = ref.getHref();
     // Check the cache, and return the sensor data instance from it if available. 
@@ -810,7 +845,7 @@ public class SensorBaseClient {
    * @param data The sensor data to create.
    * @throws SensorBaseClientException If problems occur posting this data.
    */
-  public synchronized void putSensorData(SensorData data) throws SensorBaseClientException {
+  public void putSensorData(SensorData data) throws SensorBaseClientException {
     try {
       String xmlData = makeSensorData(data);
       Representation representation = SensorBaseResource.getStringRepresentation(xmlData);
@@ -837,7 +872,7 @@ public class SensorBaseClient {
    * @param data The sensor data batch to create, represented as a SensorDatas instance.
    * @throws SensorBaseClientException If problems occur posting this data.
    */
-  public synchronized void putSensorDataBatch(SensorDatas data) throws SensorBaseClientException {
+  public void putSensorDataBatch(SensorDatas data) throws SensorBaseClientException {
     try {
       String xmlData = makeSensorDatas(data);
       String owner = data.getSensorData().get(0).getOwner();
@@ -866,7 +901,7 @@ public class SensorBaseClient {
    * @param timestamp The timestamp of the sensor data.
    * @throws SensorBaseClientException If the server does not indicate success.
    */
-  public synchronized void deleteSensorData(String email, XMLGregorianCalendar timestamp)
+  public void deleteSensorData(String email, XMLGregorianCalendar timestamp)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.DELETE, sensordataUri + email + "/" + timestamp, null);
     if (!response.getStatus().isSuccess()) {
@@ -882,7 +917,7 @@ public class SensorBaseClient {
    * @param email The email of the User.
    * @throws SensorBaseClientException If the server does not indicate success.
    */
-  public synchronized void deleteSensorData(String email) throws SensorBaseClientException {
+  public void deleteSensorData(String email) throws SensorBaseClientException {
     Response response = makeRequest(Method.DELETE, sensordataUri + email, null);
     if (!response.getStatus().isSuccess()) {
       throw new SensorBaseClientException(response.getStatus());
@@ -896,7 +931,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java ProjectIndex instance.
    */
-  public synchronized ProjectIndex getProjectIndex() throws SensorBaseClientException {
+  public ProjectIndex getProjectIndex() throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri, null);
     ProjectIndex index;
     if (!response.getStatus().isSuccess()) {
@@ -923,7 +958,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the Index or returns an index
    *         that cannot be marshalled into Java ProjectIndex instance.
    */
-  public synchronized ProjectIndex getProjectIndex(String email)
+  public ProjectIndex getProjectIndex(String email)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + email, null);
     ProjectIndex index;
@@ -950,7 +985,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return success or returns something
    *         that cannot be marshalled into Java Project instance.
    */
-  public synchronized Project getProject(String email, String projectName)
+  public Project getProject(String email, String projectName)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + email + "/" + projectName, null);
     Project project;
@@ -977,7 +1012,7 @@ public class SensorBaseClient {
    * @param projectName The name of the project. 
    * @return True if this user is now a member of the 
    */
-  public synchronized boolean inProject(String email, String projectName) {
+  public boolean inProject(String email, String projectName) {
     String key = email + '/' + projectName;
     double maxLifeHours = 0.05;
     if (this.isCacheEnabled && this.uriCache.get(key) != null) {
@@ -1029,7 +1064,7 @@ public class SensorBaseClient {
    * @return The project representation as a result of the invitation.
    * @throws SensorBaseClientException If the server does not return success.
    */
-  public synchronized Project invite(String email, String projectName) 
+  public Project invite(String email, String projectName) 
   throws SensorBaseClientException {
     
     // First, get the project representation.
@@ -1056,7 +1091,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server returns an error from this acceptance, for
    * example if the user has not actually been invited.
    */
-  public synchronized void reply(String owner, String projectName, InvitationReply reply) 
+  public void reply(String owner, String projectName, InvitationReply reply) 
   throws SensorBaseClientException {
     Response response = makeRequest(Method.POST, 
         projectsUri + owner + "/" + projectName + "/invitation/" + 
@@ -1075,7 +1110,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server returns an error from this acceptance, for
    * example if the new project name is not unique. 
    */
-  public synchronized void renameProject(String owner, String projectName, String newProjectName) 
+  public void renameProject(String owner, String projectName, String newProjectName) 
   throws SensorBaseClientException {
     Response response = makeRequest(Method.POST, 
         projectsUri + owner + "/" + projectName + "/rename/" + newProjectName, null); 
@@ -1094,7 +1129,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return the user or returns something
    *         that cannot be marshalled into Java Project instance.
    */
-  public synchronized Project getProject(ProjectRef ref) throws SensorBaseClientException {
+  public Project getProject(ProjectRef ref) throws SensorBaseClientException {
     Response response = getUri(ref.getHref());
     Project project;
     if (!response.getStatus().isSuccess()) {
@@ -1119,7 +1154,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return success or returns something
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getProjectSensorData(String owner, String projectName)
+  public SensorDataIndex getProjectSensorData(String owner, String projectName)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
         + "/sensordata", null);
@@ -1150,7 +1185,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return success or returns something
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getProjectSensorData(String owner, String projectName,
+  public SensorDataIndex getProjectSensorData(String owner, String projectName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
@@ -1182,7 +1217,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return success or returns something
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getProjectSensorData(String owner, String projectName,
+  public SensorDataIndex getProjectSensorData(String owner, String projectName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
@@ -1215,7 +1250,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return success or returns something
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getProjectSensorData(String owner, String projectName,
+  public SensorDataIndex getProjectSensorData(String owner, String projectName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
@@ -1253,7 +1288,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If the server does not return success or returns something
    *         that cannot be marshalled into Java SensorDataIndex instance.
    */
-  public synchronized SensorDataIndex getProjectSensorData(String owner, String projectName,
+  public SensorDataIndex getProjectSensorData(String owner, String projectName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int startIndex, 
       int maxInstances) throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
@@ -1273,6 +1308,273 @@ public class SensorBaseClient {
     return index;
   }
   
+  /**
+   * Returns a SensorDataIndex representing one page of at most maxInstances of the SensorData 
+   * for the Project during the time interval, ordered by timestamp. 
+   * To retrieve the first page, pass a null continuationToken. If more data remains, the 
+   * returned index's ContinuationToken is non-null, and passing it to this method returns the 
+   * next page. Paging this way is much cheaper for the server than paging by startIndex, 
+   * and data sent while paging does not cause instances to be skipped or repeated.
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param continuationToken The ContinuationToken of the previous page, or null for the 
+   * first page.
+   * @param maxInstances The maximum number of instances to return, which must be positive.
+   * @return A SensorDataIndex.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDataIndex instance.
+   */
+  public SensorDataIndex getProjectSensorData(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String continuationToken, 
+      int maxInstances) throws SensorBaseClientException {
+    String uri = projectsUri + owner + "/" + projectName + "/sensordata?startTime=" + startTime 
+        + andEndTime + endTime + "&maxInstances=" + maxInstances;
+    if (continuationToken != null) {
+      uri += "&continuationToken=" + continuationToken;
+    }
+    Response response = makeRequest(Method.GET, uri, null);
+    SensorDataIndex index;
+    if (!response.getStatus().isSuccess()) {
+      throw new SensorBaseClientException(response.getStatus());
+    }
+    try {
+      String xmlData = response.getEntity().getText();
+      index = makeSensorDataIndex(xmlData);
+    }
+    catch (Exception e) {
+      throw new SensorBaseClientException(response.getStatus(), e);
+    }
+    return index;
+  }
+  
+  /**
+   * Returns a SensorDatas containing the SensorData instances for the Project during the time 
+   * interval, ordered by timestamp. This returns in one request the instances that 
+   * getProjectSensorData(owner, projectName, startTime, endTime) lists in its index, rather than
+   * requiring a further request for each of them. 
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @return A SensorDatas.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDatas instance.
+   */
+  public SensorDatas getProjectSensorDatas(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) 
+      throws SensorBaseClientException {
+    return getSensorDatas(Method.GET, projectsUri + owner + "/" + projectName 
+        + "/sensordata/batch?startTime=" + startTime + andEndTime + endTime, null);
+  }
+  
+  /**
+   * Returns a SensorDatas containing the SensorData instances with the given SDT for the 
+   * Project during the time interval, ordered by timestamp.
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The SensorDataType.
+   * @return A SensorDatas.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDatas instance.
+   */
+  public SensorDatas getProjectSensorDatas(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt) 
+      throws SensorBaseClientException {
+    return getSensorDatas(Method.GET, projectsUri + owner + "/" + projectName 
+        + "/sensordata/batch?sdt=" + sdt + "&startTime=" + startTime + andEndTime + endTime, 
+        null);
+  }
+  
+  /**
+   * Returns a SensorDatas containing the SensorData instances with the given SDT and tool for 
+   * the Project during the time interval, ordered by timestamp.
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The SensorDataType.
+   * @param tool The tool that generated this sensor data of the given type.
+   * @return A SensorDatas.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDatas instance.
+   */
+  public SensorDatas getProjectSensorDatas(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool) 
+      throws SensorBaseClientException {
+    return getSensorDatas(Method.GET, projectsUri + owner + "/" + projectName 
+        + "/sensordata/batch?sdt=" + sdt + "&startTime=" + startTime + andEndTime + endTime 
+        + "&tool=" + tool, null);
+  }
+  
+  /**
+   * Returns a SensorDatas containing the SensorData instances named by the passed refs, which 
+   * are typically some or all of those in an index returned by getProjectSensorData. This 
+   * retrieves them in one request rather than one request per instance. The instances are
+   * grouped by owner and ordered by timestamp within each owner. Refs whose owner is not in the
+   * project, that fall outside of the project's start and end times, or that name instances
+   * that no longer exist are skipped.
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param refs The SensorDataRefs of the instances.
+   * @return A SensorDatas.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDatas instance.
+   */
+  public SensorDatas getProjectSensorDatas(String owner, String projectName, 
+      List<SensorDataRef> refs) throws SensorBaseClientException {
+    Representation representation;
+    try {
+      SensorDataIndex index = new SensorDataIndex();
+      index.getSensorDataRef().addAll(refs);
+      representation = SensorBaseResource.getStringRepresentation(sensordataJAXB.marshal(index));
+    }
+    catch (Exception e) {
+      throw new SensorBaseClientException("Error marshalling sensor data refs", e);
+    }
+    return getSensorDatas(Method.POST, projectsUri + owner + "/" + projectName 
+        + "/sensordata/batch", representation);
+  }
+  
+  /**
+   * Returns a SensorDataRows holding the passed fields of each SensorData instance for the 
+   * Project during the time interval, ordered by timestamp. Each Row holds one Value per field,
+   * in the order of fields. Owner, Timestamp, Runtime, Tool, SensorDataType, Resource and 
+   * LastMod name the instance's value of that name; any other field names the value of the 
+   * Property with that key, which is empty if the instance has no such Property.
+   * This is much smaller than the SensorDatas holding the same instances.
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param fields The field names.
+   * @return A SensorDataRows.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDataRows instance.
+   */
+  public SensorDataRows getProjectSensorDataRows(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> fields) 
+      throws SensorBaseClientException {
+    return getSensorDataRows(projectsUri + owner + "/" + projectName 
+        + "/sensordata?startTime=" + startTime + andEndTime + endTime 
+        + "&fields=" + joinFields(fields));
+  }
+  
+  /**
+   * Returns a SensorDataRows holding the passed fields of each SensorData instance with the 
+   * given SDT for the Project during the time interval, ordered by timestamp. 
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The SensorDataType.
+   * @param fields The field names, as in getProjectSensorDataRows(owner, projectName, 
+   * startTime, endTime, fields).
+   * @return A SensorDataRows.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDataRows instance.
+   */
+  public SensorDataRows getProjectSensorDataRows(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, 
+      List<String> fields) throws SensorBaseClientException {
+    return getSensorDataRows(projectsUri + owner + "/" + projectName 
+        + "/sensordata?sdt=" + sdt + "&startTime=" + startTime + andEndTime + endTime 
+        + "&fields=" + joinFields(fields));
+  }
+  
+  /**
+   * Returns a SensorDataRows holding the passed fields of each SensorData instance with the 
+   * given SDT and tool for the Project during the time interval, ordered by timestamp. 
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The SensorDataType.
+   * @param tool The tool that generated this sensor data of the given type.
+   * @param fields The field names, as in getProjectSensorDataRows(owner, projectName, 
+   * startTime, endTime, fields).
+   * @return A SensorDataRows.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDataRows instance.
+   */
+  public SensorDataRows getProjectSensorDataRows(String owner, String projectName,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool, 
+      List<String> fields) throws SensorBaseClientException {
+    return getSensorDataRows(projectsUri + owner + "/" + projectName 
+        + "/sensordata?sdt=" + sdt + "&startTime=" + startTime + andEndTime + endTime 
+        + "&tool=" + tool + "&fields=" + joinFields(fields));
+  }
+  
+  /**
+   * Returns the field names as the comma-separated value of the fields parameter.
+   * @param fields The field names.
+   * @return The parameter value.
+   */
+  private static String joinFields(List<String> fields) {
+    StringBuilder builder = new StringBuilder(64);
+    for (String field : fields) {
+      builder.append((builder.length() == 0) ? "" : ",").append(field);
+    }
+    return builder.toString();
+  }
+  
+  /**
+   * Makes a GET request that returns a SensorDataRows, and returns it.
+   * @param requestString The URI, relative to the host.
+   * @return The SensorDataRows.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDataRows instance.
+   */
+  private SensorDataRows getSensorDataRows(String requestString) 
+      throws SensorBaseClientException {
+    Response response = makeRequest(Method.GET, requestString, null);
+    if (!response.getStatus().isSuccess()) {
+      throw new SensorBaseClientException(response.getStatus());
+    }
+    try {
+      String xmlData = response.getEntity().getText();
+      return (SensorDataRows) sensordataJAXB.unmarshal(xmlData);
+    }
+    catch (Exception e) {
+      throw new SensorBaseClientException(response.getStatus(), e);
+    }
+  }
+  
+  /**
+   * Makes a request that returns a SensorDatas, and returns it.
+   * @param method The method.
+   * @param requestString The URI, relative to the host.
+   * @param entity The representation to send, or null.
+   * @return The SensorDatas.
+   * @throws SensorBaseClientException If the server does not return success or returns something
+   *         that cannot be marshalled into Java SensorDatas instance.
+   */
+  private SensorDatas getSensorDatas(Method method, String requestString, Representation entity)
+      throws SensorBaseClientException {
+    Response response = makeRequest(method, requestString, entity);
+    if (!response.getStatus().isSuccess()) {
+      throw new SensorBaseClientException(response.getStatus());
+    }
+    try {
+      String xmlData = response.getEntity().getText();
+      return makeSensorDatas(xmlData);
+    }
+    catch (Exception e) {
+      throw new SensorBaseClientException(response.getStatus(), e);
+    }
+  }
+  
   /**
    * Returns a SensorDataIndex containing a snapshot of the sensor data for the given project and
    * sdt during the specified time interval.  A "snapshot" is the set of sensor data with the most
@@ -1285,7 +1587,7 @@ public class SensorBaseClient {
    * @return The SensorDataIndex containing the "snapshot".
    * @throws SensorBaseClientException If problems occur.
    */
-  public synchronized SensorDataIndex getProjectSensorDataSnapshot(String owner, String projectName,
+  public SensorDataIndex getProjectSensorDataSnapshot(String owner, String projectName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt) 
   throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
@@ -1317,7 +1619,7 @@ public class SensorBaseClient {
    * @return The SensorDataIndex containing the "snapshot".
    * @throws SensorBaseClientException If problems occur.
    */
-  public synchronized SensorDataIndex getProjectSensorDataSnapshot(String owner, String projectName,
+  public SensorDataIndex getProjectSensorDataSnapshot(String owner, String projectName,
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool) 
   throws SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName
@@ -1347,7 +1649,7 @@ public class SensorBaseClient {
    * @return A ProjectSummary.
    * @throws SensorBaseClientException If problems occur.
    */
-  public synchronized ProjectSummary getProjectSummary(String owner, String projectName, 
+  public ProjectSummary getProjectSummary(String owner, String projectName, 
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) 
   throws  SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName 
@@ -1376,7 +1678,7 @@ public class SensorBaseClient {
    * @return The MulitDayProjectSummary instance. 
    * @throws SensorBaseClientException If problems occur. 
    */
-  public synchronized MultiDayProjectSummary getMultiDayProjectSummary(String owner, 
+  public MultiDayProjectSummary getMultiDayProjectSummary(String owner, 
       String projectName, XMLGregorianCalendar startTime, int numDays) 
   throws  SensorBaseClientException {
     Response response = makeRequest(Method.GET, projectsUri + owner + "/" + projectName 
@@ -1405,7 +1707,7 @@ public class SensorBaseClient {
    * @return A MultiDayProjectSummary for the specified month. 
    * @throws SensorBaseClientException If problems occur. 
    */
-  public synchronized MultiDayProjectSummary getMonthProjectSummary (String owner, 
+  public MultiDayProjectSummary getMonthProjectSummary (String owner, 
       String projectName, int year, int month) throws SensorBaseClientException {
     XMLGregorianCalendar startDay = Tstamp.makeTimestamp();
     startDay.setDay(1);
@@ -1421,7 +1723,7 @@ public class SensorBaseClient {
    * @param project The project to create.
    * @throws SensorBaseClientException If problems occur posting this data.
    */
-  public synchronized void putProject(Project project) throws SensorBaseClientException {
+  public void putProject(Project project) throws SensorBaseClientException {
     try {
       String xmlData = makeProject(project);
       Representation representation = SensorBaseResource.getStringRepresentation(xmlData);
@@ -1448,7 +1750,7 @@ public class SensorBaseClient {
    * @param projectName The project name.
    * @throws SensorBaseClientException If the server does not indicate success.
    */
-  public synchronized void deleteProject(String email, String projectName)
+  public void deleteProject(String email, String projectName)
       throws SensorBaseClientException {
     Response response = makeRequest(Method.DELETE, projectsUri + email + "/" + projectName, null);
     if (!response.getStatus().isSuccess()) {
@@ -1456,6 +1758,205 @@ public class SensorBaseClient {
     }
   }
 
+  /**
+   * Returns the SensorData for this user from this server with the specified timestamp, 
+   * retrieved in the background as by getSensorData(email, timestamp). The Future's get() 
+   * throws an ExecutionException whose cause is the SensorBaseClientException if the request 
+   * fails.
+   * 
+   * @param email The user email.
+   * @param timestamp The timestamp.
+   * @return A Future holding the SensorData instance.
+   */
+  public Future<SensorData> getSensorDataAsync(final String email, 
+      final XMLGregorianCalendar timestamp) {
+    return submit(new Callable<SensorData>() {
+      public SensorData call() throws SensorBaseClientException {
+        return getSensorData(email, timestamp);
+      }
+    });
+  }
+
+  /**
+   * Returns the SensorData associated with the SensorDataRef, retrieved in the background as by
+   * getSensorData(ref). 
+   * 
+   * @param ref The SensorDataRef instance.
+   * @return A Future holding the SensorData instance.
+   */
+  public Future<SensorData> getSensorDataAsync(final SensorDataRef ref) {
+    return submit(new Callable<SensorData>() {
+      public SensorData call() throws SensorBaseClientException {
+        return getSensorData(ref);
+      }
+    });
+  }
+
+  /**
+   * Returns a SensorDataIndex representing the SensorData for the Project during the time 
+   * interval, retrieved in the background as by getProjectSensorData(owner, projectName, 
+   * startTime, endTime).
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @return A Future holding the SensorDataIndex.
+   */
+  public Future<SensorDataIndex> getProjectSensorDataAsync(final String owner, 
+      final String projectName, final XMLGregorianCalendar startTime, 
+      final XMLGregorianCalendar endTime) {
+    return submit(new Callable<SensorDataIndex>() {
+      public SensorDataIndex call() throws SensorBaseClientException {
+        return getProjectSensorData(owner, projectName, startTime, endTime);
+      }
+    });
+  }
+
+  /**
+   * Returns a SensorDataIndex representing the SensorData with the given SDT for the Project 
+   * during the time interval, retrieved in the background as by getProjectSensorData(owner, 
+   * projectName, startTime, endTime, sdt).
+   * 
+   * @param owner The project owner's email.
+   * @param projectName The project name.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The SensorDataType.
+   * @return A Future holding the SensorDataIndex.
+   */
+  public Future<SensorDataIndex> getProjectSensorDataAsync(final String owner, 
+      final String projectName, final XMLGregorianCalendar startTime, 
+      final XMLGregorianCalendar endTime, final String sdt) {
+    return submit(new Callable<SensorDataIndex>() {
+      public SensorDataIndex call() throws SensorBaseClientException {
+        return getProjectSensorData(owner, projectName, startTime, endTime, sdt);
+      }
+    });
+  }
+
+  /**
+   * Returns a ProjectSummary for the given interval, retrieved in the background as by
+   * getProjectSummary(owner, projectName, startTime, endTime).
+   * 
+   * @param owner The project owner.
+   * @param projectName The project name.
+   * @param startTime The start time. 
+   * @param endTime The end time.
+   * @return A Future holding the ProjectSummary.
+   */
+  public Future<ProjectSummary> getProjectSummaryAsync(final String owner, 
+      final String projectName, final XMLGregorianCalendar startTime, 
+      final XMLGregorianCalendar endTime) {
+    return submit(new Callable<ProjectSummary>() {
+      public ProjectSummary call() throws SensorBaseClientException {
+        return getProjectSummary(owner, projectName, startTime, endTime);
+      }
+    });
+  }
+
+  /**
+   * Creates the passed SensorData on the server in the background, as by putSensorData(data).
+   * The Future's get() returns null once the data has been stored.
+   * 
+   * @param data The sensor data to create.
+   * @return A Future that completes when the data has been stored.
+   */
+  public Future<Void> putSensorDataAsync(final SensorData data) {
+    return submit(new Callable<Void>() {
+      public Void call() throws SensorBaseClientException {
+        putSensorData(data);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Creates the passed batch of SensorData on the server in the background, as by 
+   * putSensorDataBatch(data). The Future's get() returns null once the batch has been stored.
+   * 
+   * @param data The sensor data batch to create, represented as a SensorDatas instance.
+   * @return A Future that completes when the batch has been stored.
+   */
+  public Future<Void> putSensorDataBatchAsync(final SensorDatas data) {
+    return submit(new Callable<Void>() {
+      public Void call() throws SensorBaseClientException {
+        putSensorDataBatch(data);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Runs the passed request on the threads for this client's host. All clients of a host share
+   * its threads, so at most the number given by the sensorbaseclient.maxrequests property 
+   * (default 4) of their asynchronous requests are in progress at once; the rest wait in turn.
+   * 
+   * @param <T> The type of the result.
+   * @param request The request.
+   * @return The Future holding the result of the request.
+   */
+  private <T> Future<T> submit(Callable<T> request) {
+    ExecutorService executor = hostExecutors.get(this.sensorBaseHost);
+    if (executor == null) {
+      ExecutorService newExecutor = Executors.newFixedThreadPool(getDefaultMaxRequests(), 
+          new HostThreadFactory(this.sensorBaseHost));
+      executor = hostExecutors.putIfAbsent(this.sensorBaseHost, newExecutor);
+      if (executor == null) {
+        executor = newExecutor;
+      }
+      else {
+        newExecutor.shutdown();
+      }
+    }
+    return executor.submit(request);
+  }
+
+  /**
+   * Returns the maximum number of asynchronous requests in progress to each host. 
+   * The default is 4, but clients can change this by creating a System property called 
+   * sensorbaseclient.maxrequests, read when a host is first used, and set it to a String 
+   * indicating the number of requests.
+   * @return The maximum number of requests.
+   */
+  private static int getDefaultMaxRequests() {
+    String systemMaxRequests = System.getProperty(SENSORBASECLIENT_MAXREQUESTS_KEY, "4");
+    int maxRequests = 4;
+    try {
+      maxRequests = Math.max(1, Integer.parseInt(systemMaxRequests));
+    }
+    catch (Exception e) {
+      maxRequests = 4;
+    }
+    return maxRequests;
+  }
+
+  /**
+   * Makes the daemon threads that run the asynchronous requests to a host, so that they do not
+   * keep the JVM running.
+   */
+  private static final class HostThreadFactory implements ThreadFactory {
+    /** The host, used to name the threads. */
+    private final String host;
+    /** The number of threads made. */
+    private int numThreads = 0;
+
+    /**
+     * Creates the factory.
+     * @param host The host.
+     */
+    HostThreadFactory(String host) {
+      this.host = host;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "SensorBaseClient " + this.host + " " + numThreads++);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
   /**
    * Registers the given user email with the given SensorBase.
    * Timeout is set to 5 seconds. 
@@ -1610,14 +2111,115 @@ public class SensorBaseClient {
         }
       }
     }
+    // Make the GET conditional if we have a representation of this resource with validators.
+    boolean isConditional = this.isCacheEnabled && Method.GET.equals(method);
+    ValidatedRepresentation validated = isConditional 
+        ? (ValidatedRepresentation) this.uriCache.get(validatedKeyPrefix + requestString) : null;
+    if (validated != null) {
+      validated.setConditions(request);
+    }
     Response response = this.client.handle(request);
     if (this.isTraceEnabled) {
       Status status = response.getStatus();
       System.out.println("  => " + status.getCode() + " " + status.getDescription());
     }
+    return isConditional ? updateValidated(requestString, response, validated) : response;
+  }
+
+  /**
+   * Returns the response to a GET of a resource whose representations may carry validators.
+   * If the server replied 304 (Not Modified) to a conditional GET, returns a 200 response 
+   * holding our saved representation, so that callers need not distinguish the two. Otherwise,
+   * if the response holds a representation with validators, saves it for the next GET. 
+   * @param requestString The request string, such as "sensordatatypes".
+   * @param response The response from the server.
+   * @param validated The saved representation sent as the conditions of the GET, or null.
+   * @return The response.
+   */
+  private Response updateValidated(String requestString, Response response,
+      ValidatedRepresentation validated) {
+    Status status = response.getStatus();
+    if (Status.REDIRECTION_NOT_MODIFIED.equals(status) && (validated != null)) {
+      Response savedResponse = new Response(response.getRequest());
+      savedResponse.setStatus(Status.SUCCESS_OK);
+      savedResponse.setEntity(validated.getRepresentation());
+      return savedResponse;
+    }
+    Representation entity = response.getEntity();
+    if (status.isSuccess() && (entity != null) && 
+        ((entity.getTag() != null) || (entity.getModificationDate() != null))) {
+      try {
+        ValidatedRepresentation newValidated = new ValidatedRepresentation(entity);
+        this.uriCache.put(validatedKeyPrefix + requestString, newValidated);
+        response.setEntity(newValidated.getRepresentation());
+      }
+      catch (IOException e) {
+        response.setStatus(Status.CONNECTOR_ERROR_COMMUNICATION, e);
+      }
+    }
     return response;
   }
 
+  /**
+   * The XML representation of a resource, along with the ETag and Last-Modified validators 
+   * that the server sent with it. It is saved in the uriCache, and its validators are sent as
+   * the conditions of the next GET of the resource, so that the server need only reply 304 
+   * (Not Modified) if the resource has not changed. The XML string is saved, rather than the 
+   * unmarshalled instance, so that each caller gets its own copy.
+   */
+  private static final class ValidatedRepresentation implements Serializable {
+    /** For serialization. */
+    private static final long serialVersionUID = 1L;
+    /** The formatted ETag, or null. */
+    private final String tag;
+    /** The Last-Modified date, or null. */
+    private final Date modificationDate;
+    /** The XML representation. */
+    private final String xml;
+
+    /**
+     * Reads and saves the passed representation.
+     * @param entity The representation, whose tag or modification date is not null. 
+     * @throws IOException If the representation cannot be read.
+     */
+    ValidatedRepresentation(Representation entity) throws IOException {
+      this.tag = (entity.getTag() == null) ? null : entity.getTag().format();
+      this.modificationDate = entity.getModificationDate();
+      this.xml = entity.getText();
+    }
+
+    /**
+     * Sets the conditions of the passed GET request so that the server replies 304 if this
+     * representation is still current. The ETag is sent if there is one, since it identifies
+     * the representation exactly; the date, which is only precise to the second, otherwise.
+     * @param request The request.
+     */
+    void setConditions(Request request) {
+      if (this.tag != null) {
+        List<Tag> noneMatch = new ArrayList<Tag>();
+        noneMatch.add(Tag.parse(this.tag));
+        request.getConditions().setNoneMatch(noneMatch);
+      }
+      else if (this.modificationDate != null) {
+        request.getConditions().setModifiedSince(this.modificationDate);
+      }
+    }
+
+    /**
+     * Returns a new copy of the saved representation.
+     * @return The representation.
+     */
+    Representation getRepresentation() {
+      StringRepresentation representation = 
+        new StringRepresentation(this.xml, MediaType.TEXT_XML, null, CharacterSet.UTF_8);
+      if (this.tag != null) {
+        representation.setTag(Tag.parse(this.tag));
+      }
+      representation.setModificationDate(this.modificationDate);
+      return representation;
+    }
+  }
+
   /**
    * Takes a String encoding of a SensorDataType in XML format and converts it to an instance.
    * 
@@ -1626,8 +2228,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private SensorDataType makeSensorDataType(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = sdtJAXB.createUnmarshaller();
-    return (SensorDataType) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorDataType) sdtJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1638,8 +2239,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private SensorDataTypeIndex makeSensorDataTypeIndex(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = sdtJAXB.createUnmarshaller();
-    return (SensorDataTypeIndex) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorDataTypeIndex) sdtJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1650,22 +2250,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during translation.
    */
   private String makeSensorDataType(SensorDataType sdt) throws Exception {
-    Marshaller marshaller = sdtJAXB.createMarshaller();
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(sdt, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction. This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return sdtJAXB.marshal(sdt);
   }
 
   /**
@@ -1676,8 +2261,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private User makeUser(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = userJAXB.createUnmarshaller();
-    return (User) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (User) userJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1688,8 +2272,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private UserIndex makeUserIndex(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = userJAXB.createUnmarshaller();
-    return (UserIndex) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (UserIndex) userJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1700,22 +2283,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during translation.
    */
   private String makeProperties(Properties properties) throws Exception {
-    Marshaller marshaller = userJAXB.createMarshaller();
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(properties, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction. This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return userJAXB.marshal(properties);
   }
 
   /**
@@ -1726,8 +2294,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private SensorDataIndex makeSensorDataIndex(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = sensordataJAXB.createUnmarshaller();
-    return (SensorDataIndex) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorDataIndex) sensordataJAXB.unmarshal(xmlString);
   }
   
   /**
@@ -1738,8 +2305,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private ProjectSummary makeProjectSummary(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = projectJAXB.createUnmarshaller();
-    return (ProjectSummary) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (ProjectSummary) projectJAXB.unmarshal(xmlString);
   }
   
   /**
@@ -1750,8 +2316,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private MultiDayProjectSummary makeMultiDayProjectSummary(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = projectJAXB.createUnmarshaller();
-    return (MultiDayProjectSummary) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (MultiDayProjectSummary) projectJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1762,8 +2327,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private SensorData makeSensorData(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = sensordataJAXB.createUnmarshaller();
-    return (SensorData) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorData) sensordataJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1775,22 +2339,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during translation.
    */
   private final String makeSensorData(SensorData data) throws Exception {
-    Marshaller marshaller = sensordataJAXB.createMarshaller();
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(data, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction. This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return sensordataJAXB.marshal(data);
   }
 
   /**
@@ -1801,22 +2350,18 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during translation.
    */
   private String makeSensorDatas(SensorDatas data) throws Exception {
-    Marshaller marshaller = sensordataJAXB.createMarshaller();
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(data, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction. This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return sensordataJAXB.marshal(data);
+  }
+
+  /**
+   * Takes a String encoding of a SensorDatas in XML format and converts it to an instance.
+   * 
+   * @param xmlString The XML string representing a SensorDatas.
+   * @return The corresponding SensorDatas instance.
+   * @throws Exception If problems occur during unmarshalling.
+   */
+  private SensorDatas makeSensorDatas(String xmlString) throws Exception {
+    return (SensorDatas) sensordataJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1827,8 +2372,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private Project makeProject(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = projectJAXB.createUnmarshaller();
-    return (Project) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (Project) projectJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1839,8 +2383,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during unmarshalling.
    */
   private ProjectIndex makeProjectIndex(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = projectJAXB.createUnmarshaller();
-    return (ProjectIndex) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (ProjectIndex) projectJAXB.unmarshal(xmlString);
   }
 
   /**
@@ -1851,22 +2394,7 @@ public class SensorBaseClient {
    * @throws Exception If problems occur during translation.
    */
   private String makeProject(Project project) throws Exception {
-    Marshaller marshaller = projectJAXB.createMarshaller();
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(project, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction. This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return projectJAXB.marshal(project);
   }
   
   /**
@@ -1889,6 +2417,9 @@ public class SensorBaseClient {
   /**
    * Enables caching in this client.
    * If caching has already been enabled, then does nothing.  
+   * Once caching is enabled, the representations of sensor data indexes, project summaries, and
+   * the SDT index are also cached, and each later GET of them is conditional, so that the 
+   * server does not recompute or resend one that has not changed.
    * @param cacheName The name of the cache.
    * @param subDir The subdirectory in which the cache backend store is saved.
    * @param maxLife The default expiration time for objects, in days.
@@ -1906,18 +2437,19 @@ public class SensorBaseClient {
    * Delete all entries from this cache. 
    * If the cache is not enabled, then does nothing.
    */
-  public synchronized void clearCache() {
+  public void clearCache() {
     if (this.isCacheEnabled) {
       this.uriCache.clear();
     }
   }
   
   /**
-   * Compresses the server database tables.  
+   * Compresses the server database tables. The server does this in the background, and this 
+   * method returns once the job is queued; getDbJobs() reports its progress.
    * You must be the admin user in order for this command to succeed.
    * @throws SensorBaseClientException If problems occur posting this data.
    */
-  public synchronized void compressTables() throws SensorBaseClientException {
+  public void compressTables() throws SensorBaseClientException {
     try {
       Response response = makeRequest(Method.PUT, "db/table/compress", null);
       if (!response.getStatus().isSuccess()) {
@@ -1935,11 +2467,12 @@ public class SensorBaseClient {
   }
   
   /**
-   * Indexes the server database tables.  
+   * Indexes the server database tables. The server does this in the background, and this 
+   * method returns once the job is queued; getDbJobs() reports its progress.
    * You must be the admin user in order for this command to succeed.
    * @throws SensorBaseClientException If problems occur posting this data.
    */
-  public synchronized void indexTables() throws SensorBaseClientException {
+  public void indexTables() throws SensorBaseClientException {
     try {
       Response response = makeRequest(Method.PUT, "db/table/index", null);
       if (!response.getStatus().isSuccess()) {
@@ -1956,6 +2489,44 @@ public class SensorBaseClient {
     }
   }
   
+  /**
+   * Returns the server's queued, running, and recently finished database jobs.
+   * You must be the admin user in order for this command to succeed.
+   * @return The XML DbJobs string.
+   * @throws SensorBaseClientException If problems occur retrieving the jobs.
+   */
+  public String getDbJobs() throws SensorBaseClientException {
+    try {
+      Response response = makeRequest(Method.GET, "db/jobs", null);
+      if (!response.getStatus().isSuccess()) {
+        throw new SensorBaseClientException(response.getStatus());
+      }
+      return response.getEntity().getText();
+    }
+    // Allow SensorBaseClientExceptions to be thrown out of this method.
+    catch (SensorBaseClientException f) {
+      throw f;
+    }
+    // All other exceptions are caught and rethrown.
+    catch (Exception e) {
+      throw new SensorBaseClientException("Error in db command", e);
+    }
+  }
+  
+  /**
+   * Cancels a queued or running database job. 
+   * You must be the admin user in order for this command to succeed.
+   * @param id The job's identifier, as given by getDbJobs().
+   * @throws SensorBaseClientException If problems occur, including when the job does not exist 
+   * or has already finished.
+   */
+  public void cancelDbJob(int id) throws SensorBaseClientException {
+    Response response = makeRequest(Method.DELETE, "db/jobs/" + id, null);
+    if (!response.getStatus().isSuccess()) {
+      throw new SensorBaseClientException(response.getStatus());
+    }
+  }
+  
   /**
    * Gets the rowcount for the specified table.
    * You must be the admin user in order for this command to succeed.
@@ -1964,7 +2535,7 @@ public class SensorBaseClient {
    * @throws SensorBaseClientException If problems occur posting this data.
    * This can happen if the user is not the admin user, or if the table name is invalid.
    */
-  public synchronized int rowCount(String table) throws SensorBaseClientException {
+  public int rowCount(String table) throws SensorBaseClientException {
     try {
       Response response = makeRequest(Method.GET, "db/table/" + table + "/rowcount", null);
       if (!response.getStatus().isSuccess()) {
@@ -1983,4 +2554,51 @@ public class SensorBaseClient {
     }
   }
 
+  /**
+   * Starts a run of the server's retention policy, which deletes expired sensor data in the 
+   * background. You must be the admin user in order for this command to succeed.
+   * @throws SensorBaseClientException If problems occur, including when a run is already in
+   * progress.
+   */
+  public void startRetention() throws SensorBaseClientException {
+    try {
+      Response response = makeRequest(Method.PUT, "db/retention", null);
+      if (!response.getStatus().isSuccess()) {
+        throw new SensorBaseClientException(response.getStatus());
+      }
+    }
+    // Allow SensorBaseClientExceptions to be thrown out of this method.
+    catch (SensorBaseClientException f) {
+      throw f;
+    }
+    // All other exceptions are caught and rethrown.
+    catch (Exception e) {
+      throw new SensorBaseClientException("Error in retention command", e);
+    }
+  }
+
+  /**
+   * Returns the progress of the server's latest retention run, and its retention rules.
+   * You must be the admin user in order for this command to succeed.
+   * @return The XML RetentionStatus string.
+   * @throws SensorBaseClientException If problems occur retrieving the status.
+   */
+  public String getRetentionStatus() throws SensorBaseClientException {
+    try {
+      Response response = makeRequest(Method.GET, "db/retention", null);
+      if (!response.getStatus().isSuccess()) {
+        throw new SensorBaseClientException(response.getStatus());
+      }
+      return response.getEntity().getText();
+    }
+    // Allow SensorBaseClientExceptions to be thrown out of this method.
+    catch (SensorBaseClientException f) {
+      throw f;
+    }
+    // All other exceptions are caught and rethrown.
+    catch (Exception e) {
+      throw new SensorBaseClientException("Error in retention command", e);
+    }
+  }
+
 }
@@ -11,12 +11,16 @@ public class SensorBaseClientException extends Exception {
   /** The default serial version UID. */
   private static final long serialVersionUID = 1L;
   
+  /** The status code returned by the Server, or 0 if the problem did not involve it. */
+  private final int statusCode;
+  
   /**
    * Thrown when an unsuccessful status code is returned from the Server.
    * @param status The Status instance indicating the problem.
    */
   public SensorBaseClientException(Status status) {
     super(status.getCode() + ": " + status.getDescription());
+    this.statusCode = status.getCode();
   }
 
   /**
@@ -26,6 +30,7 @@ public class SensorBaseClientException extends Exception {
    */
   public SensorBaseClientException(Status status, Throwable error) {
     super(status.getCode() + ": " + status.getDescription(), error);
+    this.statusCode = status.getCode();
   }
   
   /**
@@ -35,6 +40,7 @@ public class SensorBaseClientException extends Exception {
    */
   public SensorBaseClientException(String description, Throwable error) {
     super(description, error);
+    this.statusCode = 0;
   }
   
   /**
@@ -43,6 +49,25 @@ public class SensorBaseClientException extends Exception {
    */
   public SensorBaseClientException(String description) {
     super(description);
+    this.statusCode = 0;
+  }
+  
+  /**
+   * Returns the status code returned by the Server, such as 400 or 503. Restlet reports a
+   * Server that cannot be reached with a connector error code of 1000 or more.
+   * @return The status code, or 0 if the problem did not involve the Server.
+   */
+  public int getStatusCode() {
+    return this.statusCode;
+  }
+  
+  /**
+   * Returns true if the Server refused the request as a client error (a 4xx status code), 
+   * so that making the same request again would fail in the same way.
+   * @return True if the request was refused.
+   */
+  public boolean isRejected() {
+    return (this.statusCode >= 400) && (this.statusCode < 500);
   }
 
 }
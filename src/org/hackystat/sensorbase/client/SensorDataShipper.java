@@ -0,0 +1,524 @@
+package org.hackystat.sensorbase.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDatas;
+
+/**
+ * Gathers sensor data into batches and sends them to the SensorBase with putSensorDataBatch
+ * from a single background thread, so that sensors never wait for the network.
+ * A batch is sent once it holds batchSize instances, or maxAge milliseconds after its first
+ * instance was taken from the buffer, whichever comes first. Each batch is split by owner.
+ * <p>
+ * A batch that cannot be sent is retried with exponentially increasing delays. If it still
+ * cannot be sent, because the SensorBase host is unreachable or unavailable (a 5xx status), 
+ * the batch is appended to the spill file and forced to disk. Instances are also spilled when
+ * the in-memory buffer is full. The spill file is sent again, oldest first, once the host can
+ * be reached, including by a new shipper started with the same file. To send it, the shipper
+ * renames it by appending ".sending", so that instances spilled meanwhile go to a new spill 
+ * file, and deletes the renamed file only once each of its instances has been sent, refused
+ * or spilled again. Since a PUT of sensor data replaces any instance with the same owner and
+ * timestamp, an instance that is sent twice is stored once. A batch that is refused by the 
+ * host (a 4xx status) is discarded at once and never spilled, since sending it again would 
+ * fail in the same way.
+ * <p>
+ * Without a spill file, instances that cannot be sent or buffered are discarded.
+ *
+ * @author Philip Johnson
+ */
+public class SensorDataShipper implements Runnable {
+
+  /** The delay in milliseconds before the first retry of a batch. */
+  private static final long initialRetryDelay = 1000;
+
+  /**
+   * The maximum delay in milliseconds between retries, and between attempts to send the spill
+   * file while the host is unreachable.
+   */
+  private static final long maxRetryDelay = 60 * 1000;
+
+  /** The number of attempts made to send a batch before it is spilled. */
+  private static final int maxAttempts = 5;
+
+  /** SensorData serializer for the spill file. */
+  private static final JaxbSerializer sensordataJAXB;
+
+  /** The client that sends the batches. */
+  private final SensorBaseClient client;
+
+  /** The buffered instances. */
+  private final BlockingQueue<SensorData> queue;
+
+  /** The maximum number of instances sent in one batch. */
+  private final int batchSize;
+
+  /** The maximum time in milliseconds that a batch is held before it is sent. */
+  private final long maxAge;
+
+  /** The spill file, or null if unsent instances are discarded. */
+  private final File spillFile;
+
+  /** Guards the spill file. */
+  private final Object spillLock = new Object();
+
+  /** Wakes the shipper from a retry delay when the shipper is closed. */
+  private final Object wakeup = new Object();
+
+  /** True if the spill file, or the file being sent, may hold instances. Guarded by spillLock. */
+  private boolean isSpillPending;
+
+  /** The time after which the spill file is next sent. Only used by the shipper thread. */
+  private long nextSpillReplay = 0;
+
+  /** The number of instances sent. */
+  private final AtomicLong numSent = new AtomicLong();
+
+  /** The number of instances written to the spill file. */
+  private final AtomicLong numSpilled = new AtomicLong();
+
+  /** The number of instances discarded. */
+  private final AtomicLong numDiscarded = new AtomicLong();
+
+  /** The most recent failure to send or spill, or null. */
+  private volatile Exception lastError = null;
+
+  /** False once close() has been called. Guarded by wakeup for writes. */
+  private volatile boolean running = true;
+
+  /** The background shipper thread. */
+  private final Thread shipper;
+
+  // JAXBContexts are thread safe, and the serializer keeps an Unmarshaller per thread.
+  static {
+    try {
+      sensordataJAXB = new JaxbSerializer(JAXBContext
+          .newInstance(org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class));
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Couldn't create JAXB context instance.", e);
+    }
+  }
+
+  /**
+   * Creates the shipper and starts its background thread. If the spill file holds instances
+   * from an earlier shipper, they are sent once the host can be reached.
+   * @param client The client used to send the sensor data.
+   * @param capacity The maximum number of instances buffered in memory.
+   * @param batchSize The maximum number of instances sent in one batch.
+   * @param maxAge The maximum time in milliseconds that a batch is held before it is sent.
+   * @param spillFile The spill file, or null to discard instances that cannot be sent.
+   */
+  public SensorDataShipper(SensorBaseClient client, int capacity, int batchSize, long maxAge,
+      File spillFile) {
+    this.client = client;
+    this.queue = new ArrayBlockingQueue<SensorData>(Math.max(1, capacity));
+    this.batchSize = Math.max(1, batchSize);
+    this.maxAge = Math.max(0, maxAge);
+    this.spillFile = spillFile;
+    this.isSpillPending = (spillFile != null) 
+        && ((spillFile.length() > 0) || getSendingFile().exists());
+    this.shipper = new Thread(this, "SensorDataShipper " + client.getHost());
+    this.shipper.setDaemon(true);
+    this.shipper.start();
+  }
+
+  /**
+   * Accepts the passed instance for sending. Never waits for the network: if the buffer is
+   * full, the instance is appended to the spill file instead.
+   * @param data The sensor data instance.
+   * @return True if the instance was buffered or spilled, false if it was discarded because
+   * the shipper is closed, or the buffer is full and it could not be spilled.
+   */
+  public boolean add(SensorData data) {
+    if (!this.running) {
+      return false;
+    }
+    if (this.queue.offer(data)) {
+      return true;
+    }
+    return spill(Collections.singletonList(data));
+  }
+
+  /**
+   * Stops accepting instances, and waits up to the passed time for the shipper to send or
+   * spill the buffered instances, making one attempt to send each remaining batch. Whatever
+   * is still buffered after that time is spilled.
+   * @param maxWait The maximum time to wait in milliseconds.
+   */
+  public void close(long maxWait) {
+    synchronized (this.wakeup) {
+      this.running = false;
+      this.wakeup.notifyAll();
+    }
+    // Ends the wait for a batch to fill, so the batch being gathered is sent now.
+    this.shipper.interrupt();
+    try {
+      this.shipper.join(maxWait);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<SensorData> remaining = new ArrayList<SensorData>();
+    this.queue.drainTo(remaining);
+    if (!remaining.isEmpty()) {
+      spill(remaining);
+    }
+  }
+
+  /**
+   * Returns the number of sensor data instances buffered in memory.
+   * @return The number of instances.
+   */
+  public int size() {
+    return this.queue.size();
+  }
+
+  /**
+   * Returns the number of sensor data instances sent to the SensorBase.
+   * @return The number of instances.
+   */
+  public long getNumSent() {
+    return this.numSent.get();
+  }
+
+  /**
+   * Returns the number of sensor data instances written to the spill file, including any
+   * written again after a failed attempt to send the spill file.
+   * @return The number of instances.
+   */
+  public long getNumSpilled() {
+    return this.numSpilled.get();
+  }
+
+  /**
+   * Returns the number of sensor data instances discarded, because they were refused by the
+   * SensorBase or could not be spilled.
+   * @return The number of instances.
+   */
+  public long getNumDiscarded() {
+    return this.numDiscarded.get();
+  }
+
+  /**
+   * Returns the most recent exception raised in sending or spilling sensor data.
+   * @return The exception, or null if there has been none.
+   */
+  public Exception getLastError() {
+    return this.lastError;
+  }
+
+  /**
+   * The shipper loop: sends the spill file when it is due, then gathers and sends the next
+   * batch, until the shipper has been closed and its buffer drained.
+   */
+  public void run() {
+    while (this.running || !this.queue.isEmpty()) {
+      if (this.running && isSpillDue()) {
+        sendSpillFile();
+      }
+      List<SensorData> batch = nextBatch();
+      if (!batch.isEmpty()) {
+        ship(batch);
+      }
+    }
+  }
+
+  /**
+   * Returns the next batch: the first buffered instance, followed by those that arrive before
+   * the batch is full or maxAge has passed.
+   * @return The batch, empty if nothing arrived within a second.
+   */
+  private List<SensorData> nextBatch() {
+    List<SensorData> batch = new ArrayList<SensorData>();
+    try {
+      SensorData first = this.queue.poll(1, TimeUnit.SECONDS);
+      if (first == null) {
+        return batch;
+      }
+      batch.add(first);
+      long deadline = System.currentTimeMillis() + this.maxAge;
+      while (batch.size() < this.batchSize) {
+        this.queue.drainTo(batch, this.batchSize - batch.size());
+        long wait = deadline - System.currentTimeMillis();
+        if ((batch.size() >= this.batchSize) || (wait <= 0) || !this.running) {
+          break;
+        }
+        SensorData next = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+        if (next == null) {
+          break;
+        }
+        batch.add(next);
+      }
+    }
+    catch (InterruptedException e) { //NOPMD
+      // Only close() interrupts the shipper: send what has been gathered.
+    }
+    return batch;
+  }
+
+  /**
+   * Sends the passed instances, one batch per owner, spilling any batch that cannot be sent
+   * because the host is unreachable.
+   * @param datas The sensor data instances.
+   */
+  private void ship(List<SensorData> datas) {
+    for (SensorDatas batch : groupByOwner(datas)) {
+      if (!send(batch)) {
+        spill(batch.getSensorData());
+      }
+    }
+  }
+
+  /**
+   * Sends a single-owner batch, retrying with exponentially increasing delays while the
+   * shipper is running. A batch that the host refuses is discarded without a retry.
+   * @param batch The batch.
+   * @return True if the batch was sent or discarded, false if it could not be sent.
+   */
+  private boolean send(SensorDatas batch) {
+    long delay = initialRetryDelay;
+    for (int attempt = 1; true; attempt++) {
+      try {
+        this.client.putSensorDataBatch(batch);
+        this.numSent.addAndGet(batch.getSensorData().size());
+        // The host is reachable again, so send the spill file now.
+        this.nextSpillReplay = 0;
+        return true;
+      }
+      catch (SensorBaseClientException e) {
+        this.lastError = e;
+        if (e.isRejected()) {
+          this.numDiscarded.addAndGet(batch.getSensorData().size());
+          return true;
+        }
+      }
+      if (!this.running || (attempt >= maxAttempts) || !pause(delay)) {
+        return false;
+      }
+      delay = Math.min(2 * delay, maxRetryDelay);
+    }
+  }
+
+  /**
+   * Waits for the passed time, or until the shipper is closed.
+   * @param milliseconds The time to wait.
+   * @return True if the shipper is still running.
+   */
+  private boolean pause(long milliseconds) {
+    synchronized (this.wakeup) {
+      if (this.running) {
+        try {
+          this.wakeup.wait(milliseconds);
+        }
+        catch (InterruptedException e) { //NOPMD
+          // Only close() interrupts the shipper, and it also clears running.
+        }
+      }
+      return this.running;
+    }
+  }
+
+  /**
+   * Returns true if the spill file may hold instances and is due to be sent again.
+   * @return True if the spill file should be sent.
+   */
+  private boolean isSpillDue() {
+    synchronized (this.spillLock) {
+      return this.isSpillPending && (System.currentTimeMillis() >= this.nextSpillReplay);
+    }
+  }
+
+  /**
+   * Returns the file to which the spill file is renamed while it is being sent.
+   * @return The file.
+   */
+  private File getSendingFile() {
+    return new File(this.spillFile.getPath() + ".sending");
+  }
+
+  /**
+   * Sends the instances of the spill file in batches, making one attempt at each. The spill
+   * file is first renamed to the sending file, unless a sending file remains from an earlier
+   * attempt, which is then sent first. If a batch cannot be sent, it and the batches after it
+   * are spilled again, and the spill file is not sent again for maxRetryDelay. The sending 
+   * file is deleted only once all of its instances have been sent, refused or spilled again;
+   * until then, it is sent again from the start at the next attempt.
+   */
+  private void sendSpillFile() {
+    File sending = getSendingFile();
+    synchronized (this.spillLock) {
+      if (!sending.exists()) {
+        if (this.spillFile.exists() && !this.spillFile.renameTo(sending)) {
+          this.lastError = new IOException("Could not rename " + this.spillFile);
+          this.nextSpillReplay = System.currentTimeMillis() + maxRetryDelay;
+          return;
+        }
+        this.isSpillPending = false;
+      }
+    }
+    try {
+      List<SensorData> datas = readSpillFile(sending);
+      for (int i = 0; i < datas.size(); i += this.batchSize) {
+        List<SensorData> chunk = datas.subList(i, Math.min(i + this.batchSize, datas.size()));
+        if (!sendOnce(chunk)) {
+          appendToSpillFile(datas.subList(i, datas.size()));
+          this.nextSpillReplay = System.currentTimeMillis() + maxRetryDelay;
+          break;
+        }
+      }
+      if (sending.exists() && !sending.delete()) {
+        throw new IOException("Could not delete " + sending);
+      }
+    }
+    catch (Exception e) {
+      this.lastError = e;
+      this.nextSpillReplay = System.currentTimeMillis() + maxRetryDelay;
+      synchronized (this.spillLock) {
+        this.isSpillPending = true;
+      }
+    }
+  }
+
+  /**
+   * Makes one attempt to send the passed instances, one batch per owner. A batch that the 
+   * host refuses is discarded.
+   * @param datas The sensor data instances.
+   * @return True if they were all sent or discarded, false if a batch could not be sent.
+   */
+  private boolean sendOnce(List<SensorData> datas) {
+    for (SensorDatas batch : groupByOwner(datas)) {
+      try {
+        this.client.putSensorDataBatch(batch);
+        this.numSent.addAndGet(batch.getSensorData().size());
+      }
+      catch (SensorBaseClientException e) {
+        this.lastError = e;
+        if (!e.isRejected()) {
+          return false;
+        }
+        this.numDiscarded.addAndGet(batch.getSensorData().size());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Splits the passed instances into one batch per owner, since putSensorDataBatch requires
+   * a single owner.
+   * @param datas The sensor data instances.
+   * @return The batches, in the order of their owners' first instances.
+   */
+  private static Collection<SensorDatas> groupByOwner(List<SensorData> datas) {
+    Map<String, SensorDatas> batches = new LinkedHashMap<String, SensorDatas>();
+    for (SensorData data : datas) {
+      SensorDatas batch = batches.get(data.getOwner());
+      if (batch == null) {
+        batch = new SensorDatas();
+        batches.put(data.getOwner(), batch);
+      }
+      batch.getSensorData().add(data);
+    }
+    return batches.values();
+  }
+
+  /**
+   * Appends the passed instances to the spill file, or discards them if that fails.
+   * @param datas The sensor data instances.
+   * @return True if they were spilled, false if they were discarded.
+   */
+  private boolean spill(List<SensorData> datas) {
+    if (this.spillFile == null) {
+      this.numDiscarded.addAndGet(datas.size());
+      return false;
+    }
+    try {
+      appendToSpillFile(datas);
+      return true;
+    }
+    catch (Exception e) {
+      this.lastError = e;
+      this.numDiscarded.addAndGet(datas.size());
+      return false;
+    }
+  }
+
+  /**
+   * Appends the XML of the passed instances to the spill file and forces it to disk. Each
+   * record is the length of the UTF-8 encoded XML followed by the encoded bytes.
+   * @param datas The sensor data instances.
+   * @throws Exception If the instances cannot be marshalled or the file written.
+   */
+  private void appendToSpillFile(List<SensorData> datas) throws Exception {
+    synchronized (this.spillLock) {
+      FileOutputStream stream = new FileOutputStream(this.spillFile, true);
+      try {
+        DataOutputStream out = new DataOutputStream(stream);
+        for (SensorData data : datas) {
+          byte[] bytes = sensordataJAXB.marshal(data).getBytes("UTF-8");
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        out.flush();
+        stream.getFD().sync();
+      }
+      finally {
+        stream.close();
+      }
+      this.numSpilled.addAndGet(datas.size());
+      this.isSpillPending = true;
+    }
+  }
+
+  /**
+   * Reads back the sensor data instances that were appended to a spill file.
+   * A partially written record at the end of the file is ignored.
+   * @param spillFile The spill file.
+   * @return The instances, in the order they were spilled.
+   * @throws IOException If the file cannot be read or holds a record that cannot be parsed.
+   */
+  public static List<SensorData> readSpillFile(File spillFile) throws IOException {
+    List<SensorData> datas = new ArrayList<SensorData>();
+    if (!spillFile.exists()) {
+      return datas;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(spillFile));
+    try {
+      while (true) {
+        int length = in.readInt();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        datas.add((SensorData) sensordataJAXB.unmarshal(new String(bytes, "UTF-8")));
+      }
+    }
+    catch (EOFException e) { //NOPMD
+      // End of the spill file.
+    }
+    catch (Exception e) {
+      throw new IOException("Bad spill file record: " + e.getMessage());
+    }
+    finally {
+      in.close();
+    }
+    return datas;
+  }
+}
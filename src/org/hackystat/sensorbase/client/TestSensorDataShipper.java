@@ -0,0 +1,154 @@
+package org.hackystat.sensorbase.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.utilities.tstamp.Tstamp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the SensorDataShipper spills sensor data to its spill file when the SensorBase
+ * cannot be reached, and discards it when there is no spill file. No server is needed.
+ *
+ * @author Philip Johnson
+ */
+public class TestSensorDataShipper {
+
+  /** A host on which no SensorBase is listening. */
+  private static final String unreachableHost = "http://localhost:1/sensorbase";
+
+  /** The test user. */
+  private static final String user = "TestUser@hackystat.org";
+
+  /** The spill file. */
+  private File spillFile;
+
+  /** The client. */
+  private SensorBaseClient client;
+
+  /**
+   * Creates the client and removes any old spill file.
+   */
+  @Before
+  public void setup() {
+    this.spillFile = new File(System.getProperty("java.io.tmpdir"), "sensorbase-spilltest.log");
+    this.spillFile.delete();
+    this.client = new SensorBaseClient(unreachableHost, user, user);
+  }
+
+  /**
+   * Removes the spill file and any file left while sending it.
+   */
+  @After
+  public void teardown() {
+    this.spillFile.delete();
+    new File(this.spillFile.getPath() + ".sending").delete();
+  }
+
+  /**
+   * Returns ten sensor data instances, a minute apart.
+   * @return The instances.
+   * @throws Exception If the timestamps cannot be made.
+   */
+  private SensorData[] makeSensorData() throws Exception {
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2007-04-30T02:00:00.000");
+    SensorData[] datas = new SensorData[10];
+    for (int i = 0; i < datas.length; i++) {
+      datas[i] = new SensorData();
+      datas[i].setOwner(user);
+      datas[i].setTimestamp(Tstamp.incrementMinutes(start, i));
+      datas[i].setRuntime(start);
+      datas[i].setSensorDataType("TestSdt");
+      datas[i].setTool("Subversion");
+      datas[i].setResource("file://foo/bar/baz.txt");
+    }
+    return datas;
+  }
+
+  /**
+   * Tests that every instance that cannot be sent is in the spill file once the shipper is
+   * closed, whether it was spilled by add() because the buffer was full or by the shipper.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testSpill() throws Exception {
+    SensorData[] datas = makeSensorData();
+    // A small buffer and a long batch age, so that some instances are spilled by add().
+    SensorDataShipper shipper = new SensorDataShipper(this.client, 2, 1000, 3600 * 1000L,
+        this.spillFile);
+    for (SensorData data : datas) {
+      shipper.add(data);
+    }
+    shipper.close(30 * 1000L);
+    assertFalse("Closed", shipper.add(datas[0]));
+    assertEquals("Sent", 0, shipper.getNumSent());
+    // Instances spilled by add() may be written again after an attempt to send the spill file.
+    assertTrue("Spilled", shipper.getNumSpilled() >= datas.length);
+    List<SensorData> spilled = SensorDataShipper.readSpillFile(this.spillFile);
+    assertEquals("Spill file size", datas.length, spilled.size());
+    for (SensorData data : datas) {
+      boolean isFound = false;
+      for (SensorData spilledData : spilled) {
+        isFound |= data.getTimestamp().equals(spilledData.getTimestamp());
+      }
+      assertTrue("Spilled " + data.getTimestamp(), isFound);
+    }
+  }
+
+  /**
+   * Tests that the instances of a spill file that was being sent when its shipper stopped are
+   * kept until they have been sent or spilled again.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testResumeSending() throws Exception {
+    SensorData[] datas = makeSensorData();
+    File sendingFile = new File(this.spillFile.getPath() + ".sending");
+    sendingFile.delete();
+    // Leave a sending file behind, as a shipper that stopped while sending its spill file does.
+    SensorDataShipper stopped = new SensorDataShipper(this.client, 100, 1000, 3600 * 1000L, 
+        sendingFile);
+    for (SensorData data : datas) {
+      stopped.add(data);
+    }
+    stopped.close(30 * 1000L);
+    assertEquals("Sending file size", datas.length, 
+        SensorDataShipper.readSpillFile(sendingFile).size());
+    SensorDataShipper shipper = new SensorDataShipper(this.client, 100, 1000, 3600 * 1000L,
+        this.spillFile);
+    for (int i = 0; (i < 300) && sendingFile.exists(); i++) {
+      Thread.sleep(100);
+    }
+    shipper.close(30 * 1000L);
+    assertFalse("Sending file deleted", sendingFile.exists());
+    assertEquals("Spill file size", datas.length, 
+        SensorDataShipper.readSpillFile(this.spillFile).size());
+    assertEquals("Discarded", 0, shipper.getNumDiscarded());
+  }
+
+  /**
+   * Tests that instances that cannot be sent are discarded without a spill file.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testDiscard() throws Exception {
+    SensorData[] datas = makeSensorData();
+    SensorDataShipper shipper = new SensorDataShipper(this.client, 100, 1000, 3600 * 1000L,
+        null);
+    for (SensorData data : datas) {
+      shipper.add(data);
+    }
+    shipper.close(30 * 1000L);
+    assertEquals("Discarded", datas.length, shipper.getNumDiscarded());
+    assertEquals("Spilled", 0, shipper.getNumSpilled());
+  }
+}
@@ -0,0 +1,175 @@
+package org.hackystat.sensorbase.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.db.derby.DerbyImplementation;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataManager;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDatas;
+import org.hackystat.sensorbase.resource.users.UserManager;
+import org.hackystat.sensorbase.resource.users.jaxb.User;
+import org.hackystat.sensorbase.server.Server;
+import org.hackystat.sensorbase.server.ServerProperties;
+import org.hackystat.utilities.tstamp.Tstamp;
+
+/**
+ * Measures the time taken by a DbImplementation to ingest sensor data in batches, to answer
+ * project queries over a day of that data, and to read single instances. Run it from the
+ * command line once per implementation, passing the DbImplementation class name (by default
+ * DerbyImplementation); it creates a fresh database in the temporary directory and prints the
+ * average microseconds per record for each operation.
+ * @author Philip Johnson
+ */
+public class BenchmarkDbImplementation {
+
+  /** The number of sensor data instances stored. */
+  private static final int numRecords = 100000;
+
+  /** The number of instances in each batch stored. */
+  private static final int batchSize = 500;
+
+  /** The number of users owning the instances. */
+  private static final int numUsers = 10;
+
+  /** The number of times each query is run. */
+  private static final int numQueries = 20;
+
+  /** The number of single instances read. */
+  private static final int numReads = 10000;
+
+  /** The sensor data types and tools given to the instances in turn. */
+  private static final String[] sdts = { "DevEvent", "Build", "UnitTest", "Commit" };
+  private static final String[] tools = { "Eclipse", "Ant", "JUnit", "Svn" };
+
+  /** Prevents instantiation. */
+  private BenchmarkDbImplementation() {
+    // Only main is used.
+  }
+
+  /**
+   * Runs the benchmark.
+   * @param args The class name of the DbImplementation, or none for DerbyImplementation.
+   * @throws Exception If problems occur.
+   */
+  public static void main(String[] args) throws Exception {
+    String impl = (args.length > 0) ? args[0] : DerbyImplementation.class.getName();
+    File dbDir = new File(System.getProperty("java.io.tmpdir"), "sensorbase-benchmark");
+    deleteDir(dbDir);
+    System.setProperty(ServerProperties.DB_IMPL_KEY, impl);
+    System.setProperty(ServerProperties.DB_DIR_KEY, dbDir.getAbsolutePath());
+    Server server = Server.newInstance(new ServerProperties());
+    Map<String, Object> attributes = server.getContext().getAttributes();
+    DbManager dbManager = (DbManager) attributes.get("DbManager");
+    SensorDataManager sensorDataManager = (SensorDataManager) attributes.get("SensorDataManager");
+    UserManager userManager = (UserManager) attributes.get("UserManager");
+    List<User> users = new ArrayList<User>();
+    for (int i = 0; i < numUsers; i++) {
+      users.add(userManager.registerUser("BenchmarkUser" + i + "@hackystat.org"));
+    }
+    // One instance a minute for each user, so a day holds 1440 instances of each.
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2008-01-01T00:00:00.000");
+    long begin = System.nanoTime();
+    for (int i = 0; i < numRecords; i += batchSize) {
+      SensorDatas datas = new SensorDatas();
+      for (int j = i; j < i + batchSize; j++) {
+        datas.getSensorData().add(makeSensorData(users.get(j % numUsers),
+            Tstamp.incrementMinutes(start, j / numUsers), j));
+      }
+      sensorDataManager.putSensorDatas(datas);
+    }
+    long ingestNanos = System.nanoTime() - begin;
+
+    XMLGregorianCalendar dayStart = Tstamp.incrementDays(start, 3);
+    XMLGregorianCalendar dayEnd = Tstamp.incrementDays(start, 4);
+    int numIndexed = 0;
+    begin = System.nanoTime();
+    for (int i = 0; i < numQueries; i++) {
+      numIndexed += countRefs(dbManager.getSensorDataIndex(users, dayStart, dayEnd, null, null));
+    }
+    long indexNanos = System.nanoTime() - begin;
+    int numSummarized = 0;
+    begin = System.nanoTime();
+    for (int i = 0; i < numQueries; i++) {
+      numSummarized += dbManager.getProjectSummary(users, dayStart, dayEnd, null, "summary")
+          .getSensorDataSummaries().getNumInstances().intValue();
+    }
+    long summaryNanos = System.nanoTime() - begin;
+    long length = 0;
+    begin = System.nanoTime();
+    for (int i = 0; i < numReads; i++) {
+      int j = (i * 7919) % numRecords;
+      length += dbManager.getSensorData(users.get(j % numUsers),
+          Tstamp.incrementMinutes(start, j / numUsers)).length();
+    }
+    long readNanos = System.nanoTime() - begin;
+
+    System.out.println(impl);
+    System.out.println("Batch ingest:    " + (ingestNanos / 1000 / numRecords) + " us/record");
+    System.out.println("Project index:   " + (indexNanos / 1000 / Math.max(1, numIndexed))
+        + " us/record");
+    System.out.println("Project summary: " + (summaryNanos / 1000 / Math.max(1, numSummarized))
+        + " us/record");
+    System.out.println("Single read:     " + (readNanos / 1000 / numReads) + " us/record");
+    System.out.println("(Indexed: " + numIndexed + ", summarized: " + numSummarized
+        + ", characters read: " + length + ")");
+    System.exit(0); //NOPMD the server's threads would otherwise keep running.
+  }
+
+  /**
+   * Returns a sensor data instance whose type, tool and resource depend on the passed number.
+   * @param user The owner.
+   * @param timestamp The timestamp.
+   * @param number The number of the instance.
+   * @return The sensor data instance.
+   */
+  private static SensorData makeSensorData(User user, XMLGregorianCalendar timestamp,
+      int number) {
+    SensorData data = new SensorData();
+    data.setOwner(user.getEmail());
+    data.setTimestamp(timestamp);
+    data.setRuntime(timestamp);
+    data.setSensorDataType(sdts[number % sdts.length]);
+    data.setTool(tools[(number / sdts.length) % tools.length]);
+    data.setResource("file://src/org/hackystat/Benchmark" + (number % 100) + ".java");
+    return data;
+  }
+
+  /**
+   * Returns the number of SensorDataRefs in a SensorDataIndex.
+   * @param index The SensorDataIndex XML.
+   * @return The number of SensorDataRefs.
+   */
+  private static int countRefs(String index) {
+    int count = 0;
+    int position = index.indexOf("<SensorDataRef ");
+    while (position >= 0) {
+      count++;
+      position = index.indexOf("<SensorDataRef ", position + 1);
+    }
+    return count;
+  }
+
+  /**
+   * Deletes a directory and everything in it.
+   * @param dir The directory.
+   */
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          deleteDir(file);
+        }
+        else {
+          file.delete();
+        }
+      }
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,101 @@
+package org.hackystat.sensorbase.db;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records, in memory, the time of the last change to each scope of the stored resources, such
+ * as the sensor data of one owner, so that a resource can tell whether a client's copy is
+ * still current without querying the database.
+ * <p>
+ * Change times are strictly increasing milliseconds, so two changes within one millisecond
+ * still get different times. A scope that has not changed since this tracker was created
+ * reports the time it was created, and so does every scope after changedAll(), which is used
+ * for bulk operations such as retention that may touch any scope. Since nothing is persisted,
+ * a restart makes every client's copy look out of date once, which is safe.
+ * <p>
+ * A change must be recorded after it is stored, so that a time read before it is recorded
+ * belongs to data that may already include it, but never the reverse.
+ *
+ * @author Philip Johnson
+ */
+public class ChangeTracker {
+
+  /** The last time returned by tick(). */
+  private final AtomicLong lastTick = new AtomicLong();
+
+  /** The time of the last change to every scope. */
+  private volatile long lastChangeToAll;
+
+  /** Maps each scope that has changed to the time of its last change. */
+  private final ConcurrentMap<String, Long> lastChanges = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Creates a tracker whose scopes all have the current time as their last change.
+   */
+  public ChangeTracker() {
+    this.lastChangeToAll = tick();
+  }
+
+  /**
+   * Returns the current time in milliseconds, or one more than the last time returned if that
+   * is not earlier.
+   * @return A time later than all previously returned times.
+   */
+  private long tick() {
+    while (true) {
+      long last = this.lastTick.get();
+      long next = Math.max(System.currentTimeMillis(), last + 1);
+      if (this.lastTick.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  /**
+   * Records a change to the passed scope.
+   * @param scope The scope, such as the email of the owner of some sensor data.
+   */
+  public void changed(String scope) {
+    Long time = Long.valueOf(tick());
+    Long previous = this.lastChanges.putIfAbsent(scope, time);
+    // Keep the later time if another change to this scope is recorded concurrently.
+    while ((previous != null) && (previous.longValue() < time.longValue())
+        && !this.lastChanges.replace(scope, previous, time)) {
+      previous = this.lastChanges.get(scope);
+    }
+  }
+
+  /**
+   * Records a change that may affect every scope.
+   */
+  public void changedAll() {
+    this.lastChangeToAll = tick();
+  }
+
+  /**
+   * Returns the time of the last change to the passed scope.
+   * @param scope The scope.
+   * @return The time, in milliseconds.
+   */
+  public long getLastChange(String scope) {
+    long last = this.lastChangeToAll;
+    Long time = this.lastChanges.get(scope);
+    return ((time == null) || (time.longValue() < last)) ? last : time.longValue();
+  }
+
+  /**
+   * Returns the time of the last change to any of the passed scopes.
+   * @param scopes The scopes.
+   * @return The time, in milliseconds.
+   */
+  public long getLastChange(Collection<String> scopes) {
+    long last = this.lastChangeToAll;
+    for (String scope : scopes) {
+      last = Math.max(last, getLastChange(scope));
+    }
+    return last;
+  }
+}
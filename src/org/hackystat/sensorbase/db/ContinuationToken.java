@@ -0,0 +1,126 @@
+package org.hackystat.sensorbase.db;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Marks the position of the last sensor data instance returned in one page of a project's
+ * sensor data, so that the next page can start immediately after it.
+ * <p>
+ * Sensor data is uniquely identified by its owner and timestamp, and pages are ordered by
+ * timestamp and then owner, so the position is simply the (timestamp, owner) pair of the last
+ * instance. Unlike a startIndex, this lets the database seek directly to the next page instead
+ * of skipping over all the instances before it, and the pages stay consistent if data is added
+ * while a client is paging.
+ * <p>
+ * Clients treat the token as an opaque string. It is URL-safe and can be passed unchanged as
+ * the continuationToken query parameter.
+ *
+ * @author Philip Johnson
+ */
+public class ContinuationToken {
+
+  /** The timestamp of the last instance, in milliseconds. */
+  private final long timestamp;
+
+  /** The owner of the last instance. */
+  private final String owner;
+
+  /** Separates the timestamp from the owner in the decoded token. */
+  private static final char separator = ' ';
+
+  /** The digits used to encode the token. */
+  private static final String hexDigits = "0123456789abcdef";
+
+  /**
+   * Creates a token for the instance with the given timestamp and owner.
+   * @param timestamp The timestamp of the instance, in milliseconds.
+   * @param owner The email of the owner of the instance.
+   */
+  public ContinuationToken(long timestamp, String owner) {
+    this.timestamp = timestamp;
+    this.owner = owner;
+  }
+
+  /**
+   * Returns the timestamp of the last instance returned.
+   * @return The timestamp in milliseconds.
+   */
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+
+  /**
+   * Returns the owner of the last instance returned.
+   * @return The owner's email.
+   */
+  public String getOwner() {
+    return this.owner;
+  }
+
+  /**
+   * Returns the encoded form of this token, suitable for sending to a client.
+   * @return The token string.
+   */
+  @Override
+  public String toString() {
+    byte[] bytes = utf8(String.valueOf(this.timestamp) + separator + this.owner);
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(hexDigits.charAt((b >> 4) & 0xF)).append(hexDigits.charAt(b & 0xF));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Decodes a token string previously returned by toString.
+   * @param token The token string.
+   * @return The token.
+   * @throws IllegalArgumentException If the string is not a valid token.
+   */
+  public static ContinuationToken parse(String token) {
+    if ((token == null) || (token.length() == 0) || (token.length() % 2 != 0)) {
+      throw new IllegalArgumentException("Invalid continuation token: " + token);
+    }
+    byte[] bytes = new byte[token.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = hexDigits.indexOf(Character.toLowerCase(token.charAt(2 * i)));
+      int low = hexDigits.indexOf(Character.toLowerCase(token.charAt(2 * i + 1)));
+      if ((high < 0) || (low < 0)) {
+        throw new IllegalArgumentException("Invalid continuation token: " + token);
+      }
+      bytes[i] = (byte) ((high << 4) + low);
+    }
+    String decoded;
+    try {
+      decoded = new String(bytes, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not supported", e);
+    }
+    int index = decoded.indexOf(separator);
+    if (index <= 0 || index == decoded.length() - 1) {
+      throw new IllegalArgumentException("Invalid continuation token: " + token);
+    }
+    try {
+      return new ContinuationToken(Long.parseLong(decoded.substring(0, index)),
+          decoded.substring(index + 1));
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid continuation token: " + token, e);
+    }
+  }
+
+  /**
+   * Returns the UTF-8 encoding of the passed string.
+   * @param string The string.
+   * @return The encoded bytes.
+   */
+  private static byte[] utf8(String string) {
+    try {
+      return string.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not supported", e);
+    }
+  }
+}
@@ -1,21 +1,33 @@
 package org.hackystat.sensorbase.db;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
 import org.hackystat.sensorbase.resource.projects.ProjectManager;
+import org.hackystat.sensorbase.resource.projects.jaxb.MultiDayProjectSummary;
 import org.hackystat.sensorbase.resource.projects.jaxb.Project;
 import org.hackystat.sensorbase.resource.projects.jaxb.ProjectSummary;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataFields;
 import org.hackystat.sensorbase.resource.sensordata.SensorDataManager;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataIndex;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
 import org.hackystat.sensorbase.resource.sensordatatypes.SdtManager;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataType;
 import org.hackystat.sensorbase.resource.users.UserManager;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
 import org.hackystat.sensorbase.server.Server;
+import org.hackystat.utilities.stacktrace.StackTrace;
+import org.hackystat.utilities.tstamp.Tstamp;
 
 /**
  * Provides a specification of the operations that must be implemented by every
@@ -138,6 +150,302 @@ public abstract class DbImplementation {
   public abstract String getProjectSensorDataSnapshot(List<User> users, XMLGregorianCalendar 
       startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool);
   
+  /**
+   * Writes the XML SensorDataIndex for all sensor data in this server to writer.
+   * <p>
+   * The write*Index methods let callers stream an index to a client without holding all of it 
+   * in memory. The default implementations simply write the String returned by the 
+   * corresponding get*Index method; storage systems that can produce an index row by row
+   * should override them, and should throw a storage error as an IOException rather than end
+   * the index early, so that a partial index is not mistaken for a complete one.
+   * @param writer The writer that receives the index.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer) throws IOException {
+    writer.write(getSensorDataIndex());
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for this user to writer.
+   * @param writer The writer that receives the index.
+   * @param user The User whose sensor data is to be returned. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, User user) throws IOException {
+    writer.write(getSensorDataIndex(user));
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for this user and sensor data type 
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param user The User whose sensor data is to be returned. 
+   * @param sdtName The sensor data type name.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, User user, String sdtName) throws IOException {
+    writer.write(getSensorDataIndex(user, sdtName));
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex returned by the corresponding getSensorDataIndex method 
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The earliest Sensor Data to be returned.
+   * @param endTime The latest SensorData to be returned.
+   * @param uriPatterns At least one UriPattern must match the SensorData resource field.
+   * @param sdt The SDT of interest, or null if data from all SDTs should be retrieved.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt) throws IOException {
+    writer.write(getSensorDataIndex(users, startTime, endTime, uriPatterns, sdt));
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex returned by the corresponding getSensorDataIndex method 
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The earliest Sensor Data to be returned.
+   * @param endTime The latest SensorData to be returned.
+   * @param uriPatterns At least one UriPattern must match the SensorData resource field.
+   * @param sdt The SDT of interest. Should not be null.
+   * @param tool The tool of interest. Should not be null.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    writer.write(getSensorDataIndex(users, startTime, endTime, uriPatterns, sdt, tool));
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex returned by the corresponding getSensorDataIndex method 
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param startIndex The starting index.
+   * @param maxInstances The maximum number of instances to return.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      int startIndex, int maxInstances) throws IOException {
+    writer.write(getSensorDataIndex(users, startTime, endTime, uriPatterns, startIndex, 
+        maxInstances));
+  }
+  
+  /**
+   * Writes an XML SensorDataIndex containing at most maxInstances of the sensor data matching 
+   * these users, start/end time, and UriPatterns to writer. The instances are ordered by 
+   * timestamp and then owner, and begin immediately after the instance identified by token.
+   * If further instances remain, the index's ContinuationToken attribute identifies the last
+   * instance returned, and can be passed back to retrieve the next page. Since a page is 
+   * bounded, it should be retrieved in full before anything is written to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param token The last instance of the previous page, or null to start at the first instance.
+   * @param maxInstances The maximum number of instances to return.
+   * @throws IOException If the page cannot be retrieved, or the index cannot be written.
+   */
+  public abstract void writeSensorDataIndexPage(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      ContinuationToken token, int maxInstances) throws IOException;
+  
+  /**
+   * Writes the XML SensorDataIndex returned by getSensorDataIndexLastMod to writer.
+   * @param writer The writer that receives the index.
+   * @param user The user whose data is being monitored.
+   * @param lastModStartTime  The beginning lastMod timestamp of interest. 
+   * @param lastModEndTime  The ending lastMod timestamp of interest. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndexLastMod(Writer writer, User user, 
+      XMLGregorianCalendar lastModStartTime, XMLGregorianCalendar lastModEndTime) 
+  throws IOException {
+    writer.write(getSensorDataIndexLastMod(user, lastModStartTime, lastModEndTime));
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex returned by getProjectSensorDataSnapshot to writer.
+   * @param writer The writer that receives the index.
+   * @param users The list of users whose sensor data will be checked.
+   * @param startTime The start time.
+   * @param endTime The end time. 
+   * @param uriPatterns The uripatterns that must match the resource string. 
+   * @param sdt The sensor data type of interest.
+   * @param tool The tool of interest, or null if any tool is OK.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataSnapshot(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    writer.write(getProjectSensorDataSnapshot(users, startTime, endTime, uriPatterns, sdt, tool));
+  }
+
+  /**
+   * Writes an XML SensorDatas containing every SensorData instance matching these users,
+   * start/end time, and UriPatterns, and the sdt and tool if they are non-null, to writer,
+   * ordered by timestamp. This returns the instances listed by the corresponding
+   * writeSensorDataIndex method in one response.
+   * <p>
+   * The default implementation reads the index and then each instance in turn; storage systems
+   * that can read the instances along with the index should override it.
+   * @param writer The writer that receives the instances.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The earliest Sensor Data to be returned.
+   * @param endTime The latest SensorData to be returned.
+   * @param uriPatterns At least one UriPattern must match the SensorData resource field.
+   * @param sdt The SDT of interest, or null if data from all SDTs should be retrieved.
+   * @param tool The tool of interest, or null if data from all tools should be retrieved.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeSensorDatas(Writer writer, List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool)
+  throws IOException {
+    SensorDataIndex index = 
+      readSensorDataIndex(users, startTime, endTime, uriPatterns, sdt, tool, "writeSensorDatas");
+    writer.write(DbManager.sensorDatasOpenTag);
+    for (SensorDataRef ref : index.getSensorDataRef()) {
+      User user = getUserManager().getUser(ref.getOwner());
+      String xmlSensorData = (user == null) ? null : getSensorData(user, ref.getTimestamp());
+      if (xmlSensorData != null) {
+        writer.write(xmlSensorData);
+      }
+    }
+    writer.write(DbManager.sensorDatasCloseTag);
+  }
+
+  /**
+   * Writes an XML SensorDataRows holding the passed fields of every SensorData instance 
+   * matching these users, start/end time, and UriPatterns, and the sdt and tool if they are
+   * non-null, to writer, ordered by timestamp. The rows are those of the instances returned by
+   * writeSensorDatas.
+   * <p>
+   * The default implementation reads the index, and reads each instance in turn only if the 
+   * fields include one that the index does not hold. Storage systems that can read just the 
+   * selected fields should override it.
+   * @param writer The writer that receives the rows.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The earliest Sensor Data to be returned.
+   * @param endTime The latest SensorData to be returned.
+   * @param uriPatterns At least one UriPattern must match the SensorData resource field.
+   * @param sdt The SDT of interest, or null if data from all SDTs should be retrieved.
+   * @param tool The tool of interest, or null if data from all tools should be retrieved.
+   * @param fields The fields of each instance to be written.
+   * @throws IOException If the rows cannot be written.
+   */
+  public void writeSensorDataRows(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool, SensorDataFields fields) throws IOException {
+    SensorDataIndex index = readSensorDataIndex(users, startTime, endTime, uriPatterns, sdt, 
+        tool, "writeSensorDataRows");
+    boolean isInstanceNeeded = fields.hasProperties() 
+      || fields.contains(SensorDataFields.RUNTIME) || fields.contains(SensorDataFields.RESOURCE);
+    writer.write(fields.getOpenTag());
+    for (SensorDataRef ref : index.getSensorDataRef()) {
+      SensorData data = null;
+      if (isInstanceNeeded) {
+        User user = getUserManager().getUser(ref.getOwner());
+        String xmlSensorData = (user == null) ? null : getSensorData(user, ref.getTimestamp());
+        try {
+          data = (xmlSensorData == null) 
+              ? null : getSensorDataManager().makeSensorData(xmlSensorData);
+        }
+        catch (Exception e) {
+          this.logger.info("DB: Error reading instance in writeSensorDataRows()" 
+              + StackTrace.toString(e));
+        }
+      }
+      else {
+        data = new SensorData();
+        data.setOwner(ref.getOwner());
+        data.setTimestamp(ref.getTimestamp());
+        data.setSensorDataType(ref.getSensorDataType());
+        data.setTool(ref.getTool());
+      }
+      if (data != null) {
+        data.setLastMod(ref.getLastMod());
+        fields.writeRow(writer, data);
+      }
+    }
+    writer.write(SensorDataFields.closeTag);
+  }
+
+  /**
+   * Returns the index of the instances matching these users, start/end time, UriPatterns, and
+   * the sdt and tool if they are non-null. If the index cannot be read, the error is logged
+   * and an empty index is returned.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The earliest Sensor Data to be returned.
+   * @param endTime The latest SensorData to be returned.
+   * @param uriPatterns At least one UriPattern must match the SensorData resource field.
+   * @param sdt The SDT of interest, or null if data from all SDTs should be retrieved.
+   * @param tool The tool of interest, or null if data from all tools should be retrieved.
+   * @param caller The name of the calling method, for the log.
+   * @return The SensorDataIndex.
+   */
+  private SensorDataIndex readSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool, 
+      String caller) {
+    String xmlIndex = (tool == null)
+        ? getSensorDataIndex(users, startTime, endTime, uriPatterns, sdt)
+        : getSensorDataIndex(users, startTime, endTime, uriPatterns, sdt, tool);
+    try {
+      return getSensorDataManager().makeSensorDataIndex(xmlIndex);
+    }
+    catch (Exception e) {
+      this.logger.info("DB: Error reading index in " + caller + "()" + StackTrace.toString(e));
+      return new SensorDataIndex();
+    }
+  }
+
+  /**
+   * Writes the XML of each of the user's SensorData instances with one of the passed
+   * timestamps to writer, one after another in timestamp order. Timestamps with no sensor data
+   * are skipped. Callers write the enclosing SensorDatas tags, so that the instances of
+   * several users can be returned together.
+   * <p>
+   * The default implementation reads each instance in turn; storage systems that can read
+   * several instances at once should override it.
+   * @param writer The writer that receives the instances.
+   * @param user The owner of the sensor data.
+   * @param timestamps The timestamps of the instances.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeSensorData(Writer writer, User user, List<XMLGregorianCalendar> timestamps)
+  throws IOException {
+    for (XMLGregorianCalendar timestamp : sortTimestamps(timestamps)) {
+      String xmlSensorData = getSensorData(user, timestamp);
+      if (xmlSensorData != null) {
+        writer.write(xmlSensorData);
+      }
+    }
+  }
+
+  /**
+   * Returns the passed timestamps in increasing order, without duplicates.
+   * @param timestamps The timestamps.
+   * @return A new sorted list of the timestamps.
+   */
+  protected static List<XMLGregorianCalendar> sortTimestamps(
+      List<XMLGregorianCalendar> timestamps) {
+    Map<Long, XMLGregorianCalendar> sorted = new TreeMap<Long, XMLGregorianCalendar>();
+    for (XMLGregorianCalendar timestamp : timestamps) {
+      sorted.put(Tstamp.makeTimestamp(timestamp).getTime(), timestamp);
+    }
+    return new ArrayList<XMLGregorianCalendar>(sorted.values());
+  }
+
   /**
    * Returns the SensorData instance as XML string, or null if not found.
    * @param user The user.
@@ -165,6 +473,27 @@ public abstract class DbImplementation {
   public abstract boolean storeSensorData(SensorData data, String xmlSensorData, 
       String xmlSensorDataRef);
   
+  /**
+   * Persists a batch of SensorData instances.  Any SensorData with the same [email, timestamp]
+   * as one already in the storage system overwrites it.  The three lists must be the same
+   * length, and the i'th element of each refers to the same sensor data instance.
+   * <p>
+   * This default implementation simply calls storeSensorData for each element of the batch.
+   * Storage systems that can insert many rows at once should override it.
+   * @param datas The sensor data instances. 
+   * @param xmlSensorDatas The SensorData instances marshalled into XML Strings.  
+   * @param xmlSensorDataRefs The corresponding SensorDataRefs marshalled into XML Strings.
+   * @return True if all of the sensor data was successfully inserted.
+   */
+  public boolean storeSensorDataBatch(List<SensorData> datas, List<String> xmlSensorDatas, 
+      List<String> xmlSensorDataRefs) {
+    boolean success = true;
+    for (int i = 0; i < datas.size(); i++) {
+      success &= storeSensorData(datas.get(i), xmlSensorDatas.get(i), xmlSensorDataRefs.get(i));
+    }
+    return success;
+  }
+  
 
   /**
    * Ensures that sensor data with the given user and timestamp is no longer
@@ -180,6 +509,36 @@ public abstract class DbImplementation {
    */
   public abstract void deleteSensorData(User user);
   
+  /**
+   * Deletes up to maxInstances of the sensor data selected by the retention rule whose 
+   * timestamps are before the passed time. Implementations should delete in short transactions 
+   * so that other requests are not held up for long. If archive is not null, each instance is 
+   * written to it as a SensorData XML element, followed by a line feed, and the archive is 
+   * flushed, which makes the instances durable, before they are deleted.
+   * @param rule The rule selecting the sensor data.
+   * @param before The time before which the selected sensor data has expired.
+   * @param maxInstances The maximum number of instances to delete.
+   * @param archive The writer that receives the deleted instances, or null.
+   * @return The number of instances deleted, which is less than maxInstances once no more 
+   * expired data remains, or -1 if an error occurred. 
+   */
+  public abstract int deleteSensorData(RetentionRule rule, XMLGregorianCalendar before, 
+      int maxInstances, Writer archive);
+  
+  /**
+   * Removes, in bulk, all of the sensor data with timestamps before the passed time that the
+   * storage system holds in separately removable units, such as partition tables. Sensor data
+   * outside such units is not affected. 
+   * <p>
+   * This default implementation removes nothing. 
+   * @param before The time.
+   * @param archiveDir If not null, the directory in which each unit is first archived.
+   * @return The names of the units removed.
+   */
+  public List<String> dropSensorDataPartitions(XMLGregorianCalendar before, File archiveDir) {
+    return new ArrayList<String>();
+  }
+  
   /**
    * Returns the XML SensorDataTypeIndex for all SDTs in this server.
    * @return The XML String containing an index to all SensorDataTypes.
@@ -284,6 +643,22 @@ public abstract class DbImplementation {
    */
   public abstract ProjectSummary getProjectSummary(List<User> users, XMLGregorianCalendar startTime,
       XMLGregorianCalendar endTime, List<String> uriPatterns, String href);
+  
+  /**
+   * Returns a MultiDayProjectSummary containing one ProjectSummary for each of numDays 
+   * consecutive days beginning at startTime. Each ProjectSummary has the same contents as 
+   * the one returned by getProjectSummary for that day, but all of the days are computed 
+   * together. 
+   * @param users The users in this project.
+   * @param startTime The start of the first day.
+   * @param numDays The number of days.
+   * @param uriPatterns The UriPatterns for this project.
+   * @param href The URL of the project's summary resource, to which each day's startTime and
+   * endTime are appended as parameters.
+   * @return The MultiDayProjectSummary instance.
+   */
+  public abstract MultiDayProjectSummary getMultiDayProjectSummary(List<User> users, 
+      XMLGregorianCalendar startTime, int numDays, List<String> uriPatterns, String href);
 
   
   /** Keeps a pointer to this Server for use in accessing the managers. */
@@ -352,6 +727,19 @@ public abstract class DbImplementation {
    */
   public abstract boolean compressTables();
   
+  /**
+   * Compresses the tables as a background job, reporting progress to the job and stopping 
+   * early if it is cancelled. 
+   * <p>
+   * This default implementation simply calls compressTables(). Storage systems whose 
+   * compression takes a long time should override it.
+   * @param job The job.
+   * @return True if the compress command succeeded and was not cancelled.
+   */
+  public boolean compressTables(DbJob job) {
+    return compressTables();
+  }
+  
   /**
    * The most appropriate set of indexes for the database has been evolving over time as we 
    * develop new queries.  This command sets up the appropriate set of indexes.  It should be
@@ -360,6 +748,19 @@ public abstract class DbImplementation {
    */
   public abstract boolean indexTables(); 
   
+  /**
+   * Sets up the indexes as a background job, reporting progress to the job and stopping early 
+   * if it is cancelled.
+   * <p>
+   * This default implementation simply calls indexTables(). Storage systems whose indexing
+   * takes a long time should override it.
+   * @param job The job.
+   * @return True if the index commands succeeded and were not cancelled.
+   */
+  public boolean indexTables(DbJob job) {
+    return indexTables();
+  }
+  
   /**
    * Returns the current number of rows in the specified table.  
    * @param table The table whose rows are to be counted. 
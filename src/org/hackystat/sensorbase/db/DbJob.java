@@ -0,0 +1,174 @@
+package org.hackystat.sensorbase.db;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.utilities.tstamp.Tstamp;
+
+/**
+ * A database maintenance operation, such as compressing or indexing the tables, that is run in
+ * the background. The storage system reports the job's progress through setProgress(), and
+ * should check isCancelled() between steps and stop early if it returns true.
+ *
+ * @author Philip Johnson
+ */
+public class DbJob {
+
+  /** The type of a job that compresses the tables. */
+  public static final String COMPRESS = "compress";
+
+  /** The type of a job that creates the indexes of the tables. */
+  public static final String INDEX = "index";
+
+  /** The state of a job waiting to run. */
+  public static final String QUEUED = "Queued";
+
+  /** The state of a job that is running. */
+  public static final String RUNNING = "Running";
+
+  /** The state of a job that finished successfully. */
+  public static final String COMPLETED = "Completed";
+
+  /** The state of a job that finished with an error. */
+  public static final String FAILED = "Failed";
+
+  /** The state of a job that was cancelled before it finished. */
+  public static final String CANCELLED = "Cancelled";
+
+  /** The job's identifier. */
+  private final int id;
+
+  /** The job's type, such as COMPRESS. */
+  private final String type;
+
+  /** The time at which the job was created. */
+  private final XMLGregorianCalendar created = Tstamp.makeTimestamp();
+
+  /** The time at which the job started running, or null. */
+  private volatile XMLGregorianCalendar started = null;
+
+  /** The time at which the job finished, or null. */
+  private volatile XMLGregorianCalendar ended = null;
+
+  /** The job's state, such as QUEUED. */
+  private volatile String state = QUEUED;
+
+  /** A description of the step being performed, or null. */
+  private volatile String progress = null;
+
+  /** True once cancellation has been requested. */
+  private volatile boolean isCancelled = false;
+
+  /**
+   * Creates a queued job.
+   * @param id The job's identifier.
+   * @param type The job's type, such as COMPRESS.
+   */
+  public DbJob(int id, String type) {
+    this.id = id;
+    this.type = type;
+  }
+
+  /**
+   * Returns the job's identifier.
+   * @return The identifier.
+   */
+  public int getId() {
+    return this.id;
+  }
+
+  /**
+   * Returns the job's type.
+   * @return The type, such as COMPRESS.
+   */
+  public String getType() {
+    return this.type;
+  }
+
+  /**
+   * Returns the time at which the job was created.
+   * @return The time.
+   */
+  public XMLGregorianCalendar getCreated() {
+    return this.created;
+  }
+
+  /**
+   * Returns the time at which the job started running.
+   * @return The time, or null if it has not started.
+   */
+  public XMLGregorianCalendar getStarted() {
+    return this.started;
+  }
+
+  /**
+   * Returns the time at which the job finished.
+   * @return The time, or null if it has not finished.
+   */
+  public XMLGregorianCalendar getEnded() {
+    return this.ended;
+  }
+
+  /**
+   * Returns the job's state.
+   * @return The state, such as QUEUED.
+   */
+  public String getState() {
+    return this.state;
+  }
+
+  /**
+   * Returns true if the job has finished, successfully or not.
+   * @return True if the job is completed, failed, or cancelled.
+   */
+  public boolean isFinished() {
+    return (this.ended != null);
+  }
+
+  /**
+   * Marks the job as running.
+   */
+  public void start() {
+    this.started = Tstamp.makeTimestamp();
+    this.state = RUNNING;
+  }
+
+  /**
+   * Marks the job as finished.
+   * @param finalState COMPLETED, FAILED, or CANCELLED.
+   */
+  public void finish(String finalState) {
+    this.state = finalState;
+    this.ended = Tstamp.makeTimestamp();
+  }
+
+  /**
+   * Returns a description of the step being performed.
+   * @return The description, or null.
+   */
+  public String getProgress() {
+    return this.progress;
+  }
+
+  /**
+   * Records the step being performed.
+   * @param progress A description of the step, such as "Compressing SENSORDATA (1 of 5)".
+   */
+  public void setProgress(String progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * Requests that the job stop as soon as it can.
+   */
+  public void cancel() {
+    this.isCancelled = true;
+  }
+
+  /**
+   * Returns true if cancellation has been requested.
+   * @return True if the job should stop.
+   */
+  public boolean isCancelled() {
+    return this.isCancelled;
+  }
+}
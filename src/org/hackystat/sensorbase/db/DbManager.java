@@ -1,12 +1,18 @@
 package org.hackystat.sensorbase.db;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 import javax.xml.datatype.XMLGregorianCalendar;
+import org.hackystat.sensorbase.resource.projects.jaxb.MultiDayProjectSummary;
 import org.hackystat.sensorbase.resource.projects.jaxb.Project;
 import org.hackystat.sensorbase.resource.projects.jaxb.ProjectSummary;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataFields;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataType;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
@@ -16,8 +22,9 @@ import org.hackystat.utilities.stacktrace.StackTrace;
 
 /**
  * Provides an interface to storage for the resources managed by the SensorBase.
- * Currently we have one storage mechanisms: a persistent store which is implemented by
- * an embedded Derby database.
+ * The storage system is the DbImplementation named by sensorbase.db.impl: an embedded Derby
+ * database (DerbyImplementation, the default), or an embedded log-structured merge tree 
+ * suited to append-heavy loads (org.hackystat.sensorbase.db.lsm.LsmImplementation).
  * @author Philip Johnson
  */
 public class DbManager {
@@ -25,12 +32,24 @@ public class DbManager {
   /** The chosen Storage system. */
   private DbImplementation dbImpl;
 
+  /** The time of the last change to the sensor data of each owner, projects, and SDTs. */
+  private final ChangeTracker changeTracker = new ChangeTracker();
+
+  /** The change scope of the sensor data types. */
+  private static final String sdtScope = "SensorDataType";
+
   /** The SensorDataIndex open tag. */
   public static final String sensorDataIndexOpenTag = "<SensorDataIndex>";
   
   /** The SensorDataIndex close tag. */
   public static final String sensorDataIndexCloseTag = "</SensorDataIndex>";
 
+  /** The SensorDatas open tag. */
+  public static final String sensorDatasOpenTag = "<SensorDatas>";
+
+  /** The SensorDatas close tag. */
+  public static final String sensorDatasCloseTag = "</SensorDatas>";
+
   /**
    * Creates a new DbManager which manages access to the underlying persistency layer(s).
    * Instantiates the underlying storage system to use. 
@@ -82,6 +101,25 @@ public class DbManager {
    */
   public void storeSensorData(SensorData data, String xmlSensorData, String xmlSensorDataRef) {
     this.dbImpl.storeSensorData(data, xmlSensorData, xmlSensorDataRef);
+    this.changeTracker.changed(getSensorDataScope(data.getOwner()));
+  }
+  
+  /**
+   * Persists a batch of SensorData instances.  Any Owner/Timestamp that already exists in the 
+   * table is overwritten. The i'th element of each list refers to the same sensor data.
+   * @param datas The sensor data instances. 
+   * @param xmlSensorDatas The sensor data resources as XML Strings.  
+   * @param xmlSensorDataRefs The sensor data resources as XML resource references.
+   * @return True if all of the sensor data was stored.
+   */
+  public boolean storeSensorDataBatch(List<SensorData> datas, List<String> xmlSensorDatas,
+      List<String> xmlSensorDataRefs) {
+    boolean isStored = 
+      this.dbImpl.storeSensorDataBatch(datas, xmlSensorDatas, xmlSensorDataRefs);
+    for (SensorData data : datas) {
+      this.changeTracker.changed(getSensorDataScope(data.getOwner()));
+    }
+    return isStored;
   }
   
   /**
@@ -94,6 +132,7 @@ public class DbManager {
   public void storeSensorDataType(SensorDataType sdt, String xmlSensorDataType, 
       String xmlSensorDataTypeRef) {
     this.dbImpl.storeSensorDataType(sdt, xmlSensorDataType, xmlSensorDataTypeRef);
+    this.changeTracker.changed(sdtScope);
   }
   
   /**
@@ -116,6 +155,7 @@ public class DbManager {
    */
   public void storeProject(Project project, String xmlProject, String xmlProjectRef) {
     this.dbImpl.storeProject(project, xmlProject, xmlProjectRef);
+    this.changeTracker.changed(getProjectScope(project.getOwner(), project.getName()));
   }
   
   /**
@@ -252,6 +292,21 @@ public class DbManager {
     return this.dbImpl.getProjectSummary(users, startTime, endTime, uriPatterns, href);
   }
   
+  /**
+   * Returns a MultiDayProjectSummary containing one ProjectSummary for each of numDays 
+   * consecutive days beginning at startTime.
+   * @param users The list of users in this project.
+   * @param startTime The start of the first day.
+   * @param numDays The number of days.
+   * @param uriPatterns The uriPatterns for this project.
+   * @param href The URL of the project's summary resource, without parameters.
+   * @return The MultiDayProjectSummary instance. 
+   */
+  public MultiDayProjectSummary getMultiDayProjectSummary(List<User> users, 
+      XMLGregorianCalendar startTime, int numDays, List<String> uriPatterns, String href) {
+    return this.dbImpl.getMultiDayProjectSummary(users, startTime, numDays, uriPatterns, href);
+  }
+  
   /**
    * Returns a SensorDataIndex representing the "snapshot" of sensor data in the given time 
    * interval for the given sdt and tool (if tool is not null).  The "snapshot" is the set of
@@ -270,6 +325,197 @@ public class DbManager {
         tool);
   }
   
+  /**
+   * Writes the XML SensorDataIndex for all sensor data to writer.
+   * @param writer The writer that receives the index.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer) throws IOException {
+    this.dbImpl.writeSensorDataIndex(writer);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for this user to writer.
+   * @param writer The writer that receives the index.
+   * @param user The User whose sensor data is to be returned. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, User user) throws IOException {
+    this.dbImpl.writeSensorDataIndex(writer, user);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for this user and sensor data type 
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param user The User whose sensor data is to be returned. 
+   * @param sdtName The sensor data type name.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, User user, String sdtName) throws IOException {
+    this.dbImpl.writeSensorDataIndex(writer, user, sdtName);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the sensor data matching these users, start/end time, 
+   * UriPatterns and sdt to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensordatatype of interest, or null if sensordata from all SDTs should be
+   * retrieved.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt) throws IOException {
+    this.dbImpl.writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the sensor data matching these users, start/end time, 
+   * UriPatterns, sdt and tool to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensordatatype of interest.
+   * @param tool The tool of interest.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    this.dbImpl.writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the sensor data matching these users, start/end time, 
+   * and UriPatterns, starting at startIndex, to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param startIndex The starting index.
+   * @param maxInstances The maximum number of instances to return.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      int startIndex, int maxInstances) throws IOException {
+    this.dbImpl.writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, startIndex, 
+        maxInstances);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for at most maxInstances of the sensor data matching these 
+   * users, start/end time, and UriPatterns, beginning after the instance identified by token,
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param token The last instance of the previous page, or null to start at the first instance.
+   * @param maxInstances The maximum number of instances to return.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndexPage(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      ContinuationToken token, int maxInstances) throws IOException {
+    this.dbImpl.writeSensorDataIndexPage(writer, users, startTime, endTime, uriPatterns, token, 
+        maxInstances);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the sensor data for the given user that arrived
+   * at the server between the given timestamps to writer.
+   * @param writer The writer that receives the index.
+   * @param user The user whose data is being monitored.
+   * @param lastModStartTime  The lastMod start time of interest. 
+   * @param lastModEndTime  The lastMod end time of interest. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndexLastMod(Writer writer, User user, 
+      XMLGregorianCalendar lastModStartTime, XMLGregorianCalendar lastModEndTime) 
+  throws IOException {
+    this.dbImpl.writeSensorDataIndexLastMod(writer, user, lastModStartTime, lastModEndTime);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the snapshot of sensor data with the given sdt and 
+   * optional tool to writer.
+   * @param writer The writer that receives the index.
+   * @param users The list of users whose sensor data will be checked.
+   * @param startTime The start time.
+   * @param endTime The end time. 
+   * @param uriPatterns The uripatterns that must match the resource string. 
+   * @param sdt The sensor data type of interest.
+   * @param tool The tool of interest, or null if any tool is OK.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataSnapshot(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    this.dbImpl.writeProjectSensorDataSnapshot(writer, users, startTime, endTime, uriPatterns, 
+        sdt, tool);
+  }
+
+  /**
+   * Writes an XML SensorDatas containing every SensorData instance matching these users, 
+   * start/end time, UriPatterns, and (if non-null) sdt and tool to writer.
+   * @param writer The writer that receives the instances.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensor data type of interest, or null for all.
+   * @param tool The tool of interest, or null for all.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeSensorDatas(Writer writer, List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) 
+  throws IOException {
+    this.dbImpl.writeSensorDatas(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+  }
+  
+  /**
+   * Writes an XML SensorDataRows holding the passed fields of every SensorData instance 
+   * matching these users, start/end time, UriPatterns, and (if non-null) sdt and tool to writer.
+   * @param writer The writer that receives the rows.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensor data type of interest, or null for all.
+   * @param tool The tool of interest, or null for all.
+   * @param fields The fields of each instance to be written.
+   * @throws IOException If the rows cannot be written.
+   */
+  public void writeSensorDataRows(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool, SensorDataFields fields) throws IOException {
+    this.dbImpl.writeSensorDataRows(writer, users, startTime, endTime, uriPatterns, sdt, tool, 
+        fields);
+  }
+  
+  /**
+   * Writes the XML of each of the user's SensorData instances with one of these timestamps to
+   * writer, in timestamp order, skipping the timestamps with no sensor data.
+   * @param writer The writer that receives the instances.
+   * @param user The owner.
+   * @param timestamps The timestamps.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeSensorData(Writer writer, User user, List<XMLGregorianCalendar> timestamps)
+  throws IOException {
+    this.dbImpl.writeSensorData(writer, user, timestamps);
+  }
+  
   /**
    * Returns the SensorData instance as an XML string, or null.
    * @param user The user.
@@ -326,6 +572,7 @@ public class DbManager {
    */
   public void deleteSensorData(User user, XMLGregorianCalendar timestamp) {
     this.dbImpl.deleteSensorData(user, timestamp);
+    this.changeTracker.changed(getSensorDataScope(user.getEmail()));
   }
   
   /**
@@ -334,6 +581,38 @@ public class DbManager {
    */
   public void deleteSensorData(User user) {
     this.dbImpl.deleteSensorData(user);
+    this.changeTracker.changed(getSensorDataScope(user.getEmail()));
+  }
+  
+  /**
+   * Deletes up to maxInstances of the sensor data selected by the retention rule whose 
+   * timestamps are before the passed time, first writing each instance to archive if it is 
+   * not null.
+   * @param rule The rule selecting the sensor data.
+   * @param before The time before which the selected sensor data has expired.
+   * @param maxInstances The maximum number of instances to delete.
+   * @param archive The writer that receives the deleted instances, or null.
+   * @return The number of instances deleted, which is less than maxInstances once no more 
+   * expired data remains, or -1 if an error occurred. 
+   */
+  public int deleteSensorData(RetentionRule rule, XMLGregorianCalendar before, 
+      int maxInstances, Writer archive) {
+    int numDeleted = this.dbImpl.deleteSensorData(rule, before, maxInstances, archive);
+    this.changeTracker.changedAll();
+    return numDeleted;
+  }
+  
+  /**
+   * Removes, in bulk, the sensor data before the passed time that the storage system holds in
+   * separately removable units such as partitions. 
+   * @param before The time.
+   * @param archiveDir If not null, the directory in which each unit is first archived.
+   * @return The names of the units removed.
+   */
+  public List<String> dropSensorDataPartitions(XMLGregorianCalendar before, File archiveDir) {
+    List<String> dropped = this.dbImpl.dropSensorDataPartitions(before, archiveDir);
+    this.changeTracker.changedAll();
+    return dropped;
   }
   
   /**
@@ -342,6 +621,7 @@ public class DbManager {
    */
   public void deleteSensorDataType(String sdtName) {
     this.dbImpl.deleteSensorDataType(sdtName);
+    this.changeTracker.changed(sdtScope);
   }
   
   /**
@@ -350,6 +630,7 @@ public class DbManager {
    */
   public void deleteUser(String email) {
     this.dbImpl.deleteUser(email);
+    this.changeTracker.changedAll();
   }
   
   /**
@@ -359,6 +640,62 @@ public class DbManager {
    */
   public void deleteProject(User user, String projectName) {
     this.dbImpl.deleteProject(user, projectName);
+    this.changeTracker.changed(getProjectScope(user.getEmail(), projectName));
+  }
+  
+  /**
+   * Returns the time of the last change to the sensor data of the passed users. Resources use
+   * this to answer conditional GETs without querying the storage system. The time is only 
+   * comparable to other times returned by this DbManager.
+   * @param users The owners of the sensor data.
+   * @return The time, in milliseconds.
+   */
+  public long getSensorDataLastChange(List<User> users) {
+    List<String> scopes = new ArrayList<String>(users.size());
+    for (User user : users) {
+      scopes.add(getSensorDataScope(user.getEmail()));
+    }
+    return this.changeTracker.getLastChange(scopes);
+  }
+  
+  /**
+   * Returns the time of the last change to the passed project or to the sensor data of the 
+   * passed users.
+   * @param project The project.
+   * @param users The owners of the sensor data, normally the project's owner and members.
+   * @return The time, in milliseconds.
+   */
+  public long getProjectLastChange(Project project, List<User> users) {
+    long projectChange = 
+      this.changeTracker.getLastChange(getProjectScope(project.getOwner(), project.getName()));
+    return Math.max(projectChange, getSensorDataLastChange(users));
+  }
+  
+  /**
+   * Returns the time of the last change to any SensorDataType.
+   * @return The time, in milliseconds.
+   */
+  public long getSensorDataTypeLastChange() {
+    return this.changeTracker.getLastChange(sdtScope);
+  }
+  
+  /**
+   * Returns the change scope of the sensor data of the passed owner.
+   * @param owner The owner's email, or the URI of the owner's User resource.
+   * @return The scope.
+   */
+  private static String getSensorDataScope(String owner) {
+    return "SensorData:" + owner.substring(owner.lastIndexOf('/') + 1);
+  }
+  
+  /**
+   * Returns the change scope of the passed project.
+   * @param email The project owner's email.
+   * @param projectName The project name.
+   * @return The scope.
+   */
+  private static String getProjectScope(String email, String projectName) {
+    return "Project:" + email + "/" + projectName;
   }
   
   /**
@@ -373,6 +710,16 @@ public class DbManager {
     return this.dbImpl.compressTables();
   }
   
+  /**
+   * Compresses the tables as a background job, reporting progress to the job and stopping 
+   * early if it is cancelled. 
+   * @param job The job.
+   * @return True if the compress command succeeded and was not cancelled.
+   */
+  public boolean compressTables(DbJob job) {
+    return this.dbImpl.compressTables(job);
+  }
+  
   /**
    * The most appropriate set of indexes for the database has been evolving over time as we 
    * develop new queries.  This command sets up the appropriate set of indexes.  It should be
@@ -383,6 +730,16 @@ public class DbManager {
     return this.dbImpl.indexTables();
   }
   
+  /**
+   * Sets up the indexes as a background job, reporting progress to the job and stopping early 
+   * if it is cancelled.
+   * @param job The job.
+   * @return True if the index commands succeeded and were not cancelled.
+   */
+  public boolean indexTables(DbJob job) {
+    return this.dbImpl.indexTables(job);
+  }
+  
   /**
    * Returns the current number of rows in the specified table.  
    * @param table The table whose rows are to be counted. 
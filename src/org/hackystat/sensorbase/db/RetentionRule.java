@@ -0,0 +1,122 @@
+package org.hackystat.sensorbase.db;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Specifies how long the sensor data of an owner, of a sensor data type, or of everything else
+ * is kept. A rule selects the sensor data with its owner (if any) and its sensor data type (if
+ * any), less the sensor data whose owner or type is excluded because a more specific rule
+ * applies to it. The rules of a retention policy therefore never select the same sensor data.
+ *
+ * @author Philip Johnson
+ */
+public class RetentionRule {
+
+  /** The owner's email, or null if the rule applies to all owners. */
+  private final String owner;
+
+  /** The sensor data type, or null if the rule applies to all types. */
+  private final String sdt;
+
+  /** The number of months that sensor data is kept, or zero if it is kept forever. */
+  private final int months;
+
+  /** The owners whose sensor data this rule does not select. */
+  private final Set<String> excludedOwners = new TreeSet<String>();
+
+  /** The sensor data types whose sensor data this rule does not select. */
+  private final Set<String> excludedSdts = new TreeSet<String>();
+
+  /**
+   * Creates a rule with no exclusions.
+   * @param owner The owner's email, or null for all owners.
+   * @param sdt The sensor data type, or null for all types.
+   * @param months The number of months that sensor data is kept, or zero to keep it forever.
+   */
+  public RetentionRule(String owner, String sdt, int months) {
+    this.owner = owner;
+    this.sdt = sdt;
+    this.months = Math.max(0, months);
+  }
+
+  /**
+   * Returns the owner whose sensor data is selected.
+   * @return The owner's email, or null if the rule applies to all owners.
+   */
+  public String getOwner() {
+    return this.owner;
+  }
+
+  /**
+   * Returns the sensor data type whose sensor data is selected.
+   * @return The sensor data type, or null if the rule applies to all types.
+   */
+  public String getSdt() {
+    return this.sdt;
+  }
+
+  /**
+   * Returns the number of months that the selected sensor data is kept.
+   * @return The months, or zero if the sensor data is kept forever.
+   */
+  public int getMonths() {
+    return this.months;
+  }
+
+  /**
+   * Returns true if this rule never expires sensor data.
+   * @return True if the months are zero.
+   */
+  public boolean keepsForever() {
+    return this.months == 0;
+  }
+
+  /**
+   * Excludes the sensor data of an owner from this rule.
+   * @param email The owner's email.
+   */
+  public void excludeOwner(String email) {
+    this.excludedOwners.add(email);
+  }
+
+  /**
+   * Excludes the sensor data of a sensor data type from this rule.
+   * @param sdtName The sensor data type.
+   */
+  public void excludeSdt(String sdtName) {
+    this.excludedSdts.add(sdtName);
+  }
+
+  /**
+   * Returns the owners whose sensor data this rule does not select.
+   * @return The owners' emails, in order.
+   */
+  public Set<String> getExcludedOwners() {
+    return Collections.unmodifiableSet(this.excludedOwners);
+  }
+
+  /**
+   * Returns the sensor data types whose sensor data this rule does not select.
+   * @return The sensor data types, in order.
+   */
+  public Set<String> getExcludedSdts() {
+    return Collections.unmodifiableSet(this.excludedSdts);
+  }
+
+  /**
+   * Returns the rule in the form in which it is configured, such as "sdt:DevEvent=6".
+   * @return The rule as a string.
+   */
+  @Override
+  public String toString() {
+    if (this.owner != null) {
+      return "owner:" + this.owner + "=" + this.months;
+    }
+    if (this.sdt != null) {
+      return "sdt:" + this.sdt + "=" + this.months;
+    }
+    return "default=" + this.months;
+  }
+}
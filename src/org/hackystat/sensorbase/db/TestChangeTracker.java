@@ -0,0 +1,48 @@
+package org.hackystat.sensorbase.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests that the ChangeTracker reports strictly increasing change times for each scope.
+ * @author Philip Johnson
+ */
+public class TestChangeTracker {
+
+  /**
+   * Tests that scopes start at the creation time and advance only when they change.
+   */
+  @Test
+  public void testChanged() {
+    ChangeTracker tracker = new ChangeTracker();
+    long start = tracker.getLastChange("foo");
+    assertEquals("Checking unchanged scope", start, tracker.getLastChange("bar"));
+    tracker.changed("foo");
+    long foo = tracker.getLastChange("foo");
+    assertTrue("Checking changed scope", foo > start);
+    assertEquals("Checking other scope", start, tracker.getLastChange("bar"));
+    // Changes within the same millisecond still get different times.
+    tracker.changed("foo");
+    assertTrue("Checking second change", tracker.getLastChange("foo") > foo);
+    assertEquals("Checking scopes", tracker.getLastChange("foo"),
+        tracker.getLastChange(Arrays.asList("foo", "bar")));
+  }
+
+  /**
+   * Tests that a change to all scopes advances each of them.
+   */
+  @Test
+  public void testChangedAll() {
+    ChangeTracker tracker = new ChangeTracker();
+    tracker.changed("foo");
+    long foo = tracker.getLastChange("foo");
+    tracker.changedAll();
+    long all = tracker.getLastChange("bar");
+    assertTrue("Checking unchanged scope", all > foo);
+    assertEquals("Checking changed scope", all, tracker.getLastChange("foo"));
+  }
+}
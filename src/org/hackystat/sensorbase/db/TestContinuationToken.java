@@ -0,0 +1,45 @@
+package org.hackystat.sensorbase.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests the encoding and decoding of continuation tokens.
+ * @author Philip Johnson
+ */
+public class TestContinuationToken {
+
+  /**
+   * Tests that a token survives a round trip through its string form, and that the string
+   * form needs no escaping in a URL.
+   */
+  @Test
+  public void testRoundTrip() {
+    ContinuationToken token = new ContinuationToken(1177963200123L, "Test User@hackystat.org");
+    String encoded = token.toString();
+    assertEquals("Checking URL-safe", true, encoded.matches("[0-9a-f]+"));
+    ContinuationToken decoded = ContinuationToken.parse(encoded);
+    assertEquals("Checking timestamp", token.getTimestamp(), decoded.getTimestamp());
+    assertEquals("Checking owner", token.getOwner(), decoded.getOwner());
+  }
+
+  /**
+   * Tests that strings that were not produced by toString are rejected.
+   */
+  @Test
+  public void testInvalid() {
+    String[] invalid = { "", "foo", "abc", new ContinuationToken(1, "x").toString() + "zz",
+        "31323320", "2031323320", "6162632078" };
+    for (String string : invalid) {
+      try {
+        ContinuationToken.parse(string);
+        fail("Accepted invalid token: " + string);
+      }
+      catch (IllegalArgumentException e) { //NOPMD
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,413 @@
+package org.hackystat.sensorbase.db.derby;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Properties;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Property;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+
+/**
+ * A PayloadCodec that writes the Timestamp, Runtime, LastMod and Properties of a SensorData
+ * instance in a compact binary form.
+ * <p>
+ * A payload is a format byte followed by the encoded fields, which are compressed with a
+ * Deflater if this codec was created to do so and that makes them shorter. Payloads of
+ * either format can be decoded by any instance. The fields are:
+ * <ul>
+ * <li> The three dates. A complete dateTime is written as its year, month, day, hour, minute
+ * and second, fractional second and time zone. Anything else is written as its lexical form.
+ * <li> The number of properties plus one, or zero if there is no Properties element.
+ * <li> For each property, its key's id in the PayloadKeyDictionary plus one, or zero for a null
+ * key, followed by its value.
+ * </ul>
+ * Integers are written in seven bit groups, least significant first, with signed integers
+ * zigzag encoded. Strings are written as their length plus one, or zero for null, followed by
+ * each character in the same variable length form, so that any Java string survives intact.
+ *
+ * @author Philip Johnson
+ */
+class BinaryPayloadCodec implements PayloadCodec {
+
+  /** The format byte of an uncompressed payload. */
+  private static final int PLAIN = 1;
+
+  /** The format byte of a compressed payload. */
+  private static final int DEFLATED = 2;
+
+  /** Marks a null date. */
+  private static final int NULL_DATE = 0;
+
+  /** Marks a date written as its fields. */
+  private static final int FIELDS_DATE = 1;
+
+  /** Marks a date written as its lexical form. */
+  private static final int LEXICAL_DATE = 2;
+
+  /** The DatatypeFactory of each thread, since they are not guaranteed to be thread-safe. */
+  private static final ThreadLocal<DatatypeFactory> datatypeFactories =
+    new ThreadLocal<DatatypeFactory>();
+
+  /** The property key ids. */
+  private final PayloadKeyDictionary dictionary;
+
+  /** True if payloads are compressed when that makes them shorter. */
+  private final boolean isDeflated;
+
+  /**
+   * Creates a codec.
+   * @param dictionary The property key ids.
+   * @param isDeflated True if payloads should be compressed when that makes them shorter.
+   */
+  BinaryPayloadCodec(PayloadKeyDictionary dictionary, boolean isDeflated) {
+    this.dictionary = dictionary;
+    this.isDeflated = isDeflated;
+  }
+
+  /** {@inheritDoc} */
+  public byte[] encode(SensorData data) throws SQLException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    try {
+      bytes.write(PLAIN);
+      writeDate(bytes, data.getTimestamp());
+      writeDate(bytes, data.getRuntime());
+      writeDate(bytes, data.getLastMod());
+      Properties properties = data.getProperties();
+      if (properties == null) {
+        writeInt(bytes, 0);
+      }
+      else {
+        List<Property> propertyList = properties.getProperty();
+        writeInt(bytes, propertyList.size() + 1);
+        for (Property property : propertyList) {
+          String key = property.getKey();
+          writeInt(bytes, (key == null) ? 0 : this.dictionary.getId(key) + 1);
+          writeString(bytes, property.getValue());
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("ByteArrayOutputStream threw an IOException", e);
+    }
+    byte[] plain = bytes.toByteArray();
+    if (this.isDeflated) {
+      byte[] deflated = deflate(plain);
+      if (deflated.length < plain.length) {
+        return deflated;
+      }
+    }
+    return plain;
+  }
+
+  /** {@inheritDoc} */
+  public SensorData decode(byte[] payload) throws IOException, SQLException {
+    return decode(payload, null);
+  }
+
+  /** {@inheritDoc} */
+  public SensorData decode(byte[] payload, Connection conn) throws IOException, SQLException {
+    if (payload.length == 0) {
+      throw new IOException("Empty payload");
+    }
+    InputStream in = new ByteArrayInputStream(payload, 1, payload.length - 1);
+    if (payload[0] == DEFLATED) {
+      in = new InflaterInputStream(in);
+    }
+    else if (payload[0] != PLAIN) {
+      throw new IOException("Unknown payload format: " + payload[0]);
+    }
+    try {
+      SensorData data = new SensorData();
+      data.setTimestamp(readDate(in));
+      data.setRuntime(readDate(in));
+      data.setLastMod(readDate(in));
+      int numProperties = readInt(in) - 1;
+      if (numProperties >= 0) {
+        Properties properties = new Properties();
+        for (int i = 0; i < numProperties; i++) {
+          Property property = new Property();
+          int keyId = readInt(in);
+          property.setKey((keyId == 0) ? null : this.dictionary.getName(keyId - 1, conn));
+          property.setValue(readString(in));
+          properties.getProperty().add(property);
+        }
+        data.setProperties(properties);
+      }
+      return data;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the plain payload compressed, with the DEFLATED format byte.
+   * @param plain The plain payload.
+   * @return The compressed payload.
+   */
+  private static byte[] deflate(byte[] plain) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length);
+    bytes.write(DEFLATED);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+      out.write(plain, 1, plain.length - 1);
+      out.finish();
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("ByteArrayOutputStream threw an IOException", e);
+    }
+    finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes a date.
+   * @param out The output.
+   * @param date The date, or null.
+   * @throws IOException If the output fails.
+   */
+  private static void writeDate(OutputStream out, XMLGregorianCalendar date) throws IOException {
+    if (date == null) {
+      writeInt(out, NULL_DATE);
+    }
+    else if (isFieldsDate(date)) {
+      writeInt(out, FIELDS_DATE);
+      writeSignedLong(out, date.getYear());
+      writeInt(out, date.getMonth());
+      writeInt(out, date.getDay());
+      writeInt(out, date.getHour());
+      writeInt(out, date.getMinute());
+      writeInt(out, date.getSecond());
+      BigDecimal fraction = date.getFractionalSecond();
+      if (fraction == null) {
+        writeInt(out, 0);
+      }
+      else {
+        writeInt(out, fraction.scale() + 1);
+        writeSignedLong(out, fraction.unscaledValue().longValue());
+      }
+      int timezone = date.getTimezone();
+      writeInt(out, (timezone == DatatypeConstants.FIELD_UNDEFINED) ? 0 : 1);
+      if (timezone != DatatypeConstants.FIELD_UNDEFINED) {
+        writeSignedLong(out, timezone);
+      }
+    }
+    else {
+      writeInt(out, LEXICAL_DATE);
+      writeString(out, date.toXMLFormat());
+    }
+  }
+
+  /**
+   * Returns true if the date can be written as its fields and read back unchanged.
+   * @param date The date.
+   * @return True if it is a complete dateTime whose fields fit in the encoding.
+   */
+  private static boolean isFieldsDate(XMLGregorianCalendar date) {
+    try {
+      if (!DatatypeConstants.DATETIME.equals(date.getXMLSchemaType())
+          || (date.getEon() != null)) {
+        return false;
+      }
+    }
+    catch (IllegalStateException e) {
+      // The defined fields do not form any schema type.
+      return false;
+    }
+    BigDecimal fraction = date.getFractionalSecond();
+    return (fraction == null)
+    || ((fraction.scale() >= 0) && (fraction.unscaledValue().bitLength() < 64));
+  }
+
+  /**
+   * Reads a date.
+   * @param in The input.
+   * @return The date, or null.
+   * @throws IOException If the input is not a valid date.
+   */
+  private static XMLGregorianCalendar readDate(InputStream in) throws IOException {
+    int kind = readInt(in);
+    if (kind == NULL_DATE) {
+      return null;
+    }
+    DatatypeFactory factory = getDatatypeFactory();
+    try {
+      if (kind == LEXICAL_DATE) {
+        return factory.newXMLGregorianCalendar(readString(in));
+      }
+      if (kind != FIELDS_DATE) {
+        throw new IOException("Unknown date kind: " + kind);
+      }
+      BigInteger year = BigInteger.valueOf(readSignedLong(in));
+      int month = readInt(in);
+      int day = readInt(in);
+      int hour = readInt(in);
+      int minute = readInt(in);
+      int second = readInt(in);
+      int scale = readInt(in) - 1;
+      BigDecimal fraction = (scale < 0) ? null : BigDecimal.valueOf(readSignedLong(in), scale);
+      int timezone = (readInt(in) == 0) ? DatatypeConstants.FIELD_UNDEFINED
+          : (int) readSignedLong(in);
+      return factory.newXMLGregorianCalendar(year, month, day, hour, minute, second, fraction,
+          timezone);
+    }
+    catch (IllegalArgumentException e) {
+      throw new IOException("Invalid date: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns this thread's DatatypeFactory, creating it if necessary.
+   * @return The DatatypeFactory.
+   */
+  private static DatatypeFactory getDatatypeFactory() {
+    DatatypeFactory factory = datatypeFactories.get();
+    if (factory == null) {
+      try {
+        factory = DatatypeFactory.newInstance();
+      }
+      catch (DatatypeConfigurationException e) {
+        throw new IllegalStateException("No DatatypeFactory available", e);
+      }
+      datatypeFactories.set(factory);
+    }
+    return factory;
+  }
+
+  /**
+   * Writes a string, which may be null.
+   * @param out The output.
+   * @param string The string.
+   * @throws IOException If the output fails.
+   */
+  private static void writeString(OutputStream out, String string) throws IOException {
+    if (string == null) {
+      writeInt(out, 0);
+      return;
+    }
+    int length = string.length();
+    writeInt(out, length + 1);
+    for (int i = 0; i < length; i++) {
+      writeInt(out, string.charAt(i));
+    }
+  }
+
+  /**
+   * Reads a string.
+   * @param in The input.
+   * @return The string, or null.
+   * @throws IOException If the input ends too soon.
+   */
+  private static String readString(InputStream in) throws IOException {
+    int length = readInt(in) - 1;
+    if (length < 0) {
+      return null;
+    }
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char) readInt(in));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Writes a signed value zigzag encoded, so that small negative values are short.
+   * @param out The output.
+   * @param value The value.
+   * @throws IOException If the output fails.
+   */
+  private static void writeSignedLong(OutputStream out, long value) throws IOException {
+    writeLong(out, (value << 1) ^ (value >> 63));
+  }
+
+  /**
+   * Reads a zigzag encoded signed value.
+   * @param in The input.
+   * @return The value.
+   * @throws IOException If the input ends too soon.
+   */
+  private static long readSignedLong(InputStream in) throws IOException {
+    long encoded = readLong(in);
+    return (encoded >>> 1) ^ -(encoded & 1);
+  }
+
+  /**
+   * Writes a non-negative int in seven bit groups.
+   * @param out The output.
+   * @param value The value.
+   * @throws IOException If the output fails.
+   */
+  private static void writeInt(OutputStream out, int value) throws IOException {
+    writeLong(out, value);
+  }
+
+  /**
+   * Reads a non-negative int.
+   * @param in The input.
+   * @return The value.
+   * @throws IOException If the input ends too soon or the value is too large.
+   */
+  private static int readInt(InputStream in) throws IOException {
+    long value = readLong(in);
+    if ((value < 0) || (value > Integer.MAX_VALUE)) {
+      throw new IOException("Invalid payload integer: " + value);
+    }
+    return (int) value;
+  }
+
+  /**
+   * Writes a value, treated as unsigned, in seven bit groups.
+   * @param out The output.
+   * @param value The value.
+   * @throws IOException If the output fails.
+   */
+  private static void writeLong(OutputStream out, long value) throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      out.write((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    out.write((int) remaining);
+  }
+
+  /**
+   * Reads a value written by writeLong.
+   * @param in The input.
+   * @return The value.
+   * @throws IOException If the input ends too soon.
+   */
+  private static long readLong(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated payload");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid payload integer");
+  }
+}
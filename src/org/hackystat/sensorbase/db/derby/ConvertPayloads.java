@@ -0,0 +1,310 @@
+package org.hackystat.sensorbase.db.derby;
+
+import static org.hackystat.sensorbase.server.ServerProperties.DB_DIR_KEY;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.server.ServerProperties;
+
+/**
+ * Converts the stored SensorData of an existing Derby database to the storage selected by the
+ * sensorbase.db.payload property: "xml" moves every row's data to the XmlSensorData column,
+ * while "binary" and "deflate" move it to the Payload column in that encoding. Setting the
+ * property only affects rows written afterwards, so run this once after changing it.
+ * <p>
+ * Run it from the command line, with the server stopped, as
+ * <pre>java org.hackystat.sensorbase.db.derby.ConvertPayloads xml|binary|deflate</pre>
+ * It converts the database in the directory given by sensorbase.db.dir, which must have been
+ * opened by this version of the server at least once so that its schema is up to date. Rows are
+ * converted in primary key order, chunkSize rows per transaction, so an interrupted conversion
+ * can simply be run again. A row is only given a payload if the XML rebuilt from the payload
+ * is identical to its stored XML; the few rows for which that fails are left as XML. The rows
+ * of each SensorData partition are converted in turn.
+ *
+ * @author Philip Johnson
+ */
+public class ConvertPayloads {
+
+  /** The number of rows converted in each transaction. */
+  private static final int chunkSize = 1000;
+
+  /** The first schema version with the Payload column. */
+  private static final int payloadSchemaVersion = 5;
+
+  /** The first schema version with the SensorDataPartition table. */
+  private static final int partitionSchemaVersion = 6;
+
+  /** The Derby connection URL, which does not create a missing database. */
+  private static final String connectionURL = "jdbc:derby:sensorbase";
+
+  /** The pool from which connections are obtained. */
+  private final DerbyConnectionPool connectionPool;
+
+  /** True if rows are converted to XML rather than to payloads. */
+  private final boolean isToXml;
+
+  /** Encodes and decodes payloads. */
+  private final PayloadCodec codec;
+
+  /** Marshals and unmarshals SensorData. */
+  private final JaxbSerializer serializer;
+
+  /** The number of rows converted so far. */
+  private int numConverted = 0;
+
+  /** The number of rows left as XML because they could not be given a payload. */
+  private int numKeptAsXml = 0;
+
+  /**
+   * Creates a converter.
+   * @param connectionPool The pool, which needs two connections when converting to payloads.
+   * @param payload The target storage: "xml", "binary", or "deflate".
+   * @throws Exception If the JAXB context cannot be created.
+   */
+  ConvertPayloads(DerbyConnectionPool connectionPool, String payload) throws Exception {
+    this.connectionPool = connectionPool;
+    this.isToXml = "xml".equals(payload);
+    this.codec = new BinaryPayloadCodec(new PayloadKeyDictionary(connectionPool),
+        "deflate".equals(payload));
+    this.serializer = new JaxbSerializer(JAXBContext.newInstance(
+        org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class));
+  }
+
+  /**
+   * Converts the database.
+   * @param args The target storage: "xml", "binary", or "deflate".
+   * @throws Exception If the database cannot be opened or converted.
+   */
+  public static void main(String[] args) throws Exception {
+    if ((args.length != 1) || !Arrays.asList("xml", "binary", "deflate").contains(args[0])) {
+      System.out.println("Usage: java " + ConvertPayloads.class.getName()
+          + " xml|binary|deflate");
+      return;
+    }
+    String dbDir = new ServerProperties().get(DB_DIR_KEY);
+    System.getProperties().put("derby.system.home", dbDir);
+    Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    DerbyConnectionPool pool = new DerbyConnectionPool(connectionURL, 2, 30000, 300000, false,
+        16, Logger.getLogger(ConvertPayloads.class.getName()));
+    try {
+      ConvertPayloads converter = new ConvertPayloads(pool, args[0]);
+      int version = converter.checkSchemaVersion();
+      SensorDataPartitions partitions = new SensorDataPartitions(pool, 0, 
+          Logger.getLogger(ConvertPayloads.class.getName()));
+      if (version >= partitionSchemaVersion) {
+        partitions.load();
+      }
+      System.out.println("Converting SensorData in " + dbDir + " to " + args[0]);
+      for (String table : partitions.getAllTables()) {
+        converter.convert(table);
+      }
+      System.out.println("Converted " + converter.numConverted + " rows, left "
+          + converter.numKeptAsXml + " rows as XML.");
+    }
+    finally {
+      pool.close();
+      try {
+        DriverManager.getConnection("jdbc:derby:;shutdown=true");
+      }
+      catch (SQLException e) { //NOPMD
+        // Derby always reports a successful shutdown as an exception.
+      }
+    }
+  }
+
+  /**
+   * Ensures that the database has the Payload column.
+   * @return The schema version.
+   * @throws SQLException If it does not, or the version cannot be read.
+   */
+  private int checkSchemaVersion() throws SQLException {
+    Connection conn = this.connectionPool.getConnection();
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      s = conn.createStatement();
+      rs = s.executeQuery("SELECT Version FROM SchemaVersion");
+      int version = (rs.next()) ? rs.getInt(1) : 1;
+      if (version < payloadSchemaVersion) {
+        throw new SQLException("Schema version " + version + " has no Payload column. "
+            + "Start and stop the server once to migrate it first.");
+      }
+      return version;
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+      conn.close();
+    }
+  }
+
+  /**
+   * Converts every row of a table, one chunk at a time.
+   * @param table The SensorData table or partition.
+   * @throws Exception If a row cannot be read, rebuilt, or updated.
+   */
+  private void convert(String table) throws Exception {
+    String columns = "SELECT Owner, Tstamp, Sdt, Tool, Resource, XmlSensorData, Payload "
+      + "FROM " + table;
+    String firstChunk = columns + " ORDER BY Owner, Tstamp";
+    String nextChunk = columns + " WHERE Owner >= ? AND (Owner > ? OR Tstamp > ?)"
+      + " ORDER BY Owner, Tstamp";
+    String owner = null;
+    Timestamp tstamp = null;
+    int numRows = chunkSize;
+    while (numRows == chunkSize) {
+      List<Object[]> rows = readChunk((owner == null) ? firstChunk : nextChunk, owner, tstamp);
+      numRows = rows.size();
+      if (numRows > 0) {
+        Object[] last = rows.get(numRows - 1);
+        owner = (String) last[0];
+        tstamp = (Timestamp) last[1];
+        updateChunk(table, rows);
+      }
+    }
+  }
+
+  /**
+   * Reads the next chunk of rows.
+   * @param statement The select statement.
+   * @param owner The owner of the last row read, or null for the first chunk.
+   * @param tstamp The timestamp of the last row read.
+   * @return The rows' columns.
+   * @throws SQLException If the rows cannot be read.
+   */
+  private List<Object[]> readChunk(String statement, String owner, Timestamp tstamp)
+  throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>(chunkSize);
+    Connection conn = this.connectionPool.getConnection();
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      s = conn.prepareStatement(statement);
+      s.setMaxRows(chunkSize);
+      if (owner != null) {
+        s.setString(1, owner);
+        s.setString(2, owner);
+        s.setTimestamp(3, tstamp);
+      }
+      rs = s.executeQuery();
+      while (rs.next()) {
+        rows.add(new Object[] { rs.getString(1), rs.getTimestamp(2), rs.getString(3),
+            rs.getString(4), rs.getString(5), rs.getString(6), rs.getBytes(7) });
+      }
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+      conn.close();
+    }
+    return rows;
+  }
+
+  /**
+   * Converts a chunk of rows in one transaction. Payloads are encoded first, since the codec
+   * may need a connection of its own.
+   * @param table The table.
+   * @param rows The rows' columns.
+   * @throws Exception If a row cannot be rebuilt or updated.
+   */
+  private void updateChunk(String table, List<Object[]> rows) throws Exception {
+    List<Object[]> updates = new ArrayList<Object[]>(rows.size());
+    for (Object[] row : rows) {
+      byte[] oldPayload = (byte[]) row[6];
+      String xml = (oldPayload == null) ? (String) row[5] : rebuild(oldPayload, row);
+      if (this.isToXml) {
+        if (oldPayload != null) {
+          updates.add(new Object[] { row[0], row[1], xml, null });
+        }
+        continue;
+      }
+      byte[] payload = this.codec.encode((SensorData) this.serializer.unmarshal(xml));
+      if ((payload.length > DerbyImplementation.maxPayloadLength)
+          || !xml.equals(rebuild(payload, row))) {
+        this.numKeptAsXml++;
+        if (oldPayload != null) {
+          updates.add(new Object[] { row[0], row[1], xml, null });
+        }
+      }
+      else if (!Arrays.equals(payload, oldPayload)) {
+        updates.add(new Object[] { row[0], row[1], null, payload });
+      }
+    }
+    if (updates.isEmpty()) {
+      return;
+    }
+    Connection conn = this.connectionPool.getConnection();
+    PreparedStatement s = null;
+    try {
+      conn.setAutoCommit(false);
+      s = conn.prepareStatement("UPDATE " + table + " SET XmlSensorData = ?, Payload = ? "
+          + "WHERE Owner = ? AND Tstamp = ?");
+      for (Object[] update : updates) {
+        if (update[2] == null) {
+          s.setNull(1, Types.VARCHAR);
+          s.setBytes(2, (byte[]) update[3]);
+        }
+        else {
+          s.setString(1, (String) update[2]);
+          s.setNull(2, Types.VARBINARY);
+        }
+        s.setString(3, (String) update[0]);
+        s.setTimestamp(4, (Timestamp) update[1]);
+        s.addBatch();
+      }
+      s.executeBatch();
+      conn.commit();
+      this.numConverted += updates.size();
+    }
+    catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      conn.setAutoCommit(true);
+      conn.close();
+    }
+  }
+
+  /**
+   * Returns the XML of a row rebuilt from a payload, as DerbyImplementation rebuilds it.
+   * @param payload The payload.
+   * @param row The row's columns, which supply Owner, SensorDataType, Tool, and Resource.
+   * @return The XML.
+   * @throws Exception If the payload cannot be decoded or the result marshalled.
+   */
+  private String rebuild(byte[] payload, Object[] row) throws Exception {
+    SensorData data = this.codec.decode(payload);
+    data.setOwner((String) row[0]);
+    data.setSensorDataType((String) row[2]);
+    data.setTool((String) row[3]);
+    data.setResource((String) row[4]);
+    return this.serializer.marshal(data);
+  }
+}
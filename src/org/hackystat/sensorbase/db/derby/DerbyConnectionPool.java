@@ -0,0 +1,817 @@
+package org.hackystat.sensorbase.db.derby;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.hackystat.utilities.stacktrace.StackTrace;
+
+/**
+ * A bounded pool of JDBC connections to the embedded Derby database.
+ * <p>
+ * Clients obtain a connection with getConnection() and return it by calling close() on it,
+ * exactly as they would with a connection obtained from the DriverManager. The connection
+ * handed out is a thin proxy: close() hands the underlying physical connection back to the pool
+ * rather than closing it.
+ * <p>
+ * At most maxSize connections are ever checked out at once. A caller that finds the pool
+ * exhausted blocks for up to maxWait milliseconds, after which an SQLException is thrown.
+ * Idle connections are validated before being handed out (if validation is enabled), and
+ * a background timer closes connections that have sat idle for longer than idleTimeout
+ * milliseconds. Simple occupancy metrics are maintained and available via the getters.
+ * <p>
+ * Each pooled connection also keeps a bounded, least-recently-used cache of PreparedStatements
+ * keyed by their SQL text. Calling prepareStatement(String) with SQL that has been seen before on
+ * that connection returns the already compiled statement, and calling close() on it merely clears
+ * its parameters. Since Derby compiles a query plan per distinct SQL string, callers should use 
+ * '?' parameters rather than literals so that the number of distinct strings stays small. 
+ *
+ * @author Philip Johnson
+ */
+public class DerbyConnectionPool {
+
+  /** The query used to validate an idle connection before handing it out. */
+  private static final String validationQuery = "VALUES 1";
+
+  /** The JDBC URL used to create new physical connections. */
+  private final String connectionURL;
+
+  /** The maximum number of connections that may be checked out at once. */
+  private final int maxSize;
+
+  /** The maximum time, in milliseconds, that getConnection() will block. */
+  private final long maxWait;
+
+  /** The time, in milliseconds, after which an idle connection is closed. */
+  private final long idleTimeout;
+
+  /** Whether idle connections are validated before being handed out. */
+  private final boolean validate;
+
+  /** The maximum number of PreparedStatements cached per connection. Zero disables caching. */
+  private final int statementCacheSize;
+
+  /** One permit per connection that may be checked out. */
+  private final Semaphore permits;
+
+  /** The idle connections, most recently returned first. Guarded by itself. */
+  private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+  /** The timer that evicts idle connections. */
+  private final Timer evictionTimer;
+
+  /** The logger. */
+  private final Logger logger;
+
+  /** True once the pool has been closed. */
+  private volatile boolean isClosed = false;
+
+  /** The number of connections currently checked out. */
+  private final AtomicInteger numActive = new AtomicInteger(0);
+  /** The number of physical connections created over the life of the pool. */
+  private final AtomicLong numCreated = new AtomicLong(0);
+  /** The number of successful calls to getConnection(). */
+  private final AtomicLong numBorrowed = new AtomicLong(0);
+  /** The number of calls to getConnection() that had to wait for a connection. */
+  private final AtomicLong numWaited = new AtomicLong(0);
+  /** The number of calls to getConnection() that timed out. */
+  private final AtomicLong numTimeouts = new AtomicLong(0);
+  /** The number of idle connections discarded because they failed validation. */
+  private final AtomicLong numInvalid = new AtomicLong(0);
+  /** The number of idle connections closed by the eviction timer. */
+  private final AtomicLong numEvicted = new AtomicLong(0);
+  /** The number of prepareStatement calls satisfied from a statement cache. */
+  private final AtomicLong numStatementHits = new AtomicLong(0);
+  /** The number of prepareStatement calls that required a new compiled statement. */
+  private final AtomicLong numStatementMisses = new AtomicLong(0);
+
+  /**
+   * Creates a new connection pool. No connections are created until they are requested.
+   * @param connectionURL The JDBC URL for the database.
+   * @param maxSize The maximum number of connections that can be checked out at once.
+   * @param maxWait The maximum number of milliseconds to wait for a connection.
+   * @param idleTimeout The number of milliseconds after which idle connections are closed,
+   * or zero to keep idle connections forever.
+   * @param validate True if idle connections should be validated before being handed out.
+   * @param statementCacheSize The number of PreparedStatements to cache per connection, or zero
+   * to disable statement caching.
+   * @param logger The logger for reporting problems.
+   */
+  public DerbyConnectionPool(String connectionURL, int maxSize, long maxWait, long idleTimeout,
+      boolean validate, int statementCacheSize, Logger logger) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("Connection pool size must be at least 1: " + maxSize);
+    }
+    this.connectionURL = connectionURL;
+    this.maxSize = maxSize;
+    this.maxWait = maxWait;
+    this.idleTimeout = idleTimeout;
+    this.validate = validate;
+    this.statementCacheSize = statementCacheSize;
+    this.logger = logger;
+    this.permits = new Semaphore(maxSize, true);
+    this.evictionTimer = new Timer("Derby connection pool eviction", true);
+    if (idleTimeout > 0) {
+      long period = Math.max(1000, idleTimeout / 2);
+      this.evictionTimer.schedule(new TimerTask() {
+        /** Closes connections that have been idle too long. */
+        @Override
+        public void run() {
+          evictIdleConnections();
+        }
+      }, period, period);
+    }
+  }
+
+  /**
+   * Returns a connection from the pool, creating a new physical connection if no idle one
+   * is available. Blocks for at most maxWait milliseconds if the pool is exhausted.
+   * The caller must call close() on the returned connection to give it back to the pool.
+   * @return A connection to the database.
+   * @throws SQLException If the pool is closed, the wait times out, or a new connection
+   * cannot be created.
+   */
+  public Connection getConnection() throws SQLException {
+    if (this.isClosed) {
+      throw new SQLException("Derby: connection pool is closed.");
+    }
+    acquirePermit();
+    try {
+      PooledConnection pooled = takeIdleConnection();
+      if (pooled == null) {
+        pooled = new PooledConnection(DriverManager.getConnection(this.connectionURL));
+        this.numCreated.incrementAndGet();
+      }
+      pooled.checkOut();
+      this.numActive.incrementAndGet();
+      this.numBorrowed.incrementAndGet();
+      return pooled.getProxy();
+    }
+    catch (SQLException e) {
+      this.permits.release();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      this.permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Obtains a permit to check out a connection, waiting at most maxWait milliseconds.
+   * @throws SQLException If no permit becomes available in time, or the wait is interrupted.
+   */
+  private void acquirePermit() throws SQLException {
+    if (this.permits.tryAcquire()) {
+      return;
+    }
+    this.numWaited.incrementAndGet();
+    boolean acquired;
+    try {
+      acquired = this.permits.tryAcquire(this.maxWait, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Derby: interrupted while waiting for a pooled connection.");
+    }
+    if (!acquired) {
+      this.numTimeouts.incrementAndGet();
+      String msg = "Derby: timed out after " + this.maxWait + " ms waiting for a connection. "
+      + getStatistics();
+      this.logger.warning(msg);
+      throw new SQLException(msg);
+    }
+  }
+
+  /**
+   * Removes and returns the most recently used idle connection that passes validation,
+   * or null if there is none. Connections that fail validation are closed and discarded.
+   * @return An idle connection, or null.
+   */
+  private PooledConnection takeIdleConnection() {
+    while (true) {
+      PooledConnection pooled;
+      synchronized (this.idle) {
+        if (this.idle.isEmpty()) {
+          return null;
+        }
+        pooled = this.idle.removeFirst();
+      }
+      if (!this.validate || pooled.isValid()) {
+        return pooled;
+      }
+      this.numInvalid.incrementAndGet();
+      pooled.closePhysical();
+    }
+  }
+
+  /**
+   * Returns the passed connection to the idle list, or closes it if the pool has been closed
+   * or the connection can no longer be used.
+   * @param pooled The connection being returned.
+   */
+  void release(PooledConnection pooled) {
+    this.numActive.decrementAndGet();
+    try {
+      if (this.isClosed || !pooled.reset()) {
+        pooled.closePhysical();
+      }
+      else {
+        synchronized (this.idle) {
+          this.idle.addFirst(pooled);
+        }
+      }
+    }
+    finally {
+      this.permits.release();
+    }
+  }
+
+  /**
+   * Closes every idle connection that has not been used for idleTimeout milliseconds.
+   */
+  void evictIdleConnections() {
+    long cutoff = System.currentTimeMillis() - this.idleTimeout;
+    List<PooledConnection> expired = new ArrayList<PooledConnection>();
+    synchronized (this.idle) {
+      for (Iterator<PooledConnection> i = this.idle.iterator(); i.hasNext();) {
+        PooledConnection pooled = i.next();
+        if (pooled.getLastUsed() < cutoff) {
+          i.remove();
+          expired.add(pooled);
+        }
+      }
+    }
+    for (PooledConnection pooled : expired) {
+      this.numEvicted.incrementAndGet();
+      pooled.closePhysical();
+    }
+  }
+
+  /**
+   * Closes all idle connections and prevents any further connections from being handed out.
+   * Connections that are currently checked out are closed when they are returned.
+   */
+  public void close() {
+    this.isClosed = true;
+    this.evictionTimer.cancel();
+    List<PooledConnection> closing;
+    synchronized (this.idle) {
+      closing = new ArrayList<PooledConnection>(this.idle);
+      this.idle.clear();
+    }
+    for (PooledConnection pooled : closing) {
+      pooled.closePhysical();
+    }
+  }
+
+  /**
+   * Returns the maximum number of connections that can be checked out at once.
+   * @return The pool size.
+   */
+  public int getMaxSize() {
+    return this.maxSize;
+  }
+
+  /**
+   * Returns the number of connections currently checked out.
+   * @return The number of active connections.
+   */
+  public int getNumActive() {
+    return this.numActive.get();
+  }
+
+  /**
+   * Returns the number of open connections currently sitting idle in the pool.
+   * @return The number of idle connections.
+   */
+  public int getNumIdle() {
+    synchronized (this.idle) {
+      return this.idle.size();
+    }
+  }
+
+  /**
+   * Returns the number of callers currently blocked waiting for a connection.
+   * @return The (approximate) number of waiting threads.
+   */
+  public int getNumWaiting() {
+    return this.permits.getQueueLength();
+  }
+
+  /**
+   * Returns the number of physical connections created over the lifetime of this pool.
+   * @return The number of connections created.
+   */
+  public long getNumCreated() {
+    return this.numCreated.get();
+  }
+
+  /**
+   * Returns the number of connections handed out over the lifetime of this pool.
+   * @return The number of borrows.
+   */
+  public long getNumBorrowed() {
+    return this.numBorrowed.get();
+  }
+
+  /**
+   * Returns the number of getConnection() calls that timed out.
+   * @return The number of timeouts.
+   */
+  public long getNumTimeouts() {
+    return this.numTimeouts.get();
+  }
+
+  /**
+   * Returns the number of prepareStatement calls that were satisfied from a statement cache.
+   * @return The number of statement cache hits.
+   */
+  public long getNumStatementHits() {
+    return this.numStatementHits.get();
+  }
+
+  /**
+   * Returns a one line summary of the pool occupancy metrics, suitable for logging.
+   * @return The pool statistics.
+   */
+  public String getStatistics() {
+    return "[Pool size: " + this.maxSize + " active: " + getNumActive() + " idle: " + getNumIdle()
+    + " waiting: " + getNumWaiting() + " created: " + this.numCreated.get()
+    + " borrowed: " + this.numBorrowed.get() + " waited: " + this.numWaited.get()
+    + " timeouts: " + this.numTimeouts.get() + " invalid: " + this.numInvalid.get()
+    + " evicted: " + this.numEvicted.get() + " stmt hits: " + this.numStatementHits.get()
+    + " stmt misses: " + this.numStatementMisses.get() + "]";
+  }
+
+  /**
+   * Wraps a physical connection. The proxy handed to clients forwards every call to the
+   * physical connection, except close(), which returns the connection to the pool, and 
+   * prepareStatement(String), which consults the statement cache.
+   */
+  class PooledConnection implements InvocationHandler {
+    /** The underlying physical connection. */
+    private final Connection physical;
+    /** The cached statements for this connection, in least recently used order. */
+    private final Map<String, CachedStatement> statements;
+    /** The proxy currently handed out, or null if the connection is idle. */
+    private Connection proxy;
+    /** When this connection was last returned to the pool. */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * Wraps the passed physical connection.
+     * @param physical The connection to the database.
+     */
+    PooledConnection(Connection physical) {
+      this.physical = physical;
+      this.statements = new StatementCache();
+    }
+
+    /**
+     * Creates a fresh proxy for this connection. A new proxy is created for every checkout so
+     * that a client holding on to a stale reference cannot use the connection after close().
+     */
+    synchronized void checkOut() {
+      this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] { Connection.class }, this);
+    }
+
+    /**
+     * Returns the proxy for the current checkout.
+     * @return The proxy connection.
+     */
+    synchronized Connection getProxy() {
+      return this.proxy;
+    }
+
+    /**
+     * Returns the time at which this connection was last returned to the pool.
+     * @return The time in milliseconds.
+     */
+    long getLastUsed() {
+      return this.lastUsed;
+    }
+
+    /**
+     * Forwards the call to the physical connection, unless it is close() or isClosed().
+     * @param proxy The proxy on which the method was invoked.
+     * @param method The method.
+     * @param args The arguments.
+     * @return The result of the method.
+     * @throws Throwable If the underlying method throws an exception.
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      boolean isCurrent;
+      synchronized (this) {
+        isCurrent = (proxy == this.proxy); //NOPMD
+        if ("close".equals(name)) {
+          if (isCurrent) {
+            this.proxy = null;
+          }
+        }
+      }
+      if ("close".equals(name)) {
+        if (isCurrent) {
+          release(this);
+        }
+        return null;
+      }
+      if ("isClosed".equals(name)) {
+        return Boolean.valueOf(!isCurrent || this.physical.isClosed());
+      }
+      if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]); //NOPMD
+      }
+      if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      }
+      if (!isCurrent) {
+        throw new SQLException("Derby: connection has already been returned to the pool.");
+      }
+      if ("prepareStatement".equals(name) && (args.length == 1) && (statementCacheSize > 0)) {
+        return prepareCachedStatement((String) args[0], (Connection) proxy);
+      }
+      Object result;
+      try {
+        result = method.invoke(this.physical, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getTargetException();
+      }
+      // Wrap statements so that getConnection() returns the proxy, not the physical connection.
+      if (result instanceof Statement) {
+        return new UncachedStatement((Statement) result, (Connection) proxy)
+            .makeProxy(method.getReturnType());
+      }
+      return result;
+    }
+
+    /**
+     * Returns a PreparedStatement for the passed SQL, reusing the cached one if it exists and
+     * is not already in use by the current client.
+     * @param sql The SQL text.
+     * @param connection The proxy connection on which the statement is being prepared.
+     * @return A proxy for the prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    private PreparedStatement prepareCachedStatement(String sql, Connection connection) 
+      throws SQLException {
+      CachedStatement cached = this.statements.get(sql);
+      if (cached == null) {
+        numStatementMisses.incrementAndGet();
+        cached = new CachedStatement(this.physical.prepareStatement(sql));
+        this.statements.put(sql, cached);
+      }
+      else if (cached.isInUse()) {
+        // Same SQL prepared twice in one checkout; hand out a private, uncached statement.
+        numStatementMisses.incrementAndGet();
+        CachedStatement uncached = new CachedStatement(this.physical.prepareStatement(sql));
+        PreparedStatement statement = uncached.checkOut(connection);
+        uncached.evict();
+        return statement;
+      }
+      else {
+        numStatementHits.incrementAndGet();
+      }
+      return cached.checkOut(connection);
+    }
+
+    /**
+     * Returns true if the physical connection is still usable.
+     * @return True if the validation query succeeds.
+     */
+    boolean isValid() {
+      Statement s = null;
+      try {
+        if (this.physical.isClosed()) {
+          return false;
+        }
+        s = this.physical.createStatement();
+        s.execute(validationQuery);
+        return true;
+      }
+      catch (SQLException e) {
+        return false;
+      }
+      finally {
+        if (s != null) {
+          try {
+            s.close();
+          }
+          catch (SQLException e) { //NOPMD
+            // Nothing to do; the connection is being discarded anyway.
+          }
+        }
+      }
+    }
+
+    /**
+     * Restores the connection to its default state before it is returned to the idle list.
+     * Any transaction left open by a client is rolled back.
+     * @return True if the connection can be reused, false if it should be discarded.
+     */
+    boolean reset() {
+      try {
+        if (this.physical.isClosed()) {
+          return false;
+        }
+        if (!this.physical.getAutoCommit()) {
+          this.physical.rollback();
+          this.physical.setAutoCommit(true);
+        }
+        this.physical.clearWarnings();
+        // Reclaim any cached statements that the client neglected to close.
+        for (CachedStatement cached : this.statements.values()) {
+          cached.reclaim();
+        }
+        this.lastUsed = System.currentTimeMillis();
+        return true;
+      }
+      catch (SQLException e) {
+        logger.info("Derby: discarding pooled connection.\n" + StackTrace.toString(e));
+        return false;
+      }
+    }
+
+    /**
+     * Closes the underlying physical connection, ignoring any errors.
+     */
+    void closePhysical() {
+      for (CachedStatement cached : this.statements.values()) {
+        cached.evict();
+      }
+      this.statements.clear();
+      try {
+        this.physical.close();
+      }
+      catch (SQLException e) {
+        logger.fine("Derby: error closing pooled connection: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * The least recently used statement cache of a single connection. Only ever accessed by the
+   * thread that currently has the connection checked out.
+   */
+  private class StatementCache extends LinkedHashMap<String, CachedStatement> {
+    /** Required for serializable classes. */
+    private static final long serialVersionUID = 1L;
+
+    /** Creates an access-ordered map. */
+    StatementCache() {
+      super(16, 0.75f, true);
+    }
+
+    /**
+     * Evicts the least recently used statement once the cache grows beyond its bound.
+     * @param eldest The least recently used entry.
+     * @return True if the eldest entry should be removed.
+     */
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+      if (size() > statementCacheSize) {
+        eldest.getValue().evict();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Wraps a physical PreparedStatement. The proxy handed to clients forwards every call to the
+   * statement, except close(), which clears the parameters so that the statement can be reused,
+   * and getConnection(), which returns the proxy connection. Once evicted from the cache, close()
+   * really closes the statement. Like a connection proxy, a statement proxy cannot be used 
+   * after close(), since the statement may by then belong to another client.
+   */
+  private class CachedStatement implements InvocationHandler {
+    /** The underlying compiled statement. */
+    private final PreparedStatement physical;
+    /** True while a client holds this statement. */
+    private boolean inUse = false;
+    /** The proxy currently handed out, or null if no client holds this statement. */
+    private volatile PreparedStatement proxy;
+    /** The proxy connection of the client that holds this statement. */
+    private Connection connection;
+    /** True once this statement has been removed from the cache. */
+    private boolean evicted = false;
+
+    /**
+     * Wraps the passed statement.
+     * @param physical The compiled statement.
+     */
+    CachedStatement(PreparedStatement physical) {
+      this.physical = physical;
+    }
+
+    /**
+     * Returns true if a client currently holds this statement.
+     * @return True if in use.
+     */
+    boolean isInUse() {
+      return this.inUse;
+    }
+
+    /**
+     * Marks this statement as in use and returns a new proxy for it.
+     * @param connection The proxy connection of the client.
+     * @return The proxy statement.
+     */
+    PreparedStatement checkOut(Connection connection) {
+      this.inUse = true;
+      this.connection = connection;
+      this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+          PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, 
+          this);
+      return this.proxy;
+    }
+
+    /**
+     * Removes this statement from service. It is closed now if no client holds it, or else
+     * when its client calls close().
+     */
+    void evict() {
+      this.evicted = true;
+      if (!this.inUse) {
+        closeQuietly();
+      }
+    }
+
+    /**
+     * Makes this statement available again after its connection has been returned to the pool,
+     * even if the client never closed it. 
+     * @throws SQLException If the parameters cannot be cleared.
+     */
+    void reclaim() throws SQLException {
+      if (this.inUse) {
+        this.inUse = false;
+        this.proxy = null;
+        this.connection = null;
+        reset();
+      }
+    }
+
+    /**
+     * Clears the state that a client may have set on this statement, so that the next client
+     * sees it as if it had just been prepared.
+     * @throws SQLException If the statement cannot be reset.
+     */
+    private void reset() throws SQLException {
+      this.physical.clearParameters();
+      this.physical.setMaxRows(0);
+    }
+
+    /**
+     * Closes the underlying statement, ignoring any errors.
+     */
+    private void closeQuietly() {
+      try {
+        this.physical.close();
+      }
+      catch (SQLException e) {
+        logger.fine("Derby: error closing cached statement: " + e.getMessage());
+      }
+    }
+
+    /**
+     * Forwards the call to the physical statement, unless it is close(), isClosed(), or 
+     * getConnection().
+     * @param proxy The proxy on which the method was invoked.
+     * @param method The method.
+     * @param args The arguments.
+     * @return The result of the method.
+     * @throws Throwable If the underlying method throws an exception.
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      boolean isCurrent = (proxy == this.proxy); //NOPMD
+      if ("close".equals(name)) {
+        if (isCurrent) {
+          this.inUse = false;
+          this.proxy = null;
+          this.connection = null;
+          if (this.evicted) {
+            closeQuietly();
+          }
+          else {
+            reset();
+          }
+        }
+        return null;
+      }
+      if ("isClosed".equals(name) && !isCurrent) {
+        return Boolean.TRUE;
+      }
+      if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]); //NOPMD
+      }
+      if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      }
+      if (!isCurrent) {
+        throw new SQLException("Derby: statement has already been closed.");
+      }
+      if ("getConnection".equals(name)) {
+        return this.connection;
+      }
+      try {
+        return method.invoke(this.physical, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getTargetException();
+      }
+    }
+  }
+
+  /**
+   * Wraps a statement that is not cached, such as one made by createStatement(). The proxy 
+   * handed to clients forwards every call to the statement, except getConnection(), which 
+   * returns the proxy connection, so that clients cannot reach the physical connection.
+   */
+  private static class UncachedStatement implements InvocationHandler {
+    /** The underlying statement. */
+    private final Statement physical;
+    /** The proxy connection that made the statement. */
+    private final Connection connection;
+    /** True once the client has closed the statement. */
+    private volatile boolean closed = false;
+
+    /**
+     * Wraps the passed statement.
+     * @param physical The statement.
+     * @param connection The proxy connection that made it.
+     */
+    UncachedStatement(Statement physical, Connection connection) {
+      this.physical = physical;
+      this.connection = connection;
+    }
+
+    /**
+     * Returns a proxy for the statement.
+     * @param type The interface the proxy implements, such as Statement or PreparedStatement.
+     * @return The proxy statement.
+     */
+    Object makeProxy(Class<?> type) {
+      return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this);
+    }
+
+    /**
+     * Forwards the call to the physical statement, unless it is getConnection() or the 
+     * statement has been closed.
+     * @param proxy The proxy on which the method was invoked.
+     * @param method The method.
+     * @param args The arguments.
+     * @return The result of the method.
+     * @throws Throwable If the underlying method throws an exception.
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("close".equals(name)) {
+        this.closed = true;
+      }
+      else if ("isClosed".equals(name) && this.closed) {
+        return Boolean.TRUE;
+      }
+      else if ("equals".equals(name)) {
+        return Boolean.valueOf(proxy == args[0]); //NOPMD
+      }
+      else if ("hashCode".equals(name)) {
+        return Integer.valueOf(System.identityHashCode(proxy));
+      }
+      else if (this.closed) {
+        throw new SQLException("Derby: statement has already been closed.");
+      }
+      else if ("getConnection".equals(name)) {
+        return this.connection;
+      }
+      try {
+        return method.invoke(this.physical, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getTargetException();
+      }
+    }
+  }
+}
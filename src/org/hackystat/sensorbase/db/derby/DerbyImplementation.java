@@ -1,7 +1,17 @@
 package org.hackystat.sensorbase.db.derby;
 
 import static org.hackystat.sensorbase.server.ServerProperties.DB_DIR_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_PARTITION_MONTHS_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_PAYLOAD_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_POOL_IDLE_TIMEOUT_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_POOL_MAXWAIT_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_POOL_SIZE_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_POOL_STATEMENT_CACHE_KEY;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.sql.CallableStatement;
 import java.sql.Connection;
@@ -11,37 +21,72 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
+import org.hackystat.sensorbase.db.ContinuationToken;
 import org.hackystat.sensorbase.db.DbImplementation;
+import org.hackystat.sensorbase.db.DbJob;
+import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.db.RetentionRule;
 import org.hackystat.utilities.stacktrace.StackTrace;
 import org.hackystat.utilities.tstamp.Tstamp;
+import org.hackystat.sensorbase.resource.projects.jaxb.MultiDayProjectSummary;
 import org.hackystat.sensorbase.resource.projects.jaxb.Project;
 import org.hackystat.sensorbase.resource.projects.jaxb.ProjectSummary;
 import org.hackystat.sensorbase.resource.projects.jaxb.SensorDataSummaries;
 import org.hackystat.sensorbase.resource.projects.jaxb.SensorDataSummary;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataFields;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataType;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
 import org.hackystat.sensorbase.server.Server;
+import org.hackystat.sensorbase.server.ServerProperties;
 
 
 /**
  * Provides a implementation of DbImplementation using Derby in embedded mode.
  * 
- * Note: If you are using this implementation as a guide for implementing an alternative database,
- * you should be aware that this implementation does not do connection pooling.  It turns out
- * that embedded Derby does not require connection pooling, so it is not present in this code.
- * You will probably want it for your version, of course. 
+ * Connections are obtained from a bounded DerbyConnectionPool whose size, maximum wait, and
+ * idle timeout are set by the sensorbase.db.pool.* server properties. Each method borrows a 
+ * connection and returns it to the pool by closing it in its finally block. 
+ * <p>
+ * All queries use '?' parameters rather than literal values, so that the pool's per-connection
+ * statement cache can reuse the compiled plans. Variable length owner lists and UriPattern
+ * LIKE lists are rounded up to a small number of shapes; see bucketSize(). 
+ * <p>
+ * If the sensorbase.db.lazyrefs property is true, the XmlSensorDataRef column is left null and
+ * SensorData indexes are rendered from the Owner, Tstamp, Sdt, Tool and LastMod columns as
+ * they are written. This removes the largest column after XmlSensorData from every row, 
+ * and keeps the server host name out of the stored data. Rendered refs give Timestamp and 
+ * LastMod in the server's time zone. Either setting can be used with a database written under
+ * the other: rows without a stored ref are always rendered, and stored refs are cleared in the
+ * background (see clearStoredSensorDataRefs) when lazy refs are enabled.
+ * <p>
+ * If the sensorbase.db.payload property is "binary" or "deflate", new SensorData is stored in
+ * the Payload column by a BinaryPayloadCodec (compressed, for "deflate") instead of as XML in
+ * the XmlSensorData column, and its XML is rebuilt only when the instance itself is requested.
+ * Rows of both kinds can be read under any setting. ConvertPayloads converts existing rows.
+ * <p>
+ * If the sensorbase.db.partition.months property is positive, SensorData rows are kept in one
+ * table per that many months (see SensorDataPartitions). Statements are written against the 
+ * SensorData table and run on each table whose interval overlaps their Tstamp range. Queries 
+ * ordered by Tstamp are run on one table after another in order of time, so that their rows
+ * need not all be sorted and a page can stop early; see inTstampOrder(). Others are joined by
+ * UNION ALL; see acrossPartitions(). Partitions older than a given time can be dropped, 
+ * optionally after exporting them, with dropSensorDataPartitions().
  * 
  * @author Philip Johnson
  */
@@ -72,23 +117,68 @@ public class DerbyImplementation extends DbImplementation {
   private static final String executeQueryMsg = "Derby: Executing query ";
   
   /** Required by PMD since this string occurs multiple times in this file. */
-  private static final String ownerEquals = " owner = '";
-
-  /** Required by PMD since this string occurs multiple times in this file. */
-  private static final String sdtEquals = " sdt = '";
-  private static final String toolEquals = " tool = '";
+  private static final String ownerEquals = " Owner = ? ";
+  private static final String tstampEquals = " Tstamp = ? ";
+  private static final String tstampBetween = " (Tstamp BETWEEN ? AND ?)";
   
   /** Required by PMD as above. */
-  private static final String quoteAndClause = "' AND ";
   private static final String andClause = " AND ";
-  private static final String selectPrefix = "SELECT XmlSensorDataRef FROM SensorData WHERE "; 
-  private static final String selectSnapshot = 
-    "SELECT XmlSensorDataRef, Runtime, Tool FROM SensorData WHERE "; 
   private static final String orderByTstamp = " ORDER BY tstamp";
+  private static final String afterContinuationToken = 
+    " Tstamp >= ? AND (Tstamp > ? OR Owner > ?)";
+  private static final String orderByTstampOwner = " ORDER BY Tstamp, Owner";
+  private static final String orderByKey = " ORDER BY Owner, Tstamp";
   private static final String orderByRuntime = " ORDER BY runtime DESC";
   private static final String derbyError = "Derby: Error ";
   private static final String indexSuffix = "Index>";
   private static final String xml = "Xml";
+  
+  /** The pool from which all connections to the database are obtained. */
+  private final DerbyConnectionPool connectionPool;
+  
+  /** The SensorData columns from which a SensorDataRef is rendered, in this order. */
+  private static final String refColumns = "Owner, Tstamp, Sdt, Tool, LastMod";
+  
+  /** 
+   * The SensorData columns from which an instance is rendered, followed by Tstamp, by which the
+   * instances are ordered. See writeInstances(). 
+   */
+  private static final String dataColumns = 
+    "XmlSensorData, Payload, Owner, Sdt, Tool, Resource, Tstamp";
+  
+  /** 
+   * The SensorData columns from which the fields of a SensorDataRows row are rendered, in this
+   * order. The columns holding the whole instance are only added when a Property is selected.
+   */
+  private static final String rowColumns = 
+    "Owner, Tstamp, Sdt, Tool, Resource, Runtime, LastMod";
+  
+  /** The maximum number of timestamps looked up by one query in writeSensorData(). */
+  private static final int maxTimestampsPerQuery = 256;
+  
+  /** True if SensorDataRefs are rendered from refColumns rather than stored. */
+  private final boolean isLazyRefs;
+  
+  /** Selects the SensorDataRef columns of every row. See getSensorDataRef(). */
+  private final String selectAll;
+  
+  /** Selects the SensorDataRef columns of the rows matching the WHERE clause that follows. */
+  private final String selectPrefix;
+  
+  /** Selects the SensorDataRef columns and the Runtime of the rows matching the WHERE clause. */
+  private final String selectSnapshot;
+  
+  /** Encodes new SensorData when isPayloadStored, and decodes the Payload column. */
+  private final PayloadCodec payloadCodec;
+  
+  /** True if new SensorData is stored in the Payload column rather than as XML. */
+  private final boolean isPayloadStored;
+  
+  /** The tables holding the SensorData rows, by Tstamp. */
+  private final SensorDataPartitions partitions;
+  
+  /** Matches the references to the SensorData table in a statement. */
+  private static final Pattern sensorDataTable = Pattern.compile("\\bSensorData\\b");
 
   /**
    * Instantiates the Derby implementation.  Throws a Runtime exception if the Derby
@@ -110,6 +200,29 @@ public class DerbyImplementation extends DbImplementation {
       this.logger.warning(msg + "\n" + StackTrace.toString(e));
       throw new RuntimeException(msg, e);
     }
+    ServerProperties props = server.getServerProperties();
+    this.connectionPool = new DerbyConnectionPool(connectionURL, 
+        props.getInt(DB_POOL_SIZE_KEY, 10), 
+        props.getInt(DB_POOL_MAXWAIT_KEY, 30000),
+        props.getInt(DB_POOL_IDLE_TIMEOUT_KEY, 300000), 
+        props.validatePooledConnections(), 
+        props.getInt(DB_POOL_STATEMENT_CACHE_KEY, 64),
+        this.logger);
+    this.isLazyRefs = props.useLazySensorDataRefs();
+    String columns = (this.isLazyRefs) ? refColumns : refColumns + ", XmlSensorDataRef";
+    this.selectAll = "SELECT " + columns + " FROM SensorData";
+    this.selectPrefix = this.selectAll + " WHERE ";
+    this.selectSnapshot = "SELECT " + columns + ", Runtime FROM SensorData WHERE ";
+    String payload = props.get(DB_PAYLOAD_KEY);
+    this.isPayloadStored = "binary".equalsIgnoreCase(payload) 
+        || "deflate".equalsIgnoreCase(payload);
+    if (!this.isPayloadStored && !"xml".equalsIgnoreCase(payload)) {
+      this.logger.warning("Derby: Unknown " + DB_PAYLOAD_KEY + " " + payload + ", using xml.");
+    }
+    this.payloadCodec = new BinaryPayloadCodec(new PayloadKeyDictionary(this.connectionPool), 
+        "deflate".equalsIgnoreCase(payload));
+    this.partitions = new SensorDataPartitions(this.connectionPool, 
+        props.getInt(DB_PARTITION_MONTHS_KEY, 0), this.logger);
   }
   
 
@@ -124,6 +237,8 @@ public class DerbyImplementation extends DbImplementation {
         public void run() {
           Connection conn = null;
           try {
+            System.out.println("Derby pool at shutdown: " + connectionPool.getStatistics());
+            connectionPool.close();
             conn = DriverManager.getConnection("jdbc:derby:;shutdown=true");
           }
           catch (Exception e) {
@@ -148,15 +263,15 @@ public class DerbyImplementation extends DbImplementation {
         this.logger.info("Derby: creating DB in: " + System.getProperty(derbySystemKey));
         createTables();
       }
-      
-      if (server.getServerProperties().compressOnStartup()) {
-        this.logger.info("Derby: compressing database...");
-        compressTables();
+      else {
+        migrateSchema();
       }
-      if (server.getServerProperties().reindexOnStartup()) {
-        this.logger.info("Derby: reindexing database...");
-        this.logger.info("Derby: reindexing database " + ((indexTables()) ? "OK" : "not OK"));
+      this.partitions.load();
+      this.partitions.moveUnpartitionedRows();
+      if (this.isLazyRefs && !this.isFreshlyCreated) {
+        startClearingStoredSensorDataRefs();
       }
+      // Compressing and reindexing on startup are run in the background by the DbJobManager.
     }
     catch (Exception e) {
       String msg = "Derby: Exception during DerbyImplementation initialization:";
@@ -176,7 +291,7 @@ public class DerbyImplementation extends DbImplementation {
     Connection conn = null;
     Statement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       s = conn.createStatement();
       s.execute(testSensorDataTableStatement);
       s.execute(testSensorDataTypeTableStatement);
@@ -218,25 +333,251 @@ public class DerbyImplementation extends DbImplementation {
     Connection conn = null;
     Statement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       s = conn.createStatement();
       s.execute(createSensorDataTableStatement);
-      s.execute(indexSensorDataTstampStatement);
+      s.execute(indexSensorDataTstampOwnerStatement);
       s.execute(indexSensorDataRuntimeStatement);
-      s.execute(indexSensorDataToolStatement);
+      s.execute(indexSensorDataOwnerSdtTstampStatement);
+      s.execute(indexSensorDataOwnerLastModStatement);
+      s.execute(indexSensorDataOwnerSdtToolRuntimeStatement);
+      s.execute(SensorDataRollup.createTableStatement);
+      s.execute(PayloadKeyDictionary.createTableStatement);
+      s.execute(SensorDataPartitions.createTableStatement);
       s.execute(createSensorDataTypeTableStatement);
       s.execute(createUserTableStatement);
       s.execute(createProjectTableStatement);
+      s.execute(createSchemaVersionTableStatement);
+      s.execute("INSERT INTO SchemaVersion VALUES (" + schemaVersion + ")");
       s.close();
     }
     finally {
       s.close();
       conn.close();
     }
+  }  
+  /**
+   * Brings the tables and indexes of a pre-existing database up to schemaVersion. Each step 
+   * is applied together with the update of the SchemaVersion table in a single transaction,
+   * so a migration interrupted by a crash is simply repeated at the next startup. 
+   * The data itself is migrated in place: there is no need to export and reload it.
+   * Note that Derby locks a table while building an index on it, so the first startup after
+   * an upgrade takes longer on a large database.
+   * @throws SQLException If a migration step fails.
+   */
+  private void migrateSchema() throws SQLException {
+    int version = getSchemaVersion();
+    if (version >= schemaVersion) {
+      return;
+    }
+    Connection conn = null;
+    Statement s = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      s = conn.createStatement();
+      while (version < schemaVersion) {
+        version++;
+        this.logger.info("Derby: migrating database schema to version " + version);
+        if (version == 2) {
+          s.execute(indexSensorDataOwnerSdtTstampStatement);
+          s.execute(indexSensorDataOwnerLastModStatement);
+          s.execute(indexSensorDataOwnerSdtToolRuntimeStatement);
+          // Every query that filters on Tool also filters on Owner and Sdt.
+          s.execute(dropIndexSensorDataToolStatement);
+        }
+        else if (version == 3) {
+          SensorDataRollup.createAndPopulate(s);
+        }
+        else if (version == 4) {
+          s.execute("ALTER TABLE SensorData ALTER COLUMN XmlSensorDataRef NULL");
+        }
+        else if (version == 5) {
+          s.execute("ALTER TABLE SensorData ADD COLUMN " + payloadColumnDefinition);
+          s.execute("ALTER TABLE SensorData ALTER COLUMN XmlSensorData NULL");
+          s.execute(PayloadKeyDictionary.createTableStatement);
+        }
+        else if (version == 6) {
+          s.execute(SensorDataPartitions.createTableStatement);
+        }
+        else if (version == 7) {
+          s.execute(indexSensorDataTstampOwnerStatement);
+          s.execute(dropIndexSensorDataTstampStatement);
+          SensorDataPartitions.replaceTstampIndexes(s);
+        }
+        else {
+          throw new SQLException("No migration to schema version " + version);
+        }
+        s.executeUpdate("UPDATE SchemaVersion SET Version = " + version);
+        conn.commit();
+      }
+      this.logger.info("Derby: database schema is at version " + version);
+    }
+    catch (SQLException e) {
+      if (conn != null) {
+        conn.rollback();
+      }
+      throw e;
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      if (conn != null) {
+        conn.setAutoCommit(true);
+        conn.close();
+      }
+    }
+  }
+  
+  /**
+   * Returns the schema version recorded in the database. Databases created before schema 
+   * versions were recorded are given a SchemaVersion table and are at version 1.
+   * @return The schema version.
+   * @throws SQLException If the version cannot be read or recorded.
+   */
+  private int getSchemaVersion() throws SQLException {
+    Connection conn = null;
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.createStatement();
+      try {
+        rs = s.executeQuery("SELECT Version FROM SchemaVersion");
+        return (rs.next()) ? rs.getInt(1) : 1;
+      }
+      catch (SQLException e) {
+        if (!TABLE_NOT_FOUND.equals(e.getSQLState())) {
+          throw e;
+        }
+      }
+      s.execute(createSchemaVersionTableStatement);
+      s.execute("INSERT INTO SchemaVersion VALUES (1)");
+      return 1;
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+  }
+
+  /**
+   * Starts a low priority background thread that runs clearStoredSensorDataRefs.
+   */
+  private void startClearingStoredSensorDataRefs() {
+    Thread thread = new Thread("Derby SensorDataRef clearing") {
+      /** Clear the refs. */
+      @Override
+      public void run() {
+        clearStoredSensorDataRefs();
+      }
+    };
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+  
+  /**
+   * Sets XmlSensorDataRef to null in the rows stored before lazy refs were enabled, so that 
+   * their space can be reused. This is the online migration to the lazy layout: rows are 
+   * visited in primary key order and cleared refClearingChunkSize rows per transaction, so the
+   * server stays available and reads are unaffected, since a row without a stored ref is 
+   * rendered from its columns. If a transaction fails the clearing stops, and it resumes at 
+   * the next startup. compressTables returns the freed space to the operating system.
+   */
+  private void clearStoredSensorDataRefs() {
+    for (String table : this.partitions.getAllTables()) {
+      if (!clearStoredSensorDataRefs(table)) {
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Clears the stored SensorDataRefs of one of the tables holding SensorData rows.
+   * @param table The table.
+   * @return True if all of its refs were cleared, false if a transaction failed.
+   */
+  private boolean clearStoredSensorDataRefs(String table) {
+    String firstChunk = "SELECT Owner, Tstamp FROM " + table 
+      + " WHERE XmlSensorDataRef IS NOT NULL" + orderByKey;
+    String nextChunk = "SELECT Owner, Tstamp FROM " + table 
+      + " WHERE XmlSensorDataRef IS NOT NULL AND Owner >= ? AND (Owner > ? OR Tstamp > ?)" 
+      + orderByKey;
+    Connection conn = null;
+    PreparedStatement select = null;
+    PreparedStatement update = null;
+    ResultSet rs = null;
+    int numCleared = 0;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      update = conn.prepareStatement("UPDATE " + table 
+          + " SET XmlSensorDataRef = NULL WHERE " + ownerEquals + andClause + tstampEquals);
+      String owner = null;
+      Timestamp tstamp = null;
+      int numRows = refClearingChunkSize;
+      while (numRows == refClearingChunkSize) {
+        select = conn.prepareStatement((owner == null) ? firstChunk : nextChunk);
+        select.setMaxRows(refClearingChunkSize);
+        if (owner != null) {
+          setParameters(select, makeParams(owner, owner, tstamp));
+        }
+        rs = select.executeQuery();
+        numRows = 0;
+        while (rs.next()) {
+          owner = rs.getString(1);
+          tstamp = rs.getTimestamp(2);
+          update.setString(1, owner);
+          update.setTimestamp(2, tstamp);
+          update.addBatch();
+          numRows++;
+        }
+        rs.close();
+        select.close();
+        if (numRows > 0) {
+          update.executeBatch();
+        }
+        conn.commit();
+        numCleared += numRows;
+      }
+      this.logger.info("Derby: cleared " + numCleared + " stored SensorDataRefs in " + table);
+      if (numCleared > 0) {
+        this.partitions.setChanged(table);
+      }
+      return true;
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: stopped clearing stored SensorDataRefs in " + table + " after " 
+          + numCleared + "\n" + StackTrace.toString(e));
+      rollback(conn);
+      return false;
+    }
+    finally {
+      try {
+        if (update != null) {
+          update.close();
+        }
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+      closeTransaction(select, conn);
+    }
   }
   
   // ********************   Start  Sensor Data specific stuff here *****************  //
 
+  /** The largest payload that can be stored, which is the largest Derby allows. */
+  static final int maxPayloadLength = 32672;
+  
+  /** 
+   * The Payload column, which is last so that migrated tables have the same column order. 
+   * A VARCHAR FOR BIT DATA is stored inline in the row, unlike a BLOB. 
+   */
+  private static final String payloadColumnDefinition = 
+    "Payload VARCHAR(" + maxPayloadLength + ") FOR BIT DATA";
+  
   /** The SQL string for creating the SensorData table. */
   private static final String createSensorDataTableStatement = 
     "create table SensorData " 
@@ -247,9 +588,10 @@ public class DerbyImplementation extends DbImplementation {
     + " Runtime TIMESTAMP NOT NULL, "
     + " Tool VARCHAR(64) NOT NULL, "
     + " Resource VARCHAR(512) NOT NULL, "
-    + " XmlSensorData VARCHAR(32000) NOT NULL, "
-    + " XmlSensorDataRef VARCHAR(1000) NOT NULL, "
+    + " XmlSensorData VARCHAR(32000), "
+    + " XmlSensorDataRef VARCHAR(1000), "
     + " LastMod TIMESTAMP NOT NULL, " //NOPMD (Don't worry about repeat occurrences of this string)
+    + payloadColumnDefinition + ", "
     + " PRIMARY KEY (Owner, Tstamp) "
     + ")" ;
   
@@ -267,81 +609,433 @@ public class DerbyImplementation extends DbImplementation {
     + " LastMod = '" + new Timestamp(new Date().getTime()).toString() + "' " //NOPMD (dup string)
     + " WHERE 1=3"; //NOPMD (duplicate string)
   
-  private static final String indexSensorDataTstampStatement = 
-    "CREATE INDEX TstampIndex ON SensorData(Tstamp asc)";
+  /** 
+   * Supports Tstamp ranges and the pages of the sensor data index, which are ordered by 
+   * Tstamp and Owner and start after a continuation token, so a page is read from the index 
+   * in order instead of sorting every row from the token to the end of the interval.
+   */
+  private static final String indexSensorDataTstampOwnerStatement = 
+    "CREATE INDEX TstampOwnerIndex ON SensorData(Tstamp asc, Owner asc)";
+  
   private static final String dropIndexSensorDataTstampStatement = 
     "DROP INDEX TstampIndex";
 
   private static final String indexSensorDataRuntimeStatement = 
     "CREATE INDEX RuntimeIndex ON SensorData(Runtime desc)";
-  private static final String dropIndexSensorDataRuntimeStatement = 
-    "DROP INDEX RuntimeIndex";
   
-  private static final String indexSensorDataToolStatement = 
-    "CREATE INDEX ToolIndex ON SensorData(Tool asc)";
   private static final String dropIndexSensorDataToolStatement = 
     "DROP INDEX ToolIndex";
+  
+  /** Supports the user, project and summary queries: Owner IN (..) AND Sdt = ? AND Tstamp. */
+  private static final String indexSensorDataOwnerSdtTstampStatement = 
+    "CREATE INDEX OwnerSdtTstampIndex ON SensorData(Owner asc, Sdt asc, Tstamp asc)";
+  
+  /** Supports the lastMod index: Owner = ? AND LastMod BETWEEN ? AND ?. */
+  private static final String indexSensorDataOwnerLastModStatement = 
+    "CREATE INDEX OwnerLastModIndex ON SensorData(Owner asc, LastMod asc)";
+  
+  /** Supports snapshots: Owner IN (..) AND Sdt = ? AND Tool = ? ORDER BY Runtime DESC. */
+  private static final String indexSensorDataOwnerSdtToolRuntimeStatement = 
+    "CREATE INDEX OwnerSdtToolRuntimeIndex ON SensorData(Owner asc, Sdt asc, Tool asc, " 
+    + "Runtime desc)";
+  
+  /** 
+   * The version of the table and index definitions created by this class. Databases created 
+   * by an earlier version are brought up to date by migrateSchema at startup. 
+   * <ul>
+   * <li> 1: The original tables, with no SchemaVersion table.
+   * <li> 2: Composite SensorData indexes replace ToolIndex.
+   * <li> 3: The SensorDataRollup table.
+   * <li> 4: XmlSensorDataRef may be null, for lazy refs.
+   * <li> 5: The Payload column and PayloadKey table, and XmlSensorData may be null.
+   * <li> 6: The SensorDataPartition table. 
+   * <li> 7: TstampOwnerIndex replaces TstampIndex.
+   * </ul>
+   * A migration that changes the SensorData columns or indexes must also change those of each 
+   * table listed in SensorDataPartition, and the indexes in SensorDataPartitions.
+   */
+  private static final int schemaVersion = 7;
+  
+  /** The number of stored SensorDataRefs cleared in each transaction. */
+  private static final int refClearingChunkSize = 1000;
+  
+  /** The SQL string for creating the table holding the schema version. */
+  private static final String createSchemaVersionTableStatement = 
+    "create table SchemaVersion (Version INTEGER NOT NULL)";
+  
+  /** The SQL state indicating that a table or view does not exist. */
+  private static final String TABLE_NOT_FOUND = "42X05";
+  
+  /** The SQL string for inserting a row into the SensorData table. */
+  private static final String insertSensorDataStatement = 
+    "INSERT INTO SensorData VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  
+  /** The SQL string for overwriting an existing row in the SensorData table. */
+  private static final String updateSensorDataStatement = 
+    "UPDATE SensorData SET "
+    + " Sdt=?, Runtime=?, Tool=?, Resource=?, XmlSensorData=?, " 
+    + " XmlSensorDataRef=?, LastMod=?, Payload=?"
+    + " WHERE Owner=? AND Tstamp=?";
 
 
-  /** {@inheritDoc} */
- @Override
+  /**
+   * Stores the sensor data, overwriting any existing row with the same owner and timestamp,
+   * and updates the SensorDataRollup counts in the same transaction.
+   * @param data The sensor data instance.
+   * @param xmlSensorData The SensorData marshalled into an XML String.
+   * @param xmlSensorDataRef The corresponding SensorDataRef marshalled into an XML String.
+   * @return True. Failures are logged. 
+   */
+  @Override
   public boolean storeSensorData(SensorData data, String xmlSensorData, String xmlSensorDataRef) {
     Connection conn = null;
     PreparedStatement s = null;
+    Timestamp tstamp = Tstamp.makeTimestamp(data.getTimestamp());
+    SensorDataRollup rollup = new SensorDataRollup();
+    // Encode first: a new property key is added to PayloadKey on a connection of its own.
+    byte[] payload = encodePayload(data);
     try {
-      conn = DriverManager.getConnection(connectionURL);
-      s = conn.prepareStatement("INSERT INTO SensorData VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      // Likewise, a new partition is created on a connection of its own.
+      String table = this.partitions.getTableForWrite(tstamp);
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      s = conn.prepareStatement(forTable(insertSensorDataStatement, table));
       // Order: Owner Tstamp Sdt Runtime Tool Resource XmlSensorData XmlSensorDataRef LastMod
+      // Payload
       s.setString(1, data.getOwner());
-      s.setTimestamp(2, Tstamp.makeTimestamp(data.getTimestamp()));
+      s.setTimestamp(2, tstamp);
       s.setString(3, data.getSensorDataType());
       s.setTimestamp(4, Tstamp.makeTimestamp(data.getRuntime()));
       s.setString(5, data.getTool());
       s.setString(6, data.getResource());
-      s.setString(7, xmlSensorData);
-      s.setString(8, xmlSensorDataRef);
+      setSensorDataRef(s, 8, xmlSensorDataRef);
       s.setTimestamp(9, new Timestamp(new Date().getTime()));
-      s.executeUpdate();
-      this.logger.fine("Derby: Inserted " + data.getOwner() + " " + data.getTimestamp());
+      setPayload(s, 7, 10, xmlSensorData, payload);
+      try {
+        s.executeUpdate();
+        this.logger.fine("Derby: Inserted " + data.getOwner() + " " + data.getTimestamp());
+      }
+      catch (SQLException e) {
+        if (!DUPLICATE_KEY.equals(e.getSQLState())) {
+          throw e;
+        }
+        // Do an update, not an insert.
+        s.close();
+        rollup.subtractExisting(conn, table, data.getOwner(), tstamp);
+        s = conn.prepareStatement(forTable(updateSensorDataStatement, table));
+        s.setString(1, data.getSensorDataType());
+        s.setTimestamp(2, Tstamp.makeTimestamp(data.getRuntime()));
+        s.setString(3, data.getTool());
+        s.setString(4, data.getResource());
+        setSensorDataRef(s, 6, xmlSensorDataRef);
+        s.setTimestamp(7, new Timestamp(new Date().getTime()));
+        setPayload(s, 5, 8, xmlSensorData, payload);
+        s.setString(9, data.getOwner());
+        s.setTimestamp(10, tstamp);
+        s.executeUpdate();
+        this.partitions.setChanged(table);
+        this.logger.fine("Derby: Updated " + data.getOwner() + " " + data.getTimestamp());
+      }
+      rollup.add(data.getOwner(), tstamp, data.getSensorDataType(), data.getTool(), 1);
+      rollup.apply(conn);
+      conn.commit();
     }
     catch (SQLException e) {
-      if (DUPLICATE_KEY.equals(e.getSQLState())) {
-        try {
-          // Do an update, not an insert.
-          s = conn.prepareStatement(
-              "UPDATE SensorData SET "
-              + " Sdt=?, Runtime=?, Tool=?, Resource=?, XmlSensorData=?, " 
-              + " XmlSensorDataRef=?, LastMod=?"
-              + " WHERE Owner=? AND Tstamp=?");
-          s.setString(1, data.getSensorDataType());
-          s.setTimestamp(2, Tstamp.makeTimestamp(data.getRuntime()));
-          s.setString(3, data.getTool());
-          s.setString(4, data.getResource());
-          s.setString(5, xmlSensorData);
-          s.setString(6, xmlSensorDataRef);
-          s.setTimestamp(7, new Timestamp(new Date().getTime()));
-          s.setString(8, data.getOwner());
-          s.setTimestamp(9, Tstamp.makeTimestamp(data.getTimestamp()));
-          s.executeUpdate();
-          this.logger.fine("Derby: Updated " + data.getOwner() + " " + data.getTimestamp());
+      this.logger.info(derbyError + StackTrace.toString(e));
+      rollback(conn);
+    }
+    finally {
+      closeTransaction(s, conn);
+    }
+    return true;
+  }
+  
+  /**
+   * Sets the XmlSensorDataRef parameter of an insert or update, which is null for lazy refs.
+   * @param s The statement.
+   * @param index The index of the parameter.
+   * @param xmlSensorDataRef The SensorDataRef marshalled into an XML String.
+   * @throws SQLException If the parameter cannot be set.
+   */
+  private void setSensorDataRef(PreparedStatement s, int index, String xmlSensorDataRef) 
+  throws SQLException {
+    if (this.isLazyRefs) {
+      s.setNull(index, Types.VARCHAR);
+    }
+    else {
+      s.setString(index, xmlSensorDataRef);
+    }
+  }
+  
+  /**
+   * Returns the payload to be stored for the passed instance, or null if it should be stored as
+   * XML. That is the case if payloads are not enabled, and also if the instance cannot be 
+   * encoded or its payload does not fit in the Payload column, which is logged.
+   * @param data The sensor data.
+   * @return The payload, or null.
+   */
+  private byte[] encodePayload(SensorData data) {
+    if (!this.isPayloadStored) {
+      return null;
+    }
+    try {
+      byte[] payload = this.payloadCodec.encode(data);
+      if (payload.length <= maxPayloadLength) {
+        return payload;
+      }
+      this.logger.fine("Derby: Payload too large, storing XML for " + data.getOwner() + " " 
+          + data.getTimestamp());
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error encoding payload, storing XML. " + StackTrace.toString(e));
+    }
+    return null;
+  }
+  
+  /**
+   * Sets the XmlSensorData and Payload parameters of an insert or update. Exactly one of them
+   * is non-null.
+   * @param s The statement.
+   * @param xmlIndex The index of the XmlSensorData parameter.
+   * @param payloadIndex The index of the Payload parameter.
+   * @param xmlSensorData The SensorData marshalled into an XML String.
+   * @param payload The payload from encodePayload, or null to store the XML.
+   * @throws SQLException If the parameters cannot be set.
+   */
+  private static void setPayload(PreparedStatement s, int xmlIndex, int payloadIndex, 
+      String xmlSensorData, byte[] payload) throws SQLException {
+    if (payload == null) {
+      s.setString(xmlIndex, xmlSensorData);
+      s.setNull(payloadIndex, Types.VARBINARY);
+    }
+    else {
+      s.setNull(xmlIndex, Types.VARCHAR);
+      s.setBytes(payloadIndex, payload);
+    }
+  }
+  
+  /**
+   * Closes the statement and connection used by a transaction, restoring auto-commit mode 
+   * first. Either may be null.
+   * @param s The statement.
+   * @param conn The connection.
+   */
+  private void closeTransaction(Statement s, Connection conn) {
+    try {
+      if (s != null) {
+        s.close();
+      }
+      if (conn != null) {
+        conn.setAutoCommit(true);
+        conn.close();
+      }
+    }
+    catch (SQLException e) {
+      this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+    }
+  }
+  
+  /**
+   * Rolls back the current transaction of conn, logging any error.
+   * @param conn The connection, or null.
+   */
+  private void rollback(Connection conn) {
+    try {
+      if (conn != null) {
+        conn.rollback();
+      }
+    }
+    catch (SQLException e) {
+      this.logger.warning("Derby: Error rolling back " + StackTrace.toString(e));
+    }
+  }
+
+
+  /**
+   * Stores the batch in a single transaction.  First, one SELECT per owner and partition finds 
+   * which of the batch's keys are already present, then all new rows are inserted with one JDBC
+   * batch per partition and all pre-existing rows are updated with another. The 
+   * SensorDataRollup counts are updated in the same transaction.  If anything goes wrong (for 
+   * example, a concurrent request stores one of the same keys between the SELECT and the 
+   * INSERT), the transaction is rolled back and the rows are stored one at a time instead.
+   * @param datas The sensor data instances. 
+   * @param xmlSensorDatas The SensorData instances marshalled into XML Strings.  
+   * @param xmlSensorDataRefs The corresponding SensorDataRefs marshalled into XML Strings.
+   * @return True if all of the sensor data was successfully inserted.
+   */
+  @Override
+  public boolean storeSensorDataBatch(List<SensorData> datas, List<String> xmlSensorDatas, 
+      List<String> xmlSensorDataRefs) {
+    // Map each [owner, tstamp] key to the index of its last occurrence in the batch, since a 
+    // later element overwrites an earlier one with the same key.
+    Map<String, Integer> key2index = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < datas.size(); i++) {
+      SensorData data = datas.get(i);
+      String key = makeSensorDataKey(data.getOwner(), Tstamp.makeTimestamp(data.getTimestamp()));
+      key2index.remove(key);
+      key2index.put(key, i);
+    }
+    // Encode first, as in storeSensorData. Instances overwritten within the batch are skipped.
+    byte[][] payloads = new byte[datas.size()][];
+    for (int i : key2index.values()) {
+      payloads[i] = encodePayload(datas.get(i));
+    }
+    boolean success = false;
+    Connection conn = null;
+    PreparedStatement select = null;
+    Map<String, PreparedStatement> inserts = new LinkedHashMap<String, PreparedStatement>();
+    Map<String, PreparedStatement> updates = new LinkedHashMap<String, PreparedStatement>();
+    ResultSet rs = null;
+    try {
+      // Find the table of each instance, creating partitions before the transaction begins,
+      // and the range of timestamps of each owner in each table.
+      String[] tables = new String[datas.size()];
+      Map<String, Map<String, Timestamp[]>> table2ranges = 
+        new LinkedHashMap<String, Map<String, Timestamp[]>>();
+      for (int i : key2index.values()) {
+        SensorData data = datas.get(i);
+        Timestamp tstamp = Tstamp.makeTimestamp(data.getTimestamp());
+        tables[i] = this.partitions.getTableForWrite(tstamp);
+        Map<String, Timestamp[]> owner2range = table2ranges.get(tables[i]);
+        if (owner2range == null) {
+          owner2range = new HashMap<String, Timestamp[]>();
+          table2ranges.put(tables[i], owner2range);
         }
-        catch (SQLException f) {
-          this.logger.info(derbyError + StackTrace.toString(f));
+        Timestamp[] range = owner2range.get(data.getOwner());
+        if (range == null) {
+          owner2range.put(data.getOwner(), new Timestamp[] { tstamp, tstamp });
+        }
+        else {
+          range[0] = (tstamp.before(range[0])) ? tstamp : range[0];
+          range[1] = (tstamp.after(range[1])) ? tstamp : range[1];
+        }
+      }
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      // Find the keys in this batch that are already in the table, and their Sdt and Tool.
+      Map<String, String[]> existingKeys = new HashMap<String, String[]>();
+      for (Map.Entry<String, Map<String, Timestamp[]>> tableEntry : table2ranges.entrySet()) {
+        select = conn.prepareStatement("SELECT Tstamp, Sdt, Tool FROM " + tableEntry.getKey() 
+            + " WHERE " + ownerEquals + andClause + tstampBetween);
+        for (Map.Entry<String, Timestamp[]> entry : tableEntry.getValue().entrySet()) {
+          select.setString(1, entry.getKey());
+          select.setTimestamp(2, entry.getValue()[0]);
+          select.setTimestamp(3, entry.getValue()[1]);
+          rs = select.executeQuery();
+          while (rs.next()) {
+            existingKeys.put(makeSensorDataKey(entry.getKey(), rs.getTimestamp(1)), 
+                new String[] { rs.getString(2), rs.getString(3) });
+          }
+          rs.close();
+        }
+        select.close();
+        select = null;
+        // Now prepare the inserts and updates as two batches per table.
+        inserts.put(tableEntry.getKey(), 
+            conn.prepareStatement(forTable(insertSensorDataStatement, tableEntry.getKey())));
+        updates.put(tableEntry.getKey(), 
+            conn.prepareStatement(forTable(updateSensorDataStatement, tableEntry.getKey())));
+      }
+      Timestamp lastMod = new Timestamp(new Date().getTime());
+      int numInserts = 0;
+      int numUpdates = 0;
+      SensorDataRollup rollup = new SensorDataRollup();
+      for (Map.Entry<String, Integer> entry : key2index.entrySet()) {
+        int i = entry.getValue();
+        SensorData data = datas.get(i);
+        Timestamp tstamp = Tstamp.makeTimestamp(data.getTimestamp());
+        rollup.add(data.getOwner(), tstamp, data.getSensorDataType(), data.getTool(), 1);
+        String[] existing = existingKeys.get(entry.getKey());
+        if (existing != null) {
+          rollup.add(data.getOwner(), tstamp, existing[0], existing[1], -1);
+          PreparedStatement update = updates.get(tables[i]);
+          update.setString(1, data.getSensorDataType());
+          update.setTimestamp(2, Tstamp.makeTimestamp(data.getRuntime()));
+          update.setString(3, data.getTool());
+          update.setString(4, data.getResource());
+          setSensorDataRef(update, 6, xmlSensorDataRefs.get(i));
+          update.setTimestamp(7, lastMod);
+          setPayload(update, 5, 8, xmlSensorDatas.get(i), payloads[i]);
+          update.setString(9, data.getOwner());
+          update.setTimestamp(10, tstamp);
+          update.addBatch();
+          numUpdates++;
+          this.partitions.setChanged(tables[i]);
+        }
+        else {
+          PreparedStatement insert = inserts.get(tables[i]);
+          insert.setString(1, data.getOwner());
+          insert.setTimestamp(2, tstamp);
+          insert.setString(3, data.getSensorDataType());
+          insert.setTimestamp(4, Tstamp.makeTimestamp(data.getRuntime()));
+          insert.setString(5, data.getTool());
+          insert.setString(6, data.getResource());
+          setSensorDataRef(insert, 8, xmlSensorDataRefs.get(i));
+          insert.setTimestamp(9, lastMod);
+          setPayload(insert, 7, 10, xmlSensorDatas.get(i), payloads[i]);
+          insert.addBatch();
+          numInserts++;
         }
       }
+      if (numInserts > 0) {
+        for (PreparedStatement insert : inserts.values()) {
+          insert.executeBatch();
+        }
+      }
+      if (numUpdates > 0) {
+        for (PreparedStatement update : updates.values()) {
+          update.executeBatch();
+        }
+      }
+      rollup.apply(conn);
+      conn.commit();
+      success = true;
+      this.logger.fine("Derby: Batch inserted " + numInserts + ", updated " + numUpdates);
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Batch store failed, storing individually. " 
+          + StackTrace.toString(e));
+      try {
+        if (conn != null) {
+          conn.rollback();
+        }
+      }
+      catch (SQLException f) {
+        this.logger.warning("Derby: Error rolling back batch " + StackTrace.toString(f));
+      }
     }
     finally {
       try {
-        s.close();
-        conn.close();
+        if (select != null) {
+          select.close();
+        }
+        for (PreparedStatement insert : inserts.values()) {
+          insert.close();
+        }
+        for (PreparedStatement update : updates.values()) {
+          update.close();
+        }
+        if (conn != null) {
+          conn.setAutoCommit(true);
+          conn.close();
+        }
       }
       catch (SQLException e) {
         this.logger.warning(errorClosingMsg + StackTrace.toString(e));
       }
     }
-    return true;
+    return (success) ? true : super.storeSensorDataBatch(datas, xmlSensorDatas, xmlSensorDataRefs);
+  }
+  
+  /**
+   * Returns the String used to identify the row with this owner and timestamp within a batch.
+   * @param owner The owner.
+   * @param tstamp The timestamp.
+   * @return The key.
+   */
+  private static String makeSensorDataKey(String owner, Timestamp tstamp) {
+    return owner + ' ' + tstamp.getTime();
   }
-
 
   /** {@inheritDoc} */
   @Override
@@ -353,8 +1047,22 @@ public class DerbyImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public String getSensorDataIndex() {
-    String st = "SELECT XmlSensorDataRef FROM SensorData";
-    return getIndex("SensorData", st); //NOPMD  (See below)
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndex(writer);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer) throws IOException {
+    List<Object> params = makeParams();
+    String statement = acrossPartitions(this.selectAll, params, null, null);
+    writeIndex(writer, "SensorData", statement, params); //NOPMD  (See below)
   }
   
   /*
@@ -372,100 +1080,135 @@ public class DerbyImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public String getSensorDataIndex(User user) {
-    String st = "SELECT XmlSensorDataRef FROM SensorData WHERE owner='" + user.getEmail() + "'"; 
-    return getIndex("SensorData", st);
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndex(writer, user);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, User user) throws IOException {
+    List<Object> params = makeParams(user.getEmail());
+    String st = acrossPartitions(this.selectPrefix + ownerEquals, params, null, null); 
+    writeIndex(writer, "SensorData", st, params);
   }
 
   /** {@inheritDoc} */
   @Override
   public String getSensorDataIndex(User user, String sdtName) {
-    String st = 
-      selectPrefix
-      + ownerEquals + user.getEmail() + quoteAndClause
-      + " Sdt='" + sdtName + "'"
-      + orderByTstamp;
-    return getIndex("SensorData", st);
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndex(writer, user, sdtName);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, User user, String sdtName) throws IOException {
+    List<Object> params = makeParams(user.getEmail(), sdtName);
+    List<TableQuery> queries = inTstampOrder(
+        this.selectPrefix + ownerEquals + andClause + " Sdt = ? " + orderByTstamp, params, null, 
+        null);
+    writeIndex(writer, "SensorData", queries, 0, Integer.MAX_VALUE);
   }
   
   /** {@inheritDoc} */
   @Override
   public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt) {
-    String statement;
-    if (sdt == null) { // Retrieve sensor data of all SDTs 
-      statement =
-        selectPrefix
-        + constructOwnerClause(users)
-        + andClause 
-        + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND " //NOPMD
-        + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))" //NOPMD
-        + constructLikeClauses(uriPatterns)
-        + orderByTstamp;
-    }
-    else { // Retrieve sensor data of the specified SDT.
-      statement = 
-        selectPrefix
-        + constructOwnerClause(users)
-        + andClause  
-        + sdtEquals + sdt + quoteAndClause 
-        + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND " //NOPMD
-        + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))" //NOPMD
-        + constructLikeClauses(uriPatterns)
-        + orderByTstamp;
-    }
-    //System.out.println(statement);
-    return getIndex("SensorData", statement);
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt) throws IOException {
+    // If sdt is null, retrieve sensor data of all SDTs. 
+    List<Object> params = makeParams();
+    String statement =
+      this.selectPrefix
+      + constructProjectClause(users, sdt, null, startTime, endTime, uriPatterns, params)
+      + orderByTstamp;
+    List<TableQuery> queries = inTstampOrder(statement, params, 
+        Tstamp.makeTimestamp(startTime), Tstamp.makeTimestamp(endTime));
+    writeIndex(writer, "SensorData", queries, 0, Integer.MAX_VALUE);
   }
   
   /** {@inheritDoc} */
   @Override
   public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) {
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    List<Object> params = makeParams();
     String statement =
-        selectPrefix
-        + constructOwnerClause(users)
-        + andClause  
-        + sdtEquals + sdt + quoteAndClause 
-        + toolEquals + tool + quoteAndClause 
-        + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND " //NOPMD
-        + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))" //NOPMD
-        + constructLikeClauses(uriPatterns)
-        + orderByTstamp;
-    //System.out.println(statement);
-    return getIndex("SensorData", statement);
+      this.selectPrefix
+      + constructProjectClause(users, sdt, tool, startTime, endTime, uriPatterns, params)
+      + orderByTstamp;
+    List<TableQuery> queries = inTstampOrder(statement, params, 
+        Tstamp.makeTimestamp(startTime), Tstamp.makeTimestamp(endTime));
+    writeIndex(writer, "SensorData", queries, 0, Integer.MAX_VALUE);
   }
   
   /** {@inheritDoc} */
   @Override
   public String getProjectSensorDataSnapshot(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) {
-    String statement;
-    if (tool == null) { // Retrieve sensor data with latest runtime regardless of tool.
-      statement =
-        selectSnapshot
-        + constructOwnerClause(users)
-        + andClause 
-        + sdtEquals + sdt + quoteAndClause 
-        + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND " //NOPMD
-        + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))" //NOPMD
-        + constructLikeClauses(uriPatterns)
-        + orderByRuntime;
-    }
-    else { // Retrieve sensor data with the latest runtime for the specified tool.
-      statement = 
-        selectSnapshot
-        + constructOwnerClause(users)
-        + andClause  
-        + sdtEquals + sdt + quoteAndClause 
-        + toolEquals + tool + quoteAndClause 
-        + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND " //NOPMD
-        + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))" //NOPMD
-        + constructLikeClauses(uriPatterns)
-        + orderByRuntime;
-    }
-    //Generate a SensorDataIndex string that contains only entries with the latest runtime.
-    //System.out.println(statement);
-    return getSnapshotIndex(statement);
+    StringWriter writer = new StringWriter();
+    try {
+      writeProjectSensorDataSnapshot(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeProjectSensorDataSnapshot(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    // If tool is null, retrieve sensor data with latest runtime regardless of tool.
+    List<Object> params = makeParams();
+    String statement =
+      this.selectSnapshot
+      + constructProjectClause(users, sdt, tool, startTime, endTime, uriPatterns, params)
+      + orderByRuntime;
+    statement = acrossPartitions(statement, params, Tstamp.makeTimestamp(startTime), 
+        Tstamp.makeTimestamp(endTime));
+    //Generate a SensorDataIndex that contains only entries with the latest runtime.
+    writeSnapshotIndex(writer, statement, params);
   }
   
   /** {@inheritDoc} */
@@ -473,18 +1216,202 @@ public class DerbyImplementation extends DbImplementation {
   public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, int startIndex, 
       int maxInstances) {
-    String statement;
-
-    statement =
-        selectPrefix
-        + constructOwnerClause(users)
-        + andClause 
-        + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND " //NOPMD
-        + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))" //NOPMD
-        + constructLikeClauses(uriPatterns)
-        + orderByTstamp;
-    //System.out.println(statement);
-    return getIndex("SensorData", statement, startIndex, maxInstances);
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, startIndex, 
+          maxInstances);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      int startIndex, int maxInstances) throws IOException {
+    List<Object> params = makeParams();
+    String statement =
+      this.selectPrefix
+      + constructProjectClause(users, null, null, startTime, endTime, uriPatterns, params)
+      + orderByTstamp;
+    List<TableQuery> queries = inTstampOrder(statement, params, 
+        Tstamp.makeTimestamp(startTime), Tstamp.makeTimestamp(endTime));
+    writeIndex(writer, "SensorData", queries, startIndex, maxInstances);
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndexPage(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      ContinuationToken token, int maxInstances) throws IOException {
+    List<Object> params = makeParams();
+    StringBuilder statement = new StringBuilder(512);
+    statement.append(this.selectPrefix);
+    statement.append(
+        constructProjectClause(users, null, null, startTime, endTime, uriPatterns, params));
+    Timestamp start = Tstamp.makeTimestamp(startTime);
+    if (token != null) {
+      // Seek past the last instance of the previous page. The Tstamp >= ? term lets Derby 
+      // start its scan of TstampOwnerIndex there rather than at startTime.
+      Timestamp tstamp = new Timestamp(token.getTimestamp());
+      statement.append(andClause).append(afterContinuationToken);
+      params.add(tstamp);
+      params.add(tstamp);
+      params.add(token.getOwner());
+      // Later pages need not read the partitions that earlier pages have finished.
+      start = (tstamp.after(start)) ? tstamp : start;
+    }
+    statement.append(orderByTstampOwner);
+    List<TableQuery> queries = inTstampOrder(statement.toString(), params, start, 
+        Tstamp.makeTimestamp(endTime));
+    writeIndexPage(writer, queries, maxInstances);
+  }
+  
+  /**
+   * Writes the matching instances as they are read by one query, ordered by Tstamp.
+   * @param writer The writer that receives the instances.
+   * @param users The owners of the sensor data.
+   * @param startTime The start of the interval.
+   * @param endTime The end of the interval.
+   * @param uriPatterns The UriPatterns that the resource must match.
+   * @param sdt The SensorDataType, or null to match any.
+   * @param tool The tool, or null to match any.
+   * @throws IOException If the writer fails, or the instances cannot be retrieved.
+   */
+  @Override
+  public void writeSensorDatas(Writer writer, List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) 
+  throws IOException {
+    List<Object> params = makeParams();
+    String statement = 
+      "SELECT " + dataColumns + " FROM SensorData WHERE "
+      + constructProjectClause(users, sdt, tool, startTime, endTime, uriPatterns, params)
+      + orderByTstamp;
+    List<TableQuery> queries = inTstampOrder(statement, params, 
+        Tstamp.makeTimestamp(startTime), Tstamp.makeTimestamp(endTime));
+    writer.write(DbManager.sensorDatasOpenTag);
+    writeInstances(writer, queries);
+    writer.write(DbManager.sensorDatasCloseTag);
+  }
+  
+  /**
+   * Writes the selected fields of the matching instances, reading the XmlSensorData or Payload
+   * column only if a Property is selected. Without one, the rows are rendered from the typed
+   * columns alone, as SensorDataRefs are.
+   * @param writer The writer that receives the rows.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param uriPatterns The uripatterns that must match the resource string.
+   * @param sdt The sensor data type of interest, or null for any.
+   * @param tool The tool of interest, or null for any.
+   * @param fields The fields of each instance to be written.
+   * @throws IOException If the writer fails, or the rows cannot be retrieved.
+   */
+  @Override
+  public void writeSensorDataRows(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool, SensorDataFields fields) throws IOException {
+    List<Object> params = makeParams();
+    String statement = 
+      "SELECT " + rowColumns + (fields.hasProperties() ? ", XmlSensorData, Payload" : "")
+      + " FROM SensorData WHERE "
+      + constructProjectClause(users, sdt, tool, startTime, endTime, uriPatterns, params)
+      + orderByTstamp;
+    List<TableQuery> queries = inTstampOrder(statement, params, 
+        Tstamp.makeTimestamp(startTime), Tstamp.makeTimestamp(endTime));
+    writer.write(fields.getOpenTag());
+    writeRows(writer, queries, fields);
+    writer.write(SensorDataFields.closeTag);
+  }
+  
+  /**
+   * Writes the user's instances with the passed timestamps. Each query looks up to 
+   * maxTimestampsPerQuery of them with an IN list, which Derby answers by probing the primary 
+   * key (Owner, Tstamp) in order, so the instances are read in one ordered pass over the index.
+   * @param writer The writer that receives the instances.
+   * @param user The owner.
+   * @param timestamps The timestamps.
+   * @throws IOException If the instances cannot be written.
+   */
+  @Override
+  public void writeSensorData(Writer writer, User user, List<XMLGregorianCalendar> timestamps)
+  throws IOException {
+    List<XMLGregorianCalendar> sorted = sortTimestamps(timestamps);
+    for (int i = 0; i < sorted.size(); i += maxTimestampsPerQuery) {
+      List<XMLGregorianCalendar> chunk = 
+        sorted.subList(i, Math.min(i + maxTimestampsPerQuery, sorted.size()));
+      List<Object> params = makeParams(user.getEmail());
+      // Padded to the bucket size with the last timestamp, as constructOwnerClause does.
+      int numParams = bucketSize(chunk.size());
+      StringBuilder statement = new StringBuilder(128 + 3 * numParams);
+      statement.append("SELECT ").append(dataColumns).append(" FROM SensorData WHERE ")
+          .append(ownerEquals).append(andClause).append(" Tstamp IN (");
+      for (int j = 0; j < numParams; j++) {
+        params.add(Tstamp.makeTimestamp(chunk.get(Math.min(j, chunk.size() - 1))));
+        statement.append((j == 0) ? "?" : ", ?");
+      }
+      statement.append(')').append(orderByTstamp);
+      List<TableQuery> queries = inTstampOrder(statement.toString(), params, 
+          Tstamp.makeTimestamp(chunk.get(0)), Tstamp.makeTimestamp(chunk.get(chunk.size() - 1)));
+      writeInstances(writer, queries);
+    }
+  }
+  
+  /**
+   * Constructs the WHERE clause shared by the project-oriented SensorData queries, and adds the
+   * values for its '?' parameters to params in order. The clause restricts the results to the
+   * passed owners, to the interval [startTime, endTime], to the passed UriPatterns, and, if
+   * non-null, to the passed sdt and tool.
+   * @param users The owners of the sensor data.
+   * @param sdt The SensorDataType, or null to match any.
+   * @param tool The tool, or null to match any.
+   * @param startTime The start of the interval.
+   * @param endTime The end of the interval.
+   * @param uriPatterns The UriPatterns that the resource must match.
+   * @param params The list to which the parameter values are appended.
+   * @return The WHERE clause, without the WHERE keyword.
+   */
+  private static String constructProjectClause(List<User> users, String sdt, String tool,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      List<Object> params) {
+    StringBuilder buff = new StringBuilder(128);
+    buff.append(constructOwnerClause(users, params));
+    if (sdt != null) {
+      buff.append(andClause).append(" Sdt = ? ");
+      params.add(sdt);
+    }
+    if (tool != null) {
+      buff.append(andClause).append(" Tool = ? ");
+      params.add(tool);
+    }
+    buff.append(andClause).append(tstampBetween);
+    params.add(Tstamp.makeTimestamp(startTime));
+    params.add(Tstamp.makeTimestamp(endTime));
+    buff.append(constructLikeClauses(uriPatterns, params));
+    return buff.toString();
+  }
+  
+  /**
+   * Returns the number of '?' parameters to generate for a list of n values.  
+   * Variable length lists (of owners or of LIKE patterns) are rounded up to the next power of 
+   * two, so that only a handful of distinct statements are ever prepared for them and their 
+   * compiled plans can be reused. The extra parameters are filled by repeating the last value,
+   * which does not change the result of an IN list or a disjunction of LIKE clauses.
+   * <p>
+   * This method is static and package private to support testing.
+   * @param n The number of values.
+   * @return The bucketed number of parameters, which is at least n.
+   */
+  static int bucketSize(int n) {
+    int size = 1;
+    while (size < n) {
+      size *= 2;
+    }
+    return size;
   }
   
   /**
@@ -504,9 +1431,12 @@ public class DerbyImplementation extends DbImplementation {
    * The new set of 'translated' UriPatterns are now used to generate a set of LIKE clauses
    * with the following form:
    * <pre>
-   * (RESOURCE like 'translatedUriPattern1' escape 'escapeChar1') OR
-   * (RESOURCE like 'translatedUriPattern2' escape 'escapeChar2') ..
+   * (RESOURCE like ? escape '`') OR
+   * (RESOURCE like ? escape '`') ..
    * </pre>
+   * The translated UriPatterns are appended to params as the values of the '?' parameters.
+   * The number of LIKE clauses is rounded up by bucketSize(), with the last translated pattern
+   * repeated to fill the extra parameters.
    * 
    * <p>
    * There is one special case.  If the List(UriPattern) is null, empty, or consists of exactly one 
@@ -521,9 +1451,10 @@ public class DerbyImplementation extends DbImplementation {
    * TestConstructUriPattern for example invocations and expected return values. 
    *  
    * @param uriPatterns The list of uriPatterns.
+   * @param params The list to which the translated patterns are appended.
    * @return The String to be used in the where clause to check for resource correctness.
    */
-  static String constructLikeClauses(List<String> uriPatterns) {
+  static String constructLikeClauses(List<String> uriPatterns, List<Object> params) {
     // Deal with special case. UriPatterns is null, or empty, or "**", or "*"
     if (((uriPatterns == null) || uriPatterns.isEmpty()) ||
         ((uriPatterns.size() == 1) && uriPatterns.get(0).equals("**")) ||
@@ -550,76 +1481,213 @@ public class DerbyImplementation extends DbImplementation {
       translatedPatterns.set(i, pattern);
     }
 
+    // Pad the patterns out to the bucket size so that the statement shape can be reused.
+    String lastPattern = translatedPatterns.get(translatedPatterns.size() - 1);
+    int numClauses = bucketSize(translatedPatterns.size());
+    while (translatedPatterns.size() < numClauses) {
+      translatedPatterns.add(lastPattern);
+    }
+    params.addAll(translatedPatterns);
+
     // Now generate the return string: " AND (<like clause> OR <like clause> ... )".
     StringBuffer buff = new StringBuffer();
     buff.append(" AND (");
-    if (!translatedPatterns.isEmpty()) {
-      buff.append(makeLikeClause(translatedPatterns, "`")); // used to be /
+    buff.append(makeLikeClause(numClauses, "`")); // used to be /
+
+    buff.append(')');
+    
+    return buff.toString();
+  }
+  
+  /**
+   * Creates a set of parameterized LIKE clauses with the specified escape character.
+   * @param numClauses The number of clauses. 
+   * @param escape The escape character.
+   * @return The StringBuffer with the LIKE clauses. 
+   */
+  private static StringBuffer makeLikeClause(int numClauses, String escape) {
+    StringBuffer buff = new StringBuffer(); //NOPMD generates false warning about buff size.
+    for (int i = 0; i < numClauses; i++) {
+      buff.append("(RESOURCE LIKE ? ESCAPE '");
+      buff.append(escape);
+      buff.append("')");
+      if (i < numClauses - 1) {
+        buff.append(" OR ");
+      }
+    }
+    buff.append(' ');
+    return buff;
+  }
+  
+  /**
+   * Constructs a clause of form (Owner IN (?, ?, ...)), and adds the emails of the users to 
+   * params. The number of parameters is rounded up by bucketSize(), with the last email 
+   * repeated to fill the extra parameters.  
+   * <p>
+   * This method is static and package private to support testing.
+   * @param users The list of users whose ownership is being searched for.
+   * @param params The list to which the emails are appended.
+   * @return The String to be used in the where clause to check for ownership.
+   */
+  static String constructOwnerClause(List<User> users, List<Object> params) {
+    if (users.isEmpty()) {
+      return "(1 = 0) ";
+    }
+    int numParams = bucketSize(users.size());
+    StringBuffer buff = new StringBuffer();
+    buff.append("(Owner IN (");
+    for (int i = 0; i < numParams; i++) {
+      User user = users.get(Math.min(i, users.size() - 1));
+      params.add(user.getEmail());
+      buff.append((i == 0) ? "?" : ", ?");
+    }
+    buff.append(")) ");
+    return buff.toString();
+  }
+  
+  /**
+   * Returns a modifiable list containing the passed parameter values, in order.
+   * @param values The values of the '?' parameters of a statement.
+   * @return The list of values.
+   */
+  private static List<Object> makeParams(Object... values) {
+    List<Object> params = new ArrayList<Object>(values.length + 8);
+    for (Object value : values) {
+      params.add(value);
+    }
+    return params;
+  }
+  
+  /**
+   * Sets the '?' parameters of the passed statement to the passed values, in order.
+   * @param s The prepared statement.
+   * @param params The parameter values: Strings, Timestamps, or Integers.
+   * @throws SQLException If a parameter cannot be set.
+   */
+  private static void setParameters(PreparedStatement s, List<Object> params) 
+  throws SQLException {
+    for (int i = 0; i < params.size(); i++) {
+      s.setObject(i + 1, params.get(i));
     }
-
-    buff.append(')');
-    
-    return buff.toString();
   }
   
   /**
-   * Creates a set of LIKE clauses with the specified escape character.
-   * @param patterns The patterns. 
-   * @param escape The escape character.
-   * @return The StringBuffer with the LIKE clauses. 
+   * Returns the passed statement on the SensorData table rewritten to run on another table 
+   * holding SensorData rows.
+   * @param statement The statement, which refers to the SensorData table.
+   * @param table The table, one of those of partitions.
+   * @return The rewritten statement.
    */
-  private static StringBuffer makeLikeClause(List<String> patterns, String escape) {
-    StringBuffer buff = new StringBuffer(); //NOPMD generates false warning about buff size.
-    if (patterns.isEmpty()) {
-      return buff;
-    }
-    for (Iterator<String> i = patterns.iterator(); i.hasNext(); ) {
-      String pattern = i.next();
-      buff.append("(RESOURCE LIKE '");
-      buff.append(pattern);
-      buff.append("' ESCAPE '");
-      buff.append(escape);
-      buff.append("')");
-      if (i.hasNext()) {
-        buff.append(" OR ");
+  private static String forTable(String statement, String table) {
+    return (SensorDataPartitions.baseTable.equals(table)) ? statement 
+        : sensorDataTable.matcher(statement).replaceAll(table);
+  }
+  
+  /**
+   * Returns the passed query on the SensorData table rewritten to run on every table that may
+   * hold rows in the interval [start, end], as the UNION ALL of one copy of the query per table. 
+   * A trailing ORDER BY clause is applied to the union. The parameters of the query are repeated
+   * in params for each further copy. Without partitions, the query is returned unchanged.
+   * @param statement The query, which refers to the SensorData table and selects its rows in 
+   * the interval.
+   * @param params The values of the query's parameters, to which those of the copies are added.
+   * @param start The start of the interval, or null if unbounded.
+   * @param end The end of the interval, or null if unbounded.
+   * @return The rewritten query.
+   */
+  private String acrossPartitions(String statement, List<Object> params, Timestamp start, 
+      Timestamp end) {
+    List<String> tables = this.partitions.getTables(start, end);
+    if (tables.size() == 1) {
+      return forTable(statement, tables.get(0));
+    }
+    int orderBy = statement.toUpperCase().lastIndexOf(" ORDER BY ");
+    String query = (orderBy < 0) ? statement : statement.substring(0, orderBy);
+    List<Object> queryParams = new ArrayList<Object>(params);
+    StringBuilder union = new StringBuilder(statement.length() * tables.size());
+    for (int i = 0; i < tables.size(); i++) {
+      if (i > 0) {
+        union.append(" UNION ALL ");
+        params.addAll(queryParams);
       }
+      union.append(forTable(query, tables.get(i)));
     }
-    buff.append(' ');
-    return buff;
+    if (orderBy >= 0) {
+      union.append(statement.substring(orderBy));
+    }
+    return union.toString();
   }
   
   /**
-   * Constructs a clause of form ( OWNER = 'user1' [ OR OWNER = 'user2']* ). 
-   * @param users The list of users whose ownership is being searched for.
-   * @return The String to be used in the where clause to check for ownership.
+   * Returns the passed query on the SensorData table rewritten as one query for each part of
+   * the tables that may hold rows in the interval [start, end], in order of time (see 
+   * SensorDataPartitions.getTableRanges()). The query on a part of the SensorData table is 
+   * restricted to that part's interval. Since the rows of each part precede those of the next,
+   * running the queries in turn returns the rows in the order of the passed query, without 
+   * sorting those of all the tables together, and a caller that needs only the first rows can 
+   * stop once it has them. Without partitions, the passed query is the only one.
+   * @param statement The query, which refers to the SensorData table, has a WHERE clause, and
+   * is ordered by Tstamp first.
+   * @param params The values of the query's parameters.
+   * @param start The start of the interval, or null if unbounded.
+   * @param end The end of the interval, or null if unbounded.
+   * @return The queries.
    */
-  private String constructOwnerClause(List<User> users) {
-    StringBuffer buff = new StringBuffer();
-    buff.append('(');
-    // Use old school iterator so we can do a hasNext() inside the loop.
-    for (Iterator<User> i = users.iterator(); i.hasNext(); ) {
-      User user = i.next();
-      buff.append(ownerEquals);
-      buff.append(user.getEmail());
-      buff.append('\'');
-      if (i.hasNext()) {
-        buff.append(" OR");
-      }
-    }
-    buff.append(") ");
-    return buff.toString();
+  private List<TableQuery> inTstampOrder(String statement, List<Object> params, 
+      Timestamp start, Timestamp end) {
+    List<TableQuery> queries = new ArrayList<TableQuery>();
+    for (SensorDataPartitions.TableRange range : this.partitions.getTableRanges(start, end)) {
+      String query = forTable(statement, range.table);
+      if ((range.start == null) && (range.end == null)) {
+        queries.add(new TableQuery(query, params));
+        continue;
+      }
+      int where = query.indexOf(" WHERE ") + " WHERE ".length();
+      int orderBy = query.toUpperCase().lastIndexOf(" ORDER BY ");
+      StringBuilder builder = new StringBuilder(query.length() + 64);
+      builder.append(query.substring(0, where));
+      List<Object> rangeParams = new ArrayList<Object>(params.size() + 2);
+      if (range.start != null) {
+        builder.append(" Tstamp >= ? AND");
+        rangeParams.add(new Timestamp(range.start.longValue()));
+      }
+      if (range.end != null) {
+        builder.append(" Tstamp < ? AND");
+        rangeParams.add(new Timestamp(range.end.longValue()));
+      }
+      builder.append(" (").append(query.substring(where, orderBy)).append(')')
+          .append(query.substring(orderBy));
+      rangeParams.addAll(params);
+      queries.add(new TableQuery(builder.toString(), rangeParams));
+    }
+    return queries;
   }
   
   /** {@inheritDoc} */
   @Override
   public String getSensorDataIndexLastMod(User user, XMLGregorianCalendar lastModStartTime,
       XMLGregorianCalendar lastModEndTime) {
-    String statement = 
-      selectPrefix
-      + ownerEquals + user.getEmail() + quoteAndClause 
-      + " LastMod BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(lastModStartTime) + "') AND "
-      + " TIMESTAMP('" + Tstamp.makeTimestamp(lastModEndTime) + "')";
-    return getIndex("SensorData", statement);
+    StringWriter writer = new StringWriter();
+    try {
+      writeSensorDataIndexLastMod(writer, user, lastModStartTime, lastModEndTime);
+    }
+    catch (IOException e) {
+      closeIndex(writer, "SensorData");
+    }
+    return writer.toString();
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndexLastMod(Writer writer, User user, 
+      XMLGregorianCalendar lastModStartTime, XMLGregorianCalendar lastModEndTime) 
+  throws IOException {
+    List<Object> params = makeParams(user.getEmail(), Tstamp.makeTimestamp(lastModStartTime), 
+        Tstamp.makeTimestamp(lastModEndTime));
+    String statement = acrossPartitions(
+        this.selectPrefix + ownerEquals + andClause + " LastMod BETWEEN ? AND ?", params, null, 
+        null);
+    writeIndex(writer, "SensorData", statement, params);
   }
   
 
@@ -631,14 +1699,14 @@ public class DerbyImplementation extends DbImplementation {
     ResultSet rs = null;
     boolean isFound = false;
     try {
-      conn = DriverManager.getConnection(connectionURL);
-      // 
-      String statement = 
-        selectPrefix
-        + ownerEquals + user.getEmail() + quoteAndClause 
-        + " Tstamp='" + Tstamp.makeTimestamp(timestamp) + "'";
+      conn = this.connectionPool.getConnection();
+      Timestamp tstamp = Tstamp.makeTimestamp(timestamp);
+      String statement = "SELECT Tstamp FROM " + this.partitions.getTable(tstamp) + " WHERE " 
+        + ownerEquals + andClause + tstampEquals;
       server.getLogger().fine(executeQueryMsg + statement);
       s = conn.prepareStatement(statement);
+      s.setString(1, user.getEmail());
+      s.setTimestamp(2, tstamp);
       rs = s.executeQuery();
       // If a record was retrieved, we'll enter the loop, otherwise we won't. 
       while (rs.next()) {
@@ -664,30 +1732,305 @@ public class DerbyImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public void deleteSensorData(User user, XMLGregorianCalendar timestamp) {
-    String statement =
-      "DELETE FROM SensorData WHERE "
-      + ownerEquals + user.getEmail() + quoteAndClause 
-      + " Tstamp='" + Tstamp.makeTimestamp(timestamp) + "'";
-    deleteResource(statement);
+    Timestamp tstamp = Tstamp.makeTimestamp(timestamp);
+    String table = this.partitions.getTable(tstamp);
+    SensorDataRollup rollup = new SensorDataRollup();
+    Connection conn = null;
+    PreparedStatement s = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      rollup.subtractExisting(conn, table, user.getEmail(), tstamp);
+      s = conn.prepareStatement(
+          "DELETE FROM " + table + " WHERE " + ownerEquals + andClause + tstampEquals);
+      s.setString(1, user.getEmail());
+      s.setTimestamp(2, tstamp);
+      s.executeUpdate();
+      rollup.apply(conn);
+      conn.commit();
+      this.partitions.setChanged(table);
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error in deleteSensorData()" + StackTrace.toString(e));
+      rollback(conn);
+    }
+    finally {
+      closeTransaction(s, conn);
+    }
   }
   
   /** {@inheritDoc} */
   @Override
   public void deleteSensorData(User user) {
-    String statement =
-      "DELETE FROM SensorData WHERE " + ownerEquals + user.getEmail() + "'";
-    deleteResource(statement);
+    Connection conn = null;
+    PreparedStatement s = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      List<String> tables = this.partitions.getAllTables();
+      for (String table : tables) {
+        s = conn.prepareStatement("DELETE FROM " + table + " WHERE " + ownerEquals);
+        s.setString(1, user.getEmail());
+        s.executeUpdate();
+        s.close();
+      }
+      s = conn.prepareStatement("DELETE FROM SensorDataRollup WHERE " + ownerEquals);
+      s.setString(1, user.getEmail());
+      s.executeUpdate();
+      conn.commit();
+      for (String table : tables) {
+        this.partitions.setChanged(table);
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error in deleteSensorData()" + StackTrace.toString(e));
+      rollback(conn);
+    }
+    finally {
+      closeTransaction(s, conn);
+    }
     //compressTables();  // this should be done separately as part of some maintenance. 
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int deleteSensorData(RetentionRule rule, XMLGregorianCalendar before, 
+      int maxInstances, Writer archive) {
+    Timestamp end = Tstamp.makeTimestamp(before);
+    List<Object> params = makeParams(end);
+    StringBuffer where = new StringBuffer(" WHERE Tstamp < ?");
+    if (rule.getOwner() != null) {
+      where.append(andClause).append(ownerEquals);
+      params.add(rule.getOwner());
+    }
+    if (rule.getSdt() != null) {
+      where.append(andClause).append(" Sdt = ? ");
+      params.add(rule.getSdt());
+    }
+    where.append(constructNotInClause("Owner", rule.getExcludedOwners(), params));
+    where.append(constructNotInClause("Sdt", rule.getExcludedSdts(), params));
+    String columns = (archive == null) ? refColumns 
+        : refColumns + ", XmlSensorData, Payload, Resource";
+    int numRead = 0;
+    int numDeleted = 0;
+    try {
+      for (String table : this.partitions.getTables(null, end)) {
+        if (numRead == maxInstances) {
+          break;
+        }
+        List<Object[]> rows = readExpiredRows("SELECT " + columns + " FROM " + table + where, 
+            params, maxInstances - numRead);
+        numRead += rows.size();
+        if (!rows.isEmpty()) {
+          if (archive != null) {
+            archiveSensorData(rows, archive);
+          }
+          numDeleted += deleteExpiredRows(table, rows);
+        }
+      }
+    }
+    catch (Exception e) {
+      this.logger.info("Derby: Error in deleteSensorData(" + rule + ")" + StackTrace.toString(e));
+      return -1;
+    }
+    return numDeleted;
+  }
+  
+  /**
+   * Constructs a clause excluding the rows whose column has one of the passed values, and 
+   * appends the values to params. The number of parameters is rounded up by bucketSize(), with
+   * the last value repeated to fill the extra parameters.
+   * @param column The column name.
+   * @param values The excluded values.
+   * @param params The list to which the values are appended.
+   * @return The clause, beginning with AND, or the empty string if there are no values.
+   */
+  private static String constructNotInClause(String column, Set<String> values, 
+      List<Object> params) {
+    if (values.isEmpty()) {
+      return "";
+    }
+    List<String> valueList = new ArrayList<String>(values);
+    int numParams = bucketSize(valueList.size());
+    StringBuffer buff = new StringBuffer();
+    buff.append(andClause).append(column).append(" NOT IN (");
+    for (int i = 0; i < numParams; i++) {
+      params.add(valueList.get(Math.min(i, valueList.size() - 1)));
+      buff.append((i == 0) ? "?" : ", ?");
+    }
+    buff.append(')');
+    return buff.toString();
+  }
+  
+  /**
+   * Reads the key, LastMod, rollup and (if selected) data columns of expired rows.
+   * @param statement The select statement.
+   * @param params The parameter values of the statement.
+   * @param maxRows The maximum number of rows to read.
+   * @return The rows' columns, in the order selected.
+   * @throws SQLException If the rows cannot be read.
+   */
+  private List<Object[]> readExpiredRows(String statement, List<Object> params, int maxRows)
+  throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      server.getLogger().fine(executeQueryMsg + statement);
+      s = conn.prepareStatement(statement);
+      s.setMaxRows(maxRows);
+      setParameters(s, params);
+      rs = s.executeQuery();
+      int numColumns = rs.getMetaData().getColumnCount();
+      while (rs.next()) {
+        Object[] row = new Object[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+          row[i] = rs.getObject(i + 1);
+        }
+        rows.add(row);
+      }
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+    return rows;
+  }
+  
+  /**
+   * Writes the XML of each row to the archive and flushes it. 
+   * @param rows The rows, as read with XmlSensorData, Payload and Resource after refColumns.
+   * @param archive The archive.
+   * @throws Exception If a payload cannot be rebuilt or the archive cannot be written.
+   */
+  private void archiveSensorData(List<Object[]> rows, Writer archive) throws Exception {
+    for (Object[] row : rows) {
+      String xmlSensorData = (String) row[5];
+      if (xmlSensorData == null) {
+        xmlSensorData = rebuildSensorData((byte[]) row[6], null, (String) row[0], 
+            (String) row[2], (String) row[3], (String) row[7]);
+      }
+      archive.write(xmlSensorData);
+      archive.write('\n');
+    }
+    archive.flush();
+  }
+  
+  /**
+   * Deletes the expired rows in one transaction, along with their SensorDataRollup counts.
+   * A row that has been overwritten since it was read no longer has the LastMod read, and is
+   * kept; the next deletion will find it again if it has still expired.
+   * @param table The table holding the rows.
+   * @param rows The rows, as read with refColumns first.
+   * @return The number of rows deleted.
+   * @throws SQLException If the rows cannot be deleted.
+   */
+  private int deleteExpiredRows(String table, List<Object[]> rows) throws SQLException {
+    SensorDataRollup rollup = new SensorDataRollup();
+    Connection conn = null;
+    PreparedStatement s = null;
+    int numDeleted = 0;
+    try {
+      conn = this.connectionPool.getConnection();
+      conn.setAutoCommit(false);
+      s = conn.prepareStatement("DELETE FROM " + table + " WHERE " + ownerEquals + andClause 
+          + tstampEquals + " AND LastMod = ?");
+      for (Object[] row : rows) {
+        s.setString(1, (String) row[0]);
+        s.setTimestamp(2, (Timestamp) row[1]);
+        s.setTimestamp(3, (Timestamp) row[4]);
+        s.addBatch();
+      }
+      int[] counts = s.executeBatch();
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          Object[] row = rows.get(i);
+          rollup.add((String) row[0], (Timestamp) row[1], (String) row[2], (String) row[3], -1);
+          numDeleted++;
+        }
+      }
+      rollup.apply(conn);
+      conn.commit();
+      this.partitions.setChanged(table);
+    }
+    catch (SQLException e) {
+      rollback(conn);
+      throw e;
+    }
+    finally {
+      closeTransaction(s, conn);
+    }
+    return numDeleted;
+  }
+  
+  /**
+   * Returns the XML of a SensorData instance stored as a payload.
+   * @param payload The payload.
+   * @param conn The connection held by the caller, on which the codec reads its own tables, 
+   * or null if the caller holds none.
+   * @param owner The Owner column.
+   * @param sdt The Sdt column.
+   * @param tool The Tool column.
+   * @param resource The Resource column.
+   * @return The XML String.
+   * @throws Exception If the payload cannot be decoded or the instance marshalled.
+   */
+  private String rebuildSensorData(byte[] payload, Connection conn, String owner, String sdt, 
+      String tool, String resource) throws Exception {
+    SensorData data = this.payloadCodec.decode(payload, conn);
+    data.setOwner(owner);
+    data.setSensorDataType(sdt);
+    data.setTool(tool);
+    data.setResource(resource);
+    return getSensorDataManager().makeSensorData(data);
+  }
+
   /** {@inheritDoc} */
   @Override
   public String getSensorData(User user, XMLGregorianCalendar timestamp) {
-    String statement =
-      "SELECT XmlSensorData FROM SensorData WHERE "
-      + ownerEquals + user.getEmail() + quoteAndClause 
-      + " Tstamp='" + Tstamp.makeTimestamp(timestamp) + "'";
-    return getResource("SensorData", statement); 
+    Timestamp tstamp = Tstamp.makeTimestamp(timestamp);
+    String statement = "SELECT " + dataColumns
+      + " FROM " + this.partitions.getTable(tstamp) + " WHERE " + ownerEquals + andClause 
+      + tstampEquals;
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    byte[] payload = null;
+    String[] columns = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      server.getLogger().fine(executeQueryMsg + statement);
+      s = conn.prepareStatement(statement);
+      setParameters(s, makeParams(user.getEmail(), tstamp));
+      rs = s.executeQuery();
+      if (!rs.next()) {
+        return null;
+      }
+      String xmlSensorData = rs.getString(1);
+      if (xmlSensorData != null) {
+        return xmlSensorData;
+      }
+      payload = rs.getBytes(2);
+      columns = new String[] { rs.getString(3), rs.getString(4), rs.getString(5), 
+          rs.getString(6) };
+    }
+    catch (SQLException e) {
+      this.logger.info("DB: Error in getSensorData()" + StackTrace.toString(e));
+      return null;
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+    // Decoded after the connection is returned, since the codec may need one of its own.
+    try {
+      return rebuildSensorData(payload, null, columns[0], columns[1], columns[2], columns[3]);
+    }
+    catch (Exception e) {
+      this.logger.info("Derby: Error rebuilding SensorData from its payload " 
+          + StackTrace.toString(e));
+      return null;
+    }
   }
 
   // ********************   Start SensorDataType specific stuff here *****************  //
@@ -719,7 +2062,7 @@ public class DerbyImplementation extends DbImplementation {
     Connection conn = null;
     PreparedStatement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       s = conn.prepareStatement("INSERT INTO SensorDataType VALUES (?, ?, ?, ?)");
       // Order: Name XmlSensorData XmlSensorDataRef LastMod
       s.setString(1, sdt.getName());
@@ -733,6 +2076,7 @@ public class DerbyImplementation extends DbImplementation {
       if (DUPLICATE_KEY.equals(e.getSQLState())) {
         try {
           // Do an update, not an insert.
+          s.close();
           s = conn.prepareStatement(
               "UPDATE SensorDataType SET "
               + " XmlSensorDataType=?, " 
@@ -766,22 +2110,22 @@ public class DerbyImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public void deleteSensorDataType(String sdtName) {
-    String statement = "DELETE FROM SensorDataType WHERE Name='" + sdtName + "'";
-    deleteResource(statement);
+    String statement = "DELETE FROM SensorDataType WHERE Name = ?";
+    deleteResource(statement, makeParams(sdtName));
   }
 
   /** {@inheritDoc} */
   @Override
   public String getSensorDataTypeIndex() {
-    return getIndex("SensorDataType", "SELECT XmlSensorDataTypeRef FROM SensorDataType");
+    return getIndex("SensorDataType", "SELECT XmlSensorDataTypeRef FROM SensorDataType", 
+        makeParams());
   }
 
   /** {@inheritDoc} */
   @Override
   public String getSensorDataType(String sdtName) {
-    String statement = 
-      "SELECT XmlSensorDataType FROM SensorDataType WHERE Name = '" + sdtName + "'";
-    return getResource("SensorDataType", statement);
+    String statement = "SELECT XmlSensorDataType FROM SensorDataType WHERE Name = ?";
+    return getResource("SensorDataType", statement, makeParams(sdtName));
   }
   
   // ********************   Start  User specific stuff here *****************  //
@@ -812,22 +2156,22 @@ public class DerbyImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public void deleteUser(String email) {
-    String statement = "DELETE FROM HackyUser WHERE Email='" + email + "'";
-    deleteResource(statement);
+    String statement = "DELETE FROM HackyUser WHERE Email = ?";
+    deleteResource(statement, makeParams(email));
   }
 
   /** {@inheritDoc} */
   @Override
   public String getUser(String email) {
-    String statement = "SELECT XmlUser FROM HackyUser WHERE Email = '" + email + "'";
-    return getResource("User", statement);
+    String statement = "SELECT XmlUser FROM HackyUser WHERE Email = ?";
+    return getResource("User", statement, makeParams(email));
   }
 
 
   /** {@inheritDoc} */
   @Override
   public String getUserIndex() {
-    return getIndex("User", "SELECT XmlUserRef FROM HackyUser");
+    return getIndex("User", "SELECT XmlUserRef FROM HackyUser", makeParams());
   }
 
   /** {@inheritDoc} */
@@ -836,7 +2180,7 @@ public class DerbyImplementation extends DbImplementation {
     Connection conn = null;
     PreparedStatement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       s = conn.prepareStatement("INSERT INTO HackyUser VALUES (?, ?, ?, ?, ?, ?)");
       // Order: Email Password Role XmlUser XmlUserRef LastMod
       s.setString(1, user.getEmail());
@@ -852,6 +2196,7 @@ public class DerbyImplementation extends DbImplementation {
       if (DUPLICATE_KEY.equals(e.getSQLState())) {
         try {
           // Do an update, not an insert.
+          s.close();
           s = conn.prepareStatement(
               "UPDATE HackyUser SET "
               + " Password=?, " 
@@ -919,47 +2264,43 @@ public class DerbyImplementation extends DbImplementation {
   
   private static final String indexProjectNameStatement = 
     "CREATE INDEX ProjectNameIndex ON Project(ProjectName asc)";
-  private static final String dropIndexProjectNameStatement = 
-    "DROP INDEX ProjectNameIndex";
 
   /** {@inheritDoc} */
   @Override
   public void deleteProject(User owner, String projectName) {
-    String statement =
-      "DELETE FROM Project WHERE "
-      + ownerEquals + owner.getEmail() + quoteAndClause 
-      + " ProjectName = '" + projectName + "'";
-    deleteResource(statement);
+    String statement = "DELETE FROM Project WHERE " + ownerEquals + andClause + " ProjectName = ?";
+    deleteResource(statement, makeParams(owner.getEmail(), projectName));
   }
 
   /** {@inheritDoc} */
   @Override
   public String getProject(User owner, String projectName) {
-    String statement =
-      "SELECT XmlProject FROM Project WHERE "
-      + ownerEquals + owner.getEmail() + quoteAndClause 
-      + " ProjectName ='" + projectName + "'";
-    return getResource("Project", statement);
+    String statement = 
+      "SELECT XmlProject FROM Project WHERE " + ownerEquals + andClause + " ProjectName = ?";
+    return getResource("Project", statement, makeParams(owner.getEmail(), projectName));
   }
 
   /** {@inheritDoc} */
   @Override
   public String getProjectIndex() {
-    return getIndex("Project", "SELECT XmlProjectRef FROM Project ORDER BY ProjectName");
+    return getIndex("Project", "SELECT XmlProjectRef FROM Project ORDER BY ProjectName", 
+        makeParams());
   }
   
   /** {@inheritDoc} */
   @Override  
   public ProjectSummary getProjectSummary(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, String href) {
+    if (isRollupSummary(startTime, endTime, uriPatterns)) {
+      return makeProjectSummary(href, startTime, endTime, 
+          getRollupInstances(users, startTime, endTime));
+    }
     // Make a statement to return all SensorData for this project in the time period.
-    String statement = 
+    List<Object> params = makeParams();
+    String statement = acrossPartitions(
       "SELECT Sdt, Tool FROM SensorData WHERE "
-      + constructOwnerClause(users)
-      + andClause 
-      + " (Tstamp BETWEEN TIMESTAMP('" + Tstamp.makeTimestamp(startTime) + "') AND "
-      + " TIMESTAMP('" + Tstamp.makeTimestamp(endTime) + "'))"
-      + constructLikeClauses(uriPatterns);
+      + constructProjectClause(users, null, null, startTime, endTime, uriPatterns, params), 
+      params, Tstamp.makeTimestamp(startTime), Tstamp.makeTimestamp(endTime));
     
     // Create the [SDT, Tool] -> NumInstances data structure.
     Map<String, Map<String, Integer>> sdtInstances = new HashMap<String, Map<String, Integer>>();
@@ -969,8 +2310,9 @@ public class DerbyImplementation extends DbImplementation {
     PreparedStatement s = null;
     ResultSet rs = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       s = conn.prepareStatement(statement);
+      setParameters(s, params);
       rs = s.executeQuery();
       // Loop through all retrieved SensorData records.
       while (rs.next()) {
@@ -990,31 +2332,277 @@ public class DerbyImplementation extends DbImplementation {
           tool2NumInstances.put(tool, 0);
           sdtInstances.put(sdt, tool2NumInstances);
         }
-        Map<String, Integer> tool2NumInstances = sdtInstances.get(sdt);
-        // Second, initialize the data structure if this is a new tool for a preexisting SDT.
-        if (tool2NumInstances.get(tool) == null) {
-          tool2NumInstances.put(tool, 0);
+        Map<String, Integer> tool2NumInstances = sdtInstances.get(sdt);
+        // Second, initialize the data structure if this is a new tool for a preexisting SDT.
+        if (tool2NumInstances.get(tool) == null) {
+          tool2NumInstances.put(tool, 0);
+        }
+        // Finally, increment this entry.
+        tool2NumInstances.put(tool, tool2NumInstances.get(tool) + 1);
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error in getProjectSummary()" + StackTrace.toString(e));
+    }
+    finally {
+      try {
+        rs.close();
+        s.close();
+        conn.close();
+      }
+      catch (SQLException e) {
+        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      }
+    }
+    
+    //Now create the project summary object from our data structures.
+    return makeProjectSummary(href, startTime, endTime, sdtInstances);
+  }
+
+  /**
+   * Returns true if a summary of this interval and UriPatterns can be computed from the 
+   * SensorDataRollup table. This requires that the UriPatterns match all resources, and that
+   * the interval begins and ends on the hour.
+   * @param startTime The start of the interval.
+   * @param endTime The end of the interval.
+   * @param uriPatterns The UriPatterns.
+   * @return True if the rollup can be used.
+   */
+  private static boolean isRollupSummary(XMLGregorianCalendar startTime, 
+      XMLGregorianCalendar endTime, List<String> uriPatterns) {
+    return (constructLikeClauses(uriPatterns, makeParams()).length() == 0) 
+    && SensorDataRollup.isPeriodStart(Tstamp.makeTimestamp(startTime))
+    && SensorDataRollup.isPeriodStart(Tstamp.makeTimestamp(endTime));
+  }
+  
+  /**
+   * Returns the [SDT, Tool] -> NumInstances counts of the users' sensor data in the interval,
+   * using the SensorDataRollup table. The rollup covers the hours from startTime up to 
+   * endTime, and the instances at exactly endTime, which the summary interval also includes,
+   * are counted separately. 
+   * @param users The users.
+   * @param startTime The start of the interval, which must be on the hour.
+   * @param endTime The end of the interval, which must be on the hour.
+   * @return The counts.
+   */
+  private Map<String, Map<String, Integer>> getRollupInstances(List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    Map<String, Map<String, Integer>> sdtInstances = new HashMap<String, Map<String, Integer>>();
+    List<Object> params = makeParams();
+    String rollupStatement = "SELECT Sdt, Tool, SUM(NumInstances) FROM SensorDataRollup WHERE "
+      + constructOwnerClause(users, params) + " AND Period >= ? AND Period < ? GROUP BY Sdt, Tool";
+    params.add(Tstamp.makeTimestamp(startTime));
+    params.add(Tstamp.makeTimestamp(endTime));
+    addInstances(rollupStatement, params, sdtInstances);
+    params = makeParams();
+    Timestamp end = Tstamp.makeTimestamp(endTime);
+    String endStatement = "SELECT Sdt, Tool, COUNT(*) FROM " + this.partitions.getTable(end) 
+      + " WHERE " + constructOwnerClause(users, params) + andClause + tstampEquals 
+      + "GROUP BY Sdt, Tool";
+    params.add(end);
+    addInstances(endStatement, params, sdtInstances);
+    return sdtInstances;
+  }
+  
+  /**
+   * Runs a statement returning (Sdt, Tool, count) rows, and adds the counts to sdtInstances.
+   * @param statement The statement.
+   * @param params The values of the statement's parameters.
+   * @param sdtInstances The [SDT, Tool] -> NumInstances counts.
+   */
+  private void addInstances(String statement, List<Object> params, 
+      Map<String, Map<String, Integer>> sdtInstances) {
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.prepareStatement(statement);
+      setParameters(s, params);
+      rs = s.executeQuery();
+      while (rs.next()) {
+        addInstances(sdtInstances, rs.getString(1), rs.getString(2), rs.getInt(3));
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error in getProjectSummary()" + StackTrace.toString(e));
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+  }
+  
+  /**
+   * Adds numInstances to the count for the given SDT and tool. Counts that would remain zero
+   * are not added, so that they do not appear in the summary.
+   * @param sdtInstances The [SDT, Tool] -> NumInstances counts.
+   * @param sdt The SDT.
+   * @param tool The tool.
+   * @param numInstances The number of instances to add.
+   */
+  private static void addInstances(Map<String, Map<String, Integer>> sdtInstances, String sdt, 
+      String tool, int numInstances) {
+    if (numInstances <= 0) {
+      return;
+    }
+    Map<String, Integer> tool2NumInstances = sdtInstances.get(sdt);
+    if (tool2NumInstances == null) {
+      tool2NumInstances = new HashMap<String, Integer>();
+      sdtInstances.put(sdt, tool2NumInstances);
+    }
+    Integer current = tool2NumInstances.get(tool);
+    tool2NumInstances.put(tool, (current == null) ? numInstances : current + numInstances);
+  }
+  
+  /** {@inheritDoc} */
+  @Override
+  public MultiDayProjectSummary getMultiDayProjectSummary(List<User> users, 
+      XMLGregorianCalendar startTime, int numDays, List<String> uriPatterns, String href) {
+    // Find the day boundaries, and whether they all allow the rollup to be used.
+    XMLGregorianCalendar[] days = new XMLGregorianCalendar[numDays + 1];
+    long[] bounds = new long[numDays + 1];
+    boolean isRollup = constructLikeClauses(uriPatterns, makeParams()).length() == 0;
+    for (int i = 0; i <= numDays; i++) {
+      days[i] = Tstamp.incrementDays(startTime, i);
+      Timestamp tstamp = Tstamp.makeTimestamp(days[i]);
+      bounds[i] = tstamp.getTime();
+      isRollup = isRollup && SensorDataRollup.isPeriodStart(tstamp);
+    }
+    // Create an [SDT, Tool] -> NumInstances data structure for each day.
+    List<Map<String, Map<String, Integer>>> dayInstances = 
+      new ArrayList<Map<String, Map<String, Integer>>>(numDays);
+    for (int i = 0; i < numDays; i++) {
+      dayInstances.add(new HashMap<String, Map<String, Integer>>());
+    }
+    if (numDays > 0) {
+      if (isRollup) {
+        addRollupDayInstances(users, bounds, dayInstances);
+      }
+      else {
+        addRawDayInstances(users, days, uriPatterns, bounds, dayInstances);
+      }
+    }
+    MultiDayProjectSummary multiSummary = new MultiDayProjectSummary();
+    for (int i = 0; i < numDays; i++) {
+      String dayHref = href + "?startTime=" + days[i] + "&endTime=" + days[i + 1];
+      multiSummary.getProjectSummary().add(
+          makeProjectSummary(dayHref, days[i], days[i + 1], dayInstances.get(i)));
+    }
+    return multiSummary;
+  }
+  
+  /**
+   * Adds the users' sensor data to the day summaries, using the SensorDataRollup table.
+   * Each hour of the rollup is added to the day that contains it. Since each day's summary 
+   * also includes the instances at exactly its end time, these are retrieved separately from
+   * the SensorData table.
+   * @param users The users.
+   * @param bounds The day boundaries in milliseconds, all of which are on the hour.
+   * @param dayInstances The [SDT, Tool] -> NumInstances counts for each day.
+   */
+  private void addRollupDayInstances(List<User> users, long[] bounds, 
+      List<Map<String, Map<String, Integer>>> dayInstances) {
+    int numDays = dayInstances.size();
+    List<Object> rollupParams = makeParams();
+    String rollupStatement = "SELECT Period, Sdt, Tool, NumInstances FROM SensorDataRollup WHERE "
+      + constructOwnerClause(users, rollupParams) + " AND Period >= ? AND Period < ?";
+    rollupParams.add(new Timestamp(bounds[0]));
+    rollupParams.add(new Timestamp(bounds[numDays]));
+    // The end times are padded to a bucketed size, like the owners, so the statement is reused.
+    List<Object> endParams = makeParams();
+    StringBuilder endStatement = new StringBuilder(128);
+    endStatement.append("SELECT Tstamp, Sdt, Tool FROM SensorData WHERE ")
+      .append(constructOwnerClause(users, endParams)).append(" AND Tstamp IN (");
+    int numEnds = bucketSize(numDays);
+    for (int i = 0; i < numEnds; i++) {
+      endParams.add(new Timestamp(bounds[Math.min(i + 1, numDays)]));
+      endStatement.append((i == 0) ? "?" : ", ?");
+    }
+    endStatement.append(')');
+    String endQuery = acrossPartitions(endStatement.toString(), endParams, 
+        new Timestamp(bounds[1]), new Timestamp(bounds[numDays]));
+    
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.prepareStatement(rollupStatement);
+      setParameters(s, rollupParams);
+      rs = s.executeQuery();
+      while (rs.next()) {
+        int index = Arrays.binarySearch(bounds, rs.getTimestamp(1).getTime());
+        int day = (index >= 0) ? index : -index - 2;
+        addInstances(dayInstances.get(day), rs.getString(2), rs.getString(3), rs.getInt(4));
+      }
+      rs.close();
+      s.close();
+      s = conn.prepareStatement(endQuery);
+      setParameters(s, endParams);
+      rs = s.executeQuery();
+      while (rs.next()) {
+        int index = Arrays.binarySearch(bounds, rs.getTimestamp(1).getTime());
+        addInstances(dayInstances.get(index - 1), rs.getString(2), rs.getString(3), 1);
+      }
+    }
+    catch (SQLException e) {
+      this.logger.info("Derby: Error in getMultiDayProjectSummary()" + StackTrace.toString(e));
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+  }
+  
+  /**
+   * Adds the users' sensor data to the day summaries, by scanning all of the sensor data in 
+   * the interval once and counting each instance in the day that contains it. As in 
+   * getProjectSummary, each day includes both its start and end times, so an instance exactly
+   * on the boundary between two days is counted in both.
+   * @param users The users.
+   * @param days The day boundaries.
+   * @param uriPatterns The UriPatterns.
+   * @param bounds The day boundaries in milliseconds.
+   * @param dayInstances The [SDT, Tool] -> NumInstances counts for each day.
+   */
+  private void addRawDayInstances(List<User> users, XMLGregorianCalendar[] days, 
+      List<String> uriPatterns, long[] bounds, 
+      List<Map<String, Map<String, Integer>>> dayInstances) {
+    int numDays = dayInstances.size();
+    List<Object> params = makeParams();
+    String statement = acrossPartitions("SELECT Tstamp, Sdt, Tool FROM SensorData WHERE " 
+      + constructProjectClause(users, null, null, days[0], days[numDays], uriPatterns, params),
+      params, new Timestamp(bounds[0]), new Timestamp(bounds[numDays]));
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.prepareStatement(statement);
+      setParameters(s, params);
+      rs = s.executeQuery();
+      while (rs.next()) {
+        int index = Arrays.binarySearch(bounds, rs.getTimestamp(1).getTime());
+        String sdt = rs.getString(2);
+        String tool = rs.getString(3);
+        if (index < 0) {
+          addInstances(dayInstances.get(-index - 2), sdt, tool, 1);
+        }
+        else {
+          if (index < numDays) {
+            addInstances(dayInstances.get(index), sdt, tool, 1);
+          }
+          if (index > 0) {
+            addInstances(dayInstances.get(index - 1), sdt, tool, 1);
+          }
         }
-        // Finally, increment this entry.
-        tool2NumInstances.put(tool, tool2NumInstances.get(tool) + 1);
       }
     }
     catch (SQLException e) {
-      this.logger.info("Derby: Error in getProjectSummary()" + StackTrace.toString(e));
+      this.logger.info("Derby: Error in getMultiDayProjectSummary()" + StackTrace.toString(e));
     }
     finally {
-      try {
-        rs.close();
-        s.close();
-        conn.close();
-      }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-      }
+      closeQuietly(rs, s, conn);
     }
-    
-    //Now create the project summary object from our data structures.
-    return makeProjectSummary(href, startTime, endTime, sdtInstances);
   }
 
   /**
@@ -1059,7 +2647,7 @@ public class DerbyImplementation extends DbImplementation {
     Connection conn = null;
     PreparedStatement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       s = conn.prepareStatement("INSERT INTO Project VALUES (?, ?, ?, ?, ?, ?, ?)");
       // Order: Owner ProjectName StartTime EndTime XmlProject XmlProjectRef LastMod
       s.setString(1, project.getOwner());
@@ -1076,6 +2664,7 @@ public class DerbyImplementation extends DbImplementation {
       if (DUPLICATE_KEY.equals(e.getSQLState())) {
         try {
           // Do an update, not an insert.
+          s.close();
           s = conn.prepareStatement(
               "UPDATE Project SET "
               + " StartTime=?, EndTime=?, XmlProject=?, " 
@@ -1114,64 +2703,60 @@ public class DerbyImplementation extends DbImplementation {
    * Returns a string containing the Index for the given resource indicated by resourceName.
    * @param resourceName The resource name, such as "Project". 
    * @param statement The SQL Statement to be used to retrieve the resource references.
+   * @param params The values of the statement's parameters.
    * @return The aggregate Index XML string. 
    */
-  private String getIndex(String resourceName, String statement) {
-    StringBuilder builder = new StringBuilder(512);
-    builder.append("<").append(resourceName).append(indexSuffix);
-    // Retrieve all the SensorData
-    Connection conn = null;
-    PreparedStatement s = null;
-    ResultSet rs = null;
+  private String getIndex(String resourceName, String statement, List<Object> params) {
+    StringWriter writer = new StringWriter(512);
     try {
-      conn = DriverManager.getConnection(connectionURL);
-      s = conn.prepareStatement(statement);
-      rs = s.executeQuery();
-      String resourceRefColumnName = xml + resourceName + "Ref";
-      while (rs.next()) {
-        builder.append(rs.getString(resourceRefColumnName));
-      }
-    }
-    catch (SQLException e) {
-      this.logger.info("Derby: Error in getIndex()" + StackTrace.toString(e));
+      writeIndex(writer, resourceName, statement, params);
     }
-    finally {
-      try {
-        rs.close();
-        s.close();
-        conn.close();
-      }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-      }
+    catch (IOException e) {
+      closeIndex(writer, resourceName);
     }
-    builder.append("</").append(resourceName).append(indexSuffix);
-    //System.out.println(builder.toString());
-    return builder.toString();
+    return writer.toString();
+  }
+  
+  /**
+   * Writes the Index for the given resource indicated by resourceName to writer, one row
+   * at a time, so that the whole index is never held in memory. 
+   * If the writer fails (typically because the client has gone away), the query is abandoned.
+   * A database error is thrown as an IOException, without closing the index, so that the 
+   * response is abandoned rather than ended as if it were complete.
+   * @param writer The writer that receives the index.
+   * @param resourceName The resource name, such as "Project". 
+   * @param statement The SQL Statement to be used to retrieve the resource references.
+   * @param params The values of the statement's parameters.
+   * @throws IOException If the rows cannot be retrieved.
+   */
+  private void writeIndex(Writer writer, String resourceName, String statement, 
+      List<Object> params) throws IOException {
+    writeIndex(writer, resourceName, statement, params, 0, Integer.MAX_VALUE);
   }
   
   /**
-   * Returns a string containing the Index of all of the SensorData whose runtime field matches
-   * the first runtime in the result set.  Since the passed statement will retrieve sensor
+   * Writes the Index of all of the SensorData whose runtime field matches the first runtime 
+   * in the result set to writer.  Since the passed statement will retrieve sensor
    * data in the given time period ordered in descending order by runtime, this should result
-   * in an index containing only  
+   * in an index containing only the sensor data from the latest run.  
+   * @param writer The writer that receives the index.
    * @param statement The SQL Statement to be used to retrieve the resource references.
-   * @return The aggregate Index XML string. 
+   * @param params The values of the statement's parameters.
+   * @throws IOException If the rows cannot be retrieved.
    */
-  private String getSnapshotIndex(String statement) {
+  private void writeSnapshotIndex(Writer writer, String statement, List<Object> params) 
+  throws IOException {
     String resourceName = "SensorData";
-    StringBuilder builder = new StringBuilder(512);
-    builder.append("<").append(resourceName).append(indexSuffix);
-    // Retrieve all the SensorData
     Connection conn = null;
     PreparedStatement s = null;
     ResultSet rs = null;
     String firstRunTime = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      writer.append("<").append(resourceName).append(indexSuffix);
+      conn = this.connectionPool.getConnection();
       s = conn.prepareStatement(statement);
+      setParameters(s, params);
       rs = s.executeQuery();
-      String resourceRefColumnName = xml + resourceName + "Ref";
       boolean finished = false;
       // Add all entries with the first retrieved nruntime value to the index.
       while (rs.next() && !finished) {
@@ -1184,7 +2769,7 @@ public class DerbyImplementation extends DbImplementation {
           }
           // Now add every entry whose runtime equals the first retrieved run time.
           if (runtime.equals(firstRunTime)) {
-            builder.append(rs.getString(resourceRefColumnName));
+            writer.write(getSensorDataRef(rs));
           }
           else {
             // As soon as we find a runtime not equal to firstRunTime, we can stop.
@@ -1192,73 +2777,365 @@ public class DerbyImplementation extends DbImplementation {
           }
         }
       }
+      writer.append("</").append(resourceName).append(indexSuffix);
     }
     catch (SQLException e) {
-      this.logger.info("Derby: Error in getIndex()" + StackTrace.toString(e));
+      throw makeIOException("writeIndex", e);
+    }
+    catch (IOException e) {
+      this.logger.info("Derby: Index abandoned, could not write: " + e.getMessage());
     }
     finally {
-      try {
-        rs.close();
-        s.close();
-        conn.close();
-      }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-      }
+      closeQuietly(rs, s, conn);
     }
-    builder.append("</").append(resourceName).append(indexSuffix);
-    //System.out.println(builder.toString());
-    return builder.toString();
   }
   
   /**
-   * Returns a string containing the Index for the given resource indicated by resourceName, 
-   * returning only the instances starting at startIndex, and with the maximum number of
+   * Writes the Index for the given resource indicated by resourceName to writer, 
+   * including only the instances starting at startIndex, and with the maximum number of
    * returned instances indicated by maxInstances.   
+   * If the writer fails (typically because the client has gone away), the query is abandoned.
+   * @param writer The writer that receives the index.
    * @param resourceName The resource name, such as "Project".
+   * @param statement The SQL Statement to be used to retrieve the resource references.
+   * @param params The values of the statement's parameters.
    * @param startIndex The (zero-based) starting index for instances to be returned.
    * @param maxInstances The maximum number of instances to return.  
-   * @param statement The SQL Statement to be used to retrieve the resource references.
-   * @return The aggregate Index XML string. 
+   * @throws IOException If the rows cannot be retrieved.
    */
-  private String getIndex(String resourceName, String statement, int startIndex, int maxInstances) {
-    StringBuilder builder = new StringBuilder(512);
-    builder.append("<").append(resourceName).append(indexSuffix);
-    // Retrieve all the SensorData to start.
+  private void writeIndex(Writer writer, String resourceName, String statement, 
+      List<Object> params, int startIndex, int maxInstances) throws IOException {
+    writeIndex(writer, resourceName, Collections.singletonList(new TableQuery(statement, params)),
+        startIndex, maxInstances);
+  }
+  
+  /**
+   * Writes the Index for the given resource indicated by resourceName to writer, as 
+   * writeIndex() does for a single query, from the rows of the passed queries, which are run
+   * in turn until maxInstances have been written.
+   * @param writer The writer that receives the index.
+   * @param resourceName The resource name, such as "Project".
+   * @param queries The queries to be used to retrieve the resource references.
+   * @param startIndex The (zero-based) starting index for instances to be returned.
+   * @param maxInstances The maximum number of instances to return.  
+   * @throws IOException If the rows cannot be retrieved.
+   */
+  private void writeIndex(Writer writer, String resourceName, List<TableQuery> queries, 
+      int startIndex, int maxInstances) throws IOException {
     Connection conn = null;
     PreparedStatement s = null;
     ResultSet rs = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
-      s = conn.prepareStatement(statement);
-      rs = s.executeQuery();
+      writer.append("<").append(resourceName).append(indexSuffix);
+      conn = this.connectionPool.getConnection();
       int currIndex = 0;
       int totalInstances = 0;
       String resourceRefColumnName = xml + resourceName + "Ref";
-      while (rs.next()) {
-        if ((currIndex >= startIndex) && (totalInstances < maxInstances)) {
-          builder.append(rs.getString(resourceRefColumnName));
-          totalInstances++;
+      boolean isSensorData = "SensorData".equals(resourceName); //NOPMD
+      for (TableQuery query : queries) {
+        if (totalInstances >= maxInstances) {
+          break;
+        }
+        s = conn.prepareStatement(query.statement);
+        setParameters(s, query.params);
+        if (maxInstances < Integer.MAX_VALUE - startIndex) {
+          // Derby need not produce any rows past the end of the requested page.
+          s.setMaxRows(startIndex + maxInstances - currIndex);
+        }
+        rs = s.executeQuery();
+        while ((totalInstances < maxInstances) && rs.next()) {
+          if (currIndex >= startIndex) {
+            writer.write((isSensorData) ? getSensorDataRef(rs) 
+                : rs.getString(resourceRefColumnName));
+            totalInstances++;
+          }
+          currIndex++;
         }
-        currIndex++;
+        closeQuietly(rs, s, null);
+        rs = null;
+        s = null;
       }
+      writer.append("</").append(resourceName).append(indexSuffix);
     }
     catch (SQLException e) {
-      this.logger.info("Derby: Error in getIndex()" + StackTrace.toString(e));
+      throw makeIOException("writeIndex", e);
+    }
+    catch (IOException e) {
+      this.logger.info("Derby: Index abandoned, could not write: " + e.getMessage());
     }
     finally {
-      try {
+      closeQuietly(rs, s, conn);
+    }
+  }
+  
+  /**
+   * Writes a SensorDataIndex containing at most maxInstances of the instances retrieved by 
+   * the queries, which must select the SensorDataRef columns ordered by Tstamp and Owner, and 
+   * are run in turn until the page is full. One extra row is fetched to find out whether there
+   * is a further page. If there is, the index carries a ContinuationToken attribute 
+   * identifying the last instance in this page. Since the page is bounded, it is retrieved in
+   * full before anything is written, and a database error is thrown before anything has been
+   * written. 
+   * @param writer The writer that receives the index.
+   * @param queries The queries to be used to retrieve the page.
+   * @param maxInstances The maximum number of instances to return.  
+   * @throws IOException If the page cannot be retrieved.
+   */
+  private void writeIndexPage(Writer writer, List<TableQuery> queries, int maxInstances) 
+  throws IOException {
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    List<String> refs = new ArrayList<String>();
+    ContinuationToken next = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      Timestamp lastTstamp = null;
+      String lastOwner = null;
+      for (TableQuery query : queries) {
+        if (next != null) {
+          break;
+        }
+        s = conn.prepareStatement(query.statement);
+        if (maxInstances < Integer.MAX_VALUE) {
+          s.setMaxRows(maxInstances + 1 - refs.size());
+        }
+        setParameters(s, query.params);
+        rs = s.executeQuery();
+        while (rs.next()) {
+          if (refs.size() == maxInstances) {
+            next = new ContinuationToken(lastTstamp.getTime(), lastOwner);
+            break;
+          }
+          refs.add(getSensorDataRef(rs));
+          lastTstamp = rs.getTimestamp(2);
+          lastOwner = rs.getString(1);
+        }
+        closeQuietly(rs, s, null);
+        rs = null;
+        s = null;
+      }
+    }
+    catch (SQLException e) {
+      throw makeIOException("writeIndexPage", e);
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+    try {
+      writer.append("<SensorDataIndex");
+      if (next != null) {
+        writer.append(" ContinuationToken=\"").append(next.toString()).append('"');
+      }
+      writer.append('>');
+      for (String ref : refs) {
+        writer.write(ref);
+      }
+      writer.append("</SensorDataIndex>");
+    }
+    catch (IOException e) {
+      this.logger.info("Derby: Index abandoned, could not write: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Writes the XML of each SensorData instance retrieved by statement, which must select 
+   * dataColumns, as it is read. Instances stored as a payload are rebuilt while the query's
+   * connection is held, so the codec reads any key it has not yet seen on that connection 
+   * rather than waiting on the pool for a second one.
+   * A database error is thrown as an IOException, as in writeIndex(), so that the response 
+   * is abandoned rather than ended as if it were complete.
+   * @param writer The writer that receives the instances.
+   * @param queries The queries to be used to retrieve the instances, which are run in turn.
+   * @throws IOException If the writer fails, or the instances cannot be retrieved.
+   */
+  private void writeInstances(Writer writer, List<TableQuery> queries) throws IOException {
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      for (TableQuery query : queries) {
+        server.getLogger().fine(executeQueryMsg + query.statement);
+        s = conn.prepareStatement(query.statement);
+        setParameters(s, query.params);
+        rs = s.executeQuery();
+        while (rs.next()) {
+          String xmlSensorData = rs.getString(1);
+          if (xmlSensorData == null) {
+            xmlSensorData = rebuildSensorData(rs.getBytes(2), conn, rs.getString(3), 
+                rs.getString(4), rs.getString(5), rs.getString(6));
+          }
+          writer.write(xmlSensorData);
+        }
+        closeQuietly(rs, s, null);
+        rs = null;
+        s = null;
+      }
+    }
+    catch (IOException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw makeIOException("writeInstances", e);
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+  }
+  
+  /**
+   * Writes the row of the passed fields of each SensorData instance retrieved by statement,
+   * which must select rowColumns, followed by XmlSensorData and Payload if a Property is 
+   * selected. As in writeInstances(), a database error is thrown as an IOException.
+   * @param writer The writer that receives the rows.
+   * @param queries The queries to be used to retrieve the instances, which are run in turn.
+   * @param fields The fields of each instance to be written.
+   * @throws IOException If the writer fails, or the instances cannot be retrieved.
+   */
+  private void writeRows(Writer writer, List<TableQuery> queries, SensorDataFields fields) 
+  throws IOException {
+    Connection conn = null;
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      for (TableQuery query : queries) {
+        server.getLogger().fine(executeQueryMsg + query.statement);
+        s = conn.prepareStatement(query.statement);
+        setParameters(s, query.params);
+        rs = s.executeQuery();
+        while (rs.next()) {
+          SensorData data;
+          if (fields.hasProperties()) {
+            String xmlSensorData = rs.getString(8);
+            data = (xmlSensorData == null) ? this.payloadCodec.decode(rs.getBytes(9), conn)
+                : getSensorDataManager().makeSensorData(xmlSensorData);
+          }
+          else {
+            data = new SensorData();
+          }
+          data.setOwner(rs.getString(1));
+          data.setSensorDataType(rs.getString(3));
+          data.setTool(rs.getString(4));
+          data.setResource(rs.getString(5));
+          // Only the selected times are converted to XMLGregorianCalendars.
+          if (fields.contains(SensorDataFields.TIMESTAMP)) {
+            data.setTimestamp(Tstamp.makeTimestamp(rs.getTimestamp(2).getTime()));
+          }
+          if (fields.contains(SensorDataFields.RUNTIME)) {
+            data.setRuntime(Tstamp.makeTimestamp(rs.getTimestamp(6).getTime()));
+          }
+          if (fields.contains(SensorDataFields.LASTMOD)) {
+            data.setLastMod(Tstamp.makeTimestamp(rs.getTimestamp(7).getTime()));
+          }
+          fields.writeRow(writer, data);
+        }
+        closeQuietly(rs, s, null);
+        rs = null;
+        s = null;
+      }
+    }
+    catch (IOException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw makeIOException("writeRows", e);
+    }
+    finally {
+      closeQuietly(rs, s, conn);
+    }
+  }
+  
+  /**
+   * Returns the SensorDataRef for the current row of a result set whose columns begin with
+   * refColumns, followed by XmlSensorDataRef unless refs are lazy. The ref is rendered from 
+   * refColumns if it is lazy or was not stored. 
+   * @param rs The result set.
+   * @return The SensorDataRef as an XML string.
+   * @throws SQLException If the columns cannot be read.
+   */
+  private String getSensorDataRef(ResultSet rs) throws SQLException {
+    if (!this.isLazyRefs) {
+      String ref = rs.getString(6);
+      if (ref != null) {
+        return ref;
+      }
+    }
+    return getSensorDataManager().makeSensorDataRefString(rs.getString(1), rs.getString(3), 
+        Tstamp.makeTimestamp(rs.getTimestamp(2).getTime()), rs.getString(4), 
+        Tstamp.makeTimestamp(rs.getTimestamp(5).getTime()));
+  }
+  
+  /**
+   * Writes the closing tag of an index after a database error, so that the get*Index methods
+   * return the rows read so far as a well-formed (if incomplete) index, as they always have.
+   * @param writer The writer that receives the index.
+   * @param resourceName The resource name, such as "Project".
+   */
+  private void closeIndex(Writer writer, String resourceName) {
+    try {
+      writer.append("</").append(resourceName).append(indexSuffix);
+    }
+    catch (IOException e) {
+      this.logger.info("Derby: Index abandoned, could not write: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Logs a database error that occurred while writing to a client, and returns it as an 
+   * IOException, so that the response is abandoned rather than ended as if it were complete.
+   * @param method The name of the method in which the error occurred.
+   * @param e The error.
+   * @return The IOException to be thrown.
+   */
+  private IOException makeIOException(String method, Exception e) {
+    this.logger.info("Derby: Error in " + method + "()" + StackTrace.toString(e));
+    IOException ioException = new IOException("Database error in " + method + "(): " 
+        + e.getMessage());
+    ioException.initCause(e);
+    return ioException;
+  }
+  
+  /** A query on one table holding SensorData rows, and the values of its parameters. */
+  private static class TableQuery {
+    /** The SQL statement. */
+    private final String statement;
+    /** The values of its parameters. */
+    private final List<Object> params;
+
+    /**
+     * Creates a query.
+     * @param statement The SQL statement.
+     * @param params The values of its parameters.
+     */
+    TableQuery(String statement, List<Object> params) {
+      this.statement = statement;
+      this.params = params;
+    }
+  }
+  
+  /**
+   * Closes the result set, statement and connection of a query, any of which may be null.
+   * @param rs The result set.
+   * @param s The statement.
+   * @param conn The connection.
+   */
+  private void closeQuietly(ResultSet rs, Statement s, Connection conn) {
+    try {
+      if (rs != null) {
         rs.close();
+      }
+      if (s != null) {
         s.close();
-        conn.close();
       }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+      if (conn != null) {
+        conn.close();
       }
     }
-    builder.append("</").append(resourceName).append(indexSuffix);
-    //System.out.println(builder.toString());
-    return builder.toString();
+    catch (SQLException e) {
+      this.logger.warning(errorClosingMsg + StackTrace.toString(e));
+    }
   }
   
   /**
@@ -1266,18 +3143,20 @@ public class DerbyImplementation extends DbImplementation {
    * @param resourceName The name of the resource, such as "User".
    * @param statement The select statement used to retrieve the resultset containing a single
    * row with that resource.
+   * @param params The values of the statement's parameters.
    * @return The string containing the resource as an XML string.
    */
-  private String getResource(String resourceName, String statement) {
+  private String getResource(String resourceName, String statement, List<Object> params) {
     StringBuilder builder = new StringBuilder(512);
     Connection conn = null;
     PreparedStatement s = null;
     ResultSet rs = null;
     boolean hasData = false;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       server.getLogger().fine(executeQueryMsg + statement);
       s = conn.prepareStatement(statement);
+      setParameters(s, params);
       rs = s.executeQuery();
       String resourceXmlColumnName = xml + resourceName;
       while (rs.next()) { // the select statement must guarantee only one row is returned.
@@ -1304,14 +3183,16 @@ public class DerbyImplementation extends DbImplementation {
   /**
    * Deletes the resource, given the SQL statement to perform the delete.
    * @param statement The SQL delete statement. 
+   * @param params The values of the statement's parameters.
    */
-  private void deleteResource(String statement) {
+  private void deleteResource(String statement, List<Object> params) {
     Connection conn = null;
     PreparedStatement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
       server.getLogger().fine("Derby: " + statement);
       s = conn.prepareStatement(statement);
+      setParameters(s, params);
       s.executeUpdate();
     }
     catch (SQLException e) {
@@ -1332,110 +3213,173 @@ public class DerbyImplementation extends DbImplementation {
   /** {@inheritDoc} */
   @Override
   public boolean compressTables() {
-    boolean success = false;
+    return compressTables(new DbJob(0, DbJob.COMPRESS));
+  }
+  
+  /**
+   * Compresses the tables one at a time with SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE, which 
+   * purges deleted rows, moves rows towards the start of the table, and returns the free pages 
+   * at the end of the table and its indexes to the operating system. Unlike 
+   * SYSCS_COMPRESS_TABLE, it does not lock the table for the whole operation, so the table can
+   * still be read and written. Only the SensorData tables in which rows have been deleted or 
+   * overwritten are compressed; those not reached because of an error or cancellation are 
+   * compressed by the next job.
+   * @param job The job, which is checked for cancellation before each table.
+   * @return True if every table was compressed.
+   */
+  @Override
+  public boolean compressTables(DbJob job) {
     this.logger.fine("Starting to compress tables.");
+    List<String> changedTables = this.partitions.takeChangedTables();
+    List<String> tables = new ArrayList<String>(changedTables);
+    tables.addAll(Arrays.asList("SensorDataType", "HackyUser", "Project"));
+    int numCompressed = 0;
     Connection conn = null;
     CallableStatement cs = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
-      cs = conn.prepareCall("CALL SYSCS_UTIL.SYSCS_COMPRESS_TABLE(?, ?, ?)");
+      conn = this.connectionPool.getConnection();
+      cs = conn.prepareCall("CALL SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE(?, ?, 1, 1, 1)");
       cs.setString(1, "APP");
-      cs.setString(2, "SENSORDATA");
-      cs.setShort(3, (short) 1);
-      cs.execute();
-      cs.setString(2, "SENSORDATATYPE");
-      cs.execute();
-      cs.setString(2, "HACKYUSER");
-      cs.execute();
-      cs.setString(2, "PROJECT");
-      cs.execute();
-      success = true;
+      for (String table : tables) {
+        if (job.isCancelled()) {
+          break;
+        }
+        job.setProgress("Compressing " + table + " (" + (numCompressed + 1) + " of " 
+            + tables.size() + ")");
+        cs.setString(2, table.toUpperCase());
+        cs.execute();
+        numCompressed++;
+      }
     }
     catch (SQLException e) {
       this.logger.info("Derby: Error in compressTables()" + StackTrace.toString(e));
-      success = false;
     }
     finally {
-      try {
-        cs.close();
-        conn.close();
-      }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-        success = false;
+      for (String table : tables.subList(numCompressed, tables.size())) {
+        if (changedTables.contains(table)) {
+          this.partitions.setChanged(table);
+        }
       }
+      closeQuietly(null, cs, conn);
     }
-    this.logger.fine("Finished compressing tables.");
-    return success;
+    this.logger.fine("Finished compressing " + numCompressed + " tables.");
+    return numCompressed == tables.size();
+  }
+  
+  /**
+   * Drops the SensorData partitions whose intervals end at or before the passed time, and 
+   * their SensorDataRollup counts. This removes old sensor data far more cheaply than deleting
+   * it. Sensor data that is not in a partition is not affected. 
+   * @param before The time.
+   * @param archiveDir If not null, the directory to which each partition is first exported, 
+   * to a gzipped file named after the partition's table in SYSCS_UTIL.SYSCS_IMPORT_TABLE format.
+   * @return The names of the partitions dropped, which are those dropped before any failure.
+   */
+  @Override
+  public List<String> dropSensorDataPartitions(XMLGregorianCalendar before, File archiveDir) {
+    List<String> dropped = new ArrayList<String>();
+    try {
+      this.partitions.dropPartitions(Tstamp.makeTimestamp(before), archiveDir, dropped);
+    }
+    catch (Exception e) {
+      this.logger.info("Derby: Error in dropSensorDataPartitions()" + StackTrace.toString(e));
+    }
+    return dropped;
   }
   
   /** {@inheritDoc} */
   @Override
   public boolean indexTables() {
+    return indexTables(new DbJob(0, DbJob.INDEX));
+  }
+  
+  /**
+   * Creates each index of the SensorData tables and the Project table that does not exist, and
+   * drops the obsolete ToolIndex. Existing indexes are not dropped and rebuilt: Derby locks a 
+   * table against reads as well as writes for the whole of a CREATE INDEX, and compressing the
+   * tables already compacts their indexes. Each index is created by its own statement, so 
+   * other requests wait at most for the creation of one index on one table or partition.
+   * @param job The job, which is checked for cancellation before each index.
+   * @return True if every missing index was created.
+   */
+  @Override
+  public boolean indexTables(DbJob job) {
     this.logger.fine("Starting to index tables.");
+    Map<String, String> statements = new LinkedHashMap<String, String>();
+    statements.put("TstampOwnerIndex", indexSensorDataTstampOwnerStatement);
+    statements.put("RuntimeIndex", indexSensorDataRuntimeStatement);
+    statements.put("OwnerSdtTstampIndex", indexSensorDataOwnerSdtTstampStatement);
+    statements.put("OwnerLastModIndex", indexSensorDataOwnerLastModStatement);
+    statements.put("OwnerSdtToolRuntimeIndex", indexSensorDataOwnerSdtToolRuntimeStatement);
+    statements.putAll(this.partitions.getIndexStatements());
+    statements.put("ProjectNameIndex", indexProjectNameStatement);
     boolean success = false;
     Connection conn = null;
     Statement s = null;
     try {
-      conn = DriverManager.getConnection(connectionURL);
+      conn = this.connectionPool.getConnection();
+      Set<String> existing = getIndexNames(conn);
       s = conn.createStatement();
-      
-      // Note: If the db is being set up for the first time, it is not an error for the drop index
-      // statement to fail. Thus, we simply log the occurrence. 
-      
-      try {
-        s.execute(dropIndexSensorDataTstampStatement);
-      }
-      catch (Exception e) {
-        this.logger.info("Failed to drop SensorData(Tstamp) index.");
-      }
-      s.execute(indexSensorDataTstampStatement);
-
-      try {
-        s.execute(dropIndexSensorDataRuntimeStatement);
-      }
-      catch (Exception e) {
-        this.logger.info("Failed to drop SensorData(Runtime) index.");        
-      }
-      s.execute(indexSensorDataRuntimeStatement);
-      
-      try {
+      // ToolIndex is no longer created (see migrateSchema), but may remain in old databases.
+      if (existing.contains("TOOLINDEX")) {
         s.execute(dropIndexSensorDataToolStatement);
       }
-      catch (Exception e) {
-        this.logger.info("Failed to drop SensorData(Tool) index.");                
-      }
-      s.execute(indexSensorDataToolStatement);
-      
-      try {
-        s.execute(dropIndexProjectNameStatement);
+      List<String> missing = new ArrayList<String>();
+      for (String name : statements.keySet()) {
+        if (!existing.contains(name.toUpperCase())) {
+          missing.add(name);
+        }
       }
-      catch (Exception e) {
-        this.logger.info("Failed to drop Project(ProjectName) index.");                
+      for (int i = 0; i < missing.size(); i++) {
+        if (job.isCancelled()) {
+          return false;
+        }
+        job.setProgress("Creating " + missing.get(i) + " (" + (i + 1) + " of " 
+            + missing.size() + ")");
+        this.logger.info("Derby: creating index " + missing.get(i));
+        s.execute(statements.get(missing.get(i)));
       }
-      s.execute(indexProjectNameStatement);
-
-      s.close();
       success = true;
     }
     catch (SQLException e) {
       this.logger.info("Derby: Error in indexTables()" + StackTrace.toString(e));
-      success = false;
     }
     finally {
-      try {
-        s.close();
-        conn.close();
-      }
-      catch (SQLException e) {
-        this.logger.warning(errorClosingMsg + StackTrace.toString(e));
-        success = false;
-      }
+      closeQuietly(null, s, conn);
     }
     this.logger.fine("Finished indexing tables.");
     return success;
   }
   
+  /**
+   * Returns the names of the indexes in the database.
+   * @param conn The connection.
+   * @return The index names, in upper case.
+   * @throws SQLException If the names cannot be read.
+   */
+  private static Set<String> getIndexNames(Connection conn) throws SQLException {
+    Set<String> names = new HashSet<String>();
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      s = conn.createStatement();
+      rs = s.executeQuery("SELECT c.ConglomerateName FROM SYS.SYSCONGLOMERATES c, "
+          + "SYS.SYSSCHEMAS t WHERE c.SchemaId = t.SchemaId AND t.SchemaName = 'APP'");
+      while (rs.next()) {
+        names.add(rs.getString(1));
+      }
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+    }
+    return names;
+  }
+  
   /** {@inheritDoc} */
   @Override
   public int getRowCount(String table) {
@@ -1443,13 +3387,30 @@ public class DerbyImplementation extends DbImplementation {
     Connection conn = null;
     PreparedStatement s = null;
     ResultSet rs = null;
-    String statement = "Select COUNT(1) from " + table;
+    // Table names cannot be statement parameters, so only accept one of our own tables.
+    String tableName = null;
+    for (String name : getTableNames()) {
+      if (name.equalsIgnoreCase(table)) {
+        tableName = name;
+      }
+    }
+    if (tableName == null) {
+      return numRows;
+    }
+    List<String> tables = ("SensorData".equals(tableName)) 
+        ? this.partitions.getAllTables() : Arrays.asList(tableName);
     try {
-      conn = DriverManager.getConnection(connectionURL);
-      s = conn.prepareStatement(statement);
-      rs = s.executeQuery();
-      rs.next();
-      numRows = rs.getInt(1);
+      conn = this.connectionPool.getConnection();
+      int total = 0;
+      for (String countedTable : tables) {
+        s = conn.prepareStatement("Select COUNT(1) from " + countedTable);
+        rs = s.executeQuery();
+        rs.next();
+        total += rs.getInt(1);
+        rs.close();
+        s.close();
+      }
+      numRows = total;
     }
     catch (SQLException e) {
       this.logger.info("Derby: Error in getRowCount: " + StackTrace.toString(e));
@@ -1472,6 +3433,9 @@ public class DerbyImplementation extends DbImplementation {
   public Set<String> getTableNames() {
     Set<String> tableNames = new HashSet<String>();
     tableNames.add("SensorData");
+    tableNames.add("SensorDataRollup");
+    tableNames.add("PayloadKey");
+    tableNames.add("SensorDataPartition");
     tableNames.add("SensorDataType");
     tableNames.add("HackyUser");
     tableNames.add("Project");
@@ -0,0 +1,50 @@
+package org.hackystat.sensorbase.db.derby;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+
+/**
+ * Converts SensorData to and from the bytes kept in the Payload column of the SensorData
+ * table, as an alternative to keeping its XML in the XmlSensorData column.
+ * <p>
+ * The Owner, SensorDataType, Tool and Resource of an instance are already held in their own
+ * columns, so a codec need not encode them: the instance returned by decode is completed
+ * from those columns. Marshalling the completed instance must produce exactly the XML that
+ * the original instance produced.
+ *
+ * @author Philip Johnson
+ */
+interface PayloadCodec {
+
+  /**
+   * Returns the payload for the passed instance.
+   * @param data The sensor data.
+   * @return The payload.
+   * @throws SQLException If the codec's own tables cannot be updated.
+   */
+  byte[] encode(SensorData data) throws SQLException;
+
+  /**
+   * Returns an instance holding the fields encoded in the payload.
+   * @param payload The payload.
+   * @return The sensor data, without Owner, SensorDataType, Tool and Resource.
+   * @throws IOException If the payload is not valid.
+   * @throws SQLException If the codec's own tables cannot be read.
+   */
+  SensorData decode(byte[] payload) throws IOException, SQLException;
+
+  /**
+   * Returns an instance holding the fields encoded in the payload, as decode(payload) does,
+   * but reads the codec's own tables, if it needs to, on the passed connection. Callers that
+   * hold a connection use this rather than wait on the pool for a second one.
+   * @param payload The payload.
+   * @param conn The connection, which is left open, or null to take one from the pool.
+   * @return The sensor data, without Owner, SensorDataType, Tool and Resource.
+   * @throws IOException If the payload is not valid.
+   * @throws SQLException If the codec's own tables cannot be read.
+   */
+  SensorData decode(byte[] payload, Connection conn) throws IOException, SQLException;
+}
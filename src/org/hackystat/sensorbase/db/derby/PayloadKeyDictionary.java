@@ -0,0 +1,199 @@
+package org.hackystat.sensorbase.db.derby;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a small integer to each distinct SensorData property key, so that a binary payload
+ * holds the integer rather than the key. The assignments are kept in the PayloadKey table and
+ * are never changed or removed, so a payload can always be decoded.
+ * <p>
+ * Lookups of known keys read an in-memory copy of the table without locking. A new key is
+ * added in its own transaction, on a separate connection, so it is never rolled back with the
+ * SensorData that first used it. Callers should therefore look up keys before starting a
+ * transaction of their own, or they could wait on the pool for a second connection.
+ * <p>
+ * Names are looked up while rows are being read, so a caller that holds a connection passes
+ * it to getName(), which then rereads the table on it if necessary. Rereading never waits for
+ * a key being added, since that waits on the pool.
+ *
+ * @author Philip Johnson
+ */
+class PayloadKeyDictionary {
+
+  /** The SQL string for creating the PayloadKey table. */
+  static final String createTableStatement =
+    "create table PayloadKey "
+    + "("
+    + " Id INTEGER NOT NULL, "
+    + " Name VARCHAR(32000) NOT NULL, "
+    + " PRIMARY KEY (Id) "
+    + ")";
+
+  /** The pool from which connections are obtained. */
+  private final DerbyConnectionPool connectionPool;
+
+  /** The id of each key. */
+  private final Map<String, Integer> name2id = new ConcurrentHashMap<String, Integer>();
+
+  /** The key of each id. Replaced, never modified, when keys are added. */
+  private volatile String[] id2name = null;
+
+  /** Held while id2name and name2id are replaced, but never while using a connection. */
+  private final Object publishLock = new Object();
+
+  /**
+   * Creates a dictionary backed by the PayloadKey table. The table is read when first needed.
+   * @param connectionPool The pool from which connections are obtained.
+   */
+  PayloadKeyDictionary(DerbyConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+  }
+
+  /**
+   * Returns the id of the passed key, adding it to the dictionary if necessary.
+   * @param name The key.
+   * @return Its id.
+   * @throws SQLException If the key cannot be added.
+   */
+  int getId(String name) throws SQLException {
+    Integer id = this.name2id.get(name);
+    return (id == null) ? addName(name) : id;
+  }
+
+  /**
+   * Returns the key with the passed id.
+   * @param id The id.
+   * @return The key.
+   * @throws SQLException If the id is unknown or the table cannot be read.
+   */
+  String getName(int id) throws SQLException {
+    return getName(id, null);
+  }
+
+  /**
+   * Returns the key with the passed id, rereading the table on the passed connection if the
+   * id is not yet known.
+   * @param id The id.
+   * @param conn The connection, which is left open, or null to take one from the pool.
+   * @return The key.
+   * @throws SQLException If the id is unknown or the table cannot be read.
+   */
+  String getName(int id, Connection conn) throws SQLException {
+    String[] names = this.id2name;
+    if ((names == null) || (id >= names.length)) {
+      names = load(conn);
+    }
+    if ((id < 0) || (id >= names.length)) {
+      throw new SQLException("Unknown payload key id: " + id);
+    }
+    return names[id];
+  }
+
+  /**
+   * Adds the key to the table, unless it is already there.
+   * @param name The key.
+   * @return Its id.
+   * @throws SQLException If the key cannot be added.
+   */
+  private synchronized int addName(String name) throws SQLException {
+    if (this.id2name == null) {
+      load(null);
+    }
+    Integer existing = this.name2id.get(name);
+    if (existing != null) {
+      return existing;
+    }
+    String[] names = this.id2name;
+    int id = names.length;
+    Connection conn = null;
+    PreparedStatement s = null;
+    try {
+      conn = this.connectionPool.getConnection();
+      s = conn.prepareStatement("INSERT INTO PayloadKey VALUES (?, ?)");
+      s.setInt(1, id);
+      s.setString(2, name);
+      s.executeUpdate();
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      if (conn != null) {
+        conn.close();
+      }
+    }
+    String[] newNames = new String[id + 1];
+    System.arraycopy(names, 0, newNames, 0, id);
+    newNames[id] = name;
+    publish(newNames);
+    return id;
+  }
+
+  /**
+   * Reads the whole table into memory. This is not synchronized with addName(), which holds
+   * its lock while it waits for a connection.
+   * @param callerConn The connection to read it on, which is left open, or null to take one
+   * from the pool.
+   * @return The keys, indexed by id.
+   * @throws SQLException If the table cannot be read, or its ids are not consecutive.
+   */
+  private String[] load(Connection callerConn) throws SQLException {
+    List<String> names = new ArrayList<String>();
+    Connection conn = callerConn;
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      if (conn == null) {
+        conn = this.connectionPool.getConnection();
+      }
+      s = conn.createStatement();
+      rs = s.executeQuery("SELECT Id, Name FROM PayloadKey ORDER BY Id");
+      while (rs.next()) {
+        if (rs.getInt(1) != names.size()) {
+          throw new SQLException("Missing payload key id: " + names.size());
+        }
+        names.add(rs.getString(2));
+      }
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+      if ((conn != null) && (callerConn == null)) {
+        conn.close();
+      }
+    }
+    return publish(names.toArray(new String[names.size()]));
+  }
+
+  /**
+   * Replaces the keys in memory with the passed ones, unless those already there are at least
+   * as many, since keys are only ever added.
+   * @param names The keys, indexed by id.
+   * @return The keys now in memory.
+   */
+  private String[] publish(String[] names) {
+    synchronized (this.publishLock) {
+      String[] current = this.id2name;
+      if ((current != null) && (current.length >= names.length)) {
+        return current;
+      }
+      for (int i = 0; i < names.length; i++) {
+        this.name2id.put(names[i], i);
+      }
+      this.id2name = names;
+      return names;
+    }
+  }
+}
@@ -0,0 +1,705 @@
+package org.hackystat.sensorbase.db.derby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Divides the SensorData rows among tables by Tstamp, so that time range queries only read
+ * the tables that overlap their range, and so that old sensor data can be removed by dropping
+ * whole tables rather than by deleting rows.
+ * <p>
+ * Each partition table covers an interval of Tstamps and is listed in the SensorDataPartition
+ * table. Intervals begin and end at the start of a month in the server's time zone, and do not
+ * overlap. A row whose Tstamp lies in no partition's interval is kept in the SensorData table
+ * itself. If the partition size is positive, a partition is created for a row's interval when
+ * the first row in it is stored, and the rows already in the SensorData table are moved to
+ * their partitions at startup, so every row belongs to the table given by getTable(). If it is
+ * zero, no partitions are created, and existing partitions continue to be used.
+ * <p>
+ * Partition tables are created as copies of the SensorData table definition, with the same
+ * primary key and indexes, so that every statement on SensorData can be run on a partition by
+ * substituting its name. The SensorDataRollup table covers all partitions.
+ *
+ * @author Philip Johnson
+ */
+class SensorDataPartitions {
+
+  /** The SQL string for creating the SensorDataPartition table. */
+  static final String createTableStatement =
+    "create table SensorDataPartition "
+    + "("
+    + " Name VARCHAR(128) NOT NULL, "
+    + " StartTstamp TIMESTAMP NOT NULL, "
+    + " EndTstamp TIMESTAMP NOT NULL, "
+    + " PRIMARY KEY (Name) "
+    + ")";
+
+  /** The table holding the rows that are not in a partition. */
+  static final String baseTable = "SensorData";
+
+  /** The indexes of each partition, as name suffix and columns, which match SensorData's. */
+  private static final String[][] indexes = {
+    { "TstampOwner", "Tstamp asc, Owner asc" },
+    { "Runtime", "Runtime desc" },
+    { "OwnerSdtTstamp", "Owner asc, Sdt asc, Tstamp asc" },
+    { "OwnerLastMod", "Owner asc, LastMod asc" },
+    { "OwnerSdtToolRuntime", "Owner asc, Sdt asc, Tool asc, Runtime desc" }
+  };
+
+  /** The pool from which connections are obtained. */
+  private final DerbyConnectionPool connectionPool;
+
+  /** The number of months covered by each new partition, or zero to create none. */
+  private final int months;
+
+  /** The logger. */
+  private final Logger logger;
+
+  /** The partitions in order of their intervals. Replaced, never modified, when they change. */
+  private volatile List<Partition> partitions = Collections.emptyList();
+
+  /** The time before which partitions have been dropped, so that rows are not accepted. */
+  private volatile long droppedBefore = Long.MIN_VALUE;
+
+  /** The tables that may contain space freed by deletions, and so are worth compressing. */
+  private final Map<String, Boolean> changedTables = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * Creates the partitioning of the SensorData table. load() must be called before use.
+   * @param connectionPool The pool from which connections are obtained.
+   * @param months The number of months covered by each new partition, or zero for none.
+   * @param logger The logger.
+   */
+  SensorDataPartitions(DerbyConnectionPool connectionPool, int months, Logger logger) {
+    this.connectionPool = connectionPool;
+    this.months = Math.max(0, months);
+    this.logger = logger;
+  }
+
+  /**
+   * Reads the SensorDataPartition table. All tables are considered changed, since nothing is
+   * known about deletions before startup.
+   * @throws SQLException If the table cannot be read.
+   */
+  synchronized void load() throws SQLException {
+    List<Partition> loaded = new ArrayList<Partition>();
+    Connection conn = this.connectionPool.getConnection();
+    Statement s = null;
+    ResultSet rs = null;
+    try {
+      s = conn.createStatement();
+      rs = s.executeQuery("SELECT Name, StartTstamp, EndTstamp FROM SensorDataPartition "
+          + "ORDER BY StartTstamp");
+      while (rs.next()) {
+        loaded.add(new Partition(rs.getString(1), rs.getTimestamp(2).getTime(),
+            rs.getTimestamp(3).getTime()));
+      }
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+      conn.close();
+    }
+    this.partitions = Collections.unmodifiableList(loaded);
+    this.changedTables.put(baseTable, Boolean.TRUE);
+    for (Partition partition : loaded) {
+      this.changedTables.put(partition.name, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Returns the table that holds, or would hold, the rows with the passed Tstamp.
+   * @param tstamp The Tstamp.
+   * @return The table name.
+   */
+  String getTable(Timestamp tstamp) {
+    Partition partition = findPartition(this.partitions, tstamp.getTime());
+    return (partition == null) ? baseTable : partition.name;
+  }
+
+  /**
+   * Returns the table in which a row with the passed Tstamp is to be stored, creating its
+   * partition first if necessary. Since a partition is created on a connection of its own,
+   * callers should call this before starting a transaction. Rows older than the time passed to
+   * dropPartitions() are refused, since their partition has been, or is being, dropped.
+   * @param tstamp The Tstamp.
+   * @return The table name.
+   * @throws SQLException If the partition cannot be created, or the Tstamp has been dropped.
+   */
+  String getTableForWrite(Timestamp tstamp) throws SQLException {
+    checkNotDropped(tstamp.getTime());
+    Partition partition = findPartition(this.partitions, tstamp.getTime());
+    if (partition != null) {
+      return partition.name;
+    }
+    return (this.months == 0) ? baseTable : createPartition(tstamp.getTime());
+  }
+
+  /**
+   * Returns the tables that may hold rows with a Tstamp in the interval [start, end], in order
+   * of time: the SensorData table first, followed by the partitions overlapping the interval.
+   * @param start The start of the interval, or null if unbounded.
+   * @param end The end of the interval, or null if unbounded.
+   * @return The table names.
+   */
+  List<String> getTables(Timestamp start, Timestamp end) {
+    List<String> tables = new ArrayList<String>();
+    tables.add(baseTable);
+    for (Partition partition : this.partitions) {
+      if (((start == null) || (partition.end > start.getTime()))
+          && ((end == null) || (partition.start <= end.getTime()))) {
+        tables.add(partition.name);
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Returns the parts of the tables that may hold rows with a Tstamp in the interval 
+   * [start, end], in order of time, so that the rows of each part all precede those of the 
+   * next. Each partition is one part. Since a row is only kept in the SensorData table if its
+   * Tstamp lies in no partition's interval, that table contributes one part for each gap
+   * between the partitions, unless new partitions are being created, in which case it holds
+   * no rows at all. 
+   * @param start The start of the interval, or null if unbounded.
+   * @param end The end of the interval, or null if unbounded.
+   * @return The parts.
+   */
+  List<TableRange> getTableRanges(Timestamp start, Timestamp end) {
+    List<TableRange> ranges = new ArrayList<TableRange>();
+    Long gapStart = null;
+    for (Partition partition : this.partitions) {
+      if ((this.months == 0) && ((gapStart == null) || (gapStart.longValue() < partition.start))) {
+        addRange(ranges, new TableRange(baseTable, gapStart, Long.valueOf(partition.start)), 
+            start, end);
+      }
+      addRange(ranges, new TableRange(partition.name, null, null), partition.start, 
+          partition.end, start, end);
+      gapStart = Long.valueOf(partition.end);
+    }
+    if ((this.months == 0) || this.partitions.isEmpty()) {
+      addRange(ranges, new TableRange(baseTable, gapStart, null), start, end);
+    }
+    return ranges;
+  }
+
+  /**
+   * Adds a part of the SensorData table to ranges if it overlaps the interval [start, end].
+   * @param ranges The parts.
+   * @param range The part of the SensorData table.
+   * @param start The start of the interval, or null if unbounded.
+   * @param end The end of the interval, or null if unbounded.
+   */
+  private static void addRange(List<TableRange> ranges, TableRange range, Timestamp start, 
+      Timestamp end) {
+    addRange(ranges, range, (range.start == null) ? Long.MIN_VALUE : range.start.longValue(),
+        (range.end == null) ? Long.MAX_VALUE : range.end.longValue(), start, end);
+  }
+
+  /**
+   * Adds a part of a table to ranges if its interval [rangeStart, rangeEnd) overlaps the 
+   * interval [start, end].
+   * @param ranges The parts.
+   * @param range The part.
+   * @param rangeStart The start of the part's interval.
+   * @param rangeEnd The end of the part's interval.
+   * @param start The start of the interval, or null if unbounded.
+   * @param end The end of the interval, or null if unbounded.
+   */
+  private static void addRange(List<TableRange> ranges, TableRange range, long rangeStart, 
+      long rangeEnd, Timestamp start, Timestamp end) {
+    if (((start == null) || (rangeEnd > start.getTime()))
+        && ((end == null) || (rangeStart <= end.getTime()))) {
+      ranges.add(range);
+    }
+  }
+
+  /**
+   * Returns every table holding SensorData rows.
+   * @return The table names, the SensorData table first.
+   */
+  List<String> getAllTables() {
+    return getTables(null, null);
+  }
+
+  /**
+   * Records that rows have been deleted from the table, so that compressing it could free space.
+   * @param table The table name.
+   */
+  void setChanged(String table) {
+    this.changedTables.put(table, Boolean.TRUE);
+  }
+
+  /**
+   * Returns the tables recorded by setChanged, and forgets them.
+   * @return The table names.
+   */
+  List<String> takeChangedTables() {
+    List<String> tables = new ArrayList<String>();
+    for (String table : getAllTables()) {
+      if (this.changedTables.remove(table) != null) {
+        tables.add(table);
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Moves the rows in the SensorData table to their partitions, one partition per transaction,
+   * if partitions are being created. Called at startup, before any rows are stored.
+   * @throws SQLException If a partition cannot be created or filled.
+   */
+  void moveUnpartitionedRows() throws SQLException {
+    if (this.months == 0) {
+      return;
+    }
+    while (true) {
+      Timestamp first = null;
+      Connection conn = this.connectionPool.getConnection();
+      Statement s = null;
+      ResultSet rs = null;
+      try {
+        s = conn.createStatement();
+        rs = s.executeQuery("SELECT MIN(Tstamp) FROM " + baseTable);
+        first = (rs.next()) ? rs.getTimestamp(1) : null;
+      }
+      finally {
+        if (rs != null) {
+          rs.close();
+        }
+        if (s != null) {
+          s.close();
+        }
+        conn.close();
+      }
+      if (first == null) {
+        return;
+      }
+      String table = getTableForWrite(first);
+      Partition partition = findPartition(this.partitions, first.getTime());
+      moveRows(table, partition);
+    }
+  }
+
+  /**
+   * Moves the rows of the partition's interval from the SensorData table to the partition.
+   * @param table The partition's table.
+   * @param partition The partition.
+   * @throws SQLException If the rows cannot be moved.
+   */
+  private void moveRows(String table, Partition partition) throws SQLException {
+    String where = " WHERE Tstamp >= ? AND Tstamp < ?";
+    Connection conn = this.connectionPool.getConnection();
+    PreparedStatement s = null;
+    try {
+      conn.setAutoCommit(false);
+      s = conn.prepareStatement("INSERT INTO " + table + " SELECT * FROM " + baseTable + where);
+      s.setTimestamp(1, new Timestamp(partition.start));
+      s.setTimestamp(2, new Timestamp(partition.end));
+      int numRows = s.executeUpdate();
+      s.close();
+      s = conn.prepareStatement("DELETE FROM " + baseTable + where);
+      s.setTimestamp(1, new Timestamp(partition.start));
+      s.setTimestamp(2, new Timestamp(partition.end));
+      s.executeUpdate();
+      conn.commit();
+      this.logger.info("Derby: moved " + numRows + " SensorData rows to " + table);
+    }
+    catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      conn.setAutoCommit(true);
+      conn.close();
+    }
+  }
+
+  /**
+   * Throws an exception if rows with the passed Tstamp are no longer accepted.
+   * @param time The Tstamp, in milliseconds.
+   * @throws SQLException If the Tstamp is before the time passed to dropPartitions().
+   */
+  private void checkNotDropped(long time) throws SQLException {
+    if (time < this.droppedBefore) {
+      throw new SQLException("SensorData before " + new Timestamp(this.droppedBefore) 
+          + " has been dropped: " + new Timestamp(time));
+    }
+  }
+
+  /**
+   * Removes the partitions whose intervals end at or before the passed time, by dropping
+   * their tables, and removes their hours from the SensorDataRollup table. Each partition is
+   * removed in its own transaction. If archiveDir is not null, each table is first exported to
+   * a file there named after it, in the format read by SYSCS_UTIL.SYSCS_IMPORT_TABLE, which is
+   * then gzipped.
+   * <p>
+   * From the start, rows older than the passed time are refused by getTableForWrite(), and each
+   * partition is taken out of the list before it is exported, so that no rows are written to 
+   * it, and no partition is created in its place, once it has been exported. If a partition 
+   * cannot be removed, it is put back, and only the rows before the partitions already removed 
+   * are refused.
+   * @param before The time.
+   * @param archiveDir The directory to export the tables to, or null to discard them.
+   * @param dropped The list to which the names of the tables removed are added.
+   * @throws SQLException If a partition cannot be exported or removed.
+   * @throws IOException If an export cannot be gzipped.
+   */
+  synchronized void dropPartitions(Timestamp before, File archiveDir, List<String> dropped)
+  throws SQLException, IOException {
+    long previous = this.droppedBefore;
+    long removedBefore = previous;
+    this.droppedBefore = Math.max(previous, before.getTime());
+    Partition partition = null;
+    try {
+      while (!this.partitions.isEmpty() && (this.partitions.get(0).end <= before.getTime())) {
+        partition = this.partitions.get(0);
+        this.partitions = Collections.unmodifiableList(
+            new ArrayList<Partition>(this.partitions.subList(1, this.partitions.size())));
+        this.changedTables.remove(partition.name);
+        dropPartition(partition, archiveDir);
+        removedBefore = Math.max(removedBefore, partition.end);
+        dropped.add(partition.name);
+        partition = null;
+      }
+    }
+    finally {
+      if (partition != null) {
+        List<Partition> restored = new ArrayList<Partition>(this.partitions);
+        restored.add(0, partition);
+        this.partitions = Collections.unmodifiableList(restored);
+        this.changedTables.put(partition.name, Boolean.TRUE);
+        this.droppedBefore = removedBefore;
+      }
+    }
+  }
+
+  /**
+   * Exports a partition if archiveDir is not null, then drops its table and removes its 
+   * SensorDataPartition and SensorDataRollup rows in one transaction.
+   * @param partition The partition, which is no longer in the list of partitions.
+   * @param archiveDir The directory to export the table to, or null to discard it.
+   * @throws SQLException If the partition cannot be exported or removed.
+   * @throws IOException If the export cannot be gzipped.
+   */
+  private void dropPartition(Partition partition, File archiveDir) 
+  throws SQLException, IOException {
+    if (archiveDir != null) {
+      File file = new File(archiveDir, partition.name + ".del");
+      exportTable(partition.name, file);
+      gzip(file);
+    }
+    Connection conn = this.connectionPool.getConnection();
+    PreparedStatement s = null;
+    try {
+      conn.setAutoCommit(false);
+      s = conn.prepareStatement("DELETE FROM SensorDataRollup WHERE Period >= ? AND Period < ?");
+      s.setTimestamp(1, new Timestamp(partition.start));
+      s.setTimestamp(2, new Timestamp(partition.end));
+      s.executeUpdate();
+      s.close();
+      s = conn.prepareStatement("DELETE FROM SensorDataPartition WHERE Name = ?");
+      s.setString(1, partition.name);
+      s.executeUpdate();
+      s.close();
+      s = conn.prepareStatement("DROP TABLE " + partition.name);
+      s.execute();
+      conn.commit();
+    }
+    catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    }
+    finally {
+      if (s != null) {
+        s.close();
+      }
+      conn.setAutoCommit(true);
+      conn.close();
+    }
+    this.logger.info("Derby: dropped SensorData partition " + partition.name);
+  }
+
+  /**
+   * Exports a table to a file.
+   * @param table The table name.
+   * @param file The file, which must not exist.
+   * @throws SQLException If the table cannot be exported.
+   */
+  private void exportTable(String table, File file) throws SQLException {
+    Connection conn = this.connectionPool.getConnection();
+    CallableStatement cs = null;
+    try {
+      cs = conn.prepareCall("CALL SYSCS_UTIL.SYSCS_EXPORT_TABLE(?, ?, ?, NULL, NULL, 'UTF-8')");
+      cs.setString(1, "APP");
+      cs.setString(2, table.toUpperCase());
+      cs.setString(3, file.getAbsolutePath());
+      cs.execute();
+      this.logger.info("Derby: exported " + table + " to " + file);
+    }
+    finally {
+      if (cs != null) {
+        cs.close();
+      }
+      conn.close();
+    }
+  }
+
+  /**
+   * Replaces a file with a gzipped copy whose name has ".gz" appended.
+   * @param file The file.
+   * @throws IOException If the copy cannot be written.
+   */
+  private static void gzip(File file) throws IOException {
+    File gzipFile = new File(file.getPath() + ".gz");
+    InputStream in = new FileInputStream(file);
+    try {
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipFile));
+      try {
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+          out.write(buffer, 0, length);
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      in.close();
+    }
+    if (!file.delete()) {
+      throw new IOException("Could not delete " + file);
+    }
+  }
+
+  /**
+   * Returns the statements creating the indexes of every partition.
+   * @return The statements, keyed by index name.
+   */
+  Map<String, String> getIndexStatements() {
+    Map<String, String> statements = new LinkedHashMap<String, String>();
+    for (Partition partition : this.partitions) {
+      for (String[] index : indexes) {
+        statements.put(partition.name + index[0], makeIndexStatement(partition.name, index));
+      }
+    }
+    return statements;
+  }
+
+  /**
+   * Creates the partition containing the passed time, unless another thread just has.
+   * The partition covers the aligned interval of the configured number of months that contains
+   * the time, shortened if necessary so that it does not overlap an existing partition.
+   * @param time The time.
+   * @return The partition's table name.
+   * @throws SQLException If the partition cannot be created.
+   */
+  private synchronized String createPartition(long time) throws SQLException {
+    checkNotDropped(time);
+    List<Partition> current = this.partitions;
+    Partition existing = findPartition(current, time);
+    if (existing != null) {
+      return existing.name;
+    }
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    int month = calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+    month -= month % this.months;
+    calendar.clear();
+    calendar.set(month / 12, month % 12, 1);
+    long start = calendar.getTimeInMillis();
+    calendar.add(Calendar.MONTH, this.months);
+    long end = calendar.getTimeInMillis();
+    for (Partition partition : current) {
+      if ((partition.end <= time) && (partition.end > start)) {
+        start = partition.end;
+      }
+      if ((partition.start > time) && (partition.start < end)) {
+        end = partition.start;
+      }
+    }
+    String name = baseTable + "_" + new SimpleDateFormat("yyyyMM").format(start);
+    Connection conn = this.connectionPool.getConnection();
+    Statement s = null;
+    PreparedStatement insert = null;
+    try {
+      conn.setAutoCommit(false);
+      s = conn.createStatement();
+      s.execute("CREATE TABLE " + name + " AS SELECT * FROM " + baseTable + " WITH NO DATA");
+      s.execute("ALTER TABLE " + name + " ADD PRIMARY KEY (Owner, Tstamp)");
+      for (String[] index : indexes) {
+        s.execute(makeIndexStatement(name, index));
+      }
+      insert = conn.prepareStatement("INSERT INTO SensorDataPartition VALUES (?, ?, ?)");
+      insert.setString(1, name);
+      insert.setTimestamp(2, new Timestamp(start));
+      insert.setTimestamp(3, new Timestamp(end));
+      insert.executeUpdate();
+      conn.commit();
+    }
+    catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    }
+    finally {
+      if (insert != null) {
+        insert.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+      conn.setAutoCommit(true);
+      conn.close();
+    }
+    List<Partition> updated = new ArrayList<Partition>(current);
+    updated.add(new Partition(name, start, end));
+    Collections.sort(updated);
+    this.partitions = Collections.unmodifiableList(updated);
+    this.logger.info("Derby: created SensorData partition " + name);
+    return name;
+  }
+
+  /**
+   * Replaces the Tstamp index of each partition listed in the SensorDataPartition table by its 
+   * TstampOwner index, as schema version 7 does for SensorData.
+   * @param s The statement of the migration's transaction.
+   * @throws SQLException If an index cannot be created or dropped.
+   */
+  static void replaceTstampIndexes(Statement s) throws SQLException {
+    List<String> names = new ArrayList<String>();
+    ResultSet rs = s.executeQuery("SELECT Name FROM SensorDataPartition");
+    try {
+      while (rs.next()) {
+        names.add(rs.getString(1));
+      }
+    }
+    finally {
+      rs.close();
+    }
+    for (String name : names) {
+      s.execute(makeIndexStatement(name, indexes[0]));
+      s.execute("DROP INDEX " + name + "Tstamp");
+    }
+  }
+
+  /**
+   * Returns the statement creating one of the indexes of a partition.
+   * @param table The partition's table name.
+   * @param index The index's name suffix and columns.
+   * @return The statement.
+   */
+  private static String makeIndexStatement(String table, String[] index) {
+    return "CREATE INDEX " + table + index[0] + " ON " + table + "(" + index[1] + ")";
+  }
+
+  /**
+   * Returns the partition whose interval contains the passed time.
+   * @param partitions The partitions, in order.
+   * @param time The time.
+   * @return The partition, or null if there is none.
+   */
+  private static Partition findPartition(List<Partition> partitions, long time) {
+    int low = 0;
+    int high = partitions.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      Partition partition = partitions.get(middle);
+      if (time < partition.start) {
+        high = middle - 1;
+      }
+      else if (time >= partition.end) {
+        low = middle + 1;
+      }
+      else {
+        return partition;
+      }
+    }
+    return null;
+  }
+
+  /** 
+   * A table holding SensorData rows, and the interval [start, end) of Tstamps that a query 
+   * must be restricted to in order to read only the part of it returned by getTableRanges. 
+   */
+  static class TableRange {
+    /** The table name. */
+    final String table;
+    /** The start of the interval in milliseconds, inclusive, or null if unbounded. */
+    final Long start;
+    /** The end of the interval in milliseconds, exclusive, or null if unbounded. */
+    final Long end;
+
+    /**
+     * Creates a part of a table.
+     * @param table The table name.
+     * @param start The start of the interval, or null.
+     * @param end The end of the interval, or null.
+     */
+    TableRange(String table, Long start, Long end) {
+      this.table = table;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /** A partition table and the interval [start, end) of the Tstamps it holds. */
+  private static class Partition implements Comparable<Partition> {
+    /** The table name. */
+    private final String name;
+    /** The start of the interval in milliseconds, inclusive. */
+    private final long start;
+    /** The end of the interval in milliseconds, exclusive. */
+    private final long end;
+
+    /**
+     * Creates a partition.
+     * @param name The table name.
+     * @param start The start of the interval.
+     * @param end The end of the interval.
+     */
+    Partition(String name, long start, long end) {
+      this.name = name;
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Orders partitions by their intervals.
+     * @param other The other partition.
+     * @return The comparison of their start times.
+     */
+    public int compareTo(Partition other) {
+      return (this.start < other.start) ? -1 : ((this.start == other.start) ? 0 : 1);
+    }
+  }
+}
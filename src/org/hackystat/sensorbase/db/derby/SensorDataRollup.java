@@ -0,0 +1,239 @@
+package org.hackystat.sensorbase.db.derby;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maintains the SensorDataRollup table, which holds the number of SensorData instances for
+ * each owner, hour, SDT and tool. Project summaries over whole hours can then be computed
+ * by adding up a few rollup rows instead of scanning every SensorData row in the interval.
+ * <p>
+ * An instance collects the changes to the counts made by one transaction on the SensorData
+ * table. apply() writes them in the same transaction, so the rollup always agrees with the
+ * SensorData table. Hours are those of the server's time zone, since that is how Derby
+ * interprets the Tstamp column.
+ * <p>
+ * The counts are written in the order of their primary key, so that concurrent transactions
+ * changing some of the same counts lock their rows in the same order, and one waits for the 
+ * other rather than deadlocking.
+ *
+ * @author Philip Johnson
+ */
+class SensorDataRollup {
+
+  /** The SQL string for creating the SensorDataRollup table. */
+  static final String createTableStatement =
+    "create table SensorDataRollup "
+    + "("
+    + " Owner VARCHAR(64) NOT NULL, "
+    + " Period TIMESTAMP NOT NULL, "
+    + " Sdt VARCHAR(64) NOT NULL, "
+    + " Tool VARCHAR(64) NOT NULL, "
+    + " NumInstances INTEGER NOT NULL, "
+    + " PRIMARY KEY (Owner, Period, Sdt, Tool) "
+    + ")";
+
+  /** The SQL string for adding to an existing count. */
+  private static final String updateStatement =
+    "UPDATE SensorDataRollup SET NumInstances = NumInstances + ? "
+    + "WHERE Owner = ? AND Period = ? AND Sdt = ? AND Tool = ?";
+
+  /** The SQL string for adding a new count. */
+  private static final String insertStatement =
+    "INSERT INTO SensorDataRollup VALUES (?, ?, ?, ?, ?)";
+
+  /** The SQL state indicating that INSERT tried to add a row with a preexisting key. */
+  private static final String DUPLICATE_KEY = "23505";
+
+  /** Orders [Owner, Period, Sdt, Tool] keys as the table's primary key does. */
+  private static final Comparator<List<Object>> keyOrder = new Comparator<List<Object>>() {
+    @SuppressWarnings("unchecked")
+    public int compare(List<Object> key1, List<Object> key2) {
+      for (int i = 0; i < key1.size(); i++) {
+        int result = ((Comparable<Object>) key1.get(i)).compareTo(key2.get(i));
+        if (result != 0) {
+          return result;
+        }
+      }
+      return 0;
+    }
+  };
+
+  /** The changes to the counts, keyed by [Owner, Period, Sdt, Tool] in primary key order. */
+  private final Map<List<Object>, Integer> deltas = 
+    new TreeMap<List<Object>, Integer>(keyOrder);
+
+  /**
+   * Records that the number of instances with these fields changes by delta.
+   * @param owner The owner.
+   * @param tstamp The timestamp of the instance.
+   * @param sdt The sensor data type.
+   * @param tool The tool.
+   * @param delta The change in the number of instances.
+   */
+  void add(String owner, Timestamp tstamp, String sdt, String tool, int delta) {
+    List<Object> key = Arrays.<Object>asList(owner, getPeriod(tstamp), sdt, tool);
+    Integer current = this.deltas.get(key);
+    this.deltas.put(key, (current == null) ? delta : current + delta);
+  }
+
+  /**
+   * Records that the SensorData row with this owner and timestamp, if there is one, is about
+   * to be removed or overwritten. Must be called within the transaction that changes the row.
+   * @param conn The connection.
+   * @param table The SensorData table or partition that holds the row.
+   * @param owner The owner.
+   * @param tstamp The timestamp.
+   * @throws SQLException If the row cannot be read.
+   */
+  void subtractExisting(Connection conn, String table, String owner, Timestamp tstamp) 
+  throws SQLException {
+    PreparedStatement s = null;
+    ResultSet rs = null;
+    try {
+      s = conn.prepareStatement("SELECT Sdt, Tool FROM " + table 
+          + " WHERE Owner = ? AND Tstamp = ?");
+      s.setString(1, owner);
+      s.setTimestamp(2, tstamp);
+      rs = s.executeQuery();
+      if (rs.next()) {
+        add(owner, tstamp, rs.getString(1), rs.getString(2), -1);
+      }
+    }
+    finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (s != null) {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the recorded changes to the SensorDataRollup table, using the caller's transaction,
+   * in primary key order.
+   * @param conn The connection, which should not be in auto-commit mode.
+   * @throws SQLException If the changes cannot be written.
+   */
+  void apply(Connection conn) throws SQLException {
+    PreparedStatement update = null;
+    PreparedStatement insert = null;
+    try {
+      update = conn.prepareStatement(updateStatement);
+      for (Map.Entry<List<Object>, Integer> entry : this.deltas.entrySet()) {
+        if (entry.getValue() == 0) {
+          continue;
+        }
+        if (executeUpdate(update, entry.getKey(), entry.getValue()) == 0) {
+          if (insert == null) {
+            insert = conn.prepareStatement(insertStatement);
+          }
+          List<Object> key = entry.getKey();
+          insert.setString(1, (String) key.get(0));
+          insert.setTimestamp(2, (Timestamp) key.get(1));
+          insert.setString(3, (String) key.get(2));
+          insert.setString(4, (String) key.get(3));
+          insert.setInt(5, entry.getValue());
+          try {
+            insert.executeUpdate();
+          }
+          catch (SQLException e) {
+            // Another transaction has just added this row, so add to it instead.
+            if (!DUPLICATE_KEY.equals(e.getSQLState())) {
+              throw e;
+            }
+            executeUpdate(update, key, entry.getValue());
+          }
+        }
+      }
+      this.deltas.clear();
+    }
+    finally {
+      if (update != null) {
+        update.close();
+      }
+      if (insert != null) {
+        insert.close();
+      }
+    }
+  }
+
+  /**
+   * Adds delta to the count with the given key.
+   * @param update The prepared update statement.
+   * @param key The [Owner, Period, Sdt, Tool] key.
+   * @param delta The change in the count.
+   * @return The number of rows updated, which is 0 if there is no count yet.
+   * @throws SQLException If the update fails.
+   */
+  private static int executeUpdate(PreparedStatement update, List<Object> key, int delta)
+  throws SQLException {
+    update.setInt(1, delta);
+    update.setString(2, (String) key.get(0));
+    update.setTimestamp(3, (Timestamp) key.get(1));
+    update.setString(4, (String) key.get(2));
+    update.setString(5, (String) key.get(3));
+    return update.executeUpdate();
+  }
+
+  /**
+   * Creates the SensorDataRollup table and fills it from the current contents of the
+   * SensorData table.
+   * @param s A statement, whose connection should not be in auto-commit mode.
+   * @throws SQLException If the table cannot be created.
+   */
+  static void createAndPopulate(Statement s) throws SQLException {
+    s.execute(createTableStatement);
+    SensorDataRollup rollup = new SensorDataRollup();
+    ResultSet rs = s.executeQuery("SELECT Owner, DATE(Tstamp), HOUR(Tstamp), Sdt, Tool, COUNT(*) "
+        + "FROM SensorData GROUP BY Owner, DATE(Tstamp), HOUR(Tstamp), Sdt, Tool");
+    try {
+      Calendar calendar = Calendar.getInstance();
+      while (rs.next()) {
+        calendar.setTime(rs.getDate(2));
+        calendar.set(Calendar.HOUR_OF_DAY, rs.getInt(3));
+        rollup.add(rs.getString(1), new Timestamp(calendar.getTimeInMillis()), rs.getString(4),
+            rs.getString(5), rs.getInt(6));
+      }
+    }
+    finally {
+      rs.close();
+    }
+    rollup.apply(s.getConnection());
+  }
+
+  /**
+   * Returns the start of the hour containing the passed timestamp.
+   * @param tstamp The timestamp.
+   * @return The start of its hour.
+   */
+  static Timestamp getPeriod(Timestamp tstamp) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(tstamp.getTime());
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    return new Timestamp(calendar.getTimeInMillis());
+  }
+
+  /**
+   * Returns true if the passed timestamp is the start of an hour, so that an interval
+   * beginning or ending there can be answered from the rollup.
+   * @param tstamp The timestamp.
+   * @return True if tstamp is the start of an hour.
+   */
+  static boolean isPeriodStart(Timestamp tstamp) {
+    return getPeriod(tstamp).getTime() == tstamp.getTime();
+  }
+}
@@ -0,0 +1,255 @@
+package org.hackystat.sensorbase.db.derby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Properties;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Property;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that SensorData encoded by the BinaryPayloadCodec, and completed from its columns,
+ * marshals to exactly the XML of the original instance.
+ *
+ * @author Philip Johnson
+ */
+public class TestBinaryPayloadCodec {
+
+  /** The URL of a scratch database used only by this test. */
+  private static String url;
+
+  /** The pool, which holds the PayloadKey table. */
+  private static DerbyConnectionPool pool;
+
+  /** Marshals the instances being compared. */
+  private static JaxbSerializer serializer;
+
+  /** Creates the timestamps. */
+  private static DatatypeFactory factory;
+
+  /**
+   * Creates an empty PayloadKey table in a scratch database.
+   * @throws Exception If the database cannot be set up.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    File dir = new File(System.getProperty("java.io.tmpdir"), "sensorbase-payloadtest");
+    url = "jdbc:derby:" + dir.getAbsolutePath() + ";create=true";
+    pool = new DerbyConnectionPool(url, 2, 1000, 0, true, 8,
+        Logger.getLogger("org.hackystat.sensorbase"));
+    Connection conn = pool.getConnection();
+    Statement s = conn.createStatement();
+    try {
+      s.execute("DROP TABLE PayloadKey");
+    }
+    catch (SQLException e) { //NOPMD
+      // It only exists if an earlier run did not finish.
+    }
+    s.execute(PayloadKeyDictionary.createTableStatement);
+    s.close();
+    conn.close();
+    serializer = new JaxbSerializer(JAXBContext.newInstance(
+        org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class));
+    factory = DatatypeFactory.newInstance();
+  }
+
+  /**
+   * Shuts down the scratch database.
+   */
+  @AfterClass
+  public static void teardown() {
+    pool.close();
+    try {
+      java.sql.DriverManager.getConnection(url.replace(";create=true", ";shutdown=true"));
+    }
+    catch (SQLException e) { //NOPMD
+      // Derby always signals a successful shutdown with an exception.
+    }
+  }
+
+  /**
+   * Tests instances with dates of each form, and with no, empty, and unusual properties.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    BinaryPayloadCodec codec = new BinaryPayloadCodec(new PayloadKeyDictionary(pool), false);
+    String[] dates = { "2007-04-30T09:00:00.000-10:00", "2007-04-30T09:00:01Z",
+        "2007-04-30T09:00:02.123456789+05:30", "2007-04-30T09:00:03", "-0044-03-15T12:00:00Z",
+        "2007-04-30T09:00:04.1000", "2007-04-30T09:00:05.0000000000000000000000001Z",
+        "2007-04-30", "12345-01-01T00:00:00Z" };
+    for (int i = 0; i < dates.length; i++) {
+      SensorData data = makeSensorData(dates[i], dates[(i + 1) % dates.length]);
+      if (i % 3 == 1) {
+        data.setProperties(new Properties());
+      }
+      else if (i % 3 == 2) {
+        data.setProperties(makeProperties(i, "a<b>&\"\r\n\t\u00e9\ud834\udd1e"));
+        data.getProperties().getProperty().get(0).setKey("Cl\u00e9");
+        data.getProperties().getProperty().get(1).setValue("");
+      }
+      assertRoundTrip(codec, data);
+    }
+    SensorData data = makeSensorData(dates[0], dates[0]);
+    data.setLastMod(null);
+    assertRoundTrip(codec, data);
+  }
+
+  /**
+   * Tests that compressed payloads are used when shorter, and that keys assigned by one
+   * dictionary are found by another reading the same table.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testDeflate() throws Exception {
+    BinaryPayloadCodec codec = new BinaryPayloadCodec(new PayloadKeyDictionary(pool), true);
+    SensorData data = makeSensorData("2007-04-30T09:00:00.000-10:00",
+        "2007-04-30T09:00:00.000-10:00");
+    data.setProperties(makeProperties(20, "The same value, over and over again."));
+    byte[] payload = codec.encode(data);
+    assertEquals("Checking deflated format", 2, payload[0]);
+    BinaryPayloadCodec plainCodec =
+      new BinaryPayloadCodec(new PayloadKeyDictionary(pool), false);
+    assertTrue("Checking deflated is shorter", payload.length < plainCodec.encode(data).length);
+    assertEquals("Checking decode by another dictionary", serializer.marshal(data),
+        serializer.marshal(complete(plainCodec.decode(payload), data)));
+    data = makeSensorData("2007-04-30T09:00:00Z", "1999-12-31T23:59:59.5+05:30");
+    data.setLastMod(null);
+    assertEquals("Checking short payload is not deflated", 1, codec.encode(data)[0]);
+  }
+
+  /**
+   * Tests that a dictionary that has not yet read a key reads it on the caller's connection,
+   * while a query on that connection is open, rather than waiting on an exhausted pool.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testDecodeOnCallerConnection() throws Exception {
+    BinaryPayloadCodec codec = new BinaryPayloadCodec(new PayloadKeyDictionary(pool), false);
+    SensorData data = makeSensorData("2007-04-30T09:00:00Z", "2007-04-30T09:00:00Z");
+    data.setProperties(makeProperties(1, "value"));
+    data.getProperties().getProperty().get(0).setKey("HeldKey");
+    byte[] payload = codec.encode(data);
+    BinaryPayloadCodec newCodec = 
+      new BinaryPayloadCodec(new PayloadKeyDictionary(pool), false);
+    Connection conn = pool.getConnection();
+    Connection otherConn = pool.getConnection();
+    try {
+      Statement s = conn.createStatement();
+      ResultSet rs = s.executeQuery("SELECT Id FROM PayloadKey ORDER BY Id");
+      assertTrue("Checking first row", rs.next());
+      assertEquals("Checking decode with the pool exhausted", serializer.marshal(data),
+          serializer.marshal(complete(newCodec.decode(payload, conn), data)));
+      while (rs.next()) {
+        rs.getInt(1);
+      }
+      rs.close();
+      s.close();
+    }
+    finally {
+      otherConn.close();
+      conn.close();
+    }
+  }
+
+  /**
+   * Tests that invalid payloads are reported as IOExceptions.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testInvalidPayload() throws Exception {
+    BinaryPayloadCodec codec = new BinaryPayloadCodec(new PayloadKeyDictionary(pool), false);
+    String date = "2007-04-30T09:00:00Z";
+    byte[] payload = codec.encode(makeSensorData(date, date));
+    byte[] truncated = new byte[payload.length - 1];
+    System.arraycopy(payload, 0, truncated, 0, truncated.length);
+    byte[][] invalids = { new byte[0], new byte[] { 7 }, truncated };
+    for (byte[] invalid : invalids) {
+      try {
+        codec.decode(invalid);
+        fail("Decoded an invalid payload of length " + invalid.length);
+      }
+      catch (IOException e) { //NOPMD
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Asserts that the instance survives encoding and decoding.
+   * @param codec The codec.
+   * @param data The instance.
+   * @throws Exception If the instance cannot be encoded, decoded, or marshalled.
+   */
+  private static void assertRoundTrip(PayloadCodec codec, SensorData data) throws Exception {
+    String expected = serializer.marshal(data);
+    SensorData decoded = complete(codec.decode(codec.encode(data)), data);
+    assertEquals("Checking round trip", expected, serializer.marshal(decoded));
+  }
+
+  /**
+   * Sets the fields of the decoded instance that DerbyImplementation reads from columns.
+   * @param decoded The decoded instance.
+   * @param original The original instance.
+   * @return The decoded instance.
+   */
+  private static SensorData complete(SensorData decoded, SensorData original) {
+    decoded.setOwner(original.getOwner());
+    decoded.setSensorDataType(original.getSensorDataType());
+    decoded.setTool(original.getTool());
+    decoded.setResource(original.getResource());
+    return decoded;
+  }
+
+  /**
+   * Returns an instance without properties.
+   * @param timestamp The lexical timestamp, which is also used for LastMod.
+   * @param runtime The lexical runtime.
+   * @return The instance.
+   */
+  private static SensorData makeSensorData(String timestamp, String runtime) {
+    SensorData data = new SensorData();
+    data.setOwner("TestUser@hackystat.org");
+    data.setTimestamp(factory.newXMLGregorianCalendar(timestamp));
+    data.setRuntime(factory.newXMLGregorianCalendar(runtime));
+    data.setLastMod(factory.newXMLGregorianCalendar(timestamp));
+    data.setSensorDataType("DevEvent");
+    data.setTool("Eclipse");
+    data.setResource("file://home/johnson/Foo.java");
+    return data;
+  }
+
+  /**
+   * Returns properties with keys Key0, Key1, and so on.
+   * @param numProperties The number of properties.
+   * @param value The value of each property.
+   * @return The properties.
+   */
+  private static Properties makeProperties(int numProperties, String value) {
+    Properties properties = new Properties();
+    for (int i = 0; i < numProperties; i++) {
+      Property property = new Property();
+      property.setKey("Key" + i);
+      property.setValue(value);
+      properties.getProperty().add(property);
+    }
+    return properties;
+  }
+}
@@ -1,70 +1,99 @@
 package org.hackystat.sensorbase.db.derby;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.Test;
 
 
 /**
- * Tests the constructUriPattern method, which does a non-trivial transformation of the UriPatterns
- * into LIKE clauses.  This also helps document the behavior of the transformation by illustrating
+ * Tests the constructLikeClauses method, which does a non-trivial transformation of the UriPatterns
+ * into parameterized LIKE clauses and their parameter values.  This also helps document the behavior of the transformation by illustrating
  * canonical input-output pairs.
  *  
  * @author Philip Johnson
  */
 public class TestConstructLikeClauses {
 
+  /** A single parameterized LIKE clause. */
+  private static final String like = "(RESOURCE LIKE ? ESCAPE '`')";
+
   /**
    * Tests that the LIKE clauses are constructed correctly.
    */ 
   @Test
   public void testUriPatterns() {
     //Test special cases.
-    assertEquals("Test null", "", DerbyImplementation.constructLikeClauses(null));
+    List<Object> params = new ArrayList<Object>();
+    assertEquals("Test null", "", DerbyImplementation.constructLikeClauses(null, params));
     List<String> patts = new ArrayList<String>();
     patts.add("*");
-    assertEquals("Test *", "", DerbyImplementation.constructLikeClauses(patts));
+    assertEquals("Test *", "", DerbyImplementation.constructLikeClauses(patts, params));
     patts.set(0, "**");
-    assertEquals("Test **", "", DerbyImplementation.constructLikeClauses(patts));
+    assertEquals("Test **", "", DerbyImplementation.constructLikeClauses(patts, params));
+    assertTrue("Test no params", params.isEmpty());
     // Note that we need to escape occurrences of '\' character below.
     patts.set(0, "*.java");
-    assertEquals("Test single pattern, no path separator", 
-        " AND ((RESOURCE LIKE '%.java' ESCAPE '`') )", 
-        DerbyImplementation.constructLikeClauses(patts));
+    assertEquals("Test single pattern, no path separator", " AND (" + like + " )", 
+        DerbyImplementation.constructLikeClauses(patts, params));
+    assertEquals("Test single pattern params", Arrays.asList("%.java"), params);
 
     // Same return value, whether */foo/* or *\foo\*.
-    String singleSlash = 
-      " AND ((RESOURCE LIKE '%/foo/%' ESCAPE '`') OR (RESOURCE LIKE '%\\foo\\%' ESCAPE '`') )";
+    String twoClauses = " AND (" + like + " OR " + like + " )";
+    List<Object> slashParams = new ArrayList<Object>(); 
+    slashParams.add("%/foo/%");
+    slashParams.add("%\\foo\\%");
     patts.set(0, "*/foo/*");
-    assertEquals("Test single pattern, forward slash", singleSlash, 
-        DerbyImplementation.constructLikeClauses(patts));
+    params.clear();
+    assertEquals("Test single pattern, forward slash", twoClauses, 
+        DerbyImplementation.constructLikeClauses(patts, params));
+    assertEquals("Test forward slash params", slashParams, params);
 
     patts.set(0, "*\\foo\\*");
-    assertEquals("Test single pattern, backward slash", singleSlash, 
-        DerbyImplementation.constructLikeClauses(patts));
+    params.clear();
+    assertEquals("Test single pattern, backward slash", twoClauses, 
+        DerbyImplementation.constructLikeClauses(patts, params));
+    assertEquals("Test backward slash params", slashParams, params);
     
     // Test escape of an SQL wildcard.
     patts.set(0, "foo_bar");
-    assertEquals("Test single pattern, wildcard", " AND ((RESOURCE LIKE 'foo`_bar' ESCAPE '`') )",
-        DerbyImplementation.constructLikeClauses(patts));
+    params.clear();
+    DerbyImplementation.constructLikeClauses(patts, params);
+    assertEquals("Test single pattern, wildcard", Arrays.asList("foo`_bar"), params);
     
     // Test multiple URIs, path separators, and escapes.
     patts.set(0, "*/foo_bar/*");
     patts.add("*\\Test*.java");
     patts.add("baz.c");
-    
-    String results = 
-      " AND ((RESOURCE LIKE '%/foo`_bar/%' ESCAPE '`') OR " + 
-      "(RESOURCE LIKE '%\\foo`_bar\\%' ESCAPE '`') OR " + 
-      "(RESOURCE LIKE '%/Test%.java' ESCAPE '`') OR " + 
-      "(RESOURCE LIKE '%\\Test%.java' ESCAPE '`') OR " + 
-      "(RESOURCE LIKE 'baz.c' ESCAPE '`') )";
-
-    //System.out.println(DerbyImplementation.constructLikeClauses(patts));
+    params.clear();
+    String clauses = DerbyImplementation.constructLikeClauses(patts, params);
 
-    assertEquals("Test multiple URIs, path separators, escapes", results, 
-        DerbyImplementation.constructLikeClauses(patts));
+    // Five translated patterns are bucketed up to eight clauses by repeating the last one.
+    List<Object> results = new ArrayList<Object>();
+    results.add("%/foo`_bar/%");
+    results.add("%\\foo`_bar\\%");
+    results.add("%/Test%.java");
+    results.add("%\\Test%.java");
+    results.add("baz.c");
+    results.add("baz.c");
+    results.add("baz.c");
+    results.add("baz.c");
+    assertEquals("Test multiple URIs, path separators, escapes", results, params);
+    assertEquals("Test multiple URIs, clause count", 8, clauses.split("LIKE").length - 1);
+  }
+  
+  /**
+   * Tests the rounding of variable length parameter lists.
+   */
+  @Test
+  public void testBucketSize() {
+    assertEquals("Test 1", 1, DerbyImplementation.bucketSize(1));
+    assertEquals("Test 2", 2, DerbyImplementation.bucketSize(2));
+    assertEquals("Test 3", 4, DerbyImplementation.bucketSize(3));
+    assertEquals("Test 5", 8, DerbyImplementation.bucketSize(5));
+    assertEquals("Test 8", 8, DerbyImplementation.bucketSize(8));
   }
 }
@@ -0,0 +1,178 @@
+package org.hackystat.sensorbase.db.derby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the DerbyConnectionPool: reuse of connections, the bound on checked out connections,
+ * the behavior of connections after they have been returned to the pool, and statement caching.
+ *
+ * @author Philip Johnson
+ */
+public class TestDerbyConnectionPool {
+
+  /** The URL of a scratch database used only by this test. */
+  private static String url;
+
+  /** The logger. */
+  private static final Logger logger = Logger.getLogger("org.hackystat.sensorbase");
+
+  /**
+   * Loads the embedded driver and determines the scratch database location.
+   * @throws Exception If the driver cannot be loaded.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    File dir = new File(System.getProperty("java.io.tmpdir"), "sensorbase-pooltest");
+    url = "jdbc:derby:" + dir.getAbsolutePath() + ";create=true";
+  }
+
+  /**
+   * Shuts down the scratch database.
+   */
+  @AfterClass
+  public static void teardown() {
+    try {
+      java.sql.DriverManager.getConnection(url.replace(";create=true", ";shutdown=true"));
+    }
+    catch (SQLException e) { //NOPMD
+      // Derby always signals a successful shutdown with an exception.
+    }
+  }
+
+  /**
+   * Tests that a returned connection is reused rather than a new one created.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testReuse() throws Exception {
+    DerbyConnectionPool pool = new DerbyConnectionPool(url, 2, 1000, 0, true, 8, logger);
+    Connection conn = pool.getConnection();
+    assertEquals("Checking active", 1, pool.getNumActive());
+    conn.close();
+    assertTrue("Checking closed proxy", conn.isClosed());
+    assertEquals("Checking idle", 1, pool.getNumIdle());
+    conn = pool.getConnection();
+    conn.close();
+    assertEquals("Checking created", 1, pool.getNumCreated());
+    assertEquals("Checking borrowed", 2, pool.getNumBorrowed());
+    pool.close();
+  }
+
+  /**
+   * Tests that a caller times out when the pool is exhausted, and that a connection cannot
+   * be used once it has been returned to the pool.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testExhaustion() throws Exception {
+    DerbyConnectionPool pool = new DerbyConnectionPool(url, 1, 100, 0, true, 8, logger);
+    Connection conn = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("Expected a timeout from an exhausted pool.");
+    }
+    catch (SQLException e) {
+      assertEquals("Checking timeouts", 1, pool.getNumTimeouts());
+    }
+    conn.close();
+    try {
+      conn.createStatement();
+      fail("Expected an exception using a returned connection.");
+    }
+    catch (SQLException e) { //NOPMD
+      // Expected.
+    }
+    // Now the permit has been released, so this should succeed.
+    pool.getConnection().close();
+    pool.close();
+  }
+
+  /**
+   * Tests that preparing the same SQL on a pooled connection reuses the compiled statement,
+   * and that the parameters of a reused statement have been cleared.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testStatementCache() throws Exception {
+    DerbyConnectionPool pool = new DerbyConnectionPool(url, 1, 1000, 0, false, 8, logger);
+    String sql = "VALUES CAST(? AS INTEGER)";
+    Connection conn = pool.getConnection();
+    PreparedStatement s = conn.prepareStatement(sql);
+    s.setInt(1, 42);
+    ResultSet rs = s.executeQuery();
+    rs.next();
+    assertEquals("Checking first value", 42, rs.getInt(1));
+    rs.close();
+    s.close();
+    conn.close();
+    conn = pool.getConnection();
+    s = conn.prepareStatement(sql);
+    assertEquals("Checking statement hits", 1, pool.getNumStatementHits());
+    try {
+      s.executeQuery();
+      fail("Expected an exception from a statement with unset parameters.");
+    }
+    catch (SQLException e) { //NOPMD
+      // Expected, since close() cleared the parameter.
+    }
+    s.close();
+    conn.close();
+    pool.close();
+  }
+
+  /**
+   * Tests that statements cannot be used after close(), since a cached statement may by then
+   * have been handed to another client, and that they do not expose the physical connection.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testClosedStatement() throws Exception {
+    DerbyConnectionPool pool = new DerbyConnectionPool(url, 1, 1000, 0, false, 8, logger);
+    Connection conn = pool.getConnection();
+    PreparedStatement s = conn.prepareStatement("VALUES 1");
+    Statement plain = conn.createStatement();
+    assertSame("Checking cached statement connection", conn, s.getConnection());
+    assertSame("Checking plain statement connection", conn, plain.getConnection());
+    s.close();
+    plain.close();
+    Statement[] closed = { s, plain };
+    for (Statement statement : closed) {
+      try {
+        statement.execute("VALUES 1");
+        fail("Expected an exception from a closed statement.");
+      }
+      catch (SQLException e) { //NOPMD
+        // Expected.
+      }
+    }
+    // The cached statement now belongs to the next client, and the stale proxy still fails.
+    PreparedStatement reused = conn.prepareStatement("VALUES 1");
+    assertEquals("Checking statement hits", 1, pool.getNumStatementHits());
+    try {
+      s.executeQuery();
+      fail("Expected an exception from a stale statement.");
+    }
+    catch (SQLException e) { //NOPMD
+      // Expected.
+    }
+    reused.close();
+    conn.close();
+    pool.close();
+  }
+}
@@ -0,0 +1,158 @@
+package org.hackystat.sensorbase.db.derby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the creation, selection and removal of SensorData partitions.
+ *
+ * @author Philip Johnson
+ */
+public class TestSensorDataPartitions {
+
+  /** The URL of a scratch database used only by this test. */
+  private static String url;
+
+  /** The pool, which holds a SensorData table with the columns that partitions index. */
+  private static DerbyConnectionPool pool;
+
+  /** The tables created by this test. */
+  private static final String[] tables = { "SensorData_200701", "SensorData_200704",
+    "SensorData_200707", "SensorData_200708", "SensorData_200801", "SensorDataPartition", 
+    "SensorDataRollup", "SensorData" };
+
+  /**
+   * Creates a SensorData table, and empty SensorDataPartition and SensorDataRollup tables, in
+   * a scratch database.
+   * @throws Exception If the database cannot be set up.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    File dir = new File(System.getProperty("java.io.tmpdir"), "sensorbase-partitiontest");
+    url = "jdbc:derby:" + dir.getAbsolutePath() + ";create=true";
+    pool = new DerbyConnectionPool(url, 2, 1000, 0, true, 8,
+        Logger.getLogger("org.hackystat.sensorbase"));
+    Connection conn = pool.getConnection();
+    Statement s = conn.createStatement();
+    for (String table : tables) {
+      try {
+        s.execute("DROP TABLE " + table);
+      }
+      catch (SQLException e) { //NOPMD
+        // It only exists if an earlier run did not finish.
+      }
+    }
+    s.execute("CREATE TABLE SensorData (Owner VARCHAR(64) NOT NULL, Tstamp TIMESTAMP NOT NULL, "
+        + "Sdt VARCHAR(64) NOT NULL, Runtime TIMESTAMP NOT NULL, Tool VARCHAR(64) NOT NULL, "
+        + "LastMod TIMESTAMP NOT NULL, PRIMARY KEY (Owner, Tstamp))");
+    s.execute(SensorDataPartitions.createTableStatement);
+    s.execute(SensorDataRollup.createTableStatement);
+    s.close();
+    conn.close();
+  }
+
+  /**
+   * Shuts down the scratch database.
+   */
+  @AfterClass
+  public static void teardown() {
+    pool.close();
+    try {
+      java.sql.DriverManager.getConnection(url.replace(";create=true", ";shutdown=true"));
+    }
+    catch (SQLException e) { //NOPMD
+      // Derby always signals a successful shutdown with an exception.
+    }
+  }
+
+  /**
+   * Tests that partitions are aligned to their size, do not overlap, are selected by time, and
+   * that dropping them leaves the later partitions and the unpartitioned table.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testPartitions() throws Exception {
+    Logger logger = Logger.getLogger("org.hackystat.sensorbase");
+    SensorDataPartitions unpartitioned = new SensorDataPartitions(pool, 0, logger);
+    unpartitioned.load();
+    assertEquals("Checking no partition", "SensorData",
+        unpartitioned.getTableForWrite(makeTimestamp(2007, 2, 15)));
+
+    SensorDataPartitions monthly = new SensorDataPartitions(pool, 1, logger);
+    monthly.load();
+    assertEquals("Checking monthly", "SensorData_200707",
+        monthly.getTableForWrite(makeTimestamp(2007, 7, 15)));
+
+    // A partitioning with a different size reads and fits around the existing partitions.
+    SensorDataPartitions partitions = new SensorDataPartitions(pool, 3, logger);
+    partitions.load();
+    assertEquals("Checking aligned", "SensorData_200701",
+        partitions.getTableForWrite(makeTimestamp(2007, 2, 15)));
+    assertEquals("Checking next", "SensorData_200704",
+        partitions.getTableForWrite(makeTimestamp(2007, 6, 30)));
+    assertEquals("Checking start", "SensorData_200704",
+        partitions.getTableForWrite(makeTimestamp(2007, 4, 1)));
+    assertEquals("Checking clipped", "SensorData_200708",
+        partitions.getTableForWrite(makeTimestamp(2007, 8, 15)));
+    assertEquals("Checking later", "SensorData_200801",
+        partitions.getTableForWrite(makeTimestamp(2008, 1, 1)));
+    assertEquals("Checking gap", "SensorData", partitions.getTable(makeTimestamp(2007, 12, 1)));
+
+    monthly.load();
+    assertEquals("Checking reload", "SensorData_200708",
+        monthly.getTable(makeTimestamp(2007, 9, 30)));
+    assertEquals("Checking pruning", Arrays.asList("SensorData", "SensorData_200704"),
+        monthly.getTables(makeTimestamp(2007, 4, 1), makeTimestamp(2007, 5, 1)));
+    assertEquals("Checking all", 6, monthly.getAllTables().size());
+
+    List<String> dropped = new ArrayList<String>();
+    monthly.dropPartitions(makeTimestamp(2007, 8, 1), null, dropped);
+    assertEquals("Checking dropped", Arrays.asList("SensorData_200701", "SensorData_200704", 
+        "SensorData_200707"), dropped);
+    assertEquals("Checking remaining", 
+        Arrays.asList("SensorData", "SensorData_200708", "SensorData_200801"),
+        monthly.getAllTables());
+    try {
+      monthly.getTableForWrite(makeTimestamp(2007, 7, 15));
+      fail("Write to a dropped partition was accepted");
+    }
+    catch (SQLException e) { //NOPMD
+      // Expected: the partition must not be recreated.
+    }
+    assertEquals("Checking not recreated", 3, monthly.getAllTables().size());
+    partitions.load();
+    assertTrue("Checking dropped from table",
+        !partitions.getAllTables().contains("SensorData_200701"));
+  }
+
+  /**
+   * Returns the timestamp of the start of a day in the default time zone.
+   * @param year The year.
+   * @param month The month, from 1.
+   * @param day The day of the month.
+   * @return The timestamp.
+   */
+  private static Timestamp makeTimestamp(int year, int month, int day) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    calendar.set(year, month - 1, day);
+    return new Timestamp(calendar.getTimeInMillis());
+  }
+}
@@ -0,0 +1,170 @@
+package org.hackystat.sensorbase.db.derby;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.CyclicBarrier;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that concurrent transactions can update the same SensorDataRollup counts.
+ *
+ * @author Philip Johnson
+ */
+public class TestSensorDataRollup {
+
+  /** The URL of a scratch database used only by this test. */
+  private static String url;
+
+  /** The pool, which holds an empty SensorDataRollup table. */
+  private static DerbyConnectionPool pool;
+
+  /** The number of counts that both transactions change. */
+  private static final int numShared = 50;
+
+  /** The number of counts that only the first transaction changes. */
+  private static final int numUnshared = 500;
+
+  /**
+   * Creates an empty SensorDataRollup table in a scratch database, with a short lock timeout
+   * so that a deadlock is reported quickly.
+   * @throws Exception If the database cannot be set up.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    File dir = new File(System.getProperty("java.io.tmpdir"), "sensorbase-rolluptest");
+    url = "jdbc:derby:" + dir.getAbsolutePath() + ";create=true";
+    pool = new DerbyConnectionPool(url, 2, 1000, 0, true, 8,
+        Logger.getLogger("org.hackystat.sensorbase"));
+    Connection conn = pool.getConnection();
+    Statement s = conn.createStatement();
+    try {
+      s.execute("DROP TABLE SensorDataRollup");
+    }
+    catch (SQLException e) { //NOPMD
+      // It only exists if an earlier run did not finish.
+    }
+    s.execute(SensorDataRollup.createTableStatement);
+    s.close();
+    CallableStatement cs =
+      conn.prepareCall("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(?, ?)");
+    cs.setString(1, "derby.locks.deadlockTimeout");
+    cs.setString(2, "1");
+    cs.execute();
+    cs.setString(1, "derby.locks.waitTimeout");
+    cs.setString(2, "10");
+    cs.execute();
+    cs.close();
+    conn.close();
+  }
+
+  /**
+   * Shuts down the scratch database.
+   */
+  @AfterClass
+  public static void teardown() {
+    pool.close();
+    try {
+      java.sql.DriverManager.getConnection(url.replace(";create=true", ";shutdown=true"));
+    }
+    catch (SQLException e) { //NOPMD
+      // Derby always signals a successful shutdown with an exception.
+    }
+  }
+
+  /**
+   * Tests that two transactions changing many of the same counts, one of which also changes
+   * many others, both commit, and that the counts include both changes.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testConcurrentApply() throws Exception {
+    Timestamp period = SensorDataRollup.getPeriod(new Timestamp(System.currentTimeMillis()));
+    SensorDataRollup first = new SensorDataRollup();
+    SensorDataRollup second = new SensorDataRollup();
+    for (int i = 0; i < numShared; i++) {
+      first.add("owner" + i, period, "DevEvent", "Eclipse", 1);
+      second.add("owner" + i, period, "DevEvent", "Eclipse", 2);
+    }
+    for (int i = 0; i < numUnshared; i++) {
+      first.add("other" + i, period, "DevEvent", "Eclipse", 1);
+    }
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    ApplyThread firstThread = new ApplyThread(first, barrier);
+    ApplyThread secondThread = new ApplyThread(second, barrier);
+    firstThread.start();
+    secondThread.start();
+    firstThread.join();
+    secondThread.join();
+    assertEquals("Checking first", null, firstThread.failure);
+    assertEquals("Checking second", null, secondThread.failure);
+
+    Connection conn = pool.getConnection();
+    Statement s = conn.createStatement();
+    ResultSet rs = s.executeQuery("SELECT SUM(NumInstances) FROM SensorDataRollup "
+        + "WHERE Owner LIKE 'owner%'");
+    rs.next();
+    assertEquals("Checking shared counts", numShared * 3, rs.getInt(1));
+    rs.close();
+    s.close();
+    conn.close();
+  }
+
+  /**
+   * Applies a rollup in a transaction of its own, once both threads are ready.
+   */
+  private static class ApplyThread extends Thread {
+    /** The rollup. */
+    private final SensorDataRollup rollup;
+    /** The barrier at which both threads wait before applying. */
+    private final CyclicBarrier barrier;
+    /** The exception thrown, or null if the transaction committed. */
+    private volatile Exception failure;
+
+    /**
+     * Creates the thread.
+     * @param rollup The rollup.
+     * @param barrier The barrier at which both threads wait before applying.
+     */
+    ApplyThread(SensorDataRollup rollup, CyclicBarrier barrier) {
+      this.rollup = rollup;
+      this.barrier = barrier;
+    }
+
+    /** Applies the rollup and commits, recording any failure. */
+    @Override
+    public void run() {
+      try {
+        Connection conn = pool.getConnection();
+        try {
+          conn.setAutoCommit(false);
+          this.barrier.await();
+          this.rollup.apply(conn);
+          conn.commit();
+        }
+        catch (SQLException e) {
+          conn.rollback();
+          throw e;
+        }
+        finally {
+          conn.setAutoCommit(true);
+          conn.close();
+        }
+      }
+      catch (Exception e) {
+        this.failure = e;
+      }
+    }
+  }
+}
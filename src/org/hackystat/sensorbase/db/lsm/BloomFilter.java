@@ -0,0 +1,107 @@
+package org.hackystat.sensorbase.db.lsm;
+
+/**
+ * A Bloom filter over the keys of a segment, so that looking up a key that is not in the
+ * segment rarely needs to read it. With ten bits and seven hashes per key, about one lookup
+ * in a hundred of a missing key is a false positive. This matters most when storing sensor
+ * data, since every new instance is first looked up to find the index entries it replaces.
+ *
+ * @author Philip Johnson
+ */
+final class BloomFilter {
+
+  /** The number of bits per key. */
+  private static final int bitsPerKey = 10;
+
+  /** The default number of hash functions. */
+  private static final int defaultNumHashes = 7;
+
+  /** The bits. */
+  private final long[] bits;
+
+  /** The number of hash functions. */
+  private final int numHashes;
+
+  /** The number of bits, which is 64 times the length of bits. */
+  private final long numBits;
+
+  /**
+   * Creates an empty filter sized for the passed number of keys.
+   * @param numKeys The expected number of keys.
+   */
+  BloomFilter(int numKeys) {
+    this(new long[Math.max(1, (int) (((long) numKeys * bitsPerKey + 63) / 64))],
+        defaultNumHashes);
+  }
+
+  /**
+   * Creates a filter with the passed bits, as returned by getBits() of another filter.
+   * @param bits The bits.
+   * @param numHashes The number of hash functions.
+   */
+  BloomFilter(long[] bits, int numHashes) {
+    this.bits = bits; //NOPMD (owned by this filter)
+    this.numHashes = numHashes;
+    this.numBits = 64L * bits.length;
+  }
+
+  /**
+   * Adds a key.
+   * @param key The key.
+   */
+  void add(String key) {
+    long hash1 = key.hashCode();
+    long hash2 = secondHash(key);
+    for (int i = 0; i < this.numHashes; i++) {
+      long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % this.numBits;
+      this.bits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+    }
+  }
+
+  /**
+   * Returns false if the key has certainly not been added.
+   * @param key The key.
+   * @return True if the key may have been added.
+   */
+  boolean mightContain(String key) {
+    long hash1 = key.hashCode();
+    long hash2 = secondHash(key);
+    for (int i = 0; i < this.numHashes; i++) {
+      long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % this.numBits;
+      if ((this.bits[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the bits, for writing to a segment.
+   * @return The bits.
+   */
+  long[] getBits() {
+    return this.bits; //NOPMD (only written out)
+  }
+
+  /**
+   * Returns the number of hash functions.
+   * @return The number of hash functions.
+   */
+  int getNumHashes() {
+    return this.numHashes;
+  }
+
+  /**
+   * Returns a 64-bit FNV-1a hash of the key, which is independent of String.hashCode().
+   * @param key The key.
+   * @return The hash, which is always odd so that the probes differ.
+   */
+  private static long secondHash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash | 1;
+  }
+}
@@ -0,0 +1,144 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A key and its fields, as held by an LsmStore. An entry with null fields is a tombstone,
+ * which records that the key has been deleted and hides any older entry with the same key
+ * until compaction discards both.
+ * <p>
+ * Entries are written to the log and to segments in the same form: the key, the number of
+ * fields (or -1 for a tombstone), and then each field, where a string is its UTF-8 length
+ * (or -1 for null) followed by its bytes.
+ *
+ * @author Philip Johnson
+ */
+final class Entry {
+
+  /** The approximate memory used by an entry in a memtable, apart from its strings. */
+  private static final int overhead = 64;
+
+  /** The key. */
+  private final String key;
+
+  /** The fields, or null for a tombstone. */
+  private final String[] fields;
+
+  /**
+   * Creates an entry.
+   * @param key The key.
+   * @param fields The fields, or null for a tombstone.
+   */
+  Entry(String key, String[] fields) {
+    this.key = key;
+    this.fields = fields;
+  }
+
+  /**
+   * Returns the key.
+   * @return The key.
+   */
+  String getKey() {
+    return this.key;
+  }
+
+  /**
+   * Returns the fields.
+   * @return The fields, or null for a tombstone.
+   */
+  String[] getFields() {
+    return this.fields; //NOPMD (entries are never modified)
+  }
+
+  /**
+   * Returns true if this entry is a tombstone.
+   * @return True if the key has been deleted.
+   */
+  boolean isDeleted() {
+    return this.fields == null;
+  }
+
+  /**
+   * Returns the approximate number of bytes of memory used by this entry in a memtable.
+   * @return The size.
+   */
+  int getMemorySize() {
+    int size = overhead + 2 * this.key.length();
+    if (this.fields != null) {
+      for (String field : this.fields) {
+        size += 8 + ((field == null) ? 0 : 2 * field.length());
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Writes this entry.
+   * @param out The output.
+   * @throws IOException If the entry cannot be written.
+   */
+  void write(DataOutput out) throws IOException {
+    writeString(out, this.key);
+    if (this.fields == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(this.fields.length);
+    for (String field : this.fields) {
+      writeString(out, field);
+    }
+  }
+
+  /**
+   * Reads an entry written by write().
+   * @param in The input.
+   * @return The entry.
+   * @throws IOException If the entry cannot be read.
+   */
+  static Entry read(DataInput in) throws IOException {
+    String key = readString(in);
+    int numFields = in.readInt();
+    if (numFields < 0) {
+      return new Entry(key, null);
+    }
+    String[] fields = new String[numFields];
+    for (int i = 0; i < numFields; i++) {
+      fields[i] = readString(in);
+    }
+    return new Entry(key, fields);
+  }
+
+  /**
+   * Writes a string as its UTF-8 length and bytes.
+   * @param out The output.
+   * @param value The string, or null.
+   * @throws IOException If the string cannot be written.
+   */
+  static void writeString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by writeString().
+   * @param in The input.
+   * @return The string, or null.
+   * @throws IOException If the string cannot be read.
+   */
+  static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,1705 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import static org.hackystat.sensorbase.server.ServerProperties.DB_DIR_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.DB_LSM_MEMTABLE_KEY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.db.ContinuationToken;
+import org.hackystat.sensorbase.db.DbImplementation;
+import org.hackystat.sensorbase.db.DbJob;
+import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.db.RetentionRule;
+import org.hackystat.sensorbase.resource.projects.jaxb.MultiDayProjectSummary;
+import org.hackystat.sensorbase.resource.projects.jaxb.Project;
+import org.hackystat.sensorbase.resource.projects.jaxb.ProjectSummary;
+import org.hackystat.sensorbase.resource.projects.jaxb.SensorDataSummaries;
+import org.hackystat.sensorbase.resource.projects.jaxb.SensorDataSummary;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataFields;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataType;
+import org.hackystat.sensorbase.resource.users.jaxb.User;
+import org.hackystat.sensorbase.server.Server;
+import org.hackystat.sensorbase.server.ServerProperties;
+import org.hackystat.utilities.stacktrace.StackTrace;
+import org.hackystat.utilities.tstamp.Tstamp;
+
+/**
+ * Provides an implementation of DbImplementation as an embedded log-structured merge tree
+ * (see LsmStore) in the lsm subdirectory of sensorbase.db.dir. It suits servers whose load is
+ * mostly the arrival of new sensor data: a write is one append to a log and an insert into
+ * memory, and data is written to disk in large sorted segments in the background.
+ * <p>
+ * All resources are rows of string fields in one ordered key space. The first character of a
+ * key gives the kind of row, and the parts of a key are separated by character 1:
+ * <ul>
+ * <li> D owner tstamp: the Sdt, Tool, Resource, Runtime and LastMod of a SensorData instance.
+ * <li> X owner tstamp: the SensorData XML, kept apart so that index scans need not read it.
+ * <li> S owner sdt tstamp: the sdt index, holding the Tool, Resource, Runtime and LastMod.
+ * <li> T owner sdt tool tstamp: the tool index, holding the Resource, Runtime and LastMod.
+ * <li> M owner lastMod tstamp: the lastMod index, holding the Sdt and Tool.
+ * <li> Y name, U email, P owner name: SensorDataTypes, Users and Projects, as XML and ref.
+ * </ul>
+ * Times are written as 16 hex digits that sort in time order, so each owner's sensor data is
+ * one range of keys in timestamp order, and a query on an interval, an SDT or a tool reads
+ * only the matching rows. The rows and index entries of a SensorData instance are written
+ * atomically, along with deletions of the index entries of the instance it overwrites.
+ * Writes of sensor data are serialized so that this read and write is consistent.
+ * <p>
+ * SensorDataRefs are always rendered from the rows, as with sensorbase.db.lazyrefs. Indexes
+ * are maintained as data is written, so indexTables() has nothing to do; compressTables()
+ * merges all of the segments into one, discarding deleted and overwritten rows.
+ * <p>
+ * No shutdown hook is needed: every write is in a log file before it returns, and is
+ * replayed at startup if it had not been written to a segment.
+ *
+ * @author Philip Johnson
+ */
+public class LsmImplementation extends DbImplementation {
+
+  /** The subdirectory of the db directory holding the store. */
+  private static final String storeDirName = "lsm";
+
+  /** Separates the parts of a key. */
+  private static final char separator = '\u0001';
+
+  /** Follows every key with a given prefix, when appended to the prefix. */
+  private static final char afterPrefix = '\u0002';
+
+  /** The kinds of row. */
+  private static final char dataRow = 'D';
+  private static final char xmlRow = 'X';
+  private static final char sdtRow = 'S';
+  private static final char toolRow = 'T';
+  private static final char lastModRow = 'M';
+  private static final char sdtResourceRow = 'Y';
+  private static final char userRow = 'U';
+  private static final char projectRow = 'P';
+
+  /** The number of SensorData instances deleted in one write by deleteSensorData(User). */
+  private static final int deleteChunkSize = 1000;
+
+  /** The resource and table names. */
+  private static final String sensorData = "SensorData";
+  private static final String sensorDataType = "SensorDataType";
+  private static final String hackyUser = "HackyUser";
+  private static final String project = "Project";
+  private static final String indexSuffix = "Index>";
+
+  /** The error message prefix. */
+  private static final String lsmError = "LSM: Error in ";
+
+  /** The directory holding the store. */
+  private final File dir;
+
+  /** The memory size at which a memtable is flushed. */
+  private final long memTableLimit;
+
+  /** True if each write is forced to disk. */
+  private final boolean isSyncing;
+
+  /** The store. */
+  private LsmStore store;
+
+  /** True if the store was created by initialize(). */
+  private boolean isFreshlyCreated;
+
+  /** Serializes the read and write of SensorData rows and their index entries. */
+  private final Object sensorDataLock = new Object();
+
+  /**
+   * Instantiates the LSM implementation. The store is opened by initialize().
+   * @param server The SensorBase server instance.
+   */
+  public LsmImplementation(Server server) {
+    super(server);
+    ServerProperties props = server.getServerProperties();
+    this.dir = new File(props.get(DB_DIR_KEY), storeDirName);
+    this.memTableLimit = props.getInt(DB_LSM_MEMTABLE_KEY, 4096) * 1024L;
+    this.isSyncing = props.syncLsmLog();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void initialize() {
+    try {
+      this.store = new LsmStore(this.dir, this.memTableLimit, this.isSyncing, this.logger);
+      this.isFreshlyCreated = this.store.isFreshlyCreated();
+      this.logger.info((this.isFreshlyCreated) ? "LSM: creating store in: " + this.dir
+          : "LSM: previously initialized: " + this.dir);
+    }
+    catch (IOException e) {
+      String msg = "LSM: Exception during LsmImplementation initialization:";
+      this.logger.warning(msg + "\n" + StackTrace.toString(e));
+      throw new RuntimeException(msg, e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean isFreshlyCreated() {
+    return this.isFreshlyCreated;
+  }
+
+  // ********************   Start SensorData specific stuff here *****************  //
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeSensorData(SensorData data, String xmlSensorData, String xmlSensorDataRef) {
+    return storeSensorDataBatch(Collections.singletonList(data),
+        Collections.singletonList(xmlSensorData), Collections.singletonList(xmlSensorDataRef));
+  }
+
+  /**
+   * Stores the batch as one atomic write. The index entries of any instance that is
+   * overwritten, whether stored earlier or earlier in the batch, are deleted in the same write.
+   * @param datas The sensor data instances.
+   * @param xmlSensorDatas The SensorData instances marshalled into XML Strings.
+   * @param xmlSensorDataRefs Not used, since SensorDataRefs are rendered from the rows.
+   * @return True if the batch was written.
+   */
+  @Override
+  public boolean storeSensorDataBatch(List<SensorData> datas, List<String> xmlSensorDatas,
+      List<String> xmlSensorDataRefs) {
+    long lastMod = System.currentTimeMillis();
+    List<Entry> entries = new ArrayList<Entry>(datas.size() * 8);
+    Map<String, Row> written = new HashMap<String, Row>();
+    try {
+      synchronized (this.sensorDataLock) {
+        for (int i = 0; i < datas.size(); i++) {
+          SensorData data = datas.get(i);
+          XMLGregorianCalendar runtime = data.getRuntime();
+          Row row = new Row(data.getOwner(), Tstamp.makeTimestamp(data.getTimestamp()).getTime(),
+              data.getSensorDataType(), data.getTool(), data.getResource(),
+              (runtime == null) ? null : encodeTime(Tstamp.makeTimestamp(runtime).getTime()),
+              lastMod);
+          String key = makeKey(dataRow, row.owner, encodeTime(row.tstamp));
+          Row old = (written.containsKey(key)) ? written.get(key) : getRow(key);
+          if (old != null) {
+            addIndexEntries(old, true, entries);
+          }
+          entries.add(new Entry(key, new String[] { row.sdt, row.tool, row.resource,
+              row.runtime, encodeTime(row.lastMod) }));
+          entries.add(new Entry(makeKey(xmlRow, row.owner, encodeTime(row.tstamp)),
+              new String[] { xmlSensorDatas.get(i) }));
+          addIndexEntries(row, false, entries);
+          written.put(key, row);
+        }
+        this.store.write(entries);
+      }
+      this.logger.fine("LSM: Stored " + datas.size() + " sensor data instances");
+      return true;
+    }
+    catch (IOException e) {
+      this.logger.info(lsmError + "storeSensorDataBatch()" + StackTrace.toString(e));
+      return false;
+    }
+  }
+
+  /**
+   * Adds the sdt, tool and lastMod index entries of a SensorData instance, or their deletions.
+   * @param row The instance.
+   * @param isDeleted True if the entries are deleted.
+   * @param entries The list to which the entries are added.
+   */
+  private static void addIndexEntries(Row row, boolean isDeleted, List<Entry> entries) {
+    String tstamp = encodeTime(row.tstamp);
+    String lastMod = encodeTime(row.lastMod);
+    String sdt = nonNull(row.sdt);
+    String tool = nonNull(row.tool);
+    entries.add(new Entry(makeKey(sdtRow, row.owner, sdt, tstamp), (isDeleted) ? null
+        : new String[] { row.tool, row.resource, row.runtime, lastMod }));
+    entries.add(new Entry(makeKey(toolRow, row.owner, sdt, tool, tstamp), (isDeleted) ? null
+        : new String[] { row.resource, row.runtime, lastMod }));
+    entries.add(new Entry(makeKey(lastModRow, row.owner, lastMod, tstamp), (isDeleted) ? null
+        : new String[] { row.sdt, row.tool }));
+  }
+
+  /**
+   * Adds the deletion of all of the rows of a SensorData instance.
+   * @param row The instance.
+   * @param entries The list to which the deletions are added.
+   */
+  private static void addDeletions(Row row, List<Entry> entries) {
+    String tstamp = encodeTime(row.tstamp);
+    entries.add(new Entry(makeKey(dataRow, row.owner, tstamp), null));
+    entries.add(new Entry(makeKey(xmlRow, row.owner, tstamp), null));
+    addIndexEntries(row, true, entries);
+  }
+
+  /**
+   * Returns the SensorData instance with the passed D key.
+   * @param key The key.
+   * @return The instance, or null if there is none.
+   * @throws IOException If the store cannot be read.
+   */
+  private Row getRow(String key) throws IOException {
+    Entry entry = this.store.get(key);
+    return (entry == null) ? null : parseRow(entry);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorData(User user, XMLGregorianCalendar timestamp) {
+    String key = makeKey(xmlRow, user.getEmail(), encodeTime(timestamp));
+    return getResource(key, "getSensorData()");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasSensorData(User user, XMLGregorianCalendar timestamp) {
+    String key = makeKey(dataRow, user.getEmail(), encodeTime(timestamp));
+    try {
+      return this.store.get(key) != null;
+    }
+    catch (IOException e) {
+      this.logger.info(lsmError + "hasSensorData()" + StackTrace.toString(e));
+      return false;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deleteSensorData(User user, XMLGregorianCalendar timestamp) {
+    String key = makeKey(dataRow, user.getEmail(), encodeTime(timestamp));
+    try {
+      synchronized (this.sensorDataLock) {
+        Row row = getRow(key);
+        if (row != null) {
+          List<Entry> entries = new ArrayList<Entry>();
+          addDeletions(row, entries);
+          this.store.write(entries);
+        }
+      }
+    }
+    catch (IOException e) {
+      this.logger.info(lsmError + "deleteSensorData()" + StackTrace.toString(e));
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deleteSensorData(User user) {
+    String prefix = makeKey(dataRow, user.getEmail());
+    try {
+      synchronized (this.sensorDataLock) {
+        List<Row> rows = new ArrayList<Row>();
+        RowScan scan = new RowScan(this.store, prefix + separator, prefix + afterPrefix);
+        try {
+          while (scan.hasNext()) {
+            rows.add(scan.next());
+          }
+        }
+        finally {
+          scan.close();
+        }
+        for (int i = 0; i < rows.size(); i += deleteChunkSize) {
+          List<Entry> entries = new ArrayList<Entry>();
+          for (Row row : rows.subList(i, Math.min(i + deleteChunkSize, rows.size()))) {
+            addDeletions(row, entries);
+          }
+          this.store.write(entries);
+        }
+      }
+    }
+    catch (Exception e) {
+      this.logger.info(lsmError + "deleteSensorData()" + StackTrace.toString(e));
+    }
+  }
+
+  /**
+   * Deletes the expired instances of each owner in turn. Since an owner's instances are in
+   * timestamp order, only the expired ones are read. The owners are the registered users,
+   * since sensor data is only accepted from them and is deleted with them.
+   * @param rule The rule selecting the sensor data.
+   * @param before The time before which the selected sensor data has expired.
+   * @param maxInstances The maximum number of instances to delete.
+   * @param archive The writer that receives the deleted instances, or null.
+   * @return The number of instances deleted, or -1 if an error occurred.
+   */
+  @Override
+  public int deleteSensorData(RetentionRule rule, XMLGregorianCalendar before,
+      int maxInstances, Writer archive) {
+    String end = encodeTime(before);
+    List<String> owners = new ArrayList<String>();
+    int numDeleted = 0;
+    try {
+      if (rule.getOwner() == null) {
+        owners.addAll(getKeySuffixes(userRow));
+      }
+      else {
+        owners.add(rule.getOwner());
+      }
+      owners.removeAll(rule.getExcludedOwners());
+      for (String owner : owners) {
+        if (numDeleted == maxInstances) {
+          break;
+        }
+        String prefix = makeKey(dataRow, owner) + separator;
+        List<Row> rows = new ArrayList<Row>();
+        RowScan scan = new RowScan(this.store, prefix, prefix + end);
+        try {
+          while ((rows.size() < maxInstances - numDeleted) && scan.hasNext()) {
+            Row row = scan.next();
+            String sdt = nonNull(row.sdt);
+            if (((rule.getSdt() == null) || rule.getSdt().equals(sdt))
+                && !rule.getExcludedSdts().contains(sdt)) {
+              rows.add(row);
+            }
+          }
+        }
+        finally {
+          scan.close();
+        }
+        if (!rows.isEmpty()) {
+          if (archive != null) {
+            archiveSensorData(rows, archive);
+          }
+          numDeleted += deleteExpiredRows(rows);
+        }
+      }
+    }
+    catch (Exception e) {
+      this.logger.info(lsmError + "deleteSensorData(" + rule + ")" + StackTrace.toString(e));
+      return -1;
+    }
+    return numDeleted;
+  }
+
+  /**
+   * Writes the XML of each instance to the archive and flushes it.
+   * @param rows The instances.
+   * @param archive The archive.
+   * @throws IOException If the store cannot be read or the archive written.
+   */
+  private void archiveSensorData(List<Row> rows, Writer archive) throws IOException {
+    for (Row row : rows) {
+      Entry entry = this.store.get(makeKey(xmlRow, row.owner, encodeTime(row.tstamp)));
+      if (entry != null) {
+        archive.write(entry.getFields()[0]);
+        archive.write('\n');
+      }
+    }
+    archive.flush();
+  }
+
+  /**
+   * Deletes the expired instances in one write. An instance that has been overwritten since it
+   * was read no longer has the LastMod read, and is kept; the next deletion will find it again
+   * if it has still expired.
+   * @param rows The instances.
+   * @return The number of instances deleted.
+   * @throws IOException If the store cannot be read or written.
+   */
+  private int deleteExpiredRows(List<Row> rows) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    int numDeleted = 0;
+    synchronized (this.sensorDataLock) {
+      for (Row row : rows) {
+        Row current = getRow(makeKey(dataRow, row.owner, encodeTime(row.tstamp)));
+        if ((current != null) && (current.lastMod == row.lastMod)) {
+          addDeletions(current, entries);
+          numDeleted++;
+        }
+      }
+      this.store.write(entries);
+    }
+    return numDeleted;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndex() {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndex(writer);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer) {
+    String prefix = String.valueOf(dataRow);
+    writeIndex(writer, new RowScan(this.store, prefix, makeEnd(prefix)), null, 0,
+        Integer.MAX_VALUE);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndex(User user) {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndex(writer, user);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, User user) {
+    String prefix = makeKey(dataRow, user.getEmail());
+    writeIndex(writer, new RowScan(this.store, prefix + separator, prefix + afterPrefix), null,
+        0, Integer.MAX_VALUE);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndex(User user, String sdtName) {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndex(writer, user, sdtName);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, User user, String sdtName) {
+    String prefix = makeKey(sdtRow, user.getEmail(), sdtName);
+    writeIndex(writer, new RowScan(this.store, prefix + separator, prefix + afterPrefix), null,
+        0, Integer.MAX_VALUE);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt) {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, List<User> users,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      String sdt) {
+    writeIndex(writer, scanProject(users, sdt, null, startTime, endTime),
+        compileUriPatterns(uriPatterns), 0, Integer.MAX_VALUE);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, List<User> users,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      String sdt, String tool) {
+    writeIndex(writer, scanProject(users, sdt, tool, startTime, endTime),
+        compileUriPatterns(uriPatterns), 0, Integer.MAX_VALUE);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, int startIndex,
+      int maxInstances) {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, startIndex,
+        maxInstances);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndex(Writer writer, List<User> users,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      int startIndex, int maxInstances) {
+    writeIndex(writer, scanProject(users, null, null, startTime, endTime),
+        compileUriPatterns(uriPatterns), startIndex, maxInstances);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndexPage(Writer writer, List<User> users,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      ContinuationToken token, int maxInstances) {
+    long start = Tstamp.makeTimestamp(startTime).getTime();
+    if (token != null) {
+      // Later pages start reading at the last instance of the previous page.
+      start = Math.max(start, token.getTimestamp());
+    }
+    List<Pattern> patterns = compileUriPatterns(uriPatterns);
+    List<String> refs = new ArrayList<String>();
+    ContinuationToken next = null;
+    RowScan scan = scanProject(users, null, null, start,
+        Tstamp.makeTimestamp(endTime).getTime());
+    try {
+      Row last = null;
+      while (scan.hasNext()) {
+        Row row = scan.next();
+        if (((token != null) && (row.tstamp == token.getTimestamp())
+            && (row.owner.compareTo(token.getOwner()) <= 0))
+            || !matchesUriPatterns(patterns, row.resource)) {
+          continue;
+        }
+        if (refs.size() == maxInstances) {
+          next = new ContinuationToken(last.tstamp, last.owner);
+          break;
+        }
+        refs.add(makeSensorDataRef(row));
+        last = row;
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "writeSensorDataIndexPage()" + StackTrace.toString(e));
+    }
+    finally {
+      scan.close();
+    }
+    try {
+      writer.append("<SensorDataIndex");
+      if (next != null) {
+        writer.append(" ContinuationToken=\"").append(next.toString()).append('"');
+      }
+      writer.append('>');
+      for (String ref : refs) {
+        writer.write(ref);
+      }
+      writer.append("</SensorDataIndex>");
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: Index abandoned, could not write: " + e.getMessage());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataIndexLastMod(User user, XMLGregorianCalendar lastModStartTime,
+      XMLGregorianCalendar lastModEndTime) {
+    StringWriter writer = new StringWriter();
+    writeSensorDataIndexLastMod(writer, user, lastModStartTime, lastModEndTime);
+    return writer.toString();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void writeSensorDataIndexLastMod(Writer writer, User user,
+      XMLGregorianCalendar lastModStartTime, XMLGregorianCalendar lastModEndTime) {
+    String prefix = makeKey(lastModRow, user.getEmail()) + separator;
+    writeIndex(writer, new RowScan(this.store, prefix + encodeTime(lastModStartTime),
+        prefix + encodeTime(lastModEndTime) + afterPrefix), null, 0, Integer.MAX_VALUE);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getProjectSensorDataSnapshot(List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) {
+    StringWriter writer = new StringWriter();
+    writeProjectSensorDataSnapshot(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+    return writer.toString();
+  }
+
+  /**
+   * Writes the index of the sensor data with the latest runtime. The matching sensor data is
+   * read once, keeping only the instances with the latest runtime found so far.
+   * @param writer The writer that receives the index.
+   * @param users The list of users whose sensor data will be checked.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param uriPatterns The uripatterns that must match the resource string.
+   * @param sdt The sensor data type of interest.
+   * @param tool The tool of interest, or null if any tool is OK.
+   */
+  @Override
+  public void writeProjectSensorDataSnapshot(Writer writer, List<User> users,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      String sdt, String tool) {
+    List<Pattern> patterns = compileUriPatterns(uriPatterns);
+    List<Row> latest = new ArrayList<Row>();
+    RowScan scan = scanProject(users, sdt, tool, startTime, endTime);
+    try {
+      while (scan.hasNext()) {
+        Row row = scan.next();
+        if ((row.runtime == null) || !matchesUriPatterns(patterns, row.resource)) {
+          continue;
+        }
+        int comparison = (latest.isEmpty()) ? 1 : row.runtime.compareTo(latest.get(0).runtime);
+        if (comparison > 0) {
+          latest.clear();
+        }
+        if (comparison >= 0) {
+          latest.add(row);
+        }
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "writeProjectSensorDataSnapshot()" + StackTrace.toString(e));
+    }
+    finally {
+      scan.close();
+    }
+    try {
+      writer.append("<").append(sensorData).append(indexSuffix);
+      for (Row row : latest) {
+        writer.write(makeSensorDataRef(row));
+      }
+      writer.append("</").append(sensorData).append(indexSuffix);
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: Index abandoned, could not write: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the matching instances, reading the X row of each instance found by the same scan
+   * as writeSensorDataIndex. The default writeSensorData(Writer, User, List), which reads the
+   * X rows in key order, serves lookups by timestamp.
+   * @param writer The writer that receives the instances.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param uriPatterns The uripatterns that must match the resource string.
+   * @param sdt The sensor data type of interest, or null for any.
+   * @param tool The tool of interest, or null for any.
+   */
+  @Override
+  public void writeSensorDatas(Writer writer, List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) {
+    List<Pattern> patterns = compileUriPatterns(uriPatterns);
+    RowScan scan = scanProject(users, sdt, tool, startTime, endTime);
+    try {
+      writer.write(DbManager.sensorDatasOpenTag);
+      while (scan.hasNext()) {
+        Row row = scan.next();
+        String xmlSensorData = (matchesUriPatterns(patterns, row.resource)) 
+            ? getResource(makeKey(xmlRow, row.owner, encodeTime(row.tstamp)), "writeSensorDatas()")
+            : null;
+        if (xmlSensorData != null) {
+          writer.write(xmlSensorData);
+        }
+      }
+      writer.write(DbManager.sensorDatasCloseTag);
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "writeSensorDatas()" + StackTrace.toString(e));
+      closeSensorDatas(writer, DbManager.sensorDatasCloseTag);
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: SensorDatas abandoned, could not write: " + e.getMessage());
+    }
+    finally {
+      scan.close();
+    }
+  }
+
+  /**
+   * Writes the selected fields of the instances found by the same scan as writeSensorDatas.
+   * The typed fields are held by the scanned rows, so the X row of an instance is only read
+   * if a Property is selected.
+   * @param writer The writer that receives the rows.
+   * @param users The list of users whose SensorData will be returned.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param uriPatterns The uripatterns that must match the resource string.
+   * @param sdt The sensor data type of interest, or null for any.
+   * @param tool The tool of interest, or null for any.
+   * @param fields The fields of each instance to be written.
+   */
+  @Override
+  public void writeSensorDataRows(Writer writer, List<User> users,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns,
+      String sdt, String tool, SensorDataFields fields) {
+    List<Pattern> patterns = compileUriPatterns(uriPatterns);
+    RowScan scan = scanProject(users, sdt, tool, startTime, endTime);
+    try {
+      writer.write(fields.getOpenTag());
+      while (scan.hasNext()) {
+        Row row = scan.next();
+        SensorData data = (matchesUriPatterns(patterns, row.resource)) 
+            ? makeRowData(row, fields) : null;
+        if (data != null) {
+          fields.writeRow(writer, data);
+        }
+      }
+      writer.write(SensorDataFields.closeTag);
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "writeSensorDataRows()" + StackTrace.toString(e));
+      closeSensorDatas(writer, SensorDataFields.closeTag);
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: SensorDataRows abandoned, could not write: " + e.getMessage());
+    }
+    finally {
+      scan.close();
+    }
+  }
+
+  /**
+   * Returns an instance holding the passed fields of the instance indexed by row.
+   * @param row The row.
+   * @param fields The selected fields.
+   * @return The instance, or null if a Property is selected and its X row cannot be read.
+   */
+  private SensorData makeRowData(Row row, SensorDataFields fields) {
+    SensorData data = new SensorData();
+    if (fields.hasProperties()) {
+      String xmlSensorData = 
+        getResource(makeKey(xmlRow, row.owner, encodeTime(row.tstamp)), "writeSensorDataRows()");
+      if (xmlSensorData == null) {
+        return null;
+      }
+      try {
+        data = getSensorDataManager().makeSensorData(xmlSensorData);
+      }
+      catch (Exception e) {
+        this.logger.info(lsmError + "writeSensorDataRows()" + StackTrace.toString(e));
+        return null;
+      }
+    }
+    data.setOwner(row.owner);
+    data.setSensorDataType(row.sdt);
+    data.setTool(row.tool);
+    data.setResource(row.resource);
+    if (fields.contains(SensorDataFields.TIMESTAMP)) {
+      data.setTimestamp(Tstamp.makeTimestamp(row.tstamp));
+    }
+    if (fields.contains(SensorDataFields.RUNTIME) && (row.runtime != null)) {
+      data.setRuntime(Tstamp.makeTimestamp(decodeTime(row.runtime)));
+    }
+    if (fields.contains(SensorDataFields.LASTMOD)) {
+      data.setLastMod(Tstamp.makeTimestamp(row.lastMod));
+    }
+    return data;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ProjectSummary getProjectSummary(List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String href) {
+    Map<String, Map<String, Integer>> sdtInstances = new HashMap<String, Map<String, Integer>>();
+    List<Pattern> patterns = compileUriPatterns(uriPatterns);
+    RowScan scan = scanProject(users, null, null, startTime, endTime);
+    try {
+      while (scan.hasNext()) {
+        Row row = scan.next();
+        if (matchesUriPatterns(patterns, row.resource)) {
+          addInstances(sdtInstances, row, 1);
+        }
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "getProjectSummary()" + StackTrace.toString(e));
+    }
+    finally {
+      scan.close();
+    }
+    return makeProjectSummary(href, startTime, endTime, sdtInstances);
+  }
+
+  /**
+   * Computes all of the days from one scan of the interval, counting each instance in the day
+   * that contains it. As in getProjectSummary, each day includes both its start and end times,
+   * so an instance exactly on the boundary between two days is counted in both.
+   * @param users The users in this project.
+   * @param startTime The start of the first day.
+   * @param numDays The number of days.
+   * @param uriPatterns The UriPatterns for this project.
+   * @param href The URL of the project's summary resource.
+   * @return The MultiDayProjectSummary instance.
+   */
+  @Override
+  public MultiDayProjectSummary getMultiDayProjectSummary(List<User> users,
+      XMLGregorianCalendar startTime, int numDays, List<String> uriPatterns, String href) {
+    XMLGregorianCalendar[] days = new XMLGregorianCalendar[numDays + 1];
+    long[] bounds = new long[numDays + 1];
+    for (int i = 0; i <= numDays; i++) {
+      days[i] = Tstamp.incrementDays(startTime, i);
+      bounds[i] = Tstamp.makeTimestamp(days[i]).getTime();
+    }
+    List<Map<String, Map<String, Integer>>> dayInstances =
+      new ArrayList<Map<String, Map<String, Integer>>>(numDays);
+    for (int i = 0; i < numDays; i++) {
+      dayInstances.add(new HashMap<String, Map<String, Integer>>());
+    }
+    if (numDays > 0) {
+      List<Pattern> patterns = compileUriPatterns(uriPatterns);
+      RowScan scan = scanProject(users, null, null, bounds[0], bounds[numDays]);
+      try {
+        while (scan.hasNext()) {
+          Row row = scan.next();
+          if (!matchesUriPatterns(patterns, row.resource)) {
+            continue;
+          }
+          int index = Arrays.binarySearch(bounds, row.tstamp);
+          if (index < 0) {
+            addInstances(dayInstances.get(-index - 2), row, 1);
+          }
+          else {
+            if (index < numDays) {
+              addInstances(dayInstances.get(index), row, 1);
+            }
+            if (index > 0) {
+              addInstances(dayInstances.get(index - 1), row, 1);
+            }
+          }
+        }
+      }
+      catch (RuntimeException e) {
+        this.logger.info(lsmError + "getMultiDayProjectSummary()" + StackTrace.toString(e));
+      }
+      finally {
+        scan.close();
+      }
+    }
+    MultiDayProjectSummary multiSummary = new MultiDayProjectSummary();
+    for (int i = 0; i < numDays; i++) {
+      String dayHref = href + "?startTime=" + days[i] + "&endTime=" + days[i + 1];
+      multiSummary.getProjectSummary().add(
+          makeProjectSummary(dayHref, days[i], days[i + 1], dayInstances.get(i)));
+    }
+    return multiSummary;
+  }
+
+  /**
+   * Adds numInstances to the count for the SDT and tool of an instance. Null SDTs and tools
+   * are counted as the empty string.
+   * @param sdtInstances The [SDT, Tool] -> NumInstances counts.
+   * @param row The instance.
+   * @param numInstances The number of instances to add.
+   */
+  private static void addInstances(Map<String, Map<String, Integer>> sdtInstances, Row row,
+      int numInstances) {
+    String sdt = nonNull(row.sdt);
+    String tool = nonNull(row.tool);
+    Map<String, Integer> tool2NumInstances = sdtInstances.get(sdt);
+    if (tool2NumInstances == null) {
+      tool2NumInstances = new HashMap<String, Integer>();
+      sdtInstances.put(sdt, tool2NumInstances);
+    }
+    Integer current = tool2NumInstances.get(tool);
+    tool2NumInstances.put(tool, (current == null) ? numInstances : current + numInstances);
+  }
+
+  /**
+   * Creates a ProjectSummary instances from the passed data.
+   * @param href  The Href representing this resource.
+   * @param startTime The startTime for this data.
+   * @param endTime The endTime for this data.
+   * @param sdtInstances The data structure containing the instances.
+   * @return The ProjectSummary instance.
+   */
+  private static ProjectSummary makeProjectSummary(String href, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, Map<String, Map<String, Integer>> sdtInstances) {
+    ProjectSummary projectSummary = new ProjectSummary();
+    projectSummary.setHref(href);
+    projectSummary.setStartTime(startTime);
+    projectSummary.setEndTime(endTime);
+    projectSummary.setLastMod(Tstamp.makeTimestamp());
+    SensorDataSummaries summaries = new SensorDataSummaries();
+    projectSummary.setSensorDataSummaries(summaries);
+    int totalInstances = 0;
+    for (Map.Entry<String, Map<String, Integer>> entry : sdtInstances.entrySet()) {
+      for (Map.Entry<String, Integer> entry2 : entry.getValue().entrySet()) {
+        SensorDataSummary summary = new SensorDataSummary();
+        summary.setSensorDataType(entry.getKey());
+        summary.setTool(entry2.getKey());
+        int numInstances = entry2.getValue();
+        totalInstances += numInstances;
+        summary.setNumInstances(BigInteger.valueOf(numInstances));
+        summaries.getSensorDataSummary().add(summary);
+      }
+    }
+    summaries.setNumInstances(BigInteger.valueOf(totalInstances));
+    return projectSummary;
+  }
+
+  /**
+   * Returns a scan of the users' sensor data in the interval [startTime, endTime], in order of
+   * timestamp and then owner. The tool index is read if a tool is given, the sdt index if an
+   * SDT is given, and otherwise the D rows.
+   * @param users The owners.
+   * @param sdt The SDT, or null for any SDT.
+   * @param tool The tool, or null for any tool.
+   * @param startTime The start of the interval.
+   * @param endTime The end of the interval.
+   * @return The scan, which must be closed.
+   */
+  private RowScan scanProject(List<User> users, String sdt, String tool,
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) {
+    return scanProject(users, sdt, tool, Tstamp.makeTimestamp(startTime).getTime(),
+        Tstamp.makeTimestamp(endTime).getTime());
+  }
+
+  /**
+   * Returns a scan of the users' sensor data in the interval [start, end], in order of
+   * timestamp and then owner.
+   * @param users The owners.
+   * @param sdt The SDT, or null for any SDT.
+   * @param tool The tool, or null for any tool.
+   * @param start The start of the interval in milliseconds.
+   * @param end The end of the interval in milliseconds.
+   * @return The scan, which must be closed.
+   */
+  private RowScan scanProject(List<User> users, String sdt, String tool, long start,
+      long end) {
+    List<String> ranges = new ArrayList<String>(2 * users.size());
+    for (User user : users) {
+      String prefix;
+      if ((sdt != null) && (tool != null)) {
+        prefix = makeKey(toolRow, user.getEmail(), sdt, tool);
+      }
+      else if (sdt != null) {
+        prefix = makeKey(sdtRow, user.getEmail(), sdt);
+      }
+      else {
+        prefix = makeKey(dataRow, user.getEmail());
+      }
+      prefix += separator;
+      ranges.add(prefix + encodeTime(start));
+      ranges.add(prefix + encodeTime(end) + afterPrefix);
+    }
+    // The keys read hold the SDT and tool if given, except for a tool without an SDT.
+    return new RowScan(this.store, ranges, (sdt == null) ? tool : null);
+  }
+
+  /**
+   * Writes a SensorDataIndex of the instances of a scan that match the UriPatterns,
+   * beginning at startIndex, and closes the scan.
+   * If the writer fails (typically because the client has gone away), the scan is abandoned.
+   * @param writer The writer that receives the index.
+   * @param scan The scan.
+   * @param patterns The compiled UriPatterns, or null to match every resource.
+   * @param startIndex The (zero-based) starting index for instances to be returned.
+   * @param maxInstances The maximum number of instances to return.
+   */
+  private void writeIndex(Writer writer, RowScan scan, List<Pattern> patterns, int startIndex,
+      int maxInstances) {
+    try {
+      writer.append("<").append(sensorData).append(indexSuffix);
+      int currIndex = 0;
+      int totalInstances = 0;
+      while ((totalInstances < maxInstances) && scan.hasNext()) {
+        Row row = scan.next();
+        if (matchesUriPatterns(patterns, row.resource)) {
+          if (currIndex >= startIndex) {
+            writer.write(makeSensorDataRef(row));
+            totalInstances++;
+          }
+          currIndex++;
+        }
+      }
+      writer.append("</").append(sensorData).append(indexSuffix);
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "writeIndex()" + StackTrace.toString(e));
+      closeIndex(writer, sensorData);
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: Index abandoned, could not write: " + e.getMessage());
+    }
+    finally {
+      scan.close();
+    }
+  }
+
+  /**
+   * Returns the SensorDataRef of an instance.
+   * @param row The instance.
+   * @return The SensorDataRef as an XML string.
+   */
+  private String makeSensorDataRef(Row row) {
+    return getSensorDataManager().makeSensorDataRefString(row.owner, row.sdt,
+        Tstamp.makeTimestamp(row.tstamp), row.tool, Tstamp.makeTimestamp(row.lastMod));
+  }
+
+  /**
+   * Writes the closing tag of an index after an error reading the store, so that the client
+   * receives the entries written so far as a well-formed (if incomplete) index.
+   * @param writer The writer that receives the index.
+   * @param resourceName The resource name, such as "Project".
+   */
+  private void closeIndex(Writer writer, String resourceName) {
+    try {
+      writer.append("</").append(resourceName).append(indexSuffix);
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: Index abandoned, could not write: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the closing SensorDatas or SensorDataRows tag after an error reading the store, as 
+   * closeIndex does.
+   * @param writer The writer that receives the instances.
+   * @param closeTag The closing tag.
+   */
+  private void closeSensorDatas(Writer writer, String closeTag) {
+    try {
+      writer.write(closeTag);
+    }
+    catch (IOException e) {
+      this.logger.info("LSM: SensorDatas abandoned, could not write: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Compiles UriPatterns into regular expressions matching the same resources as the LIKE
+   * clauses of DerbyImplementation. A pattern containing "/" or "\" is compiled twice, once
+   * with each separator, and "*" matches any sequence of characters.
+   * <p>
+   * This method is static and package private to support testing.
+   * @param uriPatterns The UriPatterns.
+   * @return The regular expressions, or null if the UriPatterns are null, empty, or "*" or
+   * "**" alone, which match every resource.
+   */
+  static List<Pattern> compileUriPatterns(List<String> uriPatterns) {
+    if (((uriPatterns == null) || uriPatterns.isEmpty()) ||
+        ((uriPatterns.size() == 1) && uriPatterns.get(0).equals("**")) ||
+        ((uriPatterns.size() == 1) && uriPatterns.get(0).equals("*"))) {
+      return null;
+    }
+    List<Pattern> patterns = new ArrayList<Pattern>();
+    for (String uriPattern : uriPatterns) {
+      if ((uriPattern.indexOf('/') >= 0) || (uriPattern.indexOf('\\') >= 0)) {
+        patterns.add(compileUriPattern(uriPattern.replace('\\', '/')));
+        patterns.add(compileUriPattern(uriPattern.replace('/', '\\')));
+      }
+      else {
+        patterns.add(compileUriPattern(uriPattern));
+      }
+    }
+    return patterns;
+  }
+
+  /**
+   * Compiles one UriPattern, in which "*" matches any sequence of characters.
+   * @param uriPattern The UriPattern.
+   * @return The regular expression.
+   */
+  private static Pattern compileUriPattern(String uriPattern) {
+    StringBuilder regex = new StringBuilder(uriPattern.length() + 16);
+    int start = 0;
+    int star = uriPattern.indexOf('*');
+    while (star >= 0) {
+      if (star > start) {
+        regex.append(Pattern.quote(uriPattern.substring(start, star)));
+      }
+      regex.append(".*");
+      start = star + 1;
+      star = uriPattern.indexOf('*', start);
+    }
+    if (start < uriPattern.length()) {
+      regex.append(Pattern.quote(uriPattern.substring(start)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * Returns true if the resource matches one of the compiled UriPatterns.
+   * <p>
+   * This method is static and package private to support testing.
+   * @param patterns The compiled UriPatterns, or null to match every resource.
+   * @param resource The resource, which does not match any pattern if null.
+   * @return True if the resource matches.
+   */
+  static boolean matchesUriPatterns(List<Pattern> patterns, String resource) {
+    if (patterns == null) {
+      return true;
+    }
+    if (resource == null) {
+      return false;
+    }
+    for (Pattern pattern : patterns) {
+      if (pattern.matcher(resource).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // ********************   Start SensorDataType, User and Project stuff here ************  //
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeSensorDataType(SensorDataType sdt, String xmlSensorDataType,
+      String xmlSensorDataTypeRef) {
+    return storeResource(makeKey(sdtResourceRow, sdt.getName()),
+        new String[] { xmlSensorDataType, xmlSensorDataTypeRef });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deleteSensorDataType(String sdtName) {
+    storeResource(makeKey(sdtResourceRow, sdtName), null);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataTypeIndex() {
+    return getIndex(sensorDataType, sdtResourceRow);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getSensorDataType(String sdtName) {
+    return getResource(makeKey(sdtResourceRow, sdtName), "getSensorDataType()");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeUser(User user, String xmlUser, String xmlUserRef) {
+    return storeResource(makeKey(userRow, user.getEmail()), new String[] { xmlUser, xmlUserRef });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deleteUser(String email) {
+    storeResource(makeKey(userRow, email), null);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUser(String email) {
+    return getResource(makeKey(userRow, email), "getUser()");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUserIndex() {
+    return getIndex("User", userRow);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean storeProject(Project project, String xmlProject, String xmlProjectRef) {
+    return storeResource(makeKey(projectRow, project.getOwner(), project.getName()),
+        new String[] { xmlProject, xmlProjectRef, project.getName() });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void deleteProject(User owner, String projectName) {
+    storeResource(makeKey(projectRow, owner.getEmail(), projectName), null);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getProject(User owner, String projectName) {
+    return getResource(makeKey(projectRow, owner.getEmail(), projectName), "getProject()");
+  }
+
+  /**
+   * Returns the ProjectIndex, ordered by project name as in DerbyImplementation.
+   * @return The XML String containing an index to all Projects.
+   */
+  @Override
+  public String getProjectIndex() {
+    String prefix = String.valueOf(projectRow);
+    List<String[]> projects = new ArrayList<String[]>();
+    LsmStore.Scan scan = this.store.scan(prefix, makeEnd(prefix));
+    try {
+      while (scan.hasNext()) {
+        projects.add(scan.next().getFields());
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "getProjectIndex()" + StackTrace.toString(e));
+    }
+    finally {
+      scan.close();
+    }
+    Collections.sort(projects, new Comparator<String[]>() {
+      public int compare(String[] project1, String[] project2) {
+        return project1[2].compareTo(project2[2]);
+      }
+    });
+    StringBuilder builder = new StringBuilder(512);
+    builder.append("<").append(project).append(indexSuffix);
+    for (String[] fields : projects) {
+      builder.append(fields[1]);
+    }
+    builder.append("</").append(project).append(indexSuffix);
+    return builder.toString();
+  }
+
+  /**
+   * Writes or deletes a resource.
+   * @param key The key of the resource.
+   * @param fields The XML and ref of the resource, or null to delete it.
+   * @return True if the resource was written.
+   */
+  private boolean storeResource(String key, String[] fields) {
+    try {
+      this.store.write(Collections.singletonList(new Entry(key, fields)));
+      return true;
+    }
+    catch (IOException e) {
+      this.logger.info(lsmError + "storeResource()" + StackTrace.toString(e));
+      return false;
+    }
+  }
+
+  /**
+   * Returns a resource as an XML string.
+   * @param key The key of the resource.
+   * @param caller The name of the calling method, for the error message.
+   * @return The XML string, or null if not found.
+   */
+  private String getResource(String key, String caller) {
+    try {
+      Entry entry = this.store.get(key);
+      return (entry == null) ? null : entry.getFields()[0];
+    }
+    catch (IOException e) {
+      this.logger.info(lsmError + caller + StackTrace.toString(e));
+      return null;
+    }
+  }
+
+  /**
+   * Returns the Index of the resources of one kind, in key order.
+   * @param resourceName The resource name, such as "User".
+   * @param kind The kind of row holding the resource.
+   * @return The aggregate Index XML string.
+   */
+  private String getIndex(String resourceName, char kind) {
+    String prefix = String.valueOf(kind);
+    StringBuilder builder = new StringBuilder(512);
+    builder.append("<").append(resourceName).append(indexSuffix);
+    LsmStore.Scan scan = this.store.scan(prefix, makeEnd(prefix));
+    try {
+      while (scan.hasNext()) {
+        builder.append(scan.next().getFields()[1]);
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "getIndex()" + StackTrace.toString(e));
+    }
+    finally {
+      scan.close();
+    }
+    builder.append("</").append(resourceName).append(indexSuffix);
+    return builder.toString();
+  }
+
+  /**
+   * Returns the keys of the rows of one kind, without their first character.
+   * @param kind The kind of row.
+   * @return The keys.
+   */
+  private List<String> getKeySuffixes(char kind) {
+    String prefix = String.valueOf(kind);
+    List<String> suffixes = new ArrayList<String>();
+    LsmStore.Scan scan = this.store.scan(prefix, makeEnd(prefix));
+    try {
+      while (scan.hasNext()) {
+        suffixes.add(scan.next().getKey().substring(1));
+      }
+    }
+    finally {
+      scan.close();
+    }
+    return suffixes;
+  }
+
+  // ********************   Maintenance  *****************  //
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean compressTables() {
+    return compressTables(new DbJob(0, DbJob.COMPRESS));
+  }
+
+  /**
+   * Flushes the memtables and merges all of the segments into one, which discards deleted and
+   * overwritten rows and leaves each query one segment to read. The merge cannot be cancelled
+   * once begun, but reads and writes continue during it.
+   * @param job The job.
+   * @return True if the segments were merged.
+   */
+  @Override
+  public boolean compressTables(DbJob job) {
+    job.setProgress("Merging " + this.store.getNumSegments() + " segments");
+    try {
+      this.store.compact();
+      return true;
+    }
+    catch (IOException e) {
+      this.logger.info(lsmError + "compressTables()" + StackTrace.toString(e));
+      return false;
+    }
+  }
+
+  /**
+   * Does nothing, since the sdt, tool and lastMod indexes are written with the sensor data.
+   * @return True.
+   */
+  @Override
+  public boolean indexTables() {
+    return true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getRowCount(String table) {
+    char kind;
+    if (sensorData.equalsIgnoreCase(table)) {
+      kind = dataRow;
+    }
+    else if (sensorDataType.equalsIgnoreCase(table)) {
+      kind = sdtResourceRow;
+    }
+    else if (hackyUser.equalsIgnoreCase(table)) {
+      kind = userRow;
+    }
+    else if (project.equalsIgnoreCase(table)) {
+      kind = projectRow;
+    }
+    else {
+      return -1;
+    }
+    String prefix = String.valueOf(kind);
+    try {
+      return this.store.count(prefix, makeEnd(prefix));
+    }
+    catch (RuntimeException e) {
+      this.logger.info(lsmError + "getRowCount: " + StackTrace.toString(e));
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the names of the kinds of rows that correspond to DerbyImplementation's tables.
+   * @return A set of table names.
+   */
+  @Override
+  public Set<String> getTableNames() {
+    Set<String> tableNames = new HashSet<String>();
+    tableNames.add(sensorData);
+    tableNames.add(sensorDataType);
+    tableNames.add(hackyUser);
+    tableNames.add(project);
+    return tableNames;
+  }
+
+  // ********************   Keys and rows  *****************  //
+
+  /**
+   * Returns a key made from the kind of row and the parts of the key.
+   * @param kind The kind of row.
+   * @param parts The parts, which are separated by character 1.
+   * @return The key.
+   */
+  private static String makeKey(char kind, String... parts) {
+    StringBuilder builder = new StringBuilder(64);
+    builder.append(kind);
+    for (int i = 0; i < parts.length; i++) {
+      if (i > 0) {
+        builder.append(separator);
+      }
+      builder.append(parts[i]);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the key after all of the keys beginning with a one character prefix.
+   * @param prefix The prefix.
+   * @return The key.
+   */
+  private static String makeEnd(String prefix) {
+    return String.valueOf((char) (prefix.charAt(0) + 1));
+  }
+
+  /**
+   * Returns the passed string, or the empty string if it is null.
+   * @param string The string.
+   * @return The string, never null.
+   */
+  private static String nonNull(String string) {
+    return (string == null) ? "" : string;
+  }
+
+  /**
+   * Returns a time as 16 hex digits. The sign bit is flipped, so that the digits of earlier
+   * times sort before those of later ones.
+   * <p>
+   * This method is static and package private to support testing.
+   * @param millis The time in milliseconds.
+   * @return The digits.
+   */
+  static String encodeTime(long millis) {
+    String digits = Long.toHexString(millis ^ Long.MIN_VALUE);
+    StringBuilder builder = new StringBuilder(16);
+    for (int i = digits.length(); i < 16; i++) {
+      builder.append('0');
+    }
+    return builder.append(digits).toString();
+  }
+
+  /**
+   * Returns a time as 16 hex digits.
+   * @param time The time.
+   * @return The digits.
+   */
+  private static String encodeTime(XMLGregorianCalendar time) {
+    return encodeTime(Tstamp.makeTimestamp(time).getTime());
+  }
+
+  /**
+   * Returns the time written by encodeTime.
+   * <p>
+   * This method is static and package private to support testing.
+   * @param digits The 16 hex digits.
+   * @return The time in milliseconds.
+   */
+  static long decodeTime(String digits) {
+    long high = Long.parseLong(digits.substring(0, 8), 16);
+    long low = Long.parseLong(digits.substring(8, 16), 16);
+    return ((high << 32) | low) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * Returns the SensorData instance held in a D row or an index entry.
+   * @param entry The entry.
+   * @return The instance.
+   */
+  private static Row parseRow(Entry entry) {
+    String key = entry.getKey();
+    String[] fields = entry.getFields();
+    List<String> parts = new ArrayList<String>(4);
+    int start = 1;
+    int end = key.indexOf(separator, start);
+    while (end >= 0) {
+      parts.add(key.substring(start, end));
+      start = end + 1;
+      end = key.indexOf(separator, start);
+    }
+    parts.add(key.substring(start));
+    String owner = parts.get(0);
+    char kind = key.charAt(0);
+    if (kind == sdtRow) {
+      return new Row(owner, decodeTime(parts.get(2)), parts.get(1), fields[0], fields[1],
+          fields[2], decodeTime(fields[3]));
+    }
+    if (kind == toolRow) {
+      return new Row(owner, decodeTime(parts.get(3)), parts.get(1), parts.get(2), fields[0],
+          fields[1], decodeTime(fields[2]));
+    }
+    if (kind == lastModRow) {
+      return new Row(owner, decodeTime(parts.get(2)), fields[0], fields[1], null, null,
+          decodeTime(parts.get(1)));
+    }
+    return new Row(owner, decodeTime(parts.get(1)), fields[0], fields[1], fields[2], fields[3],
+        decodeTime(fields[4]));
+  }
+
+  /**
+   * The indexed fields of a SensorData instance.
+   */
+  private static final class Row {
+
+    /** The owner's email. */
+    private final String owner;
+
+    /** The timestamp in milliseconds. */
+    private final long tstamp;
+
+    /** The sensor data type, which may be null. */
+    private final String sdt;
+
+    /** The tool, which may be null. */
+    private final String tool;
+
+    /** The resource, which may be null. */
+    private final String resource;
+
+    /** The runtime as written by encodeTime, or null. */
+    private final String runtime;
+
+    /** The time the instance was stored, in milliseconds. */
+    private final long lastMod;
+
+    /**
+     * Creates a row.
+     * @param owner The owner's email.
+     * @param tstamp The timestamp.
+     * @param sdt The sensor data type.
+     * @param tool The tool.
+     * @param resource The resource.
+     * @param runtime The encoded runtime.
+     * @param lastMod The time the instance was stored.
+     */
+    Row(String owner, long tstamp, String sdt, String tool, String resource, String runtime,
+        long lastMod) {
+      this.owner = owner;
+      this.tstamp = tstamp;
+      this.sdt = sdt;
+      this.tool = tool;
+      this.resource = resource;
+      this.runtime = runtime;
+      this.lastMod = lastMod;
+    }
+  }
+
+  /**
+   * A scan of one or more key ranges of SensorData rows or index entries, each in timestamp
+   * order, merged in order of timestamp and then owner. Holds the store's segments until
+   * closed.
+   */
+  private static final class RowScan implements Iterator<Row> {
+
+    /** The scans of the ranges. */
+    private final List<LsmStore.Scan> scans;
+
+    /** The scans with rows left, ordered by their next row. */
+    private final PriorityQueue<Source> queue;
+
+    /** The tool that every row must have, or null. */
+    private final String tool;
+
+    /** The next row to return, or null if it has not been found yet. */
+    private Row next = null;
+
+    /**
+     * Creates a scan of one range.
+     * @param store The store.
+     * @param fromKey The first key.
+     * @param toKey The key after the last.
+     */
+    RowScan(LsmStore store, String fromKey, String toKey) {
+      this(store, Arrays.asList(fromKey, toKey), null);
+    }
+
+    /**
+     * Creates a scan of several ranges.
+     * @param store The store.
+     * @param ranges The first key and the key after the last of each range.
+     * @param tool The tool that every row must have, or null for any tool.
+     */
+    RowScan(LsmStore store, List<String> ranges, String tool) {
+      this.scans = new ArrayList<LsmStore.Scan>(ranges.size() / 2);
+      this.queue = new PriorityQueue<Source>(Math.max(1, ranges.size() / 2));
+      this.tool = tool;
+      try {
+        for (int i = 0; i < ranges.size(); i += 2) {
+          LsmStore.Scan scan = store.scan(ranges.get(i), ranges.get(i + 1));
+          this.scans.add(scan);
+          Source source = new Source(scan);
+          if (source.advance()) {
+            this.queue.add(source);
+          }
+        }
+      }
+      catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /** {@inheritDoc} */
+    public boolean hasNext() {
+      while ((this.next == null) && !this.queue.isEmpty()) {
+        Source source = this.queue.poll();
+        Row row = source.head;
+        if (source.advance()) {
+          this.queue.add(source);
+        }
+        if ((this.tool == null) || this.tool.equals(row.tool)) {
+          this.next = row;
+        }
+      }
+      return this.next != null;
+    }
+
+    /** {@inheritDoc} */
+    public Row next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Row row = this.next;
+      this.next = null;
+      return row;
+    }
+
+    /** {@inheritDoc} */
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Closes the scans of the ranges.
+     */
+    void close() {
+      for (LsmStore.Scan scan : this.scans) {
+        scan.close();
+      }
+    }
+
+    /**
+     * The scan of one range, with its next row.
+     */
+    private static final class Source implements Comparable<Source> {
+
+      /** The scan. */
+      private final LsmStore.Scan scan;
+
+      /** The next row of the scan. */
+      private Row head;
+
+      /**
+       * Creates a source.
+       * @param scan The scan.
+       */
+      Source(LsmStore.Scan scan) {
+        this.scan = scan;
+      }
+
+      /**
+       * Moves to the next row of the scan.
+       * @return False if the scan has no more rows.
+       */
+      boolean advance() {
+        if (!this.scan.hasNext()) {
+          this.head = null;
+          return false;
+        }
+        this.head = parseRow(this.scan.next());
+        return true;
+      }
+
+      /** {@inheritDoc} */
+      public int compareTo(Source other) {
+        if (this.head.tstamp != other.head.tstamp) {
+          return (this.head.tstamp < other.head.tstamp) ? -1 : 1;
+        }
+        return this.head.owner.compareTo(other.head.owner);
+      }
+
+      /** {@inheritDoc} */
+      @Override
+      public boolean equals(Object object) {
+        return (object instanceof Source) && (compareTo((Source) object) == 0);
+      }
+
+      /** {@inheritDoc} */
+      @Override
+      public int hashCode() {
+        return this.head.owner.hashCode();
+      }
+    }
+  }
+}
@@ -0,0 +1,880 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.hackystat.utilities.stacktrace.StackTrace;
+
+/**
+ * An embedded, ordered key-value store built as a log-structured merge tree. Writes are
+ * appended to a log and put in the active memtable; when the memtable is large enough it is
+ * frozen and a background thread writes it to a new immutable segment file. A second
+ * background thread merges segments of similar size, so that the number of segments grows
+ * only logarithmically with the data and each entry is rewritten a few times at most. Reads
+ * merge the memtables and segments, newest first.
+ * <p>
+ * The segments that make up the store are listed, newest first, in the MANIFEST file, along
+ * with the number of the last log whose memtable has been flushed. The manifest is replaced
+ * (never modified) after each flush or merge, so a restart after a failure at any point finds
+ * either the old or the new set of segments, and replays the logs that were not yet flushed.
+ * Files not listed in the manifest are deleted at startup.
+ * <p>
+ * A write of several entries is atomic: it is one log record, and is put in the memtable
+ * under the lock that readers take. Writes are serialized. Readers never wait for flushes or
+ * merges, except to swap in their results.
+ *
+ * @author Philip Johnson
+ */
+final class LsmStore {
+
+  /** The name of the manifest file. */
+  private static final String manifestName = "MANIFEST";
+
+  /** The name of a new manifest file before it replaces the old one. */
+  private static final String newManifestName = "MANIFEST.new";
+
+  /** The extension of log files. */
+  private static final String logExtension = ".log";
+
+  /** The extension of segment files. */
+  private static final String segmentExtension = ".seg";
+
+  /** The number of frozen memtables at which writers wait for a flush. */
+  private static final int maxFrozenMemTables = 2;
+
+  /** The minimum number of segments merged at once. */
+  private static final int mergeFactor = 4;
+
+  /** The directory holding the store's files. */
+  private final File dir;
+
+  /** The memory size at which the active memtable is frozen. */
+  private final long memTableLimit;
+
+  /** True if each write is forced to disk. */
+  private final boolean isSyncing;
+
+  /** The logger. */
+  private final Logger logger;
+
+  /** True if the store did not exist before. */
+  private final boolean isFreshlyCreated;
+
+  /** Guards active, frozen, and segments. */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Serializes writes, so that the log and the memtable receive them in the same order. */
+  private final Object writeMutex = new Object();
+
+  /** Signals the flush thread that a memtable has been frozen, and writers that it is done. */
+  private final Object flushSignal = new Object();
+
+  /** Signals the compaction thread that segments may need merging. */
+  private final Object compactionSignal = new Object();
+
+  /** Serializes merges. */
+  private final Object compactionMutex = new Object();
+
+  /** The memtable receiving writes. */
+  private MemTable active;
+
+  /** The log of the active memtable. Guarded by writeMutex. */
+  private WriteAheadLog log;
+
+  /** The memtables waiting to be flushed, newest first. */
+  private final LinkedList<MemTable> frozen = new LinkedList<MemTable>();
+
+  /** The number of frozen memtables. */
+  private volatile int numFrozen = 0;
+
+  /** The segments, newest first. Replaced rather than modified. */
+  private List<Segment> segments = new ArrayList<Segment>();
+
+  /** The number of the last log whose memtable has been flushed. Guarded by lock. */
+  private long flushedLogNumber = -1;
+
+  /** The number of the next log or segment file. */
+  private final AtomicLong nextFileNumber;
+
+  /** True if a merge may be needed. Guarded by compactionSignal. */
+  private boolean isCompactionRequested = true;
+
+  /** True once the store is closed. */
+  private volatile boolean isClosed = false;
+
+  /** Writes frozen memtables to segments. */
+  private final Thread flushThread;
+
+  /** Merges segments. */
+  private final Thread compactionThread;
+
+  /**
+   * Opens the store in the passed directory, creating it if necessary, and replays the logs
+   * of any memtables that had not been flushed.
+   * @param dir The directory.
+   * @param memTableLimit The memory size in bytes at which a memtable is flushed.
+   * @param isSyncing True if each write is forced to disk.
+   * @param logger The logger.
+   * @throws IOException If the store cannot be opened.
+   */
+  LsmStore(File dir, long memTableLimit, boolean isSyncing, Logger logger) throws IOException {
+    this.dir = dir;
+    this.memTableLimit = memTableLimit;
+    this.isSyncing = isSyncing;
+    this.logger = logger;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    File manifest = new File(dir, manifestName);
+    File newManifest = new File(dir, newManifestName);
+    if (manifest.exists()) {
+      newManifest.delete();
+    }
+    else if (newManifest.exists() && !newManifest.renameTo(manifest)) {
+      throw new IOException("Cannot rename " + newManifest);
+    }
+    List<File> logs = listFiles(logExtension);
+    this.isFreshlyCreated = !manifest.exists() && logs.isEmpty();
+    Set<String> liveSegments = new HashSet<String>();
+    if (manifest.exists()) {
+      readManifest(manifest, liveSegments);
+    }
+    long maxNumber = 0;
+    for (File file : dir.listFiles()) {
+      maxNumber = Math.max(maxNumber, getFileNumber(file));
+    }
+    this.nextFileNumber = new AtomicLong(maxNumber + 1);
+    for (File file : listFiles(segmentExtension)) {
+      if (!liveSegments.contains(file.getName())) {
+        file.delete();
+      }
+    }
+    replayLogs(logs);
+    this.active = new MemTable();
+    this.log = newLog(this.active);
+    this.flushThread = new Thread(new Runnable() {
+      public void run() {
+        runFlushes();
+      }
+    }, "SensorBase LSM flush");
+    this.flushThread.setDaemon(true);
+    this.flushThread.start();
+    this.compactionThread = new Thread(new Runnable() {
+      public void run() {
+        runCompactions();
+      }
+    }, "SensorBase LSM compaction");
+    this.compactionThread.setDaemon(true);
+    this.compactionThread.start();
+  }
+
+  /**
+   * Reads the manifest, opening the segments it lists.
+   * @param manifest The manifest file.
+   * @param liveSegments The set to which the names of the segments are added.
+   * @throws IOException If the manifest or a segment cannot be read.
+   */
+  private void readManifest(File manifest, Set<String> liveSegments) throws IOException {
+    BufferedReader reader =
+      new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      while (line != null) {
+        if (line.startsWith("flushed ")) {
+          this.flushedLogNumber = Long.parseLong(line.substring(8).trim());
+        }
+        else if (line.startsWith("segment ")) {
+          String name = line.substring(8).trim();
+          this.segments.add(new Segment(new File(this.dir, name)));
+          liveSegments.add(name);
+        }
+        line = reader.readLine();
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Rebuilds the memtable of the logs that were not flushed before the store was last closed,
+   * and freezes it so that it is flushed at once. Logs that were flushed are deleted.
+   * @param logs The log files, in order of number.
+   * @throws IOException If a log cannot be read.
+   */
+  private void replayLogs(List<File> logs) throws IOException {
+    MemTable replayed = null;
+    int numEntries = 0;
+    for (File file : logs) {
+      long number = getFileNumber(file);
+      if (number <= this.flushedLogNumber) {
+        file.delete();
+        continue;
+      }
+      if (replayed == null) {
+        replayed = new MemTable();
+      }
+      for (Entry entry : WriteAheadLog.replay(file)) {
+        replayed.put(entry);
+        numEntries++;
+      }
+      replayed.addLogFile(file, number);
+    }
+    if (replayed != null) {
+      this.logger.info("LSM: replayed " + numEntries + " entries from " + logs.size() + " logs");
+      this.frozen.addFirst(replayed);
+      this.numFrozen = this.frozen.size();
+    }
+  }
+
+  /**
+   * Returns true if the store did not exist before it was opened.
+   * @return True if the store is new.
+   */
+  boolean isFreshlyCreated() {
+    return this.isFreshlyCreated;
+  }
+
+  /**
+   * Writes the passed entries atomically. An entry with null fields deletes its key.
+   * @param entries The entries.
+   * @throws IOException If the entries cannot be logged.
+   */
+  void write(List<Entry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    boolean isFrozen = false;
+    synchronized (this.writeMutex) {
+      checkOpen();
+      awaitFlushCapacity();
+      this.log.append(entries);
+      this.lock.writeLock().lock();
+      try {
+        for (Entry entry : entries) {
+          this.active.put(entry);
+        }
+        if (this.active.getMemorySize() >= this.memTableLimit) {
+          freeze();
+          isFrozen = true;
+        }
+      }
+      finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+    if (isFrozen) {
+      signal(this.flushSignal);
+    }
+  }
+
+  /**
+   * Waits while there are too many frozen memtables, so that writers cannot outrun flushing
+   * without bound. Must be called holding writeMutex.
+   * @throws IOException If the wait is interrupted.
+   */
+  private void awaitFlushCapacity() throws IOException {
+    synchronized (this.flushSignal) {
+      while ((this.numFrozen >= maxFrozenMemTables) && !this.isClosed) {
+        try {
+          this.flushSignal.wait();
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for a flush");
+        }
+      }
+    }
+    checkOpen();
+  }
+
+  /**
+   * Freezes the active memtable and starts a new one with a new log. Must be called holding
+   * writeMutex and the write lock.
+   * @throws IOException If the new log cannot be created.
+   */
+  private void freeze() throws IOException {
+    this.log.close();
+    this.frozen.addFirst(this.active);
+    this.numFrozen = this.frozen.size();
+    this.active = new MemTable();
+    this.log = newLog(this.active);
+  }
+
+  /**
+   * Creates a new log for a memtable.
+   * @param table The memtable.
+   * @return The log.
+   * @throws IOException If the log cannot be created.
+   */
+  private WriteAheadLog newLog(MemTable table) throws IOException {
+    long number = this.nextFileNumber.getAndIncrement();
+    File file = new File(this.dir, makeFileName(number, logExtension));
+    table.addLogFile(file, number);
+    return new WriteAheadLog(file, this.isSyncing);
+  }
+
+  /**
+   * Returns the entry with the passed key.
+   * @param key The key.
+   * @return The entry, or null if the key is not present.
+   * @throws IOException If a segment cannot be read.
+   */
+  Entry get(String key) throws IOException {
+    List<Segment> readSegments;
+    this.lock.readLock().lock();
+    try {
+      Entry entry = this.active.get(key);
+      if (entry != null) {
+        return (entry.isDeleted()) ? null : entry;
+      }
+      for (MemTable table : this.frozen) {
+        entry = table.get(key);
+        if (entry != null) {
+          return (entry.isDeleted()) ? null : entry;
+        }
+      }
+      readSegments = acquireSegments();
+    }
+    finally {
+      this.lock.readLock().unlock();
+    }
+    try {
+      for (Segment segment : readSegments) {
+        Entry entry = segment.get(key);
+        if (entry != null) {
+          return (entry.isDeleted()) ? null : entry;
+        }
+      }
+      return null;
+    }
+    finally {
+      releaseSegments(readSegments);
+    }
+  }
+
+  /**
+   * Returns a scan of the entries with keys in [fromKey, toKey), in key order. The scan sees
+   * the store as it was when the scan began, and must be closed.
+   * @param fromKey The first key.
+   * @param toKey The key after the last.
+   * @return The scan.
+   */
+  Scan scan(String fromKey, String toKey) {
+    List<Iterator<Entry>> sources = new ArrayList<Iterator<Entry>>();
+    List<Segment> readSegments;
+    this.lock.readLock().lock();
+    try {
+      sources.add(this.active.copy(fromKey, toKey).iterator());
+      for (MemTable table : this.frozen) {
+        sources.add(table.iterator(fromKey, toKey));
+      }
+      readSegments = acquireSegments();
+    }
+    finally {
+      this.lock.readLock().unlock();
+    }
+    try {
+      for (Segment segment : readSegments) {
+        sources.add(segment.iterator(fromKey, toKey));
+      }
+    }
+    catch (RuntimeException e) {
+      releaseSegments(readSegments);
+      throw e;
+    }
+    return new Scan(new MergingIterator(sources, true), readSegments);
+  }
+
+  /**
+   * Returns the number of keys in [fromKey, toKey).
+   * @param fromKey The first key.
+   * @param toKey The key after the last.
+   * @return The number of keys.
+   */
+  int count(String fromKey, String toKey) {
+    Scan scan = scan(fromKey, toKey);
+    try {
+      int count = 0;
+      while (scan.hasNext()) {
+        scan.next();
+        count++;
+      }
+      return count;
+    }
+    finally {
+      scan.close();
+    }
+  }
+
+  /**
+   * Takes a reference to each segment. Must be called holding the lock.
+   * @return The segments.
+   */
+  private List<Segment> acquireSegments() {
+    for (Segment segment : this.segments) {
+      segment.acquire();
+    }
+    return this.segments;
+  }
+
+  /**
+   * Releases the references taken by acquireSegments().
+   * @param readSegments The segments.
+   */
+  private static void releaseSegments(List<Segment> readSegments) {
+    for (Segment segment : readSegments) {
+      segment.release();
+    }
+  }
+
+  /**
+   * Returns the number of segments.
+   * @return The number of segments.
+   */
+  int getNumSegments() {
+    this.lock.readLock().lock();
+    try {
+      return this.segments.size();
+    }
+    finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Flushes the active memtable, and waits until every frozen memtable has been written to a
+   * segment.
+   * @throws IOException If the flush fails or is interrupted.
+   */
+  void flush() throws IOException {
+    synchronized (this.writeMutex) {
+      checkOpen();
+      this.lock.writeLock().lock();
+      try {
+        if (this.active.size() > 0) {
+          freeze();
+        }
+      }
+      finally {
+        this.lock.writeLock().unlock();
+      }
+    }
+    synchronized (this.flushSignal) {
+      this.flushSignal.notifyAll();
+      while ((this.numFrozen > 0) && !this.isClosed) {
+        try {
+          this.flushSignal.wait();
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for a flush");
+        }
+      }
+    }
+    checkOpen();
+  }
+
+  /**
+   * Flushes the memtables and merges all of the segments into one, dropping overwritten
+   * entries and tombstones.
+   * @throws IOException If the segments cannot be merged.
+   */
+  void compact() throws IOException {
+    flush();
+    compact(true);
+  }
+
+  /**
+   * Runs in the flush thread, writing each frozen memtable to a segment, oldest first.
+   */
+  private void runFlushes() {
+    while (!this.isClosed) {
+      synchronized (this.flushSignal) {
+        while ((this.numFrozen == 0) && !this.isClosed) {
+          try {
+            this.flushSignal.wait();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+      if (this.isClosed) {
+        return;
+      }
+      try {
+        flushOldest();
+      }
+      catch (Exception e) {
+        this.logger.warning("LSM: error flushing memtable " + StackTrace.toString(e));
+        pause();
+      }
+    }
+  }
+
+  /**
+   * Writes the oldest frozen memtable to a segment, and replaces the memtable with it.
+   * @throws IOException If the segment cannot be written.
+   */
+  private void flushOldest() throws IOException {
+    MemTable table;
+    boolean isOldest;
+    this.lock.readLock().lock();
+    try {
+      table = this.frozen.getLast();
+      isOldest = this.segments.isEmpty();
+    }
+    finally {
+      this.lock.readLock().unlock();
+    }
+    Segment segment = null;
+    if (table.size() > 0) {
+      File file = new File(this.dir,
+          makeFileName(this.nextFileNumber.getAndIncrement(), segmentExtension));
+      segment = Segment.write(file, table.iterator(null, null), table.size(), isOldest);
+    }
+    this.lock.writeLock().lock();
+    try {
+      if ((segment != null) && (segment.size() > 0)) {
+        List<Segment> newSegments = new ArrayList<Segment>(this.segments);
+        newSegments.add(0, segment);
+        this.segments = newSegments;
+      }
+      else if (segment != null) {
+        segment.retire();
+      }
+      this.flushedLogNumber = table.getLogNumber();
+      writeManifest();
+      this.frozen.removeLast();
+      this.numFrozen = this.frozen.size();
+    }
+    finally {
+      this.lock.writeLock().unlock();
+    }
+    for (File file : table.getLogFiles()) {
+      file.delete();
+    }
+    this.logger.fine("LSM: flushed " + table.size() + " entries");
+    signal(this.flushSignal);
+    synchronized (this.compactionSignal) {
+      this.isCompactionRequested = true;
+      this.compactionSignal.notifyAll();
+    }
+  }
+
+  /**
+   * Runs in the compaction thread, merging segments whenever a flush has added one.
+   */
+  private void runCompactions() {
+    while (!this.isClosed) {
+      synchronized (this.compactionSignal) {
+        while (!this.isCompactionRequested && !this.isClosed) {
+          try {
+            this.compactionSignal.wait();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+        this.isCompactionRequested = false;
+      }
+      try {
+        while (!this.isClosed && compact(false)) {
+          this.logger.fine("LSM: merged segments, " + getNumSegments() + " remain");
+        }
+      }
+      catch (Exception e) {
+        this.logger.warning("LSM: error merging segments " + StackTrace.toString(e));
+        pause();
+      }
+    }
+  }
+
+  /**
+   * Merges the newest segments of similar size, or all of them.
+   * @param isAll True if all segments are merged.
+   * @return True if segments were merged.
+   * @throws IOException If the merged segment cannot be written.
+   */
+  private boolean compact(boolean isAll) throws IOException {
+    synchronized (this.compactionMutex) {
+      List<Segment> current;
+      this.lock.readLock().lock();
+      try {
+        current = this.segments;
+      }
+      finally {
+        this.lock.readLock().unlock();
+      }
+      int numMerged = (isAll) ? current.size() : chooseMerge(current);
+      if (numMerged == 0) {
+        return false;
+      }
+      // Flushes only add newer segments, so the inputs stay live until they are replaced.
+      List<Segment> inputs = new ArrayList<Segment>(current.subList(0, numMerged));
+      boolean isOldest = (numMerged == current.size());
+      List<Iterator<Entry>> sources = new ArrayList<Iterator<Entry>>();
+      int numEntries = 0;
+      for (Segment input : inputs) {
+        sources.add(input.iterator(null, null));
+        numEntries += input.size();
+      }
+      File file = new File(this.dir,
+          makeFileName(this.nextFileNumber.getAndIncrement(), segmentExtension));
+      Segment merged = Segment.write(file, new MergingIterator(sources, false), numEntries,
+          isOldest);
+      this.lock.writeLock().lock();
+      try {
+        List<Segment> newSegments = new ArrayList<Segment>(this.segments);
+        int position = newSegments.indexOf(inputs.get(0));
+        newSegments.subList(position, position + numMerged).clear();
+        if (merged.size() > 0) {
+          newSegments.add(position, merged);
+        }
+        this.segments = newSegments;
+        writeManifest();
+      }
+      finally {
+        this.lock.writeLock().unlock();
+      }
+      if (merged.size() == 0) {
+        merged.retire();
+      }
+      for (Segment input : inputs) {
+        input.retire();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Chooses the segments to merge: the newest run of segments in which none is more than
+   * twice the size of all the newer ones together, if it has at least mergeFactor segments.
+   * Merging only segments of similar size means that each entry is rewritten about
+   * log(size / memtable size) times, rather than at every merge.
+   * @param current The segments, newest first.
+   * @return The number of the newest segments to merge, or 0 if none should be merged.
+   */
+  private static int chooseMerge(List<Segment> current) {
+    int numMerged = 0;
+    long totalLength = 0;
+    for (Segment segment : current) {
+      long length = segment.length();
+      if ((numMerged > 0) && (length > 2 * totalLength)) {
+        break;
+      }
+      totalLength += length;
+      numMerged++;
+    }
+    return (numMerged >= mergeFactor) ? numMerged : 0;
+  }
+
+  /**
+   * Replaces the manifest with one listing the current segments. Must be called holding the
+   * write lock.
+   * @throws IOException If the manifest cannot be written.
+   */
+  private void writeManifest() throws IOException {
+    StringBuilder builder = new StringBuilder(64 + 32 * this.segments.size());
+    builder.append("flushed ").append(this.flushedLogNumber).append('\n');
+    for (Segment segment : this.segments) {
+      builder.append("segment ").append(segment.getFile().getName()).append('\n');
+    }
+    File newManifest = new File(this.dir, newManifestName);
+    FileOutputStream out = new FileOutputStream(newManifest);
+    try {
+      out.write(builder.toString().getBytes("UTF-8"));
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+    File manifest = new File(this.dir, manifestName);
+    if ((manifest.exists() && !manifest.delete()) || !newManifest.renameTo(manifest)) {
+      throw new IOException("Cannot replace " + manifest);
+    }
+  }
+
+  /**
+   * Closes the store. Memtables that have not been flushed remain in their logs, and are
+   * replayed when the store is next opened.
+   */
+  void close() {
+    this.isClosed = true;
+    signal(this.flushSignal);
+    signal(this.compactionSignal);
+    try {
+      this.flushThread.join();
+      this.compactionThread.join();
+    }
+    catch (InterruptedException e) { //NOPMD
+      // Closing anyway.
+    }
+    synchronized (this.writeMutex) {
+      try {
+        this.log.close();
+      }
+      catch (IOException e) {
+        this.logger.warning("LSM: error closing log " + StackTrace.toString(e));
+      }
+    }
+    this.lock.writeLock().lock();
+    try {
+      for (Segment segment : this.segments) {
+        segment.release();
+      }
+      this.segments = new ArrayList<Segment>();
+    }
+    finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Throws an IOException if the store is closed.
+   * @throws IOException If the store is closed.
+   */
+  private void checkOpen() throws IOException {
+    if (this.isClosed) {
+      throw new IOException("LSM store is closed: " + this.dir);
+    }
+  }
+
+  /**
+   * Wakes the threads waiting on the passed object.
+   * @param signal The object.
+   */
+  private static void signal(Object signal) {
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+  }
+
+  /**
+   * Waits a second before a background thread retries after an error.
+   */
+  private static void pause() {
+    try {
+      Thread.sleep(1000);
+    }
+    catch (InterruptedException e) { //NOPMD
+      // Retry at once.
+    }
+  }
+
+  /**
+   * Returns the files of the directory with the passed extension, in order of number.
+   * @param extension The extension.
+   * @return The files.
+   */
+  private List<File> listFiles(String extension) {
+    List<File> files = new ArrayList<File>();
+    for (File file : this.dir.listFiles()) {
+      if (file.getName().endsWith(extension) && (getFileNumber(file) >= 0)) {
+        files.add(file);
+      }
+    }
+    File[] sorted = files.toArray(new File[files.size()]);
+    Arrays.sort(sorted);
+    return Collections.unmodifiableList(Arrays.asList(sorted));
+  }
+
+  /**
+   * Returns the name of a log or segment file.
+   * @param number The number of the file.
+   * @param extension The extension.
+   * @return The name, padded so that names sort in order of number.
+   */
+  private static String makeFileName(long number, String extension) {
+    String digits = String.valueOf(number);
+    StringBuilder builder = new StringBuilder(20);
+    for (int i = digits.length(); i < 12; i++) {
+      builder.append('0');
+    }
+    return builder.append(digits).append(extension).toString();
+  }
+
+  /**
+   * Returns the number of a log or segment file.
+   * @param file The file.
+   * @return The number, or -1 if the file is not a log or segment.
+   */
+  private static long getFileNumber(File file) {
+    String name = file.getName();
+    int dot = name.indexOf('.');
+    if ((dot <= 0) || !(name.endsWith(logExtension) || name.endsWith(segmentExtension))) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(0, dot));
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * A scan of a key range, which holds references to the segments it reads until closed.
+   */
+  static final class Scan implements Iterator<Entry> {
+
+    /** The merged entries. */
+    private final Iterator<Entry> entries;
+
+    /** The segments read. */
+    private final List<Segment> readSegments;
+
+    /** True once closed. */
+    private boolean isClosed = false;
+
+    /**
+     * Creates the scan.
+     * @param entries The merged entries.
+     * @param readSegments The segments read, which are released on close.
+     */
+    Scan(Iterator<Entry> entries, List<Segment> readSegments) {
+      this.entries = entries;
+      this.readSegments = readSegments;
+    }
+
+    /** {@inheritDoc} */
+    public boolean hasNext() {
+      return !this.isClosed && this.entries.hasNext();
+    }
+
+    /** {@inheritDoc} */
+    public Entry next() {
+      return this.entries.next();
+    }
+
+    /** {@inheritDoc} */
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Releases the segments read. Further calls have no effect.
+     */
+    void close() {
+      if (!this.isClosed) {
+        this.isClosed = true;
+        releaseSegments(this.readSegments);
+      }
+    }
+  }
+}
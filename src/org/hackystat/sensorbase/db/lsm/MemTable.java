@@ -0,0 +1,160 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The most recent writes to an LsmStore, held in memory in key order until there are enough
+ * of them to be flushed to a segment. The writes are also in the memtable's log files, from
+ * which it is rebuilt after a restart. A memtable is modified only while it is the store's
+ * active memtable; once frozen for flushing it is read-only, and can be iterated without
+ * copying.
+ * <p>
+ * Not thread-safe: the LsmStore guards the active memtable with its lock.
+ *
+ * @author Philip Johnson
+ */
+final class MemTable {
+
+  /** The fields of each key, or null for a tombstone. */
+  private final TreeMap<String, String[]> entries = new TreeMap<String, String[]>();
+
+  /** The approximate memory used by the entries put, including those since overwritten. */
+  private long memorySize = 0;
+
+  /** The log files holding this memtable's writes. */
+  private final List<File> logFiles = new ArrayList<File>();
+
+  /** The highest number of the log files. */
+  private long logNumber = -1;
+
+  /**
+   * Adds or replaces an entry.
+   * @param entry The entry.
+   */
+  void put(Entry entry) {
+    this.entries.put(entry.getKey(), entry.getFields());
+    this.memorySize += entry.getMemorySize();
+  }
+
+  /**
+   * Returns the entry with the passed key.
+   * @param key The key.
+   * @return The entry, which may be a tombstone, or null if this memtable has none for the key.
+   */
+  Entry get(String key) {
+    String[] fields = this.entries.get(key);
+    if ((fields == null) && !this.entries.containsKey(key)) {
+      return null;
+    }
+    return new Entry(key, fields);
+  }
+
+  /**
+   * Returns an iterator over the entries with keys in [fromKey, toKey), in key order.
+   * The memtable must not be modified while it is used.
+   * @param fromKey The first key, or null to start at the first entry.
+   * @param toKey The key after the last, or null to continue to the last entry.
+   * @return The iterator.
+   */
+  Iterator<Entry> iterator(String fromKey, String toKey) {
+    final Iterator<Map.Entry<String, String[]>> iterator =
+      getRange(fromKey, toKey).entrySet().iterator();
+    return new Iterator<Entry>() {
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      public Entry next() {
+        Map.Entry<String, String[]> entry = iterator.next();
+        return new Entry(entry.getKey(), entry.getValue());
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Returns a copy of the entries with keys in [fromKey, toKey), in key order.
+   * @param fromKey The first key, or null to start at the first entry.
+   * @param toKey The key after the last, or null to continue to the last entry.
+   * @return The entries.
+   */
+  List<Entry> copy(String fromKey, String toKey) {
+    SortedMap<String, String[]> range = getRange(fromKey, toKey);
+    List<Entry> copy = new ArrayList<Entry>(range.size());
+    for (Map.Entry<String, String[]> entry : range.entrySet()) {
+      copy.add(new Entry(entry.getKey(), entry.getValue()));
+    }
+    return copy;
+  }
+
+  /**
+   * Returns a view of the entries with keys in [fromKey, toKey).
+   * @param fromKey The first key, or null.
+   * @param toKey The key after the last, or null.
+   * @return The view.
+   */
+  private SortedMap<String, String[]> getRange(String fromKey, String toKey) {
+    if (fromKey == null) {
+      return (toKey == null) ? this.entries : this.entries.headMap(toKey);
+    }
+    if (toKey == null) {
+      return this.entries.tailMap(fromKey);
+    }
+    if (fromKey.compareTo(toKey) >= 0) {
+      return new TreeMap<String, String[]>();
+    }
+    return this.entries.subMap(fromKey, toKey);
+  }
+
+  /**
+   * Returns the number of keys.
+   * @return The number of keys.
+   */
+  int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Returns the approximate memory used by this memtable.
+   * @return The size in bytes.
+   */
+  long getMemorySize() {
+    return this.memorySize;
+  }
+
+  /**
+   * Records a log file holding writes to this memtable.
+   * @param file The file.
+   * @param number The number of the file.
+   */
+  void addLogFile(File file, long number) {
+    this.logFiles.add(file);
+    this.logNumber = Math.max(this.logNumber, number);
+  }
+
+  /**
+   * Returns the log files holding this memtable's writes.
+   * @return The files.
+   */
+  List<File> getLogFiles() {
+    return Collections.unmodifiableList(this.logFiles);
+  }
+
+  /**
+   * Returns the highest number of this memtable's log files.
+   * @return The number, or -1 if there are none.
+   */
+  long getLogNumber() {
+    return this.logNumber;
+  }
+}
@@ -0,0 +1,135 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several iterators over entries in key order into one, in which each key appears
+ * once with its entry from the newest source. This gives the current contents of the store
+ * from its memtables and segments, and is also how compaction merges segments.
+ *
+ * @author Philip Johnson
+ */
+final class MergingIterator implements Iterator<Entry> {
+
+  /** The sources that have entries left, ordered by their next key and then newest first. */
+  private final PriorityQueue<Source> queue;
+
+  /** True if tombstones are skipped rather than returned. */
+  private final boolean isSkippingTombstones;
+
+  /** The next entry to return, or null if it has not been found yet. */
+  private Entry next = null;
+
+  /**
+   * Creates the iterator.
+   * @param sources The iterators, each in key order, from the newest to the oldest.
+   * @param isSkippingTombstones True if deleted keys are left out, as when reading the store,
+   * rather than returned as tombstones, as when compacting part of it.
+   */
+  MergingIterator(List<Iterator<Entry>> sources, boolean isSkippingTombstones) {
+    this.queue = new PriorityQueue<Source>(Math.max(1, sources.size()));
+    this.isSkippingTombstones = isSkippingTombstones;
+    for (int i = 0; i < sources.size(); i++) {
+      Source source = new Source(sources.get(i), i);
+      if (source.advance()) {
+        this.queue.add(source);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public boolean hasNext() {
+    while ((this.next == null) && !this.queue.isEmpty()) {
+      Source newest = this.queue.poll();
+      Entry entry = newest.head;
+      if (newest.advance()) {
+        this.queue.add(newest);
+      }
+      // Older entries with the same key are hidden by this one.
+      while (!this.queue.isEmpty() && this.queue.peek().head.getKey().equals(entry.getKey())) {
+        Source older = this.queue.poll();
+        if (older.advance()) {
+          this.queue.add(older);
+        }
+      }
+      if (!(this.isSkippingTombstones && entry.isDeleted())) {
+        this.next = entry;
+      }
+    }
+    return this.next != null;
+  }
+
+  /** {@inheritDoc} */
+  public Entry next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Entry entry = this.next;
+    this.next = null;
+    return entry;
+  }
+
+  /** {@inheritDoc} */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * One of the merged iterators, with its next entry.
+   */
+  private static final class Source implements Comparable<Source> {
+
+    /** The iterator. */
+    private final Iterator<Entry> iterator;
+
+    /** The position of the iterator in the list of sources; lower is newer. */
+    private final int rank;
+
+    /** The next entry of the iterator. */
+    private Entry head;
+
+    /**
+     * Creates a source.
+     * @param iterator The iterator.
+     * @param rank The position of the iterator in the list of sources.
+     */
+    Source(Iterator<Entry> iterator, int rank) {
+      this.iterator = iterator;
+      this.rank = rank;
+    }
+
+    /**
+     * Moves to the next entry of the iterator.
+     * @return False if the iterator has no more entries.
+     */
+    boolean advance() {
+      if (!this.iterator.hasNext()) {
+        this.head = null;
+        return false;
+      }
+      this.head = this.iterator.next();
+      return true;
+    }
+
+    /** {@inheritDoc} */
+    public int compareTo(Source other) {
+      int comparison = this.head.getKey().compareTo(other.head.getKey());
+      return (comparison == 0) ? this.rank - other.rank : comparison;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object object) {
+      return (object instanceof Source) && (compareTo((Source) object) == 0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return this.rank;
+    }
+  }
+}
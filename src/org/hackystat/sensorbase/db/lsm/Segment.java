@@ -0,0 +1,479 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of entries sorted by key, written when a memtable is flushed or when
+ * segments are merged by compaction. The file holds the entries, then a sparse index giving
+ * the offset of every indexInterval'th entry, then a Bloom filter of the keys, and finally a
+ * fixed-length footer locating the other two. The sparse index and the filter are kept in
+ * memory, so a lookup or the start of a scan reads at most indexInterval entries to find its
+ * key.
+ * <p>
+ * Reads use positional reads on the file's channel, so any number of threads may read a
+ * segment at once. The LsmStore holds one reference to each live segment, and each read takes
+ * another; a segment replaced by compaction is closed and deleted when the last reference
+ * is released.
+ *
+ * @author Philip Johnson
+ */
+final class Segment {
+
+  /** Identifies a segment file, and ends its footer. */
+  private static final int magic = 0x4c534d31;
+
+  /** The number of entries between the keys held in the sparse index. */
+  private static final int indexInterval = 64;
+
+  /** The length of the footer: the index and filter offsets, entry count, and magic. */
+  private static final int footerLength = 24;
+
+  /** The buffer size used when writing and scanning. */
+  private static final int bufferSize = 65536;
+
+  /** The buffer size used when looking up a single key. */
+  private static final int lookupBufferSize = 8192;
+
+  /** The file. */
+  private final File file;
+
+  /** The open file. */
+  private final RandomAccessFile randomAccessFile;
+
+  /** The channel of the open file, used for positional reads. */
+  private final FileChannel channel;
+
+  /** Every indexInterval'th key, beginning with the first. */
+  private final String[] indexKeys;
+
+  /** The offsets of the entries whose keys are in indexKeys. */
+  private final long[] indexOffsets;
+
+  /** The filter of the keys. */
+  private final BloomFilter filter;
+
+  /** The number of entries. */
+  private final int numEntries;
+
+  /** The number of references to this segment. Guarded by this. */
+  private int refCount = 1;
+
+  /** True once this segment has been replaced and should be deleted when released. */
+  private boolean isRetired = false;
+
+  /**
+   * Opens a segment file.
+   * @param file The file.
+   * @throws IOException If the file cannot be read or is not a complete segment.
+   */
+  Segment(File file) throws IOException {
+    this.file = file;
+    this.randomAccessFile = new RandomAccessFile(file, "r");
+    this.channel = this.randomAccessFile.getChannel();
+    try {
+      long length = this.randomAccessFile.length();
+      if (length < footerLength + 4) {
+        throw new IOException("Segment too short: " + file);
+      }
+      DataInputStream footer = openStream(length - footerLength, footerLength);
+      long indexOffset = footer.readLong();
+      long filterOffset = footer.readLong();
+      this.numEntries = footer.readInt();
+      if (footer.readInt() != magic) {
+        throw new IOException("Segment incomplete: " + file);
+      }
+      DataInputStream in = openStream(indexOffset, bufferSize);
+      int numKeys = in.readInt();
+      this.indexKeys = new String[numKeys];
+      this.indexOffsets = new long[numKeys];
+      for (int i = 0; i < numKeys; i++) {
+        this.indexKeys[i] = Entry.readString(in);
+        this.indexOffsets[i] = in.readLong();
+      }
+      in = openStream(filterOffset, bufferSize);
+      int numHashes = in.readInt();
+      long[] bits = new long[in.readInt()];
+      for (int i = 0; i < bits.length; i++) {
+        bits[i] = in.readLong();
+      }
+      this.filter = new BloomFilter(bits, numHashes);
+    }
+    catch (IOException e) {
+      this.randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the passed entries, which must be in key order, to a new segment file and opens it.
+   * The file is synced to disk before it is opened.
+   * @param file The file.
+   * @param entries The entries.
+   * @param maxEntries The maximum number of entries, used to size the Bloom filter.
+   * @param isDroppingTombstones True if tombstones are left out, which is only correct when
+   * no older entries remain for them to hide.
+   * @return The segment.
+   * @throws IOException If the file cannot be written.
+   */
+  static Segment write(File file, Iterator<Entry> entries, int maxEntries,
+      boolean isDroppingTombstones) throws IOException {
+    FileOutputStream fileStream = new FileOutputStream(file);
+    try {
+      CountingOutputStream counter =
+        new CountingOutputStream(new BufferedOutputStream(fileStream, bufferSize));
+      DataOutputStream out = new DataOutputStream(counter);
+      out.writeInt(magic);
+      BloomFilter filter = new BloomFilter(maxEntries);
+      List<String> keys = new ArrayList<String>();
+      List<Long> offsets = new ArrayList<Long>();
+      int numEntries = 0;
+      while (entries.hasNext()) {
+        Entry entry = entries.next();
+        if (isDroppingTombstones && entry.isDeleted()) {
+          continue;
+        }
+        if (numEntries % indexInterval == 0) {
+          keys.add(entry.getKey());
+          offsets.add(counter.getCount());
+        }
+        entry.write(out);
+        filter.add(entry.getKey());
+        numEntries++;
+      }
+      long indexOffset = counter.getCount();
+      out.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        Entry.writeString(out, keys.get(i));
+        out.writeLong(offsets.get(i));
+      }
+      long filterOffset = counter.getCount();
+      out.writeInt(filter.getNumHashes());
+      out.writeInt(filter.getBits().length);
+      for (long bits : filter.getBits()) {
+        out.writeLong(bits);
+      }
+      out.writeLong(indexOffset);
+      out.writeLong(filterOffset);
+      out.writeInt(numEntries);
+      out.writeInt(magic);
+      out.flush();
+      fileStream.getFD().sync();
+    }
+    finally {
+      fileStream.close();
+    }
+    return new Segment(file);
+  }
+
+  /**
+   * Returns the entry with the passed key.
+   * @param key The key.
+   * @return The entry, which may be a tombstone, or null if this segment has none for the key.
+   * @throws IOException If the segment cannot be read.
+   */
+  Entry get(String key) throws IOException {
+    if (!this.filter.mightContain(key)) {
+      return null;
+    }
+    int block = findBlock(key);
+    if (block < 0) {
+      return null;
+    }
+    DataInputStream in = openStream(this.indexOffsets[block], lookupBufferSize);
+    int numLeft = Math.min(indexInterval, this.numEntries - block * indexInterval);
+    for (int i = 0; i < numLeft; i++) {
+      Entry entry = Entry.read(in);
+      int comparison = entry.getKey().compareTo(key);
+      if (comparison == 0) {
+        return entry;
+      }
+      if (comparison > 0) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns an iterator over the entries with keys in [fromKey, toKey), in key order. Read
+   * errors are thrown as RuntimeExceptions by the iterator.
+   * @param fromKey The first key, or null to start at the first entry.
+   * @param toKey The key after the last, or null to continue to the last entry.
+   * @return The iterator.
+   */
+  Iterator<Entry> iterator(String fromKey, String toKey) {
+    int block = (fromKey == null) ? 0 : Math.max(0, findBlock(fromKey));
+    return new SegmentIterator(block, fromKey, toKey);
+  }
+
+  /**
+   * Returns the block of indexInterval entries that would contain the passed key.
+   * @param key The key.
+   * @return The index in indexKeys of the last key not after the passed key, or -1 if the
+   * passed key is before every key of this segment.
+   */
+  private int findBlock(String key) {
+    int index = Arrays.binarySearch(this.indexKeys, key);
+    return (index >= 0) ? index : -index - 2;
+  }
+
+  /**
+   * Returns a stream reading this segment from the passed offset.
+   * @param offset The offset.
+   * @param size The buffer size.
+   * @return The stream.
+   */
+  private DataInputStream openStream(long offset, int size) {
+    return new DataInputStream(
+        new BufferedInputStream(new ChannelInputStream(this.channel, offset), size));
+  }
+
+  /**
+   * Returns the number of entries.
+   * @return The number of entries.
+   */
+  int size() {
+    return this.numEntries;
+  }
+
+  /**
+   * Returns the length of the file.
+   * @return The length in bytes.
+   */
+  long length() {
+    return this.file.length();
+  }
+
+  /**
+   * Returns the file.
+   * @return The file.
+   */
+  File getFile() {
+    return this.file;
+  }
+
+  /**
+   * Takes a reference to this segment, which must be released when the caller has finished
+   * reading it.
+   */
+  synchronized void acquire() {
+    this.refCount++;
+  }
+
+  /**
+   * Releases a reference to this segment, closing it when none remain.
+   */
+  void release() {
+    boolean isClosing;
+    boolean isDeleting;
+    synchronized (this) {
+      this.refCount--;
+      isClosing = (this.refCount == 0);
+      isDeleting = isClosing && this.isRetired;
+    }
+    if (isClosing) {
+      try {
+        this.randomAccessFile.close();
+      }
+      catch (IOException e) { //NOPMD
+        // Nothing more can be done with this segment.
+      }
+    }
+    if (isDeleting) {
+      this.file.delete();
+    }
+  }
+
+  /**
+   * Releases the store's reference to this segment, which has been replaced, so that it is
+   * deleted when its last reader finishes.
+   */
+  void retire() {
+    synchronized (this) {
+      this.isRetired = true;
+    }
+    release();
+  }
+
+  /**
+   * Iterates over the entries of a key range.
+   */
+  private final class SegmentIterator implements Iterator<Entry> {
+
+    /** The stream of entries. */
+    private final DataInputStream in;
+
+    /** The key after the last entry returned, or null. */
+    private final String toKey;
+
+    /** The number of entries left in the segment after next. */
+    private int numLeft;
+
+    /** The next entry to return, or null if there are no more. */
+    private Entry next;
+
+    /**
+     * Creates the iterator, positioned at the first entry with a key not before fromKey.
+     * @param block The block containing fromKey.
+     * @param fromKey The first key, or null.
+     * @param toKey The key after the last, or null.
+     */
+    SegmentIterator(int block, String fromKey, String toKey) {
+      this.toKey = toKey;
+      if (indexKeys.length == 0) {
+        this.in = null;
+        this.numLeft = 0;
+        return;
+      }
+      this.in = openStream(indexOffsets[block], bufferSize);
+      this.numLeft = numEntries - block * indexInterval;
+      advance();
+      while ((fromKey != null) && (this.next != null)
+          && (this.next.getKey().compareTo(fromKey) < 0)) {
+        advance();
+      }
+    }
+
+    /**
+     * Reads the next entry, if there is one before toKey.
+     */
+    private void advance() {
+      this.next = null;
+      if (this.numLeft == 0) {
+        return;
+      }
+      try {
+        Entry entry = Entry.read(this.in);
+        this.numLeft--;
+        if ((this.toKey == null) || (entry.getKey().compareTo(this.toKey) < 0)) {
+          this.next = entry;
+        }
+        else {
+          this.numLeft = 0;
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Error reading segment " + file, e);
+      }
+    }
+
+    /** {@inheritDoc} */
+    public boolean hasNext() {
+      return this.next != null;
+    }
+
+    /** {@inheritDoc} */
+    public Entry next() {
+      if (this.next == null) {
+        throw new NoSuchElementException();
+      }
+      Entry entry = this.next;
+      advance();
+      return entry;
+    }
+
+    /** {@inheritDoc} */
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Reads a file channel from a given position, without changing the channel's own position,
+   * so that several streams can read the same channel at once.
+   */
+  private static final class ChannelInputStream extends InputStream {
+
+    /** The channel. */
+    private final FileChannel channel;
+
+    /** The position of the next byte to read. */
+    private long position;
+
+    /**
+     * Creates the stream.
+     * @param channel The channel.
+     * @param position The position of the first byte to read.
+     */
+    ChannelInputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      return (read(buffer, 0, 1) < 0) ? -1 : buffer[0] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      int numRead = this.channel.read(ByteBuffer.wrap(buffer, offset, length), this.position);
+      if (numRead > 0) {
+        this.position += numRead;
+      }
+      return numRead;
+    }
+  }
+
+  /**
+   * Counts the bytes written through it, to find the offsets of entries in a new segment.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    /** The number of bytes written. */
+    private long count = 0;
+
+    /**
+     * Creates the stream.
+     * @param out The stream written to.
+     */
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    /**
+     * Returns the number of bytes written.
+     * @return The count.
+     */
+    long getCount() {
+      return this.count;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      this.count++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      this.out.write(buffer, offset, length);
+      this.count += length;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests the encoding of times in keys, and the matching of UriPatterns, of LsmImplementation.
+ *
+ * @author Philip Johnson
+ */
+public class TestLsmImplementation {
+
+  /**
+   * Tests that encoded times sort in time order, including times before 1970, and decode to
+   * the same time.
+   */
+  @Test
+  public void testEncodeTime() {
+    long[] times = { Long.MIN_VALUE, -86400000L, -1, 0, 1, 1199145600000L, Long.MAX_VALUE };
+    for (int i = 0; i < times.length; i++) {
+      String digits = LsmImplementation.encodeTime(times[i]);
+      assertEquals("Length", 16, digits.length());
+      assertEquals("Decoded", times[i], LsmImplementation.decodeTime(digits));
+      if (i > 0) {
+        assertTrue("Order", LsmImplementation.encodeTime(times[i - 1]).compareTo(digits) < 0);
+      }
+    }
+  }
+
+  /**
+   * Tests that UriPatterns match the same resources as the LIKE clauses of DerbyImplementation.
+   */
+  @Test
+  public void testUriPatterns() {
+    assertNull("Null", LsmImplementation.compileUriPatterns(null));
+    assertNull("Empty", LsmImplementation.compileUriPatterns(new ArrayList<String>()));
+    assertNull("Star", LsmImplementation.compileUriPatterns(Arrays.asList("**")));
+    assertTrue("All", LsmImplementation.matchesUriPatterns(null, null));
+    List<Pattern> patterns =
+      LsmImplementation.compileUriPatterns(Arrays.asList("*/foo/*.java", "Bar%_.txt"));
+    assertTrue("Slash", LsmImplementation.matchesUriPatterns(patterns, "C:/a/foo/Foo.java"));
+    assertTrue("Backslash",
+        LsmImplementation.matchesUriPatterns(patterns, "C:\\a\\foo\\Foo.java"));
+    assertFalse("Mixed", LsmImplementation.matchesUriPatterns(patterns, "C:\\a\\foo/Foo.java"));
+    assertTrue("Literal", LsmImplementation.matchesUriPatterns(patterns, "Bar%_.txt"));
+    assertFalse("Not a wildcard", LsmImplementation.matchesUriPatterns(patterns, "Bar12.txt"));
+    assertFalse("Case", LsmImplementation.matchesUriPatterns(patterns, "bar%_.txt"));
+    assertFalse("Null resource", LsmImplementation.matchesUriPatterns(patterns, null));
+  }
+}
@@ -0,0 +1,192 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the LsmStore: reads and deletes across memtables and segments, merging, and recovery
+ * from the logs and the manifest.
+ *
+ * @author Philip Johnson
+ */
+public class TestLsmStore {
+
+  /** The scratch directory holding the store. */
+  private File dir;
+
+  /** The store. */
+  private LsmStore store;
+
+  /** The logger. */
+  private final Logger logger = Logger.getLogger("org.hackystat.sensorbase");
+
+  /**
+   * Opens an empty store with a small memtable, so that writes are soon flushed.
+   * @throws IOException If the store cannot be opened.
+   */
+  @Before
+  public void setup() throws IOException {
+    this.dir = new File(System.getProperty("java.io.tmpdir"), "sensorbase-lsmtest");
+    deleteDir();
+    this.store = open();
+  }
+
+  /**
+   * Closes the store and deletes its directory.
+   */
+  @After
+  public void teardown() {
+    this.store.close();
+    deleteDir();
+  }
+
+  /**
+   * Opens the store in the scratch directory.
+   * @return The store.
+   * @throws IOException If the store cannot be opened.
+   */
+  private LsmStore open() throws IOException {
+    return new LsmStore(this.dir, 8 * 1024, false, this.logger);
+  }
+
+  /**
+   * Deletes the scratch directory.
+   */
+  private void deleteDir() {
+    File[] files = this.dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    this.dir.delete();
+  }
+
+  /**
+   * Writes the keys key0000 up to the passed number, each with its number as its field.
+   * @param numKeys The number of keys.
+   * @param suffix Appended to each field, to tell writes apart.
+   * @throws IOException If the keys cannot be written.
+   */
+  private void writeKeys(int numKeys, String suffix) throws IOException {
+    for (int i = 0; i < numKeys; i += 10) {
+      List<Entry> entries = new ArrayList<Entry>();
+      for (int j = i; j < Math.min(i + 10, numKeys); j++) {
+        entries.add(new Entry(makeKey(j), new String[] { j + suffix, null }));
+      }
+      this.store.write(entries);
+    }
+  }
+
+  /**
+   * Returns the key of a number.
+   * @param number The number.
+   * @return The key.
+   */
+  private static String makeKey(int number) {
+    String digits = String.valueOf(number);
+    return "key0000".substring(0, 7 - digits.length()) + digits;
+  }
+
+  /**
+   * Returns the first field of each entry in a range.
+   * @param fromKey The first key.
+   * @param toKey The key after the last.
+   * @return The fields, in key order.
+   */
+  private List<String> scanFields(String fromKey, String toKey) {
+    List<String> fields = new ArrayList<String>();
+    LsmStore.Scan scan = this.store.scan(fromKey, toKey);
+    try {
+      while (scan.hasNext()) {
+        fields.add(scan.next().getFields()[0]);
+      }
+    }
+    finally {
+      scan.close();
+    }
+    return fields;
+  }
+
+  /**
+   * Tests that a fresh store is reported as such, and that writes, overwrites and deletes held
+   * in the memtable are read.
+   * @throws IOException If the store cannot be written.
+   */
+  @Test
+  public void testMemTable() throws IOException {
+    assertTrue("Fresh store", this.store.isFreshlyCreated());
+    this.store.write(Arrays.asList(new Entry("b", new String[] { "1" }),
+        new Entry("a", new String[] { "2", null }), new Entry("c", new String[] { "3" })));
+    this.store.write(Arrays.asList(new Entry("b", new String[] { "4" }), new Entry("c", null)));
+    assertEquals("Overwritten", "4", this.store.get("b").getFields()[0]);
+    assertNull("Null field", this.store.get("a").getFields()[1]);
+    assertNull("Deleted", this.store.get("c"));
+    assertNull("Absent", this.store.get("d"));
+    assertEquals("Scan", Arrays.asList("2", "4"), scanFields("a", "z"));
+    assertEquals("Range", Arrays.asList("2"), scanFields("a", "b"));
+    assertEquals("Count", 2, this.store.count("", "z"));
+  }
+
+  /**
+   * Tests that reads see the newest entry of each key across segments, that tombstones hide
+   * older entries, and that a full compaction leaves one segment with the same contents.
+   * @throws IOException If the store cannot be written.
+   */
+  @Test
+  public void testSegments() throws IOException {
+    writeKeys(1000, "a");
+    this.store.flush();
+    assertTrue("Flushed to segments", this.store.getNumSegments() > 0);
+    writeKeys(500, "b");
+    List<Entry> deletes = new ArrayList<Entry>();
+    for (int i = 0; i < 1000; i += 100) {
+      deletes.add(new Entry(makeKey(i), null));
+    }
+    this.store.write(deletes);
+    this.store.flush();
+    assertEquals("Newest", "1b", this.store.get(makeKey(1)).getFields()[0]);
+    assertEquals("Older", "501a", this.store.get(makeKey(501)).getFields()[0]);
+    assertNull("Deleted", this.store.get(makeKey(600)));
+    assertEquals("Count", 990, this.store.count("key", "kez"));
+    List<String> before = scanFields(makeKey(250), makeKey(750));
+    assertEquals("Range", 495, before.size());
+    assertEquals("Range start", "250b", before.get(0));
+    this.store.compact();
+    assertEquals("One segment", 1, this.store.getNumSegments());
+    assertEquals("Same range", before, scanFields(makeKey(250), makeKey(750)));
+    assertNull("Still deleted", this.store.get(makeKey(600)));
+  }
+
+  /**
+   * Tests that writes not yet flushed are replayed from the logs after a restart, and that
+   * flushed writes are read from the segments in the manifest.
+   * @throws IOException If the store cannot be written or reopened.
+   */
+  @Test
+  public void testReopen() throws IOException {
+    writeKeys(300, "a");
+    this.store.flush();
+    this.store.write(Arrays.asList(new Entry(makeKey(1), new String[] { "x" }),
+        new Entry(makeKey(2), null)));
+    this.store.close();
+    this.store = open();
+    assertTrue("Existing store", !this.store.isFreshlyCreated());
+    assertEquals("Replayed", "x", this.store.get(makeKey(1)).getFields()[0]);
+    assertNull("Replayed delete", this.store.get(makeKey(2)));
+    assertEquals("From segments", "299a", this.store.get(makeKey(299)).getFields()[0]);
+    assertEquals("Count", 299, this.store.count("key", "kez"));
+  }
+}
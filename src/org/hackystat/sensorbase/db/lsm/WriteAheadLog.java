@@ -0,0 +1,154 @@
+package org.hackystat.sensorbase.db.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The log of the writes held in one memtable, from which the memtable is rebuilt if the
+ * server stops before it is flushed to a segment. Each write appends one record holding all
+ * of its entries, so that a write is either replayed in full or not at all: the record's
+ * length, a CRC32 of its contents, the number of entries, and the entries. Replay stops at
+ * the first incomplete or corrupt record, which can only be the last one written.
+ * <p>
+ * Records are written straight to the file, so a write survives the server process exiting.
+ * If syncing is enabled, each write is also forced to disk before it returns, so that it
+ * survives the machine failing, at the cost of a disk flush per write.
+ *
+ * @author Philip Johnson
+ */
+final class WriteAheadLog {
+
+  /** The file. */
+  private final File file;
+
+  /** The stream appending to the file. */
+  private final FileOutputStream out;
+
+  /** True if each write is forced to disk. */
+  private final boolean isSyncing;
+
+  /**
+   * Creates an empty log file, or appends to an existing one.
+   * @param file The file.
+   * @param isSyncing True if each write is forced to disk.
+   * @throws IOException If the file cannot be opened.
+   */
+  WriteAheadLog(File file, boolean isSyncing) throws IOException {
+    this.file = file;
+    this.out = new FileOutputStream(file, true);
+    this.isSyncing = isSyncing;
+  }
+
+  /**
+   * Appends a record holding the passed entries.
+   * @param entries The entries.
+   * @throws IOException If the record cannot be written.
+   */
+  void append(List<Entry> entries) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * entries.size() + 12);
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(0);
+    data.writeLong(0);
+    data.writeInt(entries.size());
+    for (Entry entry : entries) {
+      entry.write(data);
+    }
+    byte[] record = bytes.toByteArray();
+    int length = record.length - 12;
+    CRC32 crc = new CRC32();
+    crc.update(record, 12, length);
+    writeInt(record, 0, length);
+    long checksum = crc.getValue();
+    writeInt(record, 4, (int) (checksum >>> 32));
+    writeInt(record, 8, (int) checksum);
+    this.out.write(record);
+    if (this.isSyncing) {
+      this.out.getFD().sync();
+    }
+  }
+
+  /**
+   * Stores an int in big-endian order, as DataOutputStream does.
+   * @param buffer The buffer.
+   * @param offset The offset of the first byte.
+   * @param value The value.
+   */
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  /**
+   * Returns the file.
+   * @return The file.
+   */
+  File getFile() {
+    return this.file;
+  }
+
+  /**
+   * Closes the log.
+   * @throws IOException If the file cannot be closed.
+   */
+  void close() throws IOException {
+    this.out.close();
+  }
+
+  /**
+   * Reads the entries of the complete records of a log file, in the order written.
+   * @param file The file.
+   * @return The entries.
+   * @throws IOException If the file cannot be read.
+   */
+  static List<Entry> replay(File file) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      while (true) {
+        int length;
+        long checksum;
+        byte[] record;
+        try {
+          length = in.readInt();
+          checksum = in.readLong();
+          if ((length < 4) || (length > file.length())) {
+            break;
+          }
+          record = new byte[length];
+          in.readFully(record);
+        }
+        catch (EOFException e) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if (crc.getValue() != checksum) {
+          break;
+        }
+        DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+        int numEntries = recordIn.readInt();
+        for (int i = 0; i < numEntries; i++) {
+          entries.add(Entry.read(recordIn));
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+    return entries;
+  }
+}
@@ -1,6 +1,6 @@
 package org.hackystat.sensorbase.resource.db;
 
-import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.db.DbJob;
 import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
 import org.restlet.Context;
 import org.restlet.data.Request;
@@ -29,9 +29,10 @@ public class CompressResource extends SensorBaseResource {
   }
 
   /**
-   * Returns 200 if compress command succeeded. This requires admin authorization.
+   * Queues a job that compresses the tables, and returns 202 and the DbJob, whose progress 
+   * can be followed at {host}/db/jobs/{id}. This requires admin authorization.
    * 
-   * @param variant The representational variant requested.
+   * @param variant Ignored.
    */
   @Override
   public void storeRepresentation(Representation variant) {
@@ -39,17 +40,16 @@ public class CompressResource extends SensorBaseResource {
       if (!validateAuthUserIsAdmin()) {
         return;
       }
-      DbManager dbManager = (DbManager) this.server.getContext().getAttributes().get("DbManager");
-      boolean success = dbManager.compressTables();
-      Status status = (success) ? Status.SUCCESS_OK : Status.SERVER_ERROR_INTERNAL;
-      getResponse().setStatus(status);
+      DbJobManager jobManager = 
+        (DbJobManager) this.server.getContext().getAttributes().get("DbJobManager");
+      DbJob job = jobManager.submit(DbJob.COMPRESS);
+      getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+      getResponse().setEntity(getStringRepresentation(DbJobManager.getJobString(job)));
     }
     catch (RuntimeException e) {
       setStatusInternalError(e);
     }
-
   }
-    
 
   /**
    * Indicate the PUT method is supported.
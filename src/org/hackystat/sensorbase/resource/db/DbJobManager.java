@@ -0,0 +1,228 @@
+package org.hackystat.sensorbase.resource.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.db.DbJob;
+import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.resource.sensorbase.XmlFragmentWriter;
+import org.hackystat.sensorbase.server.Server;
+import org.hackystat.sensorbase.server.ServerProperties;
+import org.hackystat.utilities.stacktrace.StackTrace;
+
+/**
+ * Runs the database maintenance jobs requested through PUT {host}/db/table/compress and
+ * PUT {host}/db/table/index, one at a time, on a background thread, so that requests do not
+ * wait for them. A job requested while another of the same type is still queued is not
+ * queued again. Jobs can be listed and cancelled through {host}/db/jobs, which keeps the
+ * most recent maxFinishedJobs finished jobs.
+ * <p>
+ * If sensorbase.db.startup.compress or sensorbase.db.startup.reindex is true, the
+ * corresponding job is queued at startup instead of delaying it.
+ *
+ * @author Philip Johnson
+ */
+public class DbJobManager {
+
+  /** The number of finished jobs that are kept for reporting. */
+  private static final int maxFinishedJobs = 20;
+
+  /** The DbManager. */
+  private final DbManager dbManager;
+
+  /** The logger. */
+  private final Logger logger;
+
+  /** The jobs, in order of identifier. Guarded by this. */
+  private final Map<Integer, DbJob> jobs = new LinkedHashMap<Integer, DbJob>();
+
+  /** The identifier of the next job. Guarded by this. */
+  private int nextId = 1;
+
+  /** Runs the jobs, one at a time. */
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "SensorBase db jobs");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Creates the manager, and queues the jobs requested at startup.
+   * @param server The server, whose DbManager must already be in its context.
+   */
+  public DbJobManager(Server server) {
+    this.dbManager = (DbManager) server.getContext().getAttributes().get("DbManager");
+    this.logger = server.getLogger();
+    ServerProperties properties = server.getServerProperties();
+    if (properties.compressOnStartup()) {
+      submit(DbJob.COMPRESS);
+    }
+    if (properties.reindexOnStartup()) {
+      submit(DbJob.INDEX);
+    }
+  }
+
+  /**
+   * Queues a job, unless one of the same type is already queued.
+   * @param type DbJob.COMPRESS or DbJob.INDEX.
+   * @return The queued job.
+   */
+  public synchronized DbJob submit(String type) {
+    for (DbJob job : this.jobs.values()) {
+      if (job.getType().equals(type) && DbJob.QUEUED.equals(job.getState())
+          && !job.isCancelled()) {
+        return job;
+      }
+    }
+    final DbJob job = new DbJob(this.nextId++, type);
+    this.jobs.put(job.getId(), job);
+    removeOldJobs();
+    this.executor.execute(new Runnable() {
+      public void run() {
+        runJob(job);
+      }
+    });
+    return job;
+  }
+
+  /**
+   * Runs a job, unless it has been cancelled.
+   * @param job The job.
+   */
+  private void runJob(DbJob job) {
+    if (job.isCancelled()) {
+      job.finish(DbJob.CANCELLED);
+      return;
+    }
+    job.start();
+    this.logger.info("Starting db job " + job.getId() + ": " + job.getType());
+    boolean success = false;
+    try {
+      success = DbJob.COMPRESS.equals(job.getType()) ? this.dbManager.compressTables(job)
+          : this.dbManager.indexTables(job);
+    }
+    catch (RuntimeException e) {
+      this.logger.warning("Error in db job " + job.getId() + StackTrace.toString(e));
+    }
+    if (job.isCancelled()) {
+      job.finish(DbJob.CANCELLED);
+    }
+    else {
+      job.finish((success) ? DbJob.COMPLETED : DbJob.FAILED);
+    }
+    this.logger.info("Finished db job " + job.getId() + ": " + job.getState());
+  }
+
+  /**
+   * Forgets the oldest finished jobs beyond maxFinishedJobs.
+   */
+  private synchronized void removeOldJobs() {
+    int numFinished = 0;
+    for (DbJob job : this.jobs.values()) {
+      if (job.isFinished()) {
+        numFinished++;
+      }
+    }
+    List<Integer> removed = new ArrayList<Integer>();
+    for (DbJob job : this.jobs.values()) {
+      if (numFinished <= maxFinishedJobs) {
+        break;
+      }
+      if (job.isFinished()) {
+        removed.add(job.getId());
+        numFinished--;
+      }
+    }
+    for (Integer id : removed) {
+      this.jobs.remove(id);
+    }
+  }
+
+  /**
+   * Returns a job.
+   * @param id The job's identifier.
+   * @return The job, or null if there is no such job.
+   */
+  public synchronized DbJob getJob(int id) {
+    return this.jobs.get(id);
+  }
+
+  /**
+   * Requests that a job stop. A queued job will not be run, and a running job stops at its
+   * next step.
+   * @param id The job's identifier.
+   * @return True if the job exists and had not finished.
+   */
+  public synchronized boolean cancel(int id) {
+    DbJob job = this.jobs.get(id);
+    if ((job == null) || job.isFinished()) {
+      return false;
+    }
+    job.cancel();
+    return true;
+  }
+
+  /**
+   * Returns the jobs as an XML DbJobs element.
+   * @return The XML String.
+   */
+  public synchronized String getJobsString() {
+    StringBuilder builder = new StringBuilder(500);
+    builder.append("<DbJobs>");
+    for (DbJob job : this.jobs.values()) {
+      appendJob(builder, job);
+    }
+    builder.append("</DbJobs>");
+    return builder.toString();
+  }
+
+  /**
+   * Returns a job as an XML DbJob element.
+   * @param job The job.
+   * @return The XML String.
+   */
+  public static String getJobString(DbJob job) {
+    StringBuilder builder = new StringBuilder(200);
+    appendJob(builder, job);
+    return builder.toString();
+  }
+
+  /**
+   * Appends a job as an XML DbJob element.
+   * @param builder The builder.
+   * @param job The job.
+   */
+  private static void appendJob(StringBuilder builder, DbJob job) {
+    builder.append("<DbJob");
+    XmlFragmentWriter.appendAttribute(builder, "Id", String.valueOf(job.getId()));
+    XmlFragmentWriter.appendAttribute(builder, "Type", job.getType());
+    XmlFragmentWriter.appendAttribute(builder, "State", job.getState());
+    XmlFragmentWriter.appendAttribute(builder, "CancelRequested",
+        String.valueOf(job.isCancelled()));
+    XmlFragmentWriter.appendAttribute(builder, "Progress", job.getProgress());
+    XmlFragmentWriter.appendAttribute(builder, "Created", toString(job.getCreated()));
+    XmlFragmentWriter.appendAttribute(builder, "Started", toString(job.getStarted()));
+    XmlFragmentWriter.appendAttribute(builder, "Ended", toString(job.getEnded()));
+    builder.append("/>");
+  }
+
+  /**
+   * Returns the timestamp as a string.
+   * @param tstamp The timestamp, or null.
+   * @return The string, or null.
+   */
+  private static String toString(XMLGregorianCalendar tstamp) {
+    return (tstamp == null) ? null : tstamp.toString();
+  }
+}
@@ -0,0 +1,112 @@
+package org.hackystat.sensorbase.resource.db;
+
+import org.hackystat.sensorbase.db.DbJob;
+import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Variant;
+
+/**
+ * Implements the Resource for processing GET {host}/db/jobs/{job} requests, which return the
+ * state and progress of a database maintenance job, and DELETE {host}/db/jobs/{job} requests,
+ * which cancel it. Requires the admin user.
+ *
+ * @author Philip Johnson
+ */
+public class DbJobResource extends SensorBaseResource {
+
+  /** The job identifier passed in the request. */
+  private String jobId;
+
+  /**
+   * The standard constructor.
+   *
+   * @param context The context.
+   * @param request The request object.
+   * @param response The response object.
+   */
+  public DbJobResource(Context context, Request request, Response response) {
+    super(context, request, response);
+    this.jobId = (String) request.getAttributes().get("job");
+  }
+
+  /**
+   * Returns the DbJob, or an error if the user is not the admin or there is no such job.
+   *
+   * @param variant The representational variant requested.
+   * @return The representation.
+   */
+  @Override
+  public Representation represent(Variant variant) {
+    try {
+      if (!validateAuthUserIsAdmin()) {
+        return null;
+      }
+      DbJob job = getJobManager().getJob(parseJobId());
+      if (job == null) {
+        setStatusMiscError("Unknown db job: " + this.jobId);
+        return null;
+      }
+      return getStringRepresentation(DbJobManager.getJobString(job));
+    }
+    catch (RuntimeException e) {
+      setStatusInternalError(e);
+    }
+    return null;
+  }
+
+  /**
+   * Indicate the DELETE method is supported.
+   * @return True.
+   */
+  @Override
+  public boolean allowDelete() {
+    return true;
+  }
+
+  /**
+   * Cancels the job. A queued job is not run, and a running job stops at its next step.
+   * Returns an error if there is no such job or it has already finished.
+   */
+  @Override
+  public void removeRepresentations() {
+    try {
+      if (!validateAuthUserIsAdmin()) {
+        return;
+      }
+      if (getJobManager().cancel(parseJobId())) {
+        getResponse().setStatus(Status.SUCCESS_OK);
+      }
+      else {
+        setStatusMiscError("No unfinished db job: " + this.jobId);
+      }
+    }
+    catch (RuntimeException e) {
+      setStatusInternalError(e);
+    }
+  }
+
+  /**
+   * Returns the job identifier passed in the request.
+   * @return The identifier, or -1 if it is not a number.
+   */
+  private int parseJobId() {
+    try {
+      return Integer.parseInt(this.jobId);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the DbJobManager.
+   * @return The DbJobManager.
+   */
+  private DbJobManager getJobManager() {
+    return (DbJobManager) this.server.getContext().getAttributes().get("DbJobManager");
+  }
+}
@@ -0,0 +1,50 @@
+package org.hackystat.sensorbase.resource.db;
+
+import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Variant;
+
+/**
+ * Implements the Resource for processing GET {host}/db/jobs requests, which return the queued,
+ * running and recently finished database maintenance jobs. Requires the admin user.
+ *
+ * @author Philip Johnson
+ */
+public class DbJobsResource extends SensorBaseResource {
+
+  /**
+   * The standard constructor.
+   *
+   * @param context The context.
+   * @param request The request object.
+   * @param response The response object.
+   */
+  public DbJobsResource(Context context, Request request, Response response) {
+    super(context, request, response);
+  }
+
+  /**
+   * Returns the DbJobs, or an error if the user is not the admin.
+   *
+   * @param variant The representational variant requested.
+   * @return The representation.
+   */
+  @Override
+  public Representation represent(Variant variant) {
+    try {
+      if (!validateAuthUserIsAdmin()) {
+        return null;
+      }
+      DbJobManager jobManager =
+        (DbJobManager) this.server.getContext().getAttributes().get("DbJobManager");
+      return getStringRepresentation(jobManager.getJobsString());
+    }
+    catch (RuntimeException e) {
+      setStatusInternalError(e);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,512 @@
+package org.hackystat.sensorbase.resource.db;
+
+import static org.hackystat.sensorbase.server.ServerProperties.RETENTION_ARCHIVE_DIR_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.RETENTION_CHUNK_SIZE_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.RETENTION_INTERVAL_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.RETENTION_MONTHS_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.RETENTION_RULES_KEY;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.db.RetentionRule;
+import org.hackystat.sensorbase.resource.sensorbase.XmlFragmentWriter;
+import org.hackystat.sensorbase.server.Server;
+import org.hackystat.sensorbase.server.ServerProperties;
+import org.hackystat.utilities.stacktrace.StackTrace;
+import org.hackystat.utilities.tstamp.Tstamp;
+
+/**
+ * Expires old sensor data according to the retention policy given in sensorbase.properties.
+ * The policy consists of a default number of months (sensorbase.retention.months) and rules
+ * for particular owners and sensor data types (sensorbase.retention.rules). An owner's rule
+ * takes precedence over a sensor data type's rule, which takes precedence over the default.
+ * A rule of zero months keeps the sensor data it applies to forever.
+ * <p>
+ * Each retention run first drops the SensorData partitions that have expired under every
+ * rule, which is cheap, and then deletes the remaining expired sensor data of each rule in
+ * chunks of sensorbase.retention.chunk.size instances, each in its own short transaction. If
+ * sensorbase.retention.archive.dir is set, the deleted instances are first written to a
+ * gzipped SensorDatas document in that directory, one per run, and dropped partitions are
+ * exported to it. Each chunk is written as a gzip member of its own and synced to disk before
+ * it is deleted, so an archive cut short by a crash still holds every deleted instance.
+ * <p>
+ * Runs are made by a background thread every sensorbase.retention.interval.hours hours, and
+ * on request through PUT {host}/db/retention. GET {host}/db/retention reports their progress.
+ * Deleting sensor data frees no disk space until the tables are compressed.
+ *
+ * @author Philip Johnson
+ */
+public class RetentionManager {
+
+  /** The delay before the first scheduled run, so that it does not slow down startup. */
+  private static final long startupDelay = 60 * 1000L;
+
+  /** The DbManager. */
+  private final DbManager dbManager;
+
+  /** The logger. */
+  private final Logger logger;
+
+  /** The rules, most specific first, ending with the default rule. */
+  private final List<RetentionRule> rules;
+
+  /** The maximum number of instances deleted in one transaction. */
+  private final int chunkSize;
+
+  /** The directory to which expired sensor data is archived, or null. */
+  private final File archiveDir;
+
+  /** The thread on which runs are made. */
+  private final Timer timer = new Timer("SensorBase retention", true);
+
+  /** Guards the status fields. */
+  private final Object lock = new Object();
+
+  /** True while a run is waiting or in progress. Guarded by lock. */
+  private boolean isRunning = false;
+
+  /** The start of the latest run, or null. Guarded by lock. */
+  private XMLGregorianCalendar lastStart = null;
+
+  /** The end of the latest finished run, or null. Guarded by lock. */
+  private XMLGregorianCalendar lastEnd = null;
+
+  /** The rule being applied by the current run, or null. Guarded by lock. */
+  private RetentionRule currentRule = null;
+
+  /** The number of instances deleted by the latest run. Guarded by lock. */
+  private long numDeleted = 0;
+
+  /** The number of partitions dropped by the latest run. Guarded by lock. */
+  private int numDropped = 0;
+
+  /** The number of instances deleted since startup. Guarded by lock. */
+  private long totalDeleted = 0;
+
+  /** The archive file of the latest run, or null. Guarded by lock. */
+  private File archiveFile = null;
+
+  /** The error that ended the latest run, or null. Guarded by lock. */
+  private String error = null;
+
+  /**
+   * Creates the manager and, if the policy expires anything, schedules its runs.
+   * A policy that cannot be parsed is logged and replaced by one that keeps everything.
+   * @param server The server, whose DbManager must already be in its context.
+   */
+  public RetentionManager(Server server) {
+    this.dbManager = (DbManager) server.getContext().getAttributes().get("DbManager");
+    this.logger = server.getLogger();
+    ServerProperties properties = server.getServerProperties();
+    List<RetentionRule> parsedRules;
+    try {
+      parsedRules = parseRules(properties.getInt(RETENTION_MONTHS_KEY, 0),
+          properties.get(RETENTION_RULES_KEY));
+    }
+    catch (IllegalArgumentException e) {
+      this.logger.warning("Bad " + RETENTION_RULES_KEY + ", keeping all sensor data: "
+          + e.getMessage());
+      parsedRules = parseRules(0, "");
+    }
+    this.rules = parsedRules;
+    this.chunkSize = Math.max(1, properties.getInt(RETENTION_CHUNK_SIZE_KEY, 1000));
+    String dir = properties.get(RETENTION_ARCHIVE_DIR_KEY);
+    this.archiveDir = ((dir == null) || (dir.length() == 0)) ? null : new File(dir);
+    long interval = properties.getInt(RETENTION_INTERVAL_KEY, 24) * 60L * 60L * 1000L;
+    if ((interval > 0) && expiresSensorData()) {
+      this.timer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          if (begin()) {
+            purge();
+          }
+        }
+      }, startupDelay, interval);
+      this.logger.info("Retention policy " + this.rules + " runs every "
+          + properties.get(RETENTION_INTERVAL_KEY) + " hours.");
+    }
+  }
+
+  /**
+   * Parses a retention policy. The rules are separated by commas or white space, and have the
+   * form owner:{email}={months} or sdt:{sdtName}={months}. A later rule for the same owner or
+   * sensor data type replaces an earlier one. Each rule excludes the owners and sensor data
+   * types of the rules that take precedence over it.
+   * <p>
+   * This method is package private to support testing.
+   * @param defaultMonths The number of months that sensor data is kept unless a rule applies.
+   * @param ruleList The rules, or null or empty if there are none.
+   * @return The owner rules, then the sensor data type rules, then the default rule.
+   * @throws IllegalArgumentException If a rule cannot be parsed.
+   */
+  static List<RetentionRule> parseRules(int defaultMonths, String ruleList) {
+    Map<String, RetentionRule> ownerRules = new LinkedHashMap<String, RetentionRule>();
+    Map<String, RetentionRule> sdtRules = new LinkedHashMap<String, RetentionRule>();
+    String trimmed = (ruleList == null) ? "" : ruleList.trim();
+    if (trimmed.length() > 0) {
+      for (String rule : trimmed.split("[,\\s]+")) {
+        int colon = rule.indexOf(':');
+        int equals = rule.lastIndexOf('=');
+        if ((colon < 0) || (equals < colon + 2)) {
+          throw new IllegalArgumentException("Rule not of the form owner:{email}={months} or "
+              + "sdt:{sdtName}={months}: " + rule);
+        }
+        String kind = rule.substring(0, colon);
+        String name = rule.substring(colon + 1, equals);
+        int months;
+        try {
+          months = Integer.parseInt(rule.substring(equals + 1));
+        }
+        catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Bad number of months: " + rule, e);
+        }
+        if ("owner".equals(kind)) {
+          ownerRules.put(name, new RetentionRule(name, null, months));
+        }
+        else if ("sdt".equals(kind)) {
+          sdtRules.put(name, new RetentionRule(null, name, months));
+        }
+        else {
+          throw new IllegalArgumentException("Rule not for an owner or sdt: " + rule);
+        }
+      }
+    }
+    RetentionRule defaultRule = new RetentionRule(null, null, defaultMonths);
+    for (RetentionRule sdtRule : sdtRules.values()) {
+      for (String owner : ownerRules.keySet()) {
+        sdtRule.excludeOwner(owner);
+      }
+      defaultRule.excludeSdt(sdtRule.getSdt());
+    }
+    for (String owner : ownerRules.keySet()) {
+      defaultRule.excludeOwner(owner);
+    }
+    List<RetentionRule> parsedRules = new ArrayList<RetentionRule>(ownerRules.values());
+    parsedRules.addAll(sdtRules.values());
+    parsedRules.add(defaultRule);
+    return parsedRules;
+  }
+
+  /**
+   * Returns true if some rule of the policy expires sensor data.
+   * @return True if runs may delete sensor data.
+   */
+  private boolean expiresSensorData() {
+    for (RetentionRule rule : this.rules) {
+      if (!rule.keepsForever()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Starts a retention run in the background, unless one is already waiting or in progress.
+   * @return True if a run was started.
+   */
+  public boolean start() {
+    if (!begin()) {
+      return false;
+    }
+    this.timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        purge();
+      }
+    }, 0);
+    return true;
+  }
+
+  /**
+   * Marks a run as in progress, unless one already is.
+   * @return True if the caller should make the run.
+   */
+  private boolean begin() {
+    synchronized (this.lock) {
+      if (this.isRunning) {
+        return false;
+      }
+      this.isRunning = true;
+      this.lastStart = Tstamp.makeTimestamp();
+      this.currentRule = null;
+      this.numDeleted = 0;
+      this.numDropped = 0;
+      this.archiveFile = null;
+      this.error = null;
+      return true;
+    }
+  }
+
+  /**
+   * Makes a retention run, which must have been marked as in progress by begin().
+   */
+  private void purge() {
+    XMLGregorianCalendar now = Tstamp.makeTimestamp();
+    File archive = null;
+    Writer writer = null;
+    try {
+      if (this.archiveDir != null) {
+        archive = new File(this.archiveDir, "sensordata-"
+            + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".xml.gz");
+        writer = openArchive(archive);
+      }
+      XMLGregorianCalendar dropBefore = getPartitionCutoff(now);
+      if (dropBefore != null) {
+        int dropped = this.dbManager.dropSensorDataPartitions(dropBefore, this.archiveDir).size();
+        synchronized (this.lock) {
+          this.numDropped = dropped;
+        }
+      }
+      for (RetentionRule rule : this.rules) {
+        if (!rule.keepsForever()) {
+          purge(rule, getCutoff(now, rule.getMonths()), writer);
+        }
+      }
+    }
+    catch (Exception e) {
+      this.logger.warning("Error during retention run: " + StackTrace.toString(e));
+      synchronized (this.lock) {
+        this.error = e.getMessage();
+      }
+    }
+    finally {
+      closeArchive(writer, archive);
+      synchronized (this.lock) {
+        this.isRunning = false;
+        this.currentRule = null;
+        this.lastEnd = Tstamp.makeTimestamp();
+        this.logger.info("Retention run deleted " + this.numDeleted + " sensor data instances"
+            + " and dropped " + this.numDropped + " partitions.");
+      }
+    }
+  }
+
+  /**
+   * Deletes the expired sensor data of a rule, one chunk at a time.
+   * @param rule The rule.
+   * @param before The time before which its sensor data has expired.
+   * @param writer The archive writer, or null.
+   * @throws IOException If the sensor data cannot be deleted.
+   */
+  private void purge(RetentionRule rule, XMLGregorianCalendar before, Writer writer)
+  throws IOException {
+    synchronized (this.lock) {
+      this.currentRule = rule;
+    }
+    int numChunkDeleted = this.chunkSize;
+    while (numChunkDeleted == this.chunkSize) {
+      numChunkDeleted = this.dbManager.deleteSensorData(rule, before, this.chunkSize, writer);
+      if (numChunkDeleted < 0) {
+        throw new IOException("Could not delete the sensor data of rule " + rule);
+      }
+      synchronized (this.lock) {
+        this.numDeleted += numChunkDeleted;
+        this.totalDeleted += numChunkDeleted;
+      }
+    }
+  }
+
+  /**
+   * Returns the time before which the sensor data kept for the passed number of months has
+   * expired.
+   * @param now The current time.
+   * @param months The number of months.
+   * @return The time.
+   */
+  static XMLGregorianCalendar getCutoff(XMLGregorianCalendar now, int months) {
+    GregorianCalendar calendar = now.toGregorianCalendar();
+    calendar.add(Calendar.MONTH, -months);
+    return Tstamp.makeTimestamp(calendar.getTimeInMillis());
+  }
+
+  /**
+   * Returns the time before which all sensor data has expired, whatever rule applies to it.
+   * @param now The current time.
+   * @return The time, or null if some rule keeps sensor data forever.
+   */
+  private XMLGregorianCalendar getPartitionCutoff(XMLGregorianCalendar now) {
+    int maxMonths = 0;
+    for (RetentionRule rule : this.rules) {
+      if (rule.keepsForever()) {
+        return null;
+      }
+      maxMonths = Math.max(maxMonths, rule.getMonths());
+    }
+    return getCutoff(now, maxMonths);
+  }
+
+  /**
+   * Creates an archive file and writes the start of its SensorDatas document.
+   * @param archive The archive file.
+   * @return The writer.
+   * @throws IOException If the file cannot be created.
+   */
+  private Writer openArchive(File archive) throws IOException {
+    if (!this.archiveDir.isDirectory() && !this.archiveDir.mkdirs()) {
+      throw new IOException("Could not create " + this.archiveDir);
+    }
+    Writer writer = new ArchiveWriter(archive);
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<SensorDatas>\n");
+    synchronized (this.lock) {
+      this.archiveFile = archive;
+    }
+    return writer;
+  }
+
+  /**
+   * Finishes the archive's SensorDatas document and closes it, or deletes it if the run
+   * deleted no instances.
+   * @param writer The archive writer, or null.
+   * @param archive The archive file.
+   */
+  private void closeArchive(Writer writer, File archive) {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.write("</SensorDatas>\n");
+      writer.close();
+    }
+    catch (IOException e) {
+      this.logger.warning("Error closing retention archive " + archive + StackTrace.toString(e));
+    }
+    synchronized (this.lock) {
+      if ((this.numDeleted == 0) && archive.delete()) {
+        this.archiveFile = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the progress of the latest retention run as an XML RetentionStatus element,
+   * containing the rules of the policy as RetentionRule elements.
+   * @return The XML String.
+   */
+  public String getStatus() {
+    StringBuilder builder = new StringBuilder(500);
+    builder.append("<RetentionStatus");
+    synchronized (this.lock) {
+      XmlFragmentWriter.appendAttribute(builder, "Running", String.valueOf(this.isRunning));
+      XmlFragmentWriter.appendAttribute(builder, "LastStart", toString(this.lastStart));
+      XmlFragmentWriter.appendAttribute(builder, "LastEnd", toString(this.lastEnd));
+      XmlFragmentWriter.appendAttribute(builder, "CurrentRule",
+          (this.currentRule == null) ? null : this.currentRule.toString());
+      XmlFragmentWriter.appendAttribute(builder, "NumDeleted", String.valueOf(this.numDeleted));
+      XmlFragmentWriter.appendAttribute(builder, "NumPartitionsDropped",
+          String.valueOf(this.numDropped));
+      XmlFragmentWriter.appendAttribute(builder, "TotalDeleted",
+          String.valueOf(this.totalDeleted));
+      XmlFragmentWriter.appendAttribute(builder, "Archive",
+          (this.archiveFile == null) ? null : this.archiveFile.getPath());
+      XmlFragmentWriter.appendAttribute(builder, "Error", this.error);
+    }
+    builder.append('>');
+    for (RetentionRule rule : this.rules) {
+      builder.append("<RetentionRule");
+      XmlFragmentWriter.appendAttribute(builder, "Owner", rule.getOwner());
+      XmlFragmentWriter.appendAttribute(builder, "Sdt", rule.getSdt());
+      XmlFragmentWriter.appendAttribute(builder, "Months", String.valueOf(rule.getMonths()));
+      builder.append("/>");
+    }
+    builder.append("</RetentionStatus>");
+    return builder.toString();
+  }
+
+  /**
+   * Returns the timestamp as a string.
+   * @param tstamp The timestamp, or null.
+   * @return The string, or null.
+   */
+  private static String toString(XMLGregorianCalendar tstamp) {
+    return (tstamp == null) ? null : tstamp.toString();
+  }
+
+  /**
+   * Writes an archive file as a series of gzip members, ending one at each flush and syncing 
+   * the file, so that everything flushed is on disk as complete gzip data. The members 
+   * decompress to a single document, with gunzip as with GZIPInputStream.
+   */
+  private static final class ArchiveWriter extends Writer {
+    /** The archive file. */
+    private final FileOutputStream file;
+    /** The current member, or null if nothing has been written since the last flush. */
+    private GZIPOutputStream member = null;
+    /** Encodes the text written to the current member, or null. */
+    private Writer writer = null;
+
+    /**
+     * Creates the archive file.
+     * @param archive The archive file.
+     * @throws IOException If the file cannot be created.
+     */
+    ArchiveWriter(File archive) throws IOException {
+      this.file = new FileOutputStream(archive);
+    }
+
+    /**
+     * Writes characters to the current member, starting one if necessary.
+     * @param chars The characters.
+     * @param offset The offset of the first character to write.
+     * @param length The number of characters to write.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+      if (this.writer == null) {
+        this.member = new GZIPOutputStream(this.file);
+        this.writer = new BufferedWriter(new OutputStreamWriter(this.member, "UTF-8"));
+      }
+      this.writer.write(chars, offset, length);
+    }
+
+    /**
+     * Ends the current member, if any, and syncs the file to disk.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (this.writer == null) {
+        return;
+      }
+      this.writer.flush();
+      this.member.finish();
+      this.writer = null;
+      this.member = null;
+      this.file.getFD().sync();
+    }
+
+    /**
+     * Ends the current member and closes the file.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      }
+      finally {
+        this.file.close();
+      }
+    }
+  }
+}
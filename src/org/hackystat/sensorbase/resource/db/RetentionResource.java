@@ -0,0 +1,92 @@
+package org.hackystat.sensorbase.resource.db;
+
+import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Variant;
+
+/**
+ * Implements the Resource for processing GET and PUT {host}/db/retention requests.
+ * GET returns the progress of the latest retention run, and PUT starts a new one.
+ * Requires the admin user.
+ *
+ * @author Philip Johnson
+ */
+public class RetentionResource extends SensorBaseResource {
+
+  /**
+   * The standard constructor.
+   *
+   * @param context The context.
+   * @param request The request object.
+   * @param response The response object.
+   */
+  public RetentionResource(Context context, Request request, Response response) {
+    super(context, request, response);
+  }
+
+  /**
+   * Returns the RetentionStatus, or an error if the user is not the admin.
+   *
+   * @param variant The representational variant requested.
+   * @return The representation.
+   */
+  @Override
+  public Representation represent(Variant variant) {
+    try {
+      if (!validateAuthUserIsAdmin()) {
+        return null;
+      }
+      return getStringRepresentation(getRetentionManager().getStatus());
+    }
+    catch (RuntimeException e) {
+      setStatusInternalError(e);
+    }
+    return null;
+  }
+
+  /**
+   * Returns 202 if a retention run was started, or an error if one is already in progress.
+   * This requires admin authorization.
+   *
+   * @param variant The representational variant requested.
+   */
+  @Override
+  public void storeRepresentation(Representation variant) {
+    try {
+      if (!validateAuthUserIsAdmin()) {
+        return;
+      }
+      if (getRetentionManager().start()) {
+        getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+      }
+      else {
+        setStatusMiscError("A retention run is already in progress.");
+      }
+    }
+    catch (RuntimeException e) {
+      setStatusInternalError(e);
+    }
+  }
+
+  /**
+   * Indicate the PUT method is supported.
+   *
+   * @return True.
+   */
+  @Override
+  public boolean allowPut() {
+    return true;
+  }
+
+  /**
+   * Returns the RetentionManager.
+   * @return The RetentionManager.
+   */
+  private RetentionManager getRetentionManager() {
+    return (RetentionManager) this.server.getContext().getAttributes().get("RetentionManager");
+  }
+}
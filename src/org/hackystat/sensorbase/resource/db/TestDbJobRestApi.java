@@ -0,0 +1,39 @@
+package org.hackystat.sensorbase.resource.db;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.hackystat.sensorbase.client.SensorBaseClient;
+import org.hackystat.sensorbase.client.SensorBaseClientException;
+import org.hackystat.sensorbase.test.SensorBaseRestApiHelper;
+import org.junit.Test;
+
+/**
+ * Tests the DbJob REST API.
+ *
+ * @author Philip Johnson
+ */
+public class TestDbJobRestApi extends SensorBaseRestApiHelper {
+
+  /**
+   * Test that a compress job is listed by GET {host}/db/jobs, and that DELETE
+   * {host}/db/jobs/{job} fails for a job that does not exist.
+   *
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testDbJobs() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), adminEmail, adminPassword);
+    client.authenticate();
+    client.compressTables();
+    String jobs = client.getDbJobs();
+    assertTrue("Checking compress job", jobs.contains("Type=\"compress\""));
+    try {
+      client.cancelDbJob(Integer.MAX_VALUE);
+      fail("Cancelled a job that does not exist.");
+    }
+    catch (SensorBaseClientException e) { //NOPMD
+      // Expected.
+    }
+  }
+}
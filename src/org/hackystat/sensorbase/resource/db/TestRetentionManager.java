@@ -0,0 +1,70 @@
+package org.hackystat.sensorbase.resource.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hackystat.sensorbase.db.RetentionRule;
+import org.hackystat.utilities.tstamp.Tstamp;
+import org.junit.Test;
+
+/**
+ * Tests the parsing of retention policies and the computation of their cutoff times.
+ *
+ * @author Philip Johnson
+ */
+public class TestRetentionManager {
+
+  /**
+   * Tests that rules are ordered by precedence, and exclude the owners and types of the rules
+   * that take precedence over them.
+   */
+  @Test
+  public void testParseRules() {
+    List<RetentionRule> rules = RetentionManager.parseRules(12,
+        "sdt:DevEvent=6, owner:joe@hackystat.org=0\n sdt:Build=3 sdt:DevEvent=2");
+    assertEquals("Checking rules", "[owner:joe@hackystat.org=0, sdt:DevEvent=2, sdt:Build=3, "
+        + "default=12]", rules.toString());
+    assertTrue("Checking owner keeps forever", rules.get(0).keepsForever());
+    assertEquals("Checking sdt exclusions", Collections.singleton("joe@hackystat.org"),
+        rules.get(1).getExcludedOwners());
+    assertTrue("Checking sdt has no sdt exclusions", rules.get(1).getExcludedSdts().isEmpty());
+    assertEquals("Checking default sdt exclusions", Arrays.asList("Build", "DevEvent"),
+        Arrays.asList(rules.get(3).getExcludedSdts().toArray()));
+    assertEquals("Checking default owner exclusions", 1, rules.get(3).getExcludedOwners().size());
+    assertEquals("Checking no rules", "[default=0]",
+        RetentionManager.parseRules(0, " ").toString());
+  }
+
+  /**
+   * Tests that malformed rules are rejected.
+   */
+  @Test
+  public void testBadRules() {
+    String[] badRules = { "DevEvent=6", "sdt:=6", "sdt:DevEvent", "sdt:DevEvent=six",
+        "tool:Eclipse=6" };
+    for (String badRule : badRules) {
+      try {
+        RetentionManager.parseRules(0, badRule);
+        fail("Parsed " + badRule);
+      }
+      catch (IllegalArgumentException e) { //NOPMD
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Tests that the cutoff is the same time of day the passed number of months earlier.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testGetCutoff() throws Exception {
+    assertTrue("Checking cutoff", Tstamp.equal(Tstamp.makeTimestamp("2007-10-31T09:30:00.000"),
+        RetentionManager.getCutoff(Tstamp.makeTimestamp("2008-01-31T09:30:00.000"), 3)));
+  }
+}
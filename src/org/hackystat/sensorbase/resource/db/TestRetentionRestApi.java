@@ -0,0 +1,31 @@
+package org.hackystat.sensorbase.resource.db;
+
+import static org.junit.Assert.assertTrue;
+
+import org.hackystat.sensorbase.client.SensorBaseClient;
+import org.hackystat.sensorbase.test.SensorBaseRestApiHelper;
+import org.junit.Test;
+
+/**
+ * Tests the Retention REST API.
+ *
+ * @author Philip Johnson
+ */
+public class TestRetentionRestApi extends SensorBaseRestApiHelper {
+
+  /**
+   * Test that PUT {host}/db/retention starts a retention run, and that GET {host}/db/retention
+   * reports the status and rules.
+   *
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testRetention() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), adminEmail, adminPassword);
+    client.authenticate();
+    client.startRetention();
+    String status = client.getRetentionStatus();
+    assertTrue("Checking status", status.contains("<RetentionStatus"));
+    assertTrue("Checking default rule", status.contains("<RetentionRule Months="));
+  }
+}
@@ -3,28 +3,25 @@ package org.hackystat.sensorbase.resource.projects;
 import static org.hackystat.sensorbase.server.ServerProperties.XML_DIR_KEY;
 
 import java.io.File;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
+import org.hackystat.sensorbase.db.ContinuationToken;
 import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
 import org.hackystat.utilities.stacktrace.StackTrace;
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.hackystat.sensorbase.resource.projects.jaxb.Invitations;
@@ -38,14 +35,24 @@ import org.hackystat.sensorbase.resource.projects.jaxb.Projects;
 import org.hackystat.sensorbase.resource.projects.jaxb.Properties;
 import org.hackystat.sensorbase.resource.projects.jaxb.Spectators;
 import org.hackystat.sensorbase.resource.projects.jaxb.UriPatterns;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataFields;
 import org.hackystat.sensorbase.resource.sensordata.SensorDataManager;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
 import org.hackystat.sensorbase.resource.users.UserManager;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
 import org.hackystat.sensorbase.server.Server;
-import org.w3c.dom.Document;
 
 /**
  * Provides a manager for the Project resource. 
+ * <p>
+ * Methods that only read Projects do not lock. The in-memory cache publishes each owner's 
+ * Projects as an unmodifiable map that is replaced, never changed, when one of them is updated,
+ * and cached Project instances are never modified once they are in the cache. Methods that 
+ * update Projects are synchronized so that updates to the cache and the database happen in the 
+ * same order. Sensor data queries for a Project run without any lock held.
+ * <p>
+ * Clients receive copies of the cached Projects, which they are free to modify.
+ * 
  * @author Philip Johnson
  */
 public class ProjectManager {
@@ -56,6 +63,9 @@ public class ProjectManager {
   /** Holds the class-wide JAXBContext, which is thread-safe. */
   private JAXBContext jaxbContext;
   
+  /** Converts this Manager's resources to and from XML strings. */
+  private JaxbSerializer serializer;
+  
   /** The Server associated with this SdtManager. */
   Server server; 
   
@@ -74,15 +84,44 @@ public class ProjectManager {
   /** The initial size for Collection instances that hold the Projects. */
   private static final int projectSetSize = 127;
 
-  /** The in-memory repository of Projects, keyed by Owner and Project name. */
-  private Map<User, Map<String, Project>> owner2name2project = 
-    new HashMap<User, Map<String, Project>>(projectSetSize);
+  /** 
+   * The in-memory repository of Projects, keyed by Owner email and Project name. The email is
+   * the key, rather than the User, since UserManager replaces a User when it is updated.
+   * The inner maps are unmodifiable and are replaced as a whole when a Project changes.
+   * An owner without Projects has no entry.
+   */
+  private final Map<String, Map<String, CachedProject>> owner2name2project = 
+    new ConcurrentHashMap<String, Map<String, CachedProject>>(projectSetSize);
+  
+  /** A cached Project together with its XML representations. */
+  private static final class CachedProject {
+    /** The Project, which must not be modified. */
+    private final Project project;
+    /** The Project as an XML string. */
+    private final String xml;
+    /** The Project as an XML ProjectRef string. */
+    private final String ref;
+    
+    /**
+     * Creates a new cache entry.
+     * @param project The Project, which must not be modified afterwards.
+     * @param xml The Project as an XML string.
+     * @param ref The Project as an XML ProjectRef string.
+     */
+    CachedProject(Project project, String xml, String ref) {
+      this.project = project;
+      this.xml = xml;
+      this.ref = ref;
+    }
+  }
   
-  /** The in-memory repository of Project XML strings, keyed by Project. */
-  private ProjectStringMap project2xml = new ProjectStringMap();
+  /** 
+   * Incremented whenever the cached Projects change. Only updated while holding the lock. 
+   */
+  private volatile int projectsVersion = 0;
   
-  /** The in-memory repository of ProjectRef XML strings, keyed by Project. */
-  private ProjectStringMap project2ref = new ProjectStringMap();  
+  /** The index used by inProject, which is replaced when it is older than projectsVersion. */
+  private volatile ProjectMembershipIndex membershipIndex = null;
   
   /** The http string identifier. */
   private static final String http = "http";
@@ -101,6 +140,7 @@ public class ProjectManager {
     try {
       this.jaxbContext = 
         JAXBContext.newInstance("org.hackystat.sensorbase.resource.projects.jaxb");
+      this.serializer = new JaxbSerializer(this.jaxbContext);
       loadDefaultProjects(); //NOPMD it's throwing a false warning. 
       initializeCache();  //NOPMD 
       initializeDefaultProjects(); //NOPMD
@@ -190,19 +230,64 @@ public class ProjectManager {
    * @param projectXml The Project as an XML string. 
    * @param projectRef The Project as an XML reference. 
    */
-  private final void updateCache(Project project, String projectXml, String projectRef) {
-    // First, put the [owner, project] mapping
+  private final synchronized void updateCache(Project project, String projectXml, 
+      String projectRef) {
     String email = project.getOwner();
     User user = userManager.getUser(email);
     if (user == null) {
       throw new IllegalArgumentException("Project with undefined User " + email + " " + project);
     }
-    if (!owner2name2project.containsKey(user)) {
-      owner2name2project.put(user, new HashMap<String, Project>());
+    Map<String, CachedProject> name2project = copyProjects(user);
+    name2project.put(project.getName(), 
+        new CachedProject(ProjectUtils.copy(project), projectXml, projectRef));
+    this.owner2name2project.put(email, Collections.unmodifiableMap(name2project));
+    this.projectsVersion++;
+  }
+  
+  /**
+   * Removes the named Project from the in-memory cache, if present. 
+   * @param owner The owner of the Project.
+   * @param projectName The name of the Project.
+   */
+  private synchronized void removeFromCache(User owner, String projectName) {
+    if (getCachedProject(owner, projectName) != null) {
+      Map<String, CachedProject> name2project = copyProjects(owner);
+      name2project.remove(projectName);
+      if (name2project.isEmpty()) {
+        this.owner2name2project.remove(owner.getEmail());
+      }
+      else {
+        this.owner2name2project.put(owner.getEmail(), 
+            Collections.unmodifiableMap(name2project));
+      }
+      this.projectsVersion++;
     }
-    owner2name2project.get(user).put(project.getName(), project);
-    this.project2xml.put(project, projectXml);
-    this.project2ref.put(project, projectRef);
+  }
+  
+  /**
+   * Returns a new, modifiable map containing the cached Projects of this owner, for use 
+   * in building the map that will replace them. 
+   * @param owner The owner.
+   * @return The new map.
+   */
+  private Map<String, CachedProject> copyProjects(User owner) {
+    Map<String, CachedProject> name2project = this.owner2name2project.get(owner.getEmail());
+    return (name2project == null) ? new HashMap<String, CachedProject>() : 
+      new HashMap<String, CachedProject>(name2project);
+  }
+  
+  /**
+   * Returns the cache entry for the named Project, or null if there is none. 
+   * @param owner The owner (can be null).
+   * @param projectName The project name (can be null).
+   * @return The cached Project, or null.
+   */
+  private CachedProject getCachedProject(User owner, String projectName) {
+    if ((owner == null) || (projectName == null)) {
+      return null;
+    }
+    Map<String, CachedProject> name2project = this.owner2name2project.get(owner.getEmail());
+    return (name2project == null) ? null : name2project.get(projectName);
   }
   
   
@@ -234,7 +319,7 @@ public class ProjectManager {
    * @param owner The owner string. 
    * @return The email address corresponding to the owner string. 
    */
-  public synchronized String convertOwnerToEmail(String owner) {
+  public String convertOwnerToEmail(String owner) {
     if (owner.startsWith(http)) {
       int lastSlash = owner.lastIndexOf('/');
       if (lastSlash < 0) {
@@ -252,7 +337,7 @@ public class ProjectManager {
    * @param owner The owner string. 
    * @return The URI corresponding to the owner string. 
    */
-  public synchronized String convertOwnerToUri(String owner) {
+  public String convertOwnerToUri(String owner) {
     return (owner.startsWith(http)) ? owner :
       this.server.getServerProperties().getFullHost() + "users/" + owner;
   }
@@ -262,11 +347,13 @@ public class ProjectManager {
    * Uses the in-memory cache of ProjectRef strings.  
    * @return The XML string providing an index to all current Projects.
    */
-  public synchronized String getProjectIndex() {
+  public String getProjectIndex() {
     StringBuilder builder = new StringBuilder(512);
     builder.append(projectIndexOpenTag);
-    for (String ref : this.project2ref.values()) {
-      builder.append(ref);
+    for (Map<String, CachedProject> name2project : this.owner2name2project.values()) {
+      for (CachedProject cached : name2project.values()) {
+        builder.append(cached.ref);
+      }
     }
     builder.append(projectIndexCloseTag);
     return builder.toString();
@@ -280,12 +367,13 @@ public class ProjectManager {
    * which this user is an owner, member, spectator, or invitee are returned.
    * @return The XML string providing an index to all Projects associated with this user.
    */
-  public synchronized String getProjectIndex(User user) {
+  public String getProjectIndex(User user) {
     String email = user.getEmail();
     StringBuilder builder = new StringBuilder(512);
     builder.append(projectIndexOpenTag);
-    for (Map<String, Project> name2project : this.owner2name2project.values()) {
-      for (Project project : name2project.values()) {
+    for (Map<String, CachedProject> name2project : this.owner2name2project.values()) {
+      for (CachedProject cached : name2project.values()) {
+        Project project = cached.project;
         Members members = project.getMembers();
         Invitations invitations = project.getInvitations();
         Spectators spectators = project.getSpectators();
@@ -293,7 +381,7 @@ public class ProjectManager {
             (members != null) && (members.getMember().contains(email)) ||
             (spectators != null) && (spectators.getSpectator().contains(email)) ||
             (invitations != null) && (invitations.getInvitation().contains(email))) {
-          builder.append(this.project2ref.get(project));   
+          builder.append(cached.ref);   
         }
       }
     }
@@ -380,12 +468,8 @@ public class ProjectManager {
    * @return True if a Project with that name is owned by that User.  False if the User or
    * Project is not defined. 
    */
-  public synchronized boolean hasProject(User owner, String projectName) {
-    return 
-    (owner != null) &&
-    (projectName != null) &&
-    this.owner2name2project.containsKey(owner) &&
-    this.owner2name2project.get(owner).containsKey(projectName);
+  public boolean hasProject(User owner, String projectName) {
+    return getCachedProject(owner, projectName) != null;
   }
   
   /**
@@ -395,15 +479,14 @@ public class ProjectManager {
    * @param member The user whose membership is being checked.
    * @return True if member is a member of project, false otherwise. 
    */
-  public synchronized boolean isMember(User owner, String projectName, String member) {
+  public boolean isMember(User owner, String projectName, String member) {
     // Return false if owner, project, member are invalid.
-    if ((owner == null) || (member == null) || (projectName == null) ||
-        !this.owner2name2project.containsKey(owner) ||
-        !this.owner2name2project.get(owner).containsKey(projectName)) {
+    CachedProject cached = getCachedProject(owner, projectName);
+    if ((cached == null) || (member == null)) {
       return false;
     }
     // Now we can get the project.
-    Project project = this.owner2name2project.get(owner).get(projectName);
+    Project project = cached.project;
     // Return false if the <Members> field is null.
     if (!project.isSetMembers()) {
       return false;
@@ -426,15 +509,14 @@ public class ProjectManager {
    * @param invitee The user whose invitation status is being checked.
    * @return True if member is invited to be a member of project, false otherwise. 
    */
-  public synchronized boolean isInvited(User owner, String projectName, String invitee) {
+  public boolean isInvited(User owner, String projectName, String invitee) {
     // Return false if owner, project, member are invalid.
-    if ((owner == null) || (invitee == null) || (projectName == null) ||
-        !this.owner2name2project.containsKey(owner) ||
-        !this.owner2name2project.get(owner).containsKey(projectName)) {
+    CachedProject cached = getCachedProject(owner, projectName);
+    if ((cached == null) || (invitee == null)) {
       return false;
     }
     // Now we can get the project.
-    Project project = this.owner2name2project.get(owner).get(projectName);
+    Project project = cached.project;
     // Return false if the <Members> field is null.
     if (!project.isSetInvitations()) {
       return false;
@@ -457,15 +539,14 @@ public class ProjectManager {
    * @param spectator The user whose spectator status is being checked.
    * @return True if spectator is a spectator. 
    */
-  public synchronized boolean isSpectator(User owner, String projectName, String spectator) {
+  public boolean isSpectator(User owner, String projectName, String spectator) {
     // Return false if owner, project, member are invalid.
-    if ((owner == null) || (spectator == null) || (projectName == null) ||
-        !this.owner2name2project.containsKey(owner) ||
-        !this.owner2name2project.get(owner).containsKey(projectName)) {
+    CachedProject cached = getCachedProject(owner, projectName);
+    if ((cached == null) || (spectator == null)) {
       return false;
     }
     // Now we can get the project.
-    Project project = this.owner2name2project.get(owner).get(projectName);
+    Project project = cached.project;
     // Return false if the <Spectators> field is null.
     if (!project.isSetSpectators()) {
       return false;
@@ -485,12 +566,14 @@ public class ProjectManager {
   /**
    * Returns true if user1 and user2 are members of the same Project and 
    * that project encompasses the given day.
+   * Uses a ProjectMembershipIndex, which is rebuilt after the Projects change, so this 
+   * does not look at every Project on each call.
    * @param userEmail1 The first user.
    * @param userEmail2 The second user.
    * @param tstampString The date in question, which could be null.
    * @return True if the two users are in the same project that encompasses the given day.
    */
-  public synchronized boolean inProject(String userEmail1, String userEmail2, String tstampString) {
+  public boolean inProject(String userEmail1, String userEmail2, String tstampString) {
     // If any params are null, return false.
     if ((tstampString == null) || (userEmail1 == null) || (userEmail2 == null)) {
       return false;
@@ -512,31 +595,30 @@ public class ProjectManager {
     catch (Exception e) {
       return false;
     }
-    // Now look through all projects and see if there is a project with both users that encompasses
-    // the given timestamp.
-    for (Entry<User, Map<String, Project>> entry : this.owner2name2project.entrySet()) {
-      for (Project project : entry.getValue().values()) {
-        if (belongs(project, user1) && belongs(project, user2) && 
-            Tstamp.inBetween(project.getStartTime(), timestamp, project.getEndTime())) {
-          return true;
-        }
-      }
-    }
-    return false;
+    // Now see if there is a project with both users that encompasses the given timestamp.
+    return getMembershipIndex().inProject(user1.getEmail(), user2.getEmail(), timestamp);
   }
-
+  
   /**
-   * Returns true if user is the owner or a member or a spectator of Project.
-   * @param project The project. 
-   * @param user The user who's belonging is being assessed. 
-   * @return True if user is the owner or a member of project.
+   * Returns an index of the current Projects, building a new one if they have changed since
+   * the last one was built.
+   * @return The ProjectMembershipIndex.
    */
-  private boolean belongs(Project project, User user) {
-    return 
-    (project.getOwner().equals(user.getEmail()) ||
-     project.getMembers().getMember().contains(user.getEmail()) ||
-     project.getSpectators().getSpectator().contains(user.getEmail())
-    );
+  private ProjectMembershipIndex getMembershipIndex() {
+    // Read the version first, so that an index built from older Projects is never reused.
+    int version = this.projectsVersion;
+    ProjectMembershipIndex index = this.membershipIndex;
+    if ((index == null) || (index.getVersion() != version)) {
+      List<Project> projects = new ArrayList<Project>(projectSetSize);
+      for (Map<String, CachedProject> name2project : this.owner2name2project.values()) {
+        for (CachedProject cached : name2project.values()) {
+          projects.add(cached.project);
+        }
+      }
+      index = new ProjectMembershipIndex(version, projects);
+      this.membershipIndex = index;
+    }
+    return index;
   }
   
   
@@ -546,14 +628,7 @@ public class ProjectManager {
    * @param projectName The name of the project.
    */
   public synchronized void deleteProject(User owner, String projectName) {
-    if (this.owner2name2project.containsKey(owner)) {
-      Project project = this.owner2name2project.get(owner).get(projectName);
-      if (project != null) {
-        this.project2ref.remove(project);
-        this.project2xml.remove(project);
-        this.owner2name2project.get(owner).remove(projectName);
-      }
-    }
+    removeFromCache(owner, projectName);
     this.dbManager.deleteProject(owner, projectName);
   }
   
@@ -566,13 +641,13 @@ public class ProjectManager {
    * @param owner The user of interest.
    */
   public synchronized void deleteProjects(User owner) {
-    if (this.owner2name2project.containsKey(owner)) {
-      for (Project project : this.getProjects(owner)) {
-          this.project2ref.remove(project);
-          this.project2xml.remove(project);
-          this.owner2name2project.get(owner).remove(project.getName());
-          this.dbManager.deleteProject(owner, project.getName());
+    Map<String, CachedProject> name2project = 
+      (owner == null) ? null : this.owner2name2project.remove(owner.getEmail());
+    if (name2project != null) {
+      for (String projectName : name2project.keySet()) {
+        this.dbManager.deleteProject(owner, projectName);
       }
+      this.projectsVersion++;
     }
   }
   
@@ -582,38 +657,38 @@ public class ProjectManager {
    * @param projectName The name of the project.
    * @return The Project XML string, or null if not found.
    */
-  public synchronized String getProjectString(User owner, String projectName) {
-    if (hasProject(owner, projectName)) {
-      Project project = this.owner2name2project.get(owner).get(projectName);
-      return this.project2xml.get(project);
-    }
-    return null;
+  public String getProjectString(User owner, String projectName) {
+    CachedProject cached = getCachedProject(owner, projectName);
+    return (cached == null) ? null : cached.xml;
   }  
   
   /**
-   * Returns a set containing the current Project instances. 
+   * Returns a set containing copies of the current Project instances. 
    * For thread safety, a fresh Set of Projects is built each time this is called. 
    * @return A Set containing the current Projects. 
    */
-  public synchronized Set<Project> getProjects() {
+  public Set<Project> getProjects() {
     Set<Project> projectSet = new HashSet<Project>(projectSetSize);
-    for (User user : this.owner2name2project.keySet()) {
-      for (String projectName : this.owner2name2project.get(user).keySet()) {
-        projectSet.add(this.owner2name2project.get(user).get(projectName));
+    for (Map<String, CachedProject> name2project : this.owner2name2project.values()) {
+      for (CachedProject cached : name2project.values()) {
+        projectSet.add(ProjectUtils.copy(cached.project));
       }
     }
     return projectSet;
   }
   
   /**
-   * Returns all of the projects owned by this user.
+   * Returns copies of all of the projects owned by this user.
    * @param user The user whose projects are to be returned. 
    * @return A set of the Projects owned by this user. 
    */
-  public synchronized Set<Project> getProjects(User user) {
+  public Set<Project> getProjects(User user) {
     Set<Project> projectSet = new HashSet<Project>(projectSetSize);
-    for (String projectName : this.owner2name2project.get(user).keySet()) {
-      projectSet.add(this.owner2name2project.get(user).get(projectName));
+    Map<String, CachedProject> name2project = this.owner2name2project.get(user.getEmail());
+    if (name2project != null) {
+      for (CachedProject cached : name2project.values()) {
+        projectSet.add(ProjectUtils.copy(cached.project));
+      }
     }
     return projectSet;
   }
@@ -628,7 +703,7 @@ public class ProjectManager {
    * @return The XML SensorDataIndex string providing an index to all data for this project.
    * @throws Exception If things go wrong. 
    */
-  public synchronized String getProjectSensorDataIndex(User owner, Project project) 
+  public String getProjectSensorDataIndex(User owner, Project project) 
   throws Exception {
     SensorDataManager sensorDataManager = this.getSensorDataManager(); 
     XMLGregorianCalendar startTime = project.getStartTime();
@@ -653,7 +728,7 @@ public class ProjectManager {
    * starting at startTime and ending at endTime. 
    * @throws Exception if problems occur.
    */  
-  public synchronized String getProjectSensorDataIndex(User owner, 
+  public String getProjectSensorDataIndex(User owner, 
       Project project, XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt) 
   throws Exception {
     SensorDataManager sensorDataManager = this.getSensorDataManager(); 
@@ -677,7 +752,7 @@ public class ProjectManager {
    * starting at startTime and ending at endTime. 
    * @throws Exception if problems occur.
    */  
-  public synchronized String getProjectSensorDataIndex(User owner, 
+  public String getProjectSensorDataIndex(User owner, 
       Project project, XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, 
       String tool) 
   throws Exception {
@@ -704,7 +779,7 @@ public class ProjectManager {
    * starting at startTime and ending at endTime with the specified startIndex and maxInstances. 
    * @throws Exception if problems occur.
    */  
-  public synchronized String getProjectSensorDataIndex(User owner, 
+  public String getProjectSensorDataIndex(User owner, 
       Project project, XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int startIndex,
       int maxInstances) 
   throws Exception {
@@ -727,14 +802,225 @@ public class ProjectManager {
    * @return The SensorDataIndex containing the snapshot of sensor data. 
    * @throws Exception If problems occur.
    */
-  public synchronized String getProjectSensorDataSnapshot(
+  public String getProjectSensorDataSnapshot(
       Project project, XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt,
       String tool)  throws Exception {
     List<String> patterns = project.getUriPatterns().getUriPattern();
     List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().flushForRead();
     return dbManager.getProjectSensorDataSnapshot(users, startTime, endTime, patterns, sdt, tool);
   }
   
+  /**
+   * Writes the XML SensorDataIndex for all data associated with the Project to writer.
+   * The writeProject* methods are used to stream an index straight into a response.
+   * @param writer The writer that receives the index.
+   * @param owner The User that owns this Project.
+   * @param project the Project instance.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataIndex(Writer writer, User owner, Project project) 
+  throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDataIndex(writer, users, project.getStartTime(), 
+        project.getEndTime(), patterns, null);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the data associated with this Project within the 
+   * specified start and end times to writer.
+   * @param writer The writer that receives the index.
+   * @param owner The User who owns this Project. 
+   * @param project the Project.
+   * @param startTime The startTime.
+   * @param endTime The endTime.
+   * @param sdt The SensorDataType of interest, or null if all sensordatatypes are to be retrieved.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataIndex(Writer writer, User owner, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt) 
+  throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDataIndex(writer, users, startTime, endTime, patterns, 
+        sdt);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the data associated with this Project within the 
+   * specified start and end times for the given sdt and tool to writer.
+   * @param writer The writer that receives the index.
+   * @param owner The User who owns this Project. 
+   * @param project the Project.
+   * @param startTime The startTime.
+   * @param endTime The endTime.
+   * @param sdt The SensorDataType of interest, or null if all sensordatatypes are to be retrieved.
+   * @param tool The tool of interest.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataIndex(Writer writer, User owner, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool) 
+  throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDataIndex(writer, users, startTime, endTime, patterns, 
+        sdt, tool);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for the data associated with this Project within the 
+   * specified start and end times and startIndex and maxInstances to writer.
+   * @param writer The writer that receives the index.
+   * @param owner The User who owns this Project. 
+   * @param project the Project.
+   * @param startTime The startTime.
+   * @param endTime The endTime.
+   * @param startIndex The starting index within the timestamp-ordered list of all sensor data
+   * instances associated with this project at the time of this call.
+   * @param maxInstances The maximum number of instances to return in the index.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataIndex(Writer writer, User owner, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, int startIndex, 
+      int maxInstances) throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDataIndex(writer, users, startTime, endTime, patterns, 
+        startIndex, maxInstances);
+  }
+  
+  /**
+   * Writes the SensorDataIndex for at most maxInstances of the data associated with this 
+   * Project within the specified start and end times to writer, beginning immediately after 
+   * the instance identified by token. If more data remains, the index carries a 
+   * ContinuationToken that retrieves the next page.
+   * @param writer The writer that receives the index.
+   * @param owner The User who owns this Project. 
+   * @param project the Project.
+   * @param startTime The startTime.
+   * @param endTime The endTime.
+   * @param token The last instance of the previous page, or null to start at the first instance.
+   * @param maxInstances The maximum number of instances to return in the index.
+   * @throws IOException If the page cannot be retrieved, or the index cannot be written.
+   */
+  public void writeProjectSensorDataPage(Writer writer, User owner, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, ContinuationToken token, 
+      int maxInstances) throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDataIndexPage(writer, users, startTime, endTime, 
+        patterns, token, maxInstances);
+  }
+  
+  /**
+   * Writes the SensorDataIndex representing the "snapshot" of the sensor data for the given 
+   * project in the given interval for the given sdt to writer.  Tool is optional and can be 
+   * null.
+   * @param writer The writer that receives the index.
+   * @param project The project.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The sensor data type of interest. 
+   * @param tool The tool of interest, or null if any tool is acceptable.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeProjectSensorDataSnapshot(Writer writer, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool) 
+  throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().flushForRead();
+    dbManager.writeProjectSensorDataSnapshot(writer, users, startTime, endTime, patterns, sdt, 
+        tool);
+  }
+  
+  /**
+   * Writes an XML SensorDatas containing the sensor data instances listed by the corresponding 
+   * writeProjectSensorDataIndex method to writer, so that clients need not retrieve each 
+   * instance in the index separately.
+   * @param writer The writer that receives the instances.
+   * @param project The project.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The sensor data type of interest, or null for all.
+   * @param tool The tool of interest, or null for all. 
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeProjectSensorDatas(Writer writer, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool) 
+  throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDatas(writer, users, startTime, endTime, patterns, 
+        sdt, tool);
+  }
+  
+  /**
+   * Writes an XML SensorDataRows holding the passed fields of each of the sensor data instances
+   * listed by the corresponding writeProjectSensorDataIndex method to writer.
+   * @param writer The writer that receives the rows.
+   * @param project The project.
+   * @param startTime The start time.
+   * @param endTime The end time.
+   * @param sdt The sensor data type of interest, or null for all.
+   * @param tool The tool of interest, or null for all. 
+   * @param fields The fields of each instance to be written.
+   * @throws IOException If the rows cannot be written.
+   */
+  public void writeProjectSensorDataRows(Writer writer, Project project, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, String sdt, String tool,
+      SensorDataFields fields) throws IOException {
+    List<String> patterns = project.getUriPatterns().getUriPattern();
+    List<User> users = getProjectUsers(project);
+    this.getSensorDataManager().writeSensorDataRows(writer, users, startTime, endTime, patterns, 
+        sdt, tool, fields);
+  }
+  
+  /**
+   * Writes an XML SensorDatas containing the sensor data instances named by refs to writer.
+   * Only the refs owned by the project owner or a member, and whose timestamp falls within the 
+   * project's start and end times, are retrieved; the others, and refs to instances that no 
+   * longer exist, are skipped. The instances are grouped by owner, in the order of the 
+   * project's members, and ordered by timestamp within each owner.
+   * @param writer The writer that receives the instances.
+   * @param project The project.
+   * @param refs The SensorDataRefs, as found in an index of the project's sensor data.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeProjectSensorDatas(Writer writer, Project project, List<SensorDataRef> refs)
+  throws IOException {
+    Map<String, User> email2user = new HashMap<String, User>();
+    Map<User, List<XMLGregorianCalendar>> timestamps = 
+      new LinkedHashMap<User, List<XMLGregorianCalendar>>();
+    for (User user : getProjectUsers(project)) {
+      email2user.put(user.getEmail(), user);
+      timestamps.put(user, new ArrayList<XMLGregorianCalendar>());
+    }
+    for (SensorDataRef ref : refs) {
+      User user = (ref.getOwner() == null) ? null 
+          : email2user.get(convertOwnerToEmail(ref.getOwner()));
+      XMLGregorianCalendar timestamp = ref.getTimestamp();
+      if ((user != null) && (timestamp != null) 
+          && ProjectUtils.isValidStartTime(project, timestamp)
+          && ((project.getEndTime() == null) || ProjectUtils.isValidEndTime(project, timestamp))) {
+        timestamps.get(user).add(timestamp);
+      }
+    }
+    this.getSensorDataManager().writeSensorDatas(writer, timestamps);
+  }
+  
+  /**
+   * Returns the time of the last change to this Project or to the sensor data of its owner or
+   * members, which resources use as the validator of representations computed from them.
+   * @param project The Project.
+   * @return The time, in milliseconds.
+   */
+  public long getProjectLastChange(Project project) {
+    this.getSensorDataManager().flushForRead();
+    return this.dbManager.getProjectLastChange(project, getProjectUsers(project));
+  }
+  
   /**
    * Creates and returns the list of User instances associated with project.
    * The users are the owner plus all members.
@@ -773,12 +1059,13 @@ public class ProjectManager {
    * starting at startTime and ending at endTime. 
    * @throws Exception if startString or endString are not XMLGregorianCalendars.
    */  
-  public synchronized String getProjectSummaryString(Project project, 
+  public String getProjectSummaryString(Project project, 
       XMLGregorianCalendar startTime, XMLGregorianCalendar endTime) throws Exception {
     List<String> patterns = project.getUriPatterns().getUriPattern();
     List<User> users = getProjectUsers(project);
     String href = this.server.getHostName() + "projects/" + project.getOwner() + "/" +
     project.getName() + "/summary?startTime=" + startTime + "&endTime=" + endTime;
+    this.getSensorDataManager().flushForRead();
     ProjectSummary summary = dbManager.getProjectSummary(users, startTime, endTime, patterns, href);
     return makeProjectSummaryString(summary);
   }
@@ -791,19 +1078,15 @@ public class ProjectManager {
    * @return The MultiDayProjectSummary instance for the given set of days. 
    * @throws Exception If problems occur. 
    */
-  public synchronized String getMultiDayProjectSummaryString(Project project, 
+  public String getMultiDayProjectSummaryString(Project project, 
       XMLGregorianCalendar startTime, Integer numDays) throws Exception {
     List<String> patterns = project.getUriPatterns().getUriPattern();
     List<User> users = getProjectUsers(project);
-    MultiDayProjectSummary multiSummary = new MultiDayProjectSummary();
-    for (int i = 0; i < numDays; i++) {
-      XMLGregorianCalendar start = Tstamp.incrementDays(startTime, i);
-      XMLGregorianCalendar end = Tstamp.incrementDays(startTime, i + 1);
-      String href = this.server.getHostName() + "projects/" + project.getOwner() + "/" +
-      project.getName() + "/summary?startTime=" + start + "&endTime=" + end;
-      ProjectSummary summary = dbManager.getProjectSummary(users, start, end, patterns, href);
-      multiSummary.getProjectSummary().add(summary);
-    }
+    String href = this.server.getHostName() + "projects/" + project.getOwner() + "/" +
+    project.getName() + "/summary";
+    this.getSensorDataManager().flushForRead();
+    MultiDayProjectSummary multiSummary = 
+      dbManager.getMultiDayProjectSummary(users, startTime, numDays, patterns, href);
     return makeMultiDayProjectSummaryString(multiSummary);
   }
   
@@ -828,27 +1111,20 @@ public class ProjectManager {
    * @param  owner The user who is the owner of the Projects.
    * @return True if that User is defined and has at least one Project.
    */
-  public synchronized boolean hasProjects(User owner) {
-    return this.owner2name2project.containsKey(owner);
+  public boolean hasProjects(User owner) {
+    return (owner != null) && this.owner2name2project.containsKey(owner.getEmail());
   }
   
   /**
-   * Returns the Project associated with user and projectName, or null if not found.
+   * Returns a copy of the Project associated with user and projectName, or null if not found.
+   * The copy can be modified by the caller, and the changes saved with putProject.
    * @param  owner The user. 
    * @param  projectName A project name
    * @return The project, or null if not found.
    */
-  public synchronized Project getProject(User owner, String projectName) {
-    if ((owner == null) || (projectName == null)) {
-      return null;
-    }
-    Project project = ((hasProject(owner, projectName)) ? 
-        owner2name2project.get(owner).get(projectName) : null);
-    if (project != null) {
-      project = provideDefaults(project);
-    }
-    return project;
-
+  public Project getProject(User owner, String projectName) {
+    CachedProject cached = getCachedProject(owner, projectName);
+    return (cached == null) ? null : ProjectUtils.copy(cached.project);
   }
   
   /**
@@ -858,11 +1134,8 @@ public class ProjectManager {
    * @return The corresponding Project instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized Project makeProject(String xmlString) throws Exception {
-    //System.out.println("Got here mp.1");
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    //System.out.println("Got here mp.2");
-    return (Project)unmarshaller.unmarshal(new StringReader(xmlString));
+  public final Project makeProject(String xmlString) throws Exception {
+    return (Project) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -872,10 +1145,9 @@ public class ProjectManager {
    * @return The corresponding ProjectIndex instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized ProjectIndex makeProjectIndex(String xmlString) 
+  public final ProjectIndex makeProjectIndex(String xmlString) 
   throws Exception {
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    return (ProjectIndex)unmarshaller.unmarshal(new StringReader(xmlString));
+    return (ProjectIndex) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -885,23 +1157,8 @@ public class ProjectManager {
    * @return The XML String representation.
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeProject (Project project) throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(project, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+  public final String makeProject (Project project) throws Exception {
+    return this.serializer.marshal(project);
   }
 
   /**
@@ -912,25 +1169,10 @@ public class ProjectManager {
    * @return The XML String representation of it as a ProjectRef
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeProjectRefString (Project project) 
+  public final String makeProjectRefString (Project project) 
   throws Exception {
     ProjectRef ref = makeProjectRef(project);
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(ref, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return this.serializer.marshal(ref);
   }
   
   /**
@@ -939,24 +1181,9 @@ public class ProjectManager {
    * @return The XML String representation of it.
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeProjectSummaryString (ProjectSummary summary) 
+  public final String makeProjectSummaryString (ProjectSummary summary) 
   throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(summary, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return this.serializer.marshal(summary);
   }
   
   /**
@@ -965,31 +1192,16 @@ public class ProjectManager {
    * @return The XML String representation of it.
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeMultiDayProjectSummaryString (MultiDayProjectSummary summary)
+  public final String makeMultiDayProjectSummaryString (MultiDayProjectSummary summary)
   throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(summary, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return this.serializer.marshal(summary);
   }
   /**
    * Returns a ProjectRef instance constructed from a Project instance.
    * @param project The Project instance. 
    * @return A ProjectRef instance. 
    */
-  public synchronized ProjectRef makeProjectRef(Project project) {
+  public ProjectRef makeProjectRef(Project project) {
     ProjectRef ref = new ProjectRef();
     String ownerEmail = convertOwnerToEmail(project.getOwner());
     ref.setName(project.getName());
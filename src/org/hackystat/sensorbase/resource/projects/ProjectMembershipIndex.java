@@ -0,0 +1,204 @@
+package org.hackystat.sensorbase.resource.projects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.projects.jaxb.Project;
+
+/**
+ * An index from each user to the Projects they belong to (as owner, member, or spectator), 
+ * used to decide whether two users are in the same Project at a given time without looking at
+ * every Project. 
+ * <p>
+ * For each pair of users that has been checked, the periods during which they share a Project
+ * are cached as a sorted list of merged intervals, so later checks for that pair take a 
+ * binary search. At most maxCachedPairs pairs are cached; the cache is emptied when it fills.
+ * <p>
+ * An index is built from a snapshot of the Projects and never reflects later changes. 
+ * ProjectManager builds a new one after a Project changes. Apart from the thread-safe cache, 
+ * instances are not modified after construction and can be shared without locking. 
+ *
+ * @author Philip Johnson
+ */
+class ProjectMembershipIndex {
+  
+  /** The maximum number of user pairs whose shared intervals are cached. */
+  private static final int maxCachedPairs = 10000;
+  
+  /** The version of the Projects from which this index was built. */
+  private final int version;
+  
+  /** The Projects that each user belongs to, keyed by email. */
+  private final Map<String, Set<Project>> user2projects = new HashMap<String, Set<Project>>();
+  
+  /** 
+   * The merged intervals during which each pair of users share a Project, keyed by the pair 
+   * of emails. Each array holds the start and end times in milliseconds of each interval. 
+   */
+  private final Map<List<String>, long[]> pair2intervals = 
+    new ConcurrentHashMap<List<String>, long[]>();
+  
+  /** Orders intervals by their start time. */
+  private static final Comparator<long[]> startComparator = new Comparator<long[]>() {
+    public int compare(long[] interval1, long[] interval2) {
+      return (interval1[0] < interval2[0]) ? -1 : ((interval1[0] == interval2[0]) ? 0 : 1);
+    }
+  };
+  
+  /**
+   * Creates an index of the passed Projects, which must not be modified afterwards.
+   * @param version The version of the Projects, as maintained by ProjectManager.
+   * @param projects The Projects.
+   */
+  ProjectMembershipIndex(int version, Collection<Project> projects) {
+    this.version = version;
+    for (Project project : projects) {
+      addProject(project.getOwner(), project);
+      if (project.isSetMembers()) {
+        for (String member : project.getMembers().getMember()) {
+          addProject(member, project);
+        }
+      }
+      if (project.isSetSpectators()) {
+        for (String spectator : project.getSpectators().getSpectator()) {
+          addProject(spectator, project);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Records that the user belongs to the project. 
+   * @param email The user's email.
+   * @param project The project.
+   */
+  private void addProject(String email, Project project) {
+    Set<Project> projects = this.user2projects.get(email);
+    if (projects == null) {
+      projects = new HashSet<Project>();
+      this.user2projects.put(email, projects);
+    }
+    projects.add(project);
+  }
+  
+  /**
+   * Returns the version of the Projects from which this index was built.
+   * @return The version.
+   */
+  int getVersion() {
+    return this.version;
+  }
+  
+  /**
+   * Returns true if both users belong to a Project whose interval includes the timestamp.
+   * @param email1 The first user's email.
+   * @param email2 The second user's email.
+   * @param timestamp The timestamp.
+   * @return True if the users are in the same Project at that time.
+   */
+  boolean inProject(String email1, String email2, XMLGregorianCalendar timestamp) {
+    List<String> pair = Arrays.asList(email1, email2);
+    long[] intervals = this.pair2intervals.get(pair);
+    if (intervals == null) {
+      intervals = getSharedIntervals(email1, email2);
+      if (this.pair2intervals.size() >= maxCachedPairs) {
+        this.pair2intervals.clear();
+      }
+      this.pair2intervals.put(pair, intervals);
+    }
+    return contains(intervals, getMillis(timestamp));
+  }
+  
+  /**
+   * Returns the merged intervals of the Projects that both users belong to.
+   * @param email1 The first user's email.
+   * @param email2 The second user's email.
+   * @return The start and end times of each interval, ordered by start time.
+   */
+  private long[] getSharedIntervals(String email1, String email2) {
+    Set<Project> projects1 = this.user2projects.get(email1);
+    Set<Project> projects2 = this.user2projects.get(email2);
+    if ((projects1 == null) || (projects2 == null)) {
+      return new long[0];
+    }
+    List<long[]> intervals = new ArrayList<long[]>();
+    for (Project project : projects1) {
+      if (projects2.contains(project)) {
+        intervals.add(new long[] { getMillis(project.getStartTime()), 
+            getMillis(project.getEndTime()) });
+      }
+    }
+    return merge(intervals);
+  }
+  
+  /**
+   * Returns the union of the passed closed intervals as a list of disjoint intervals.
+   * This method is static and package private to support testing.
+   * @param intervals The [start, end] intervals, in any order.
+   * @return The start and end times of each disjoint interval, ordered by start time.
+   */
+  static long[] merge(List<long[]> intervals) {
+    Collections.sort(intervals, startComparator);
+    List<long[]> merged = new ArrayList<long[]>(intervals.size());
+    for (long[] interval : intervals) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if ((last != null) && (interval[0] <= last[1])) {
+        last[1] = Math.max(last[1], interval[1]);
+      }
+      else {
+        merged.add(new long[] { interval[0], interval[1] });
+      }
+    }
+    long[] result = new long[merged.size() * 2];
+    for (int i = 0; i < merged.size(); i++) {
+      result[2 * i] = merged.get(i)[0];
+      result[2 * i + 1] = merged.get(i)[1];
+    }
+    return result;
+  }
+  
+  /**
+   * Returns true if time falls within one of the intervals, including their end points.
+   * This method is static and package private to support testing.
+   * @param intervals The disjoint intervals returned by merge.
+   * @param time The time in milliseconds.
+   * @return True if the time is in an interval.
+   */
+  static boolean contains(long[] intervals, long time) {
+    // Find the last interval that starts at or before time.
+    int low = 0;
+    int high = (intervals.length / 2) - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (intervals[2 * mid] <= time) {
+        found = mid;
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    return (found >= 0) && (time <= intervals[2 * found + 1]);
+  }
+  
+  /**
+   * Returns the passed timestamp in milliseconds.
+   * @param timestamp The timestamp.
+   * @return Its time in milliseconds.
+   */
+  private static long getMillis(XMLGregorianCalendar timestamp) {
+    return timestamp.toGregorianCalendar().getTimeInMillis();
+  }
+}
@@ -2,7 +2,13 @@ package org.hackystat.sensorbase.resource.projects;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
+import org.hackystat.sensorbase.resource.projects.jaxb.Invitations;
+import org.hackystat.sensorbase.resource.projects.jaxb.Members;
 import org.hackystat.sensorbase.resource.projects.jaxb.Project;
+import org.hackystat.sensorbase.resource.projects.jaxb.Properties;
+import org.hackystat.sensorbase.resource.projects.jaxb.Property;
+import org.hackystat.sensorbase.resource.projects.jaxb.Spectators;
+import org.hackystat.sensorbase.resource.projects.jaxb.UriPatterns;
 import org.hackystat.utilities.tstamp.Tstamp;
 
 /**
@@ -51,4 +57,55 @@ public class ProjectUtils {
     return (isValidStartTime(project, start) && isValidEndTime(project, end) &&
     Tstamp.lessThan(start, end));
   }
+  
+  /**
+   * Returns a deep copy of the passed project, so that the copy can be modified without 
+   * affecting the original. 
+   * @param project The project.
+   * @return A new Project instance with the same contents.
+   */
+  public static Project copy(Project project) {
+    Project copy = new Project();
+    copy.setName(project.getName());
+    copy.setOwner(project.getOwner());
+    copy.setDescription(project.getDescription());
+    copy.setStartTime(copy(project.getStartTime()));
+    copy.setEndTime(copy(project.getEndTime()));
+    copy.setLastMod(copy(project.getLastMod()));
+    if (project.getMembers() != null) {
+      copy.setMembers(new Members());
+      copy.getMembers().getMember().addAll(project.getMembers().getMember());
+    }
+    if (project.getInvitations() != null) {
+      copy.setInvitations(new Invitations());
+      copy.getInvitations().getInvitation().addAll(project.getInvitations().getInvitation());
+    }
+    if (project.getSpectators() != null) {
+      copy.setSpectators(new Spectators());
+      copy.getSpectators().getSpectator().addAll(project.getSpectators().getSpectator());
+    }
+    if (project.getUriPatterns() != null) {
+      copy.setUriPatterns(new UriPatterns());
+      copy.getUriPatterns().getUriPattern().addAll(project.getUriPatterns().getUriPattern());
+    }
+    if (project.getProperties() != null) {
+      copy.setProperties(new Properties());
+      for (Property property : project.getProperties().getProperty()) {
+        Property propertyCopy = new Property();
+        propertyCopy.setKey(property.getKey());
+        propertyCopy.setValue(property.getValue());
+        copy.getProperties().getProperty().add(propertyCopy);
+      }
+    }
+    return copy;
+  }
+  
+  /**
+   * Returns a copy of the passed timestamp, which may be null.
+   * @param tstamp The timestamp.
+   * @return A copy of tstamp, or null.
+   */
+  private static XMLGregorianCalendar copy(XMLGregorianCalendar tstamp) {
+    return (tstamp == null) ? null : (XMLGregorianCalendar) tstamp.clone();
+  }
 }
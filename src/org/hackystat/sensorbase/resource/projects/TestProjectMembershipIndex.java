@@ -0,0 +1,79 @@
+package org.hackystat.sensorbase.resource.projects;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hackystat.sensorbase.resource.projects.jaxb.Members;
+import org.hackystat.sensorbase.resource.projects.jaxb.Project;
+import org.hackystat.sensorbase.resource.projects.jaxb.Spectators;
+import org.hackystat.utilities.tstamp.Tstamp;
+import org.junit.Test;
+
+/**
+ * Tests the ProjectMembershipIndex, independently of the server.
+ * @author Philip Johnson
+ */
+public class TestProjectMembershipIndex {
+  
+  /**
+   * Tests that overlapping and touching intervals are merged, and that containment 
+   * includes the end points.
+   */
+  @Test
+  public void testIntervals() {
+    List<long[]> intervals = new ArrayList<long[]>();
+    intervals.add(new long[] { 50, 60 });
+    intervals.add(new long[] { 10, 20 });
+    intervals.add(new long[] { 15, 30 });
+    intervals.add(new long[] { 30, 40 });
+    intervals.add(new long[] { 70, 70 });
+    long[] merged = ProjectMembershipIndex.merge(intervals);
+    assertEquals("Checking merged size", 6, merged.length);
+    assertEquals("Checking 9", false, ProjectMembershipIndex.contains(merged, 9));
+    assertEquals("Checking 10", true, ProjectMembershipIndex.contains(merged, 10));
+    assertEquals("Checking 40", true, ProjectMembershipIndex.contains(merged, 40));
+    assertEquals("Checking 45", false, ProjectMembershipIndex.contains(merged, 45));
+    assertEquals("Checking 60", true, ProjectMembershipIndex.contains(merged, 60));
+    assertEquals("Checking 70", true, ProjectMembershipIndex.contains(merged, 70));
+    assertEquals("Checking 71", false, ProjectMembershipIndex.contains(merged, 71));
+    assertEquals("Checking empty", false, ProjectMembershipIndex.contains(new long[0], 10));
+  }
+  
+  /**
+   * Tests that owners, members, and spectators are found in the same project only during 
+   * the project's interval.
+   * @throws Exception If problems occur creating timestamps.
+   */
+  @Test
+  public void testInProject() throws Exception {
+    Project project = new Project();
+    project.setOwner("owner");
+    project.setMembers(new Members());
+    project.getMembers().getMember().add("member");
+    project.setSpectators(new Spectators());
+    project.getSpectators().getSpectator().add("spectator");
+    project.setStartTime(Tstamp.makeTimestamp("2008-01-01T00:00:00.000"));
+    project.setEndTime(Tstamp.makeTimestamp("2008-01-31T00:00:00.000"));
+    Project other = new Project();
+    other.setOwner("other");
+    other.setStartTime(project.getStartTime());
+    other.setEndTime(project.getEndTime());
+    List<Project> projects = new ArrayList<Project>();
+    projects.add(project);
+    projects.add(other);
+    ProjectMembershipIndex index = new ProjectMembershipIndex(1, projects);
+    
+    assertEquals("Checking member", true, 
+        index.inProject("owner", "member", Tstamp.makeTimestamp("2008-01-15T00:00:00.000")));
+    assertEquals("Checking spectator", true, 
+        index.inProject("spectator", "owner", Tstamp.makeTimestamp("2008-01-31T00:00:00.000")));
+    assertEquals("Checking after end", false, 
+        index.inProject("owner", "member", Tstamp.makeTimestamp("2008-02-01T00:00:00.000")));
+    assertEquals("Checking other project", false, 
+        index.inProject("owner", "other", Tstamp.makeTimestamp("2008-01-15T00:00:00.000")));
+    assertEquals("Checking unknown user", false, 
+        index.inProject("unknown", "owner", Tstamp.makeTimestamp("2008-01-15T00:00:00.000")));
+  }
+}
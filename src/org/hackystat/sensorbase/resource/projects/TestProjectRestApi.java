@@ -3,7 +3,13 @@ package org.hackystat.sensorbase.resource.projects;
 import static org.hackystat.sensorbase.server.ServerProperties.TEST_DOMAIN_KEY;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 import org.hackystat.sensorbase.client.SensorBaseClient;
@@ -17,6 +23,9 @@ import org.hackystat.sensorbase.resource.projects.jaxb.SensorDataSummary;
 import org.hackystat.sensorbase.resource.projects.jaxb.UriPatterns;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataIndex;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRows;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDatas;
 import org.hackystat.sensorbase.test.SensorBaseRestApiHelper;
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.junit.Test;
@@ -288,6 +297,137 @@ public class TestProjectRestApi extends SensorBaseRestApiHelper {
 
   }
 
+  /**
+   * Test that paging through the sensor data of a project with continuation tokens returns
+   * each instance exactly once. Assumes the same default data as the test above.
+   * 
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void getTestUserProjectContinuationTokenParams() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), testUser, testUser);
+    client.authenticate();
+    XMLGregorianCalendar startTime = Tstamp.makeTimestamp(nineAm);
+    XMLGregorianCalendar endTime = Tstamp.makeTimestamp("2007-04-30T10:00:00.000");
+    
+    // A page larger than the data has no continuation token.
+    SensorDataIndex index = 
+      client.getProjectSensorData(testUser, testProject, startTime, endTime, null, 100);
+    assertEquals("Checking large page", 2, index.getSensorDataRef().size());
+    assertNull("Checking large page token", index.getContinuationToken());
+    
+    // Pages of one instance each.
+    index = client.getProjectSensorData(testUser, testProject, startTime, endTime, null, 1);
+    assertEquals("Checking page 1", 1, index.getSensorDataRef().size());
+    assertNotNull("Checking page 1 token", index.getContinuationToken());
+    String first = index.getSensorDataRef().get(0).getHref();
+    index = client.getProjectSensorData(testUser, testProject, startTime, endTime, 
+        index.getContinuationToken(), 1);
+    assertEquals("Checking page 2", 1, index.getSensorDataRef().size());
+    assertFalse("Checking page 2 differs", first.equals(index.getSensorDataRef().get(0).getHref()));
+    assertNull("Checking page 2 token", index.getContinuationToken());
+    
+    // An invalid token is an error.
+    try {
+      client.getProjectSensorData(testUser, testProject, startTime, endTime, "foo", 1);
+      fail("Invalid continuation token was accepted.");
+    }
+    catch (SensorBaseClientException e) {
+      assertTrue("Test invalid continuation token", is400(e));
+    }
+  }
+
+  /**
+   * Test that the batch retrieval of a project's sensor data returns the instances listed by 
+   * its index, both by query parameters and by a list of refs. Assumes the same default data
+   * as the tests above.
+   * 
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void getTestUserProjectSensorDatas() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), testUser, testUser);
+    client.authenticate();
+    XMLGregorianCalendar startTime = Tstamp.makeTimestamp(nineAm);
+    XMLGregorianCalendar endTime = Tstamp.makeTimestamp("2007-04-30T10:00:00.000");
+    SensorDataIndex index = client.getProjectSensorData(testUser, testProject, startTime, endTime);
+    
+    // By query parameters, in the order of the index.
+    SensorDatas datas = client.getProjectSensorDatas(testUser, testProject, startTime, endTime);
+    assertEquals("Checking batch size", 2, datas.getSensorData().size());
+    for (int i = 0; i < datas.getSensorData().size(); i++) {
+      assertEquals("Checking batch order", index.getSensorDataRef().get(i).getTimestamp(), 
+          datas.getSensorData().get(i).getTimestamp());
+    }
+    datas = client.getProjectSensorDatas(testUser, testProject, startTime, endTime, testSdt);
+    assertEquals("Checking sdt batch", 1, datas.getSensorData().size());
+    assertEquals("Checking sdt batch type", testSdt, 
+        datas.getSensorData().get(0).getSensorDataType());
+    datas = client.getProjectSensorDatas(testUser, testProject, startTime, endTime, testSdt, 
+        "CVS");
+    assertEquals("Checking tool batch", 0, datas.getSensorData().size());
+    
+    // By refs, including one to an instance that does not exist.
+    List<SensorDataRef> refs = new ArrayList<SensorDataRef>(index.getSensorDataRef());
+    SensorDataRef missing = new SensorDataRef();
+    missing.setOwner(testUser);
+    missing.setTimestamp(Tstamp.makeTimestamp("2007-04-30T09:59:59.999"));
+    refs.add(missing);
+    datas = client.getProjectSensorDatas(testUser, testProject, refs);
+    assertEquals("Checking refs batch", 2, datas.getSensorData().size());
+    SensorData data = client.getSensorData(index.getSensorDataRef().get(0));
+    assertEquals("Checking refs batch resource", data.getResource(), 
+        datas.getSensorData().get(0).getResource());
+  }
+
+  /**
+   * Test that the fields parameter of host/projects/{user}/{project}/sensordata returns the 
+   * selected fields of the instances listed by the index, including an empty value for a 
+   * property that an instance does not have, and that a bad field list is rejected. 
+   * Assumes the same default data as the tests above.
+   * 
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void getTestUserProjectSensorDataRows() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), testUser, testUser);
+    client.authenticate();
+    XMLGregorianCalendar startTime = Tstamp.makeTimestamp(nineAm);
+    XMLGregorianCalendar endTime = Tstamp.makeTimestamp("2007-04-30T10:00:00.000");
+    SensorDatas datas = client.getProjectSensorDatas(testUser, testProject, startTime, endTime);
+    List<String> fields = new ArrayList<String>();
+    fields.add("Timestamp");
+    fields.add("Resource");
+    fields.add("NoSuchProperty");
+    SensorDataRows rows = 
+      client.getProjectSensorDataRows(testUser, testProject, startTime, endTime, fields);
+    assertEquals("Checking fields", "Timestamp,Resource,NoSuchProperty", rows.getFields());
+    assertEquals("Checking rows", datas.getSensorData().size(), rows.getRow().size());
+    for (int i = 0; i < rows.getRow().size(); i++) {
+      SensorData data = datas.getSensorData().get(i);
+      List<String> values = rows.getRow().get(i).getValue();
+      assertEquals("Checking timestamp", data.getTimestamp(), 
+          Tstamp.makeTimestamp(values.get(0)));
+      assertEquals("Checking resource", data.getResource(), values.get(1));
+      assertEquals("Checking missing property", "", values.get(2));
+    }
+    rows = client.getProjectSensorDataRows(testUser, testProject, startTime, endTime, testSdt, 
+        fields);
+    assertEquals("Checking sdt rows", 1, rows.getRow().size());
+    rows = client.getProjectSensorDataRows(testUser, testProject, startTime, endTime, testSdt, 
+        "CVS", fields);
+    assertEquals("Checking tool rows", 0, rows.getRow().size());
+    
+    fields.add("");
+    try {
+      client.getProjectSensorDataRows(testUser, testProject, startTime, endTime, fields);
+      fail("Empty field name should have failed.");
+    }
+    catch (SensorBaseClientException e) {
+      assertTrue("Test empty field name", is400(e));
+    }
+  }
+
   /**
    * Test that PUT, rename, and DELETE of host/projects/{user}/{project} works.
    * 
@@ -0,0 +1,171 @@
+package org.hackystat.sensorbase.resource.projects;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.hackystat.sensorbase.resource.sensorbase.XmlWriterRepresentation;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataIndex;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
+import org.hackystat.utilities.tstamp.Tstamp;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Variant;
+
+/**
+ * The resource for processing host/projects/{user}/{projectname}/sensordata/batch.
+ * Returns a SensorDatas containing the full SensorData instances of this Project in one
+ * response, rather than the SensorDataIndex returned by the project's sensordata resource,
+ * whose instances must then be retrieved one request at a time.
+ * <ul>
+ * <li> GET with startTime and endTime, and optionally sdt and tool, returns the instances that
+ * the index with the same parameters lists.
+ * <li> POST with a SensorDataIndex returns the instances named by its SensorDataRefs, such as a
+ * subset of a previously retrieved index.
+ * </ul>
+ * The instances are streamed to the client as they are retrieved from the database.
+ *
+ * @author Philip Johnson
+ */
+public class UserProjectSensorDataBatchResource extends SensorBaseResource {
+
+  /** A required query parameter for GET. */
+  private String startTime;
+  /** A required query parameter for GET. */
+  private String endTime;
+  /** An optional query parameter. */
+  private String sdt;
+  /** An optional query parameter, used with sdt. */
+  private String tool;
+
+  /**
+   * Provides the following representational variants: TEXT_XML.
+   * @param context The context.
+   * @param request The request object.
+   * @param response The response object.
+   */
+  public UserProjectSensorDataBatchResource(Context context, Request request,
+      Response response) {
+    super(context, request, response);
+    this.startTime = (String) request.getAttributes().get("startTime");
+    this.endTime = (String) request.getAttributes().get("endTime");
+    this.sdt = (String) request.getAttributes().get("sdt");
+    this.tool = (String) request.getAttributes().get("tool");
+  }
+
+  /**
+   * Returns a SensorDatas containing all SensorData from all Members in this project over the
+   * specified time period for the (optional) SDT and (optional) tool that match at least one
+   * of the UriPatterns in the project definition.
+   *
+   * Returns an error condition if:
+   * <ul>
+   * <li> The user does not exist.
+   * <li> The authenticated user is not the uriUser or the Admin or a member of the project or
+   * a spectator of the project.
+   * <li> The Project Resource named by the User and Project does not exist.
+   * <li> startTime or endTime is not supplied or is not an XMLGregorianCalendar string.
+   * <li> endTime is earlier than startTime, or the interval is outside the project's.
+   * </ul>
+   *
+   * @param variant The representational variant requested.
+   * @return The representation.
+   */
+  @Override
+  public Representation represent(Variant variant) {
+    if (!validateUriUserIsUser() ||
+        !validateUriProjectName() ||
+        !validateProjectViewer()) {
+      return null;
+    }
+    final XMLGregorianCalendar start;
+    final XMLGregorianCalendar end;
+    try {
+      start = Tstamp.makeTimestamp(this.startTime);
+      end = Tstamp.makeTimestamp(this.endTime);
+    }
+    catch (Exception e) {
+      setStatusMiscError("startTime (or endTime) is not supplied and/or is not a timestamp");
+      return null;
+    }
+    // We have a start and end time. Make sure startTime is not greater than endTime.
+    if (Tstamp.greaterThan(start, end)) {
+      setStatusMiscError("startTime cannot be greater than endTime.");
+      return null;
+    }
+    // Make sure that startTime is not less than project.startTime.
+    if (!ProjectUtils.isValidStartTime(project, start)) {
+      setStatusMiscError(String.format("%s cannot be less than project start time of %s",
+          start, project.getStartTime()));
+      return null;
+    }
+    // And that endTime is not past the project endTime (if there is a project endTime).
+    if ((project.getEndTime() != null) && (!ProjectUtils.isValidEndTime(project, end))) {
+      setStatusMiscError(String.format("%s cannot be greater than project end time of %s",
+          end, project.getEndTime()));
+      return null;
+    }
+    if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      return new XmlWriterRepresentation() {
+        @Override
+        protected void writeXml(Writer writer) throws IOException {
+          projectManager.writeProjectSensorDatas(writer, project, start, end, sdt, tool);
+        }
+      };
+    }
+    return null;
+  }
+
+  /**
+   * Indicate the POST method is supported.
+   * @return True.
+   */
+  @Override
+  public boolean allowPost() {
+    return true;
+  }
+
+  /**
+   * Implement the POST method that returns the SensorData instances named by the
+   * SensorDataRefs in the posted SensorDataIndex, grouped by owner and ordered by timestamp.
+   * Refs to instances not owned by the project's owner or members, outside of the project's
+   * start and end times, or that do not exist are skipped.
+   * <ul>
+   * <li> UriUser must be a defined user, and user/project must be a defined project.
+   * <li> The authorized user must be able to view the project.
+   * <li> The payload must be a SensorDataIndex.
+   * </ul>
+   * @param entity The XML representation of the SensorDataIndex.
+   */
+  @Override
+  public void acceptRepresentation(Representation entity) {
+    if (!validateUriUserIsUser() ||
+        !validateUriProjectName() ||
+        !validateProjectViewer()) {
+      return;
+    }
+    final List<SensorDataRef> refs;
+    try {
+      SensorDataIndex index = super.sensorDataManager.makeSensorDataIndex(entity.getText());
+      refs = index.getSensorDataRef();
+    }
+    catch (Exception e) {
+      setStatusMiscError("Bad or missing SensorDataIndex content");
+      return;
+    }
+    getResponse().setEntity(new XmlWriterRepresentation() {
+      @Override
+      protected void writeXml(Writer writer) throws IOException {
+        projectManager.writeProjectSensorDatas(writer, project, refs);
+      }
+    });
+    getResponse().setStatus(Status.SUCCESS_OK);
+  }
+}
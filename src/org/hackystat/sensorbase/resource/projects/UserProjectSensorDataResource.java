@@ -1,8 +1,15 @@
 package org.hackystat.sensorbase.resource.projects;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
 import javax.xml.datatype.XMLGregorianCalendar;
 
+import org.hackystat.sensorbase.db.ContinuationToken;
 import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.hackystat.sensorbase.resource.sensorbase.XmlWriterRepresentation;
+import org.hackystat.sensorbase.resource.sensordata.SensorDataFields;
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.restlet.Context;
 import org.restlet.data.MediaType;
@@ -16,6 +23,15 @@ import org.restlet.resource.Variant;
  * Returns an index to the SensorData resources associated with this  Project.
  * This includes all of the SensorData from all members that matches the UriPattern.
  * Note that this could be quite large if you do not also specify a start and end time.
+ * <p>
+ * Large intervals should be retrieved in pages by supplying maxInstances without a startIndex.
+ * Each page then carries a ContinuationToken attribute if more data remains, which is passed 
+ * back as the continuationToken parameter to retrieve the next page. Unlike startIndex, this 
+ * does not require the server to skip over all of the preceding data on each request.
+ * <p>
+ * A fields parameter with startTime and endTime, such as fields=Timestamp,Resource,Type,
+ * returns a SensorDataRows instead of the index, holding just those fields of each instance.
+ * See SensorDataFields for the field names.
  * 
  * @author Philip Johnson
  */
@@ -33,6 +49,10 @@ public class UserProjectSensorDataResource extends SensorBaseResource {
   private String maxInstances;
   /** An optional tool parameter. */
   private String tool;
+  /** An optional query parameter. */
+  private String continuationToken;
+  /** An optional query parameter. */
+  private String fields;
 
   
   /**
@@ -49,13 +69,16 @@ public class UserProjectSensorDataResource extends SensorBaseResource {
     this.startIndex = (String) request.getAttributes().get("startIndex");
     this.maxInstances = (String) request.getAttributes().get("maxInstances");
     this.tool = (String) request.getAttributes().get("tool");
+    this.continuationToken = (String) request.getAttributes().get("continuationToken");
+    this.fields = (String) request.getAttributes().get("fields");
   }
   
   /**
    * Returns a SensorDataIndex of all SensorData associated with this Project.  This
    * includes all SensorData from all Members in this project over the 
    * (optional) specified time period  for the (optional) SDT and (optional) tool that match 
-   * at least one of the UriPatterns in the project definition.
+   * at least one of the UriPatterns in the project definition. If fields is supplied, returns
+   * a SensorDataRows holding those fields of the same SensorData instead.
    * 
    * Returns an error condition if:
    * <ul>
@@ -66,7 +89,12 @@ public class UserProjectSensorDataResource extends SensorBaseResource {
    * <li> startTime or endTime is not an XMLGregorianCalendar string.
    * <li> One or the other but not both of startTime and endTime is provided.
    * <li> endTime is earlier than startTime.
+   * <li> startIndex or maxInstances is not a non-negative integer.
+   * <li> continuationToken is not a token returned by a previous page.
+   * <li> fields is not a comma-separated list of field names.
    * </ul>
+   * Returns 304 (Not Modified) instead of the representation if the conditions of the request
+   * show that the client's copy is current.
    * 
    * @param variant The representational variant requested.
    * @return The representation. 
@@ -129,37 +157,116 @@ public class UserProjectSensorDataResource extends SensorBaseResource {
         return null;
       }
     }
-
-    if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+    SensorDataFields selectedFields = null;
+    if (this.fields != null) {
       try {
-        if (startTime == null) {
-          // Return all sensor data for this project if no query parameters.
-          String data = super.projectManager.getProjectSensorDataIndex(this.user, project);
-          return SensorBaseResource.getStringRepresentation(data);
+        selectedFields = SensorDataFields.parse(this.fields);
+      }
+      catch (IllegalArgumentException e) {
+        setStatusMiscError("fields is not a comma-separated list of field names.");
+        return null;
+      }
+    }
+    ContinuationToken token = null;
+    // If maxInstances is supplied without startIndex, then we are paging by continuation token.
+    boolean isPage = (this.startIndex == null) && (this.maxInstances != null);
+    if (isPage) {
+      try {
+        maxInstancesInt = Integer.parseInt(this.maxInstances);
+      }
+      catch (Exception e) {
+        setStatusMiscError("maxInstances is not an integer.");
+        return null;
+      }
+      if (maxInstancesInt <= 0) {
+        setStatusMiscError("maxInstances must be positive.");
+        return null;
+      }
+      if (this.continuationToken != null) {
+        try {
+          token = ContinuationToken.parse(this.continuationToken);
         }
-        if (tool != null) {
-          // Return the tool's sensor data starting at startTime and ending with endTime.
-          String data = super.projectManager.getProjectSensorDataIndex(this.user, project,
-              startTimeXml, endTimeXml, this.sdt, this.tool);
-          return SensorBaseResource.getStringRepresentation(data);
-          
+        catch (IllegalArgumentException e) {
+          setStatusMiscError("continuationToken is not valid.");
+          return null;
         }
-        if (startIndex == null) {
-          // Return all sensor data starting at startTime and ending with endTime.
-          String data = super.projectManager.getProjectSensorDataIndex(this.user, project,
-              startTimeXml, endTimeXml, this.sdt);
-          return SensorBaseResource.getStringRepresentation(data);
+      }
+    }
+
+    if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+      // The index is streamed to the client as it is retrieved from the database.
+      final XMLGregorianCalendar start = startTimeXml;
+      final XMLGregorianCalendar end = endTimeXml;
+      final int firstIndex = startIndexInt;
+      final int numInstances = maxInstancesInt;
+      final ContinuationToken after = token;
+      final SensorDataFields rowFields = selectedFields;
+      long lastChange = projectManager.getProjectLastChange(project);
+      if (isNotModified(lastChange)) {
+        return null;
+      }
+      if (startTime == null) {
+        // Return all sensor data for this project if no query parameters.
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            projectManager.writeProjectSensorDataIndex(writer, user, project);
+          }
+        }, lastChange);
+      }
+      if (rowFields != null) {
+        // Return the selected fields of the sensor data starting at startTime and ending with
+        // endTime, for the sdt and tool if they were supplied.
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            projectManager.writeProjectSensorDataRows(writer, project, start, end, sdt, tool, 
+                rowFields);
+          }
+        }, lastChange);
+      }
+      if (tool != null) {
+        // Return the tool's sensor data starting at startTime and ending with endTime.
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            projectManager.writeProjectSensorDataIndex(writer, user, project, start, end, sdt, 
+                tool);
+          }
+        }, lastChange);
+      }
+      if (isPage) {
+        // Return the page of data following the continuation token. Since a page is bounded,
+        // it is retrieved before the response is sent, so that a failure can be reported.
+        StringWriter page = new StringWriter();
+        try {
+          projectManager.writeProjectSensorDataPage(page, user, project, start, end, after, 
+              numInstances);
         }
-        else {
-          // Return the data for startIndex and maxInstances. 
-          String data = super.projectManager.getProjectSensorDataIndex(this.user, project,
-              startTimeXml, endTimeXml, startIndexInt, maxInstancesInt);
-          return SensorBaseResource.getStringRepresentation(data);
-          
+        catch (IOException e) {
+          setStatusInternalError(e);
+          return null;
         }
+        return setValidators(getStringRepresentation(page.toString()), lastChange);
       }
-      catch (Exception e) {
-        setStatusInternalError(e);
+      if (startIndex == null) {
+        // Return all sensor data starting at startTime and ending with endTime.
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            projectManager.writeProjectSensorDataIndex(writer, user, project, start, end, sdt);
+          }
+        }, lastChange);
+      }
+      else {
+        // Return the data for startIndex and maxInstances. 
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            projectManager.writeProjectSensorDataIndex(writer, user, project, start, end, 
+                firstIndex, numInstances);
+          }
+        }, lastChange);
       }
     }
     return null;
@@ -1,8 +1,12 @@
 package org.hackystat.sensorbase.resource.projects;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import javax.xml.datatype.XMLGregorianCalendar;
 
 import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.hackystat.sensorbase.resource.sensorbase.XmlWriterRepresentation;
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.restlet.Context;
 import org.restlet.data.MediaType;
@@ -109,15 +113,15 @@ public class UserProjectSnapshotResource extends SensorBaseResource {
       }
     }
     if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
-      try {
-        // Return the snapshot.
-        String data = super.projectManager.getProjectSensorDataSnapshot(project,
-            startTimeXml, endTimeXml, sdt, tool);
-        return SensorBaseResource.getStringRepresentation(data);
-      }
-      catch (Exception e) {
-        setStatusInternalError(e);
-      }
+      // Return the snapshot, streamed as it is retrieved.
+      final XMLGregorianCalendar start = startTimeXml;
+      final XMLGregorianCalendar end = endTimeXml;
+      return new XmlWriterRepresentation() {
+        @Override
+        protected void writeXml(Writer writer) throws IOException {
+          projectManager.writeProjectSensorDataSnapshot(writer, project, start, end, sdt, tool);
+        }
+      };
     }
     return null;
   }
@@ -50,6 +50,8 @@ public class UserProjectSummaryResource extends SensorBaseResource {
    * invited to be in the Project.
    * <li> There must be a startTime and endTime parameters which are timestamps. 
    * </ul>
+   * Returns 304 (Not Modified) instead if the conditions of the request show that the client's
+   * copy of the summary is current.
    * 
    * @param variant The representational variant requested, or null if conditions are violated.
    * @return The representation. 
@@ -100,6 +102,8 @@ public class UserProjectSummaryResource extends SensorBaseResource {
     try {
       // Result will hold the return value as a string.  
       String result;
+      // The time of the last change to the project or its data, which validates the result.
+      long lastChange;
       // First, deal with case where we have a start day and end day in URI string. 
       // In this case we have to do additional argument validation. 
       if (this.numDays == null) { 
@@ -114,13 +118,21 @@ public class UserProjectSummaryResource extends SensorBaseResource {
               endTimeXml, project.getEndTime()));
           return null;
         }
+        lastChange = super.projectManager.getProjectLastChange(project);
+        if (isNotModified(lastChange)) {
+          return null;
+        }
         result = super.projectManager.getProjectSummaryString(project, startTimeXml, endTimeXml);
       }
       // Otherwise, deal with the "numDays" URI string. 
       else {
+        lastChange = super.projectManager.getProjectLastChange(project);
+        if (isNotModified(lastChange)) {
+          return null;
+        }
         result = projectManager.getMultiDayProjectSummaryString(project, startTimeXml, numDaysInt);
       }
-      return super.getStringRepresentation(result);
+      return setValidators(super.getStringRepresentation(result), lastChange);
     }
     catch (Exception e) {
       setStatusInternalError(e);
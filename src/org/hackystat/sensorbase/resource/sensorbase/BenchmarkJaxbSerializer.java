@@ -0,0 +1,56 @@
+package org.hackystat.sensorbase.resource.sensorbase;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+
+/**
+ * Compares the time taken to marshal a SensorData instance by JaxbSerializer and by the older
+ * DOM-based approach. Run it from the command line with the test classes on the classpath;
+ * it prints the average microseconds per record for each approach.
+ * @author Philip Johnson
+ */
+public class BenchmarkJaxbSerializer {
+  
+  /** The number of records marshalled before timing begins. */
+  private static final int warmupRecords = 20000;
+  
+  /** The number of records timed. */
+  private static final int timedRecords = 50000;
+  
+  /** Prevents instantiation. */
+  private BenchmarkJaxbSerializer() {
+    // Only main is used.
+  }
+  
+  /**
+   * Runs the benchmark.
+   * @param args Ignored.
+   * @throws Exception If problems occur.
+   */
+  public static void main(String[] args) throws Exception {
+    JAXBContext context = JAXBContext.newInstance(
+        org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class);
+    JaxbSerializer serializer = new JaxbSerializer(context);
+    SensorData data = TestJaxbSerializer.makeSensorData("Eclipse");
+    long total = 0;
+    for (int i = 0; i < warmupRecords; i++) {
+      total += TestJaxbSerializer.marshalWithDom(context, data).length();
+      total += serializer.marshal(data).length();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < timedRecords; i++) {
+      total += TestJaxbSerializer.marshalWithDom(context, data).length();
+    }
+    long domNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < timedRecords; i++) {
+      total += serializer.marshal(data).length();
+    }
+    long serializerNanos = System.nanoTime() - start;
+    System.out.println("DOM and Transformer: " + (domNanos / 1000 / timedRecords) + " us/record");
+    System.out.println("JaxbSerializer:      " + (serializerNanos / 1000 / timedRecords) 
+        + " us/record");
+    System.out.println("(Total characters: " + total + ")");
+  }
+}
@@ -0,0 +1,116 @@
+package org.hackystat.sensorbase.resource.sensorbase;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * Converts JAXB instances to and from their XML string representations, reusing a Marshaller
+ * and Unmarshaller per thread instead of creating new ones for every call.
+ * <p>
+ * Instances are marshalled as SAX events directly to a character stream by an 
+ * XmlFragmentWriter, so the result has no processing instruction. This replaces the older 
+ * approach of marshalling to a DOM Document, transforming the Document to a String, and then 
+ * removing the processing instruction, and produces the same strings.
+ * <p>
+ * Instances of this class are thread-safe. Marshallers and Unmarshallers are not, which is why
+ * each thread gets its own.
+ *
+ * @author Philip Johnson
+ */
+public class JaxbSerializer {
+
+  /** The initial size of the buffer that a marshalled instance is written to. */
+  private static final int bufferSize = 512;
+
+  /** The JAXBContext, which is thread-safe. */
+  private final JAXBContext jaxbContext;
+
+  /** Each thread's Marshaller, created when the thread first needs one. */
+  private final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>();
+
+  /** Each thread's Unmarshaller, created when the thread first needs one. */
+  private final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>();
+
+  /**
+   * Creates a serializer for the classes known to the passed context.
+   * @param jaxbContext The JAXBContext.
+   */
+  public JaxbSerializer(JAXBContext jaxbContext) {
+    this.jaxbContext = jaxbContext;
+  }
+
+  /**
+   * Returns the JAXBContext used by this serializer.
+   * @return The JAXBContext.
+   */
+  public JAXBContext getJaxbContext() {
+    return this.jaxbContext;
+  }
+
+  /**
+   * Returns the XML representation of the passed instance, without a processing instruction.
+   * @param element The JAXB instance.
+   * @return The XML string.
+   * @throws JAXBException If the instance cannot be marshalled.
+   */
+  public String marshal(Object element) throws JAXBException {
+    StringWriter writer = new StringWriter(bufferSize);
+    marshal(element, writer);
+    return writer.toString();
+  }
+
+  /**
+   * Writes the XML representation of the passed instance, without a processing instruction.
+   * @param element The JAXB instance.
+   * @param writer The writer.
+   * @throws JAXBException If the instance cannot be marshalled.
+   */
+  public void marshal(Object element, Writer writer) throws JAXBException {
+    getMarshaller().marshal(element, new XmlFragmentWriter(writer));
+  }
+
+  /**
+   * Returns the instance represented by the passed XML string.
+   * @param xmlString The XML string.
+   * @return The JAXB instance.
+   * @throws JAXBException If the string cannot be unmarshalled.
+   */
+  public Object unmarshal(String xmlString) throws JAXBException {
+    return getUnmarshaller().unmarshal(new StringReader(xmlString));
+  }
+
+  /**
+   * Returns this thread's Marshaller, creating it if necessary.
+   * @return The Marshaller.
+   * @throws JAXBException If the Marshaller cannot be created.
+   */
+  private Marshaller getMarshaller() throws JAXBException {
+    Marshaller marshaller = this.marshallers.get();
+    if (marshaller == null) {
+      marshaller = this.jaxbContext.createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+      this.marshallers.set(marshaller);
+    }
+    return marshaller;
+  }
+
+  /**
+   * Returns this thread's Unmarshaller, creating it if necessary.
+   * @return The Unmarshaller.
+   * @throws JAXBException If the Unmarshaller cannot be created.
+   */
+  private Unmarshaller getUnmarshaller() throws JAXBException {
+    Unmarshaller unmarshaller = this.unmarshallers.get();
+    if (unmarshaller == null) {
+      unmarshaller = this.jaxbContext.createUnmarshaller();
+      this.unmarshallers.set(unmarshaller);
+    }
+    return unmarshaller;
+  }
+}
@@ -7,13 +7,18 @@ import org.hackystat.sensorbase.resource.sensordatatypes.SdtManager;
 import org.hackystat.sensorbase.resource.users.UserManager;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
 import org.hackystat.sensorbase.server.Server;
+import java.util.Date;
+import java.util.List;
+
 import org.restlet.Context;
 import org.restlet.data.CharacterSet;
+import org.restlet.data.Conditions;
 import org.restlet.data.Language;
 import org.restlet.data.MediaType;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
 import org.restlet.resource.StringRepresentation;
@@ -281,6 +286,67 @@ public abstract class SensorBaseResource extends Resource {
     return msg.replace(System.getProperty("line.separator"), " ");
   }
   
+  /**
+   * Returns true if the client already has the current representation of this resource, as
+   * indicated by the If-None-Match or If-Modified-Since conditions of the request, in which case
+   * the status is set to 304 (Not Modified) and the resource should return no representation.
+   * The ETag of If-None-Match is used whenever the request has one, as required by HTTP/1.1;
+   * the date of If-Modified-Since, which is only precise to the second, only in its absence. 
+   * Resources call this after validating the request and before computing the representation,
+   * so that an unchanged index or summary costs neither a query nor a response body.
+   * @param lastChange The time of the last change to the data the representation is computed
+   * from, as returned by the managers. 
+   * @return True if the representation has not been modified.
+   */
+  protected boolean isNotModified(long lastChange) {
+    Conditions conditions = getRequest().getConditions();
+    boolean isNotModified = false;
+    List<Tag> noneMatch = conditions.getNoneMatch();
+    if ((noneMatch != null) && !noneMatch.isEmpty()) {
+      String tagName = makeTag(lastChange).getName();
+      for (Tag tag : noneMatch) {
+        isNotModified |= "*".equals(tag.getName()) || tagName.equals(tag.getName());
+      }
+    }
+    else if (conditions.getModifiedSince() != null) {
+      // HTTP dates have a precision of one second. setValidators only sends a date once its 
+      // second has passed, so no later change can fall within the same second.
+      isNotModified = (lastChange / 1000) <= (conditions.getModifiedSince().getTime() / 1000);
+    }
+    if (isNotModified) {
+      getResponse().setStatus(Status.REDIRECTION_NOT_MODIFIED);
+    }
+    return isNotModified;
+  }
+  
+  /**
+   * Sets the ETag and Last-Modified validators of the passed representation, which clients
+   * return in the conditions of later requests for this resource. Last-Modified is left out
+   * while the second of the last change has not passed, since a later change in that second 
+   * would have the same date; clients then rely on the ETag.
+   * @param representation The representation, or null.
+   * @param lastChange The time of the last change to the data it is computed from.
+   * @return The representation.
+   */
+  protected Representation setValidators(Representation representation, long lastChange) {
+    if (representation != null) {
+      representation.setTag(makeTag(lastChange));
+      if ((lastChange / 1000) < (System.currentTimeMillis() / 1000)) {
+        representation.setModificationDate(new Date(lastChange));
+      }
+    }
+    return representation;
+  }
+  
+  /**
+   * Returns the strong entity tag for the passed change time. 
+   * @param lastChange The change time. 
+   * @return The tag.
+   */
+  private static Tag makeTag(long lastChange) {
+    return new Tag(Long.toString(lastChange, Character.MAX_RADIX));
+  }
+  
   /**
    * Called when an exception is caught while processing a request.
    * Just sets the response code.  
@@ -0,0 +1,135 @@
+package org.hackystat.sensorbase.resource.sensorbase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.hackystat.sensorbase.resource.projects.jaxb.Members;
+import org.hackystat.sensorbase.resource.projects.jaxb.Project;
+import org.hackystat.sensorbase.resource.projects.jaxb.UriPatterns;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Properties;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Property;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
+import org.hackystat.utilities.tstamp.Tstamp;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Tests that JaxbSerializer produces exactly the strings of the older DOM-based approach,
+ * and that they can be read back.
+ * @author Philip Johnson
+ */
+public class TestJaxbSerializer {
+  
+  /** Strings that need escaping in various ways. */
+  private static final String[] values = { "plain", "", "  spaces  ", "a<b>&c\"d'e", "]]>",
+    "tab\there", "cr\r\nlf", "caf\u00e9 \u4e2d \ud83d\ude00" };
+  
+  /**
+   * Returns the XML string for the passed instance using the older approach: marshal to a DOM
+   * Document, transform it to a String, and remove the processing instruction.
+   * @param context The JAXBContext.
+   * @param element The instance. 
+   * @return The XML string.
+   * @throws Exception If problems occur.
+   */
+  static String marshalWithDom(JAXBContext context, Object element) throws Exception {
+    Marshaller marshaller = context.createMarshaller(); 
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    Document doc = dbf.newDocumentBuilder().newDocument();
+    marshaller.marshal(element, doc);
+    StringWriter writer = new StringWriter();
+    TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), 
+        new StreamResult(writer));
+    String xmlString = writer.toString();
+    return xmlString.substring(xmlString.indexOf('>') + 1);
+  }
+  
+  /**
+   * Returns a SensorData instance with the passed value in its string fields.
+   * @param value The value.
+   * @return The SensorData.
+   * @throws Exception If problems occur creating the timestamps.
+   */
+  static SensorData makeSensorData(String value) throws Exception {
+    SensorData data = new SensorData();
+    data.setOwner("TestUser@hackystat.org");
+    data.setTimestamp(Tstamp.makeTimestamp("2007-04-30T09:00:00.123"));
+    data.setRuntime(Tstamp.makeTimestamp("2007-04-30T09:00:00.000"));
+    data.setLastMod(Tstamp.makeTimestamp("2007-05-01T10:00:00.000-10:00"));
+    data.setSensorDataType("DevEvent");
+    data.setTool(value);
+    data.setResource("file://foo/" + value);
+    Properties properties = new Properties();
+    for (String propertyValue : new String[] { value, "" }) {
+      Property property = new Property();
+      property.setKey("key" + propertyValue);
+      property.setValue(propertyValue);
+      properties.getProperty().add(property);
+    }
+    data.setProperties(properties);
+    return data;
+  }
+  
+  /**
+   * Tests SensorData, whose strings appear in elements, and SensorDataRef, whose strings 
+   * appear in attributes.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testSensorData() throws Exception {
+    JAXBContext context = JAXBContext.newInstance(
+        org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class);
+    JaxbSerializer serializer = new JaxbSerializer(context);
+    for (String value : values) {
+      SensorData data = makeSensorData(value);
+      String xml = serializer.marshal(data);
+      assertEquals("Checking SensorData " + value, marshalWithDom(context, data), xml);
+      SensorData data2 = (SensorData) serializer.unmarshal(xml);
+      assertEquals("Checking round trip " + value, value, data2.getTool());
+      
+      SensorDataRef ref = new SensorDataRef();
+      ref.setOwner(data.getOwner());
+      ref.setTimestamp(data.getTimestamp());
+      ref.setSensorDataType(value);
+      ref.setTool(value);
+      ref.setHref("http://localhost/sensordata/" + value);
+      xml = serializer.marshal(ref);
+      assertEquals("Checking SensorDataRef " + value, marshalWithDom(context, ref), xml);
+      SensorDataRef ref2 = (SensorDataRef) serializer.unmarshal(xml);
+      assertEquals("Checking ref round trip " + value, value, ref2.getTool());
+    }
+  }
+  
+  /**
+   * Tests a Project, which has nested lists.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testProject() throws Exception {
+    JAXBContext context = JAXBContext.newInstance(
+        org.hackystat.sensorbase.resource.projects.jaxb.ObjectFactory.class);
+    JaxbSerializer serializer = new JaxbSerializer(context);
+    Project project = new Project();
+    project.setName("Test Project");
+    project.setOwner("TestUser@hackystat.org");
+    project.setDescription("A <test> project");
+    project.setStartTime(Tstamp.makeTimestamp("2007-01-01T00:00:00.000"));
+    project.setEndTime(Tstamp.makeTimestamp("2008-01-01T00:00:00.000"));
+    project.setMembers(new Members());
+    project.getMembers().getMember().add("TestUser2@hackystat.org");
+    project.setUriPatterns(new UriPatterns());
+    project.getUriPatterns().getUriPattern().add("**/foo/*");
+    assertEquals("Checking Project", marshalWithDom(context, project), 
+        serializer.marshal(project));
+  }
+}
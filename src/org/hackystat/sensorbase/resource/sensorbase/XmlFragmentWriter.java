@@ -0,0 +1,305 @@
+package org.hackystat.sensorbase.resource.sensorbase;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * A SAX ContentHandler that writes the events it receives to a Writer as an XML fragment.
+ * JaxbSerializer marshals to this handler rather than to a DOM Document.
+ * <p>
+ * The output is exactly what the JDK Transformer produced from the Document in the older
+ * approach, so stored and cached XML strings do not change:
+ * <ul>
+ * <li> Attributes are written in order of their names, as the DOM kept them.
+ * <li> Elements without content are written as empty-element tags.
+ * <li> In text, &amp;, &lt;, &gt; and carriage returns are escaped. In attributes, tabs, line
+ * feeds and double quotes are escaped as well, so that they survive parsing.
+ * <li> Characters outside the Basic Multilingual Plane are written as character references.
+ * </ul>
+ * Code that writes XML by hand uses appendAttribute so that it escapes in the same way.
+ *
+ * @author Philip Johnson
+ */
+public class XmlFragmentWriter implements ContentHandler {
+
+  /** The writer. */
+  private final Writer writer;
+
+  /** True if the current start tag has been written without its closing '&gt;'. */
+  private boolean isStartTagOpen = false;
+
+  /** The namespace declarations to be added to the next start tag, as qName to URI. */
+  private final List<String[]> pendingPrefixes = new ArrayList<String[]>();
+
+  /**
+   * Creates a handler that writes to the passed writer.
+   * @param writer The writer.
+   */
+  XmlFragmentWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Writes the start tag, with its attributes and any pending namespace declarations.
+   * @param uri The namespace URI.
+   * @param localName The local name.
+   * @param qName The qualified name.
+   * @param atts The attributes.
+   * @throws SAXException If the writer fails.
+   */
+  public void startElement(String uri, String localName, String qName, Attributes atts)
+  throws SAXException {
+    closeStartTag();
+    Map<String, String> sortedAtts = new TreeMap<String, String>();
+    for (String[] prefix : this.pendingPrefixes) {
+      sortedAtts.put(prefix[0], prefix[1]);
+    }
+    this.pendingPrefixes.clear();
+    for (int i = 0; i < atts.getLength(); i++) {
+      sortedAtts.put(getName(atts.getQName(i), atts.getLocalName(i)), atts.getValue(i));
+    }
+    try {
+      this.writer.write('<');
+      this.writer.write(getName(qName, localName));
+      for (Map.Entry<String, String> entry : sortedAtts.entrySet()) {
+        this.writer.write(' ');
+        this.writer.write(entry.getKey());
+        this.writer.write("=\"");
+        writeEscaped(this.writer, entry.getValue(), true);
+        this.writer.write('"');
+      }
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+    this.isStartTagOpen = true;
+  }
+
+  /**
+   * Writes the end tag, or closes the start tag if the element has no content.
+   * @param uri The namespace URI.
+   * @param localName The local name.
+   * @param qName The qualified name.
+   * @throws SAXException If the writer fails.
+   */
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    try {
+      if (this.isStartTagOpen) {
+        this.writer.write("/>");
+        this.isStartTagOpen = false;
+      }
+      else {
+        this.writer.write("</");
+        this.writer.write(getName(qName, localName));
+        this.writer.write('>');
+      }
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * Writes the escaped text.
+   * @param ch The characters.
+   * @param start The start index.
+   * @param length The number of characters.
+   * @throws SAXException If the writer fails.
+   */
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    if (length == 0) {
+      return;
+    }
+    closeStartTag();
+    try {
+      writeEscaped(this.writer, new String(ch, start, length), false);
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * Records a namespace declaration for the next start tag.
+   * @param prefix The prefix, or the empty string for the default namespace.
+   * @param uri The namespace URI.
+   */
+  public void startPrefixMapping(String prefix, String uri) {
+    String name = (prefix.length() == 0) ? "xmlns" : "xmlns:" + prefix;
+    this.pendingPrefixes.add(new String[] { name, uri });
+  }
+
+  /**
+   * Writes ignorable whitespace as text.
+   * @param ch The characters.
+   * @param start The start index.
+   * @param length The number of characters.
+   * @throws SAXException If the writer fails.
+   */
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    characters(ch, start, length);
+  }
+
+  /**
+   * Ensures that all output has been passed to the writer.
+   * @throws SAXException If the writer fails.
+   */
+  public void endDocument() throws SAXException {
+    closeStartTag();
+  }
+
+  /** Ignored. */
+  public void startDocument() {
+    // No processing instruction is written for a fragment.
+  }
+
+  /**
+   * Ignored.
+   * @param prefix The prefix.
+   */
+  public void endPrefixMapping(String prefix) {
+    // Declarations are written with the start tag.
+  }
+
+  /**
+   * Ignored.
+   * @param target The target.
+   * @param data The data.
+   */
+  public void processingInstruction(String target, String data) {
+    // JAXB does not produce processing instructions inside an element.
+  }
+
+  /**
+   * Ignored.
+   * @param locator The locator.
+   */
+  public void setDocumentLocator(Locator locator) {
+    // Not needed.
+  }
+
+  /**
+   * Ignored.
+   * @param name The entity name.
+   */
+  public void skippedEntity(String name) {
+    // JAXB does not produce entity references.
+  }
+
+  /**
+   * Writes the '&gt;' that ends the current start tag, if it has not been written yet.
+   * @throws SAXException If the writer fails.
+   */
+  private void closeStartTag() throws SAXException {
+    if (this.isStartTagOpen) {
+      try {
+        this.writer.write('>');
+      }
+      catch (IOException e) {
+        throw new SAXException(e);
+      }
+      this.isStartTagOpen = false;
+    }
+  }
+
+  /**
+   * Returns the qualified name if there is one, otherwise the local name.
+   * @param qName The qualified name, possibly empty.
+   * @param localName The local name.
+   * @return The name to write.
+   */
+  private static String getName(String qName, String localName) {
+    return ((qName == null) || (qName.length() == 0)) ? localName : qName;
+  }
+
+  /**
+   * Appends an attribute, preceded by a space, to the builder. Nothing is appended if the 
+   * value is null, as JAXB omits null attributes.
+   * @param builder The builder.
+   * @param name The attribute name.
+   * @param value The attribute value, which is escaped.
+   */
+  public static void appendAttribute(StringBuilder builder, String name, String value) {
+    if (value != null) {
+      builder.append(' ').append(name).append("=\"");
+      try {
+        writeEscaped(builder, value, true);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("StringBuilder threw an IOException", e);
+      }
+      builder.append('"');
+    }
+  }
+
+  /**
+   * Writes the passed string as element content, escaped as the text of elements marshalled 
+   * to this handler is.
+   * @param writer The writer.
+   * @param text The text.
+   * @throws IOException If the writer fails.
+   */
+  public static void writeText(Writer writer, String text) throws IOException {
+    writeEscaped(writer, text, false);
+  }
+
+  /**
+   * Writes the passed string with the characters that need it escaped.
+   * @param out The output.
+   * @param string The string.
+   * @param isAttribute True if the string is an attribute value.
+   * @throws IOException If the output fails.
+   */
+  private static void writeEscaped(Appendable out, String string, boolean isAttribute) 
+  throws IOException {
+    int length = string.length();
+    for (int i = 0; i < length; i++) {
+      char c = string.charAt(i);
+      if (c == '&') {
+        out.append("&amp;");
+      }
+      else if (c == '<') {
+        out.append("&lt;");
+      }
+      else if (c == '>') {
+        out.append("&gt;");
+      }
+      else if (c == '\r') {
+        out.append("&#13;");
+      }
+      else if (isAttribute && (c == '"')) {
+        out.append("&quot;");
+      }
+      else if (isAttribute && ((c == '\t') || (c == '\n'))) {
+        writeReference(out, c);
+      }
+      else if (Character.isHighSurrogate(c) && (i + 1 < length) 
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        i++;
+        writeReference(out, Character.toCodePoint(c, string.charAt(i)));
+      }
+      else {
+        out.append(c);
+      }
+    }
+  }
+
+  /**
+   * Writes a numeric character reference.
+   * @param out The output.
+   * @param codePoint The character.
+   * @throws IOException If the output fails.
+   */
+  private static void writeReference(Appendable out, int codePoint) throws IOException {
+    out.append("&#").append(Integer.toString(codePoint)).append(';');
+  }
+}
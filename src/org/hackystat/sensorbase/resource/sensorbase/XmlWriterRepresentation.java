@@ -0,0 +1,59 @@
+package org.hackystat.sensorbase.resource.sensorbase;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Language;
+import org.restlet.data.MediaType;
+import org.restlet.resource.OutputRepresentation;
+
+/**
+ * A UTF-8 TEXT_XML representation whose content is written directly to the response stream
+ * when Restlet sends it, rather than being built as a String first. Used for indexes, whose
+ * size grows with the amount of sensor data.
+ * <p>
+ * Subclasses implement writeXml. Note that it is called after the Resource has returned,
+ * so by then the response status has already been sent, and an exception can only abandon 
+ * the response.
+ *
+ * @author Philip Johnson
+ */
+public abstract class XmlWriterRepresentation extends OutputRepresentation {
+
+  /** The size of the buffer between the writer and the response stream. */
+  private static final int bufferSize = 8192;
+
+  /**
+   * Creates a new representation with the same metadata as
+   * SensorBaseResource.getStringRepresentation.
+   */
+  public XmlWriterRepresentation() {
+    super(MediaType.TEXT_XML);
+    setCharacterSet(CharacterSet.UTF_8);
+    getLanguages().add(Language.ALL);
+  }
+
+  /**
+   * Writes the processing instruction followed by the XML supplied by writeXml.
+   * @param outputStream The response stream.
+   * @throws IOException If the stream cannot be written.
+   */
+  @Override
+  public void write(OutputStream outputStream) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"), bufferSize);
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    writeXml(writer);
+    writer.flush();
+  }
+
+  /**
+   * Writes the XML content of this representation, without a processing instruction.
+   * @param writer The writer, which is flushed by the caller.
+   * @throws IOException If the content cannot be written.
+   */
+  protected abstract void writeXml(Writer writer) throws IOException;
+}
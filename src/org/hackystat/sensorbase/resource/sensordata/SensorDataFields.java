@@ -0,0 +1,197 @@
+package org.hackystat.sensorbase.resource.sensordata;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.sensorbase.XmlFragmentWriter;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.Property;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+
+/**
+ * The fields selected by the fields parameter of a project sensor data query, and the writer of
+ * the SensorDataRows representation that holds only those fields of each instance.
+ * <p>
+ * The parameter is a comma-separated list of field names. Owner, Timestamp, Runtime, Tool,
+ * SensorDataType, Resource and LastMod select the instance's value of that name; any other name
+ * selects the value of the Property with that key. Each instance is written as a Row containing
+ * one Value per field, in the order of the list, so that a dashboard that needs a few fields of
+ * many instances neither receives nor unmarshals the rest of each SensorData. A Property that
+ * the instance does not have is written as an empty Value.
+ *
+ * @author Philip Johnson
+ */
+public final class SensorDataFields {
+
+  /** The Owner field. */
+  public static final String OWNER = "Owner";
+  /** The Timestamp field. */
+  public static final String TIMESTAMP = "Timestamp";
+  /** The Runtime field. */
+  public static final String RUNTIME = "Runtime";
+  /** The Tool field. */
+  public static final String TOOL = "Tool";
+  /** The SensorDataType field. */
+  public static final String SDT = "SensorDataType";
+  /** The Resource field. */
+  public static final String RESOURCE = "Resource";
+  /** The LastMod field. */
+  public static final String LASTMOD = "LastMod";
+
+  /** The fields that are not Property keys. */
+  private static final List<String> columns =
+    Arrays.asList(OWNER, TIMESTAMP, RUNTIME, TOOL, SDT, RESOURCE, LASTMOD);
+
+  /** The closing tag of a SensorDataRows. */
+  public static final String closeTag = "</SensorDataRows>";
+
+  /** The field names, in the order their values are written. */
+  private final List<String> names;
+
+  /** True if some field is a Property key. */
+  private final boolean hasProperties;
+
+  /**
+   * Creates the fields.
+   * @param names The field names.
+   */
+  private SensorDataFields(List<String> names) {
+    this.names = names;
+    boolean isProperty = false;
+    for (String name : names) {
+      isProperty |= !columns.contains(name);
+    }
+    this.hasProperties = isProperty;
+  }
+
+  /**
+   * Returns the fields named by the passed comma-separated list.
+   * @param fields The value of the fields parameter.
+   * @return The fields.
+   * @throws IllegalArgumentException If fields is null or any of its names is empty.
+   */
+  public static SensorDataFields parse(String fields) {
+    if (fields == null) {
+      throw new IllegalArgumentException("No fields");
+    }
+    List<String> names = new ArrayList<String>();
+    for (String name : fields.split(",", -1)) {
+      String trimmed = name.trim();
+      if (trimmed.length() == 0) {
+        throw new IllegalArgumentException("Empty field name in: " + fields);
+      }
+      names.add(trimmed);
+    }
+    return new SensorDataFields(names);
+  }
+
+  /**
+   * Returns the field names, in the order their values are written.
+   * @return The field names.
+   */
+  public List<String> getNames() {
+    return this.names;
+  }
+
+  /**
+   * Returns true if the passed field is selected. Implementations use this to avoid retrieving
+   * and converting values that will not be written.
+   * @param field The field name, such as TIMESTAMP.
+   * @return True if it is one of the fields.
+   */
+  public boolean contains(String field) {
+    return this.names.contains(field);
+  }
+
+  /**
+   * Returns true if some field is a Property key, so that the instance's properties, which
+   * are only held by its full representation, must be retrieved.
+   * @return True if a Property is selected.
+   */
+  public boolean hasProperties() {
+    return this.hasProperties;
+  }
+
+  /**
+   * Returns the opening tag of a SensorDataRows with these fields.
+   * @return The opening tag.
+   */
+  public String getOpenTag() {
+    StringBuilder builder = new StringBuilder(64);
+    builder.append("<SensorDataRows");
+    StringBuilder fields = new StringBuilder(64);
+    for (String name : this.names) {
+      fields.append((fields.length() == 0) ? "" : ",").append(name);
+    }
+    XmlFragmentWriter.appendAttribute(builder, "Fields", fields.toString());
+    return builder.append('>').toString();
+  }
+
+  /**
+   * Writes the Row holding the values of these fields of the passed instance. Only the values
+   * of the selected fields need to be set in data, along with its Properties if hasProperties.
+   * @param writer The writer.
+   * @param data The instance.
+   * @throws IOException If the writer fails.
+   */
+  public void writeRow(Writer writer, SensorData data) throws IOException {
+    writer.write("<Row>");
+    for (String name : this.names) {
+      String value = getValue(data, name);
+      if (value == null) {
+        writer.write("<Value/>");
+      }
+      else {
+        writer.write("<Value>");
+        XmlFragmentWriter.writeText(writer, value);
+        writer.write("</Value>");
+      }
+    }
+    writer.write("</Row>");
+  }
+
+  /**
+   * Returns the value of the named field of the instance.
+   * @param data The instance.
+   * @param name The field name.
+   * @return The value, or null if the instance does not have one.
+   */
+  private static String getValue(SensorData data, String name) {
+    if (OWNER.equals(name)) {
+      return data.getOwner();
+    }
+    if (TIMESTAMP.equals(name)) {
+      return toXmlFormat(data.getTimestamp());
+    }
+    if (RUNTIME.equals(name)) {
+      return toXmlFormat(data.getRuntime());
+    }
+    if (TOOL.equals(name)) {
+      return data.getTool();
+    }
+    if (SDT.equals(name)) {
+      return data.getSensorDataType();
+    }
+    if (RESOURCE.equals(name)) {
+      return data.getResource();
+    }
+    if (LASTMOD.equals(name)) {
+      return toXmlFormat(data.getLastMod());
+    }
+    Property property = data.isSetProperties() ? data.findProperty(name) : null;
+    return (property == null) ? null : property.getValue();
+  }
+
+  /**
+   * Returns the lexical form of the passed dateTime.
+   * @param calendar The dateTime, or null.
+   * @return Its lexical form, or null if calendar is null.
+   */
+  private static String toXmlFormat(XMLGregorianCalendar calendar) {
+    return (calendar == null) ? null : calendar.toXMLFormat();
+  }
+}
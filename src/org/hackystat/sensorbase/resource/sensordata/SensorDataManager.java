@@ -1,23 +1,24 @@
 package org.hackystat.sensorbase.resource.sensordata;
 
+import static org.hackystat.sensorbase.server.ServerProperties.DB_DIR_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.INGEST_BATCH_SIZE_KEY;
+import static org.hackystat.sensorbase.server.ServerProperties.INGEST_QUEUE_SIZE_KEY;
 import static org.hackystat.sensorbase.server.ServerProperties.XML_DIR_KEY;
 
 import java.io.File;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
+import org.hackystat.sensorbase.db.ContinuationToken;
 import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
 import org.hackystat.utilities.stacktrace.StackTrace;
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
@@ -27,7 +28,7 @@ import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDatas;
 import org.hackystat.sensorbase.resource.users.UserManager;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
 import org.hackystat.sensorbase.server.Server;
-import org.w3c.dom.Document;
+import org.hackystat.sensorbase.server.ServerProperties;
 
 /**
  * Provides a manager for the Sensor Data resource.
@@ -44,6 +45,11 @@ import org.w3c.dom.Document;
  * <p>  
  * See https://jaxb.dev.java.net/guide/Performance_and_thread_safety.html for info 
  * on JAXB performance and thread safety.
+ * <p>
+ * If write-behind ingest is enabled in the server properties, put* methods return as soon
+ * as the sensor data has been queued (and appended to the ingest log), and a background
+ * thread writes it to the database. Reads then wait for the queue to drain unless
+ * flush on read has been turned off.
  * @author Philip Johnson
  */
 public class SensorDataManager {
@@ -51,6 +57,9 @@ public class SensorDataManager {
   /** Holds the class-wide JAXBContext, which is thread-safe. */
   private JAXBContext jaxbContext;
   
+  /** Converts this Manager's resources to and from XML strings. */
+  private JaxbSerializer serializer;
+  
   /** The Server associated with this SensorDataManager. */
   Server server; 
   
@@ -60,6 +69,15 @@ public class SensorDataManager {
   /** The http string identifier. */
   private static final String http = "http";
   
+  /** The name of the write-behind ingest log file in the db directory. */
+  private static final String ingestLogName = "sensordata.ingest.log";
+  
+  /** Queues sensor data for the background writer, or null if puts write synchronously. */
+  private WriteBehindQueue writeBehindQueue = null;
+  
+  /** True if reads must wait for queued sensor data to be written. */
+  private boolean flushOnRead = true;
+  
   /** 
    * The constructor for SensorDataManagers. 
    * There is one SensorDataManager per Server. 
@@ -73,7 +91,12 @@ public class SensorDataManager {
       this.jaxbContext  = 
         JAXBContext.newInstance(
             org.hackystat.sensorbase.resource.sensordata.jaxb.ObjectFactory.class);
+      this.serializer = new JaxbSerializer(this.jaxbContext);
       loadDefaultSensorData(userManager); // NOPMD (Incorrect overridable method warning)
+      ServerProperties properties = server.getServerProperties();
+      if (properties.useWriteBehind()) {
+        startWriteBehind(properties, userManager); // NOPMD (Incorrect overridable method warning)
+      }
     }
     catch (Exception e) {
       String msg = "Exception during SensorDataManager initialization processing";
@@ -110,6 +133,148 @@ public class SensorDataManager {
     }
   }
   
+  /**
+   * Creates the write-behind queue, replays any sensor data left in the ingest log by a 
+   * previous run, and registers a shutdown hook that drains the queue.
+   * @param properties The server properties.
+   * @param userManager The User Manager.
+   * @throws Exception If the ingest log cannot be replayed or opened.
+   */
+  private void startWriteBehind(ServerProperties properties, UserManager userManager) 
+    throws Exception {
+    File logFile = null;
+    List<File> replayFiles = Collections.emptyList();
+    int batchSize = properties.getInt(INGEST_BATCH_SIZE_KEY, 500);
+    if (properties.useIngestLog()) {
+      File dbDir = new File(properties.get(DB_DIR_KEY));
+      dbDir.mkdirs();
+      logFile = new File(dbDir, ingestLogName);
+      replayFiles = WriteBehindQueue.getReplayFiles(logFile);
+    }
+    this.flushOnRead = properties.flushOnRead();
+    this.writeBehindQueue = new WriteBehindQueue(this, this.dbManager,
+        properties.getInt(INGEST_QUEUE_SIZE_KEY, 10000), batchSize, logFile, 
+        server.getLogger());
+    replayIngestLog(replayFiles, Math.max(1, batchSize), userManager);
+    final WriteBehindQueue queue = this.writeBehindQueue;
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      /** Give the writer a chance to empty the queue. */
+      @Override
+      public void run() {
+        queue.close(10000);
+      }
+    });
+    server.getLogger().info("Write-behind ingest enabled, queue capacity: " 
+        + queue.getCapacity() + ", log: " + logFile);
+  }
+  
+  /**
+   * Stores the sensor data remaining in the ingest log from a previous run, and applies the 
+   * deletes recorded after it, then deletes the log files. Each file is replayed in chunks of
+   * at most chunkSize instances, so that a large log need not fit in memory. If some data 
+   * cannot be stored, that file and the ones after it are set aside in the failed file of the
+   * write-behind queue, which retries them while the server runs.
+   * @param replayFiles The files left by the ingest log, in the order they were written.
+   * @param chunkSize The maximum number of instances stored at once.
+   * @param userManager The User Manager.
+   * @throws IOException If the log cannot be read.
+   */
+  private void replayIngestLog(List<File> replayFiles, int chunkSize, UserManager userManager) 
+    throws IOException {
+    boolean isReplayed = true;
+    for (File file : replayFiles) {
+      if (isReplayed) {
+        server.getLogger().info("Replaying ingest log " + file);
+        isReplayed = replayLogFile(file, chunkSize, userManager);
+      }
+      if (!isReplayed) {
+        server.getLogger().warning("Could not store the sensor data in " + file 
+            + ", setting it aside to be retried.");
+        this.writeBehindQueue.setAside(file);
+      }
+      if (!file.delete()) {
+        throw new IOException("Could not delete replayed ingest log " + file);
+      }
+    }
+  }
+  
+  /**
+   * Replays one ingest log file in order: instances are stored in chunks, and each delete is 
+   * applied once the instances before it have been stored. Both supersede the older entries
+   * set aside by the write-behind queue.
+   * @param file The ingest log file.
+   * @param chunkSize The maximum number of instances stored at once.
+   * @param userManager The User Manager.
+   * @return True if all of the sensor data was stored.
+   * @throws IOException If the file cannot be read.
+   */
+  private boolean replayLogFile(File file, int chunkSize, UserManager userManager) 
+    throws IOException {
+    List<WriteBehindQueue.Entry> entries = new ArrayList<WriteBehindQueue.Entry>(chunkSize);
+    WriteBehindQueue.LogReader reader = new WriteBehindQueue.LogReader(file);
+    try {
+      WriteBehindQueue.LogRecord record = reader.next();
+      while (record != null) {
+        if (record.isDelete()) {
+          if (!storeReplayed(entries)) {
+            return false;
+          }
+          User user = userManager.getUser(record.owner);
+          if (user == null) {
+            user = new User();
+            user.setEmail(record.owner);
+          }
+          this.writeBehindQueue.logDelete(record.owner, record.timestamp);
+          if (record.timestamp == null) {
+            this.dbManager.deleteSensorData(user);
+          }
+          else {
+            this.dbManager.deleteSensorData(user, Tstamp.makeTimestamp(record.timestamp));
+          }
+        }
+        else {
+          SensorData data = makeSensorData(record.xmlSensorData);
+          entries.add(new WriteBehindQueue.Entry(data, record.xmlSensorData, 
+              makeSensorDataRefString(data)));
+          if ((entries.size() >= chunkSize) && !storeReplayed(entries)) {
+            return false;
+          }
+        }
+        record = reader.next();
+      }
+      return storeReplayed(entries);
+    }
+    catch (Exception e) {
+      throw new IOException("Unreadable ingest log " + file + ": " + e.getMessage());
+    }
+    finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * Stores a chunk of replayed sensor data, if there is any, and empties the list.
+   * @param entries The marshalled sensor data.
+   * @return True if the sensor data was stored.
+   * @throws IOException If the set aside entries cannot be superseded.
+   */
+  private boolean storeReplayed(List<WriteBehindQueue.Entry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return true;
+    }
+    this.writeBehindQueue.supersede(entries);
+    List<SensorData> dataList = new ArrayList<SensorData>(entries.size());
+    List<String> xmlStrings = new ArrayList<String>(entries.size());
+    List<String> xmlSensorDataRefs = new ArrayList<String>(entries.size());
+    for (WriteBehindQueue.Entry entry : entries) {
+      dataList.add(entry.data);
+      xmlStrings.add(entry.xmlSensorData);
+      xmlSensorDataRefs.add(entry.xmlSensorDataRef);
+    }
+    entries.clear();
+    return this.dbManager.storeSensorDataBatch(dataList, xmlStrings, xmlSensorDataRefs);
+  }
+  
   /**
    * Checks the ServerProperties for the XML_DIR property.
    * If this property is null, returns the File for ./xml/defaults/sensordatatypes.defaults.xml.
@@ -188,15 +353,28 @@ public class SensorDataManager {
    * @return The XML String providing an index of all relevent sensor data resources.
    */
   public String getSensorDataIndex() {
+    flushForRead();
     return dbManager.getSensorDataIndex();
   }
   
+  /**
+   * Returns the time of the last change to this user's sensor data, which resources use as the
+   * validator of representations computed from it. 
+   * @param user The User whose sensor data is of interest.
+   * @return The time, in milliseconds.
+   */
+  public long getLastChange(User user) {
+    flushForRead();
+    return dbManager.getSensorDataLastChange(Collections.singletonList(user));
+  }
+  
   /**
    * Returns the XML SensorDataIndex for all sensor data for this user. 
    * @param user The User whose sensor data is to be returned. 
    * @return The XML String providing an index of all relevent sensor data resources.
    */
   public String getSensorDataIndex(User user) {
+    flushForRead();
     return dbManager.getSensorDataIndex(user);
   }
   
@@ -207,6 +385,7 @@ public class SensorDataManager {
    * @return The XML String providing an index of all relevent sensor data resources.
    */
   public String getSensorDataIndex(User user, String sdtName) {
+    flushForRead();
     return this.dbManager.getSensorDataIndex(user, sdtName);
   }
   
@@ -225,6 +404,7 @@ public class SensorDataManager {
    */
   public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, int startIndex, int maxInstances) {
+    flushForRead();
     return this.dbManager.getSensorDataIndex(users, startTime, endTime, uriPatterns, startIndex,
         maxInstances);
   }  
@@ -243,6 +423,7 @@ public class SensorDataManager {
    */
   public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) {
+    flushForRead();
     return this.dbManager.getSensorDataIndex(users, startTime, endTime, uriPatterns, sdt, tool);
   }  
   
@@ -259,6 +440,7 @@ public class SensorDataManager {
    */
   public String getSensorDataIndex(List<User> users, XMLGregorianCalendar startTime, 
       XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt) {
+    flushForRead();
     return this.dbManager.getSensorDataIndex(users, startTime, endTime, uriPatterns, sdt);
   }  
   
@@ -274,18 +456,326 @@ public class SensorDataManager {
    */
   public String getSensorDataIndexLastMod(User user, XMLGregorianCalendar lastModStartTime, 
       XMLGregorianCalendar lastModEndTime) {
+    flushForRead();
     return this.dbManager.getSensorDataIndexLastMod(user, lastModStartTime, lastModEndTime);
   }
   
   
+  /**
+   * Writes the XML SensorDataIndex for all sensor data to writer.
+   * @param writer The writer that receives the index.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndex(writer);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for this user to writer.
+   * @param writer The writer that receives the index.
+   * @param user The User whose sensor data is to be returned. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, User user) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndex(writer, user);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for this user and sensor data type 
+   * to writer.
+   * @param writer The writer that receives the index.
+   * @param user The User whose sensor data is to be returned. 
+   * @param sdtName The sensor data type name.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, User user, String sdtName) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndex(writer, user, sdtName);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data matching these users, start/end time, 
+   * UriPatterns and sdt to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensordatatype of interest, or null if sensordata from all SDTs should be
+   * retrieved.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data matching these users, start/end time, 
+   * UriPatterns, sdt and tool to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensordatatype of interest.
+   * @param tool The tool of interest. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, sdt, 
+        tool);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data matching these users, start/end time, 
+   * and UriPatterns, starting at startIndex, to writer.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param startIndex The starting index.
+   * @param maxInstances The maximum number of instances to return.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndex(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      int startIndex, int maxInstances) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndex(writer, users, startTime, endTime, uriPatterns, 
+        startIndex, maxInstances);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for at most maxInstances of the sensor data matching these 
+   * users, start/end time, and UriPatterns, beginning after the instance identified by token,
+   * to writer. If more instances remain, the index carries a ContinuationToken for the next page.
+   * @param writer The writer that receives the index.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param token The last instance of the previous page, or null to start at the first instance.
+   * @param maxInstances The maximum number of instances to return.
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndexPage(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      ContinuationToken token, int maxInstances) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndexPage(writer, users, startTime, endTime, uriPatterns, 
+        token, maxInstances);
+  }
+  
+  /**
+   * Writes the XML SensorDataIndex for all sensor data for the given user that arrived
+   * at the server between the given timestamps to writer.
+   * @param writer The writer that receives the index.
+   * @param user The user whose data is being monitored.
+   * @param lastModStartTime  The lastMod start time of interest. 
+   * @param lastModEndTime  The lastMod end time of interest. 
+   * @throws IOException If the index cannot be written.
+   */
+  public void writeSensorDataIndexLastMod(Writer writer, User user, 
+      XMLGregorianCalendar lastModStartTime, XMLGregorianCalendar lastModEndTime) 
+  throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataIndexLastMod(writer, user, lastModStartTime, lastModEndTime);
+  }
+  
+  /**
+   * Writes an XML SensorDatas containing every sensor data instance matching these users, 
+   * start/end time, UriPatterns, and (if non-null) sdt and tool to writer, ordered by timestamp.
+   * @param writer The writer that receives the instances.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensordatatype of interest, or null for all.
+   * @param tool The tool of interest, or null for all.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeSensorDatas(Writer writer, List<User> users, XMLGregorianCalendar startTime,
+      XMLGregorianCalendar endTime, List<String> uriPatterns, String sdt, String tool) 
+  throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDatas(writer, users, startTime, endTime, uriPatterns, sdt, tool);
+  }
+  
+  /**
+   * Writes an XML SensorDataRows holding the passed fields of every sensor data instance 
+   * matching these users, start/end time, UriPatterns, and (if non-null) sdt and tool to writer,
+   * ordered by timestamp.
+   * @param writer The writer that receives the rows.
+   * @param users The users. 
+   * @param startTime The start time. 
+   * @param endTime The end time. 
+   * @param uriPatterns A list of UriPatterns. 
+   * @param sdt The sensordatatype of interest, or null for all.
+   * @param tool The tool of interest, or null for all.
+   * @param fields The fields of each instance to be written.
+   * @throws IOException If the rows cannot be written.
+   */
+  public void writeSensorDataRows(Writer writer, List<User> users, 
+      XMLGregorianCalendar startTime, XMLGregorianCalendar endTime, List<String> uriPatterns, 
+      String sdt, String tool, SensorDataFields fields) throws IOException {
+    flushForRead();
+    this.dbManager.writeSensorDataRows(writer, users, startTime, endTime, uriPatterns, sdt, tool,
+        fields);
+  }
+  
+  /**
+   * Writes an XML SensorDatas containing the sensor data instances with the passed owners and
+   * timestamps to writer, grouped by owner in the map's order, and ordered by timestamp within
+   * each owner. Timestamps with no sensor data are skipped.
+   * @param writer The writer that receives the instances.
+   * @param timestamps The timestamps of the instances, keyed by owner.
+   * @throws IOException If the instances cannot be written.
+   */
+  public void writeSensorDatas(Writer writer, Map<User, List<XMLGregorianCalendar>> timestamps)
+  throws IOException {
+    flushForRead();
+    writer.write(DbManager.sensorDatasOpenTag);
+    for (Map.Entry<User, List<XMLGregorianCalendar>> entry : timestamps.entrySet()) {
+      this.dbManager.writeSensorData(writer, entry.getKey(), entry.getValue());
+    }
+    writer.write(DbManager.sensorDatasCloseTag);
+  }
+  
   /**
    * Updates the Manager with this sensor data. Any old definition is overwritten for
    * this user and timestamp.
    * If runtime is not specified, it is defaulted to the timestamp.
    * If tool, resource, or SDT are not specified, they default to "".
    * @param data The sensor data. 
+   * @return False if write-behind is enabled and the queue is full, otherwise true.
    */
-  public void putSensorData(SensorData data) {
+  public boolean putSensorData(SensorData data) {
+    setDefaults(data);
+    try {
+      data.setLastMod(Tstamp.makeTimestamp());
+      WriteBehindQueue.Entry entry = new WriteBehindQueue.Entry(data, this.makeSensorData(data),
+          this.makeSensorDataRefString(data));
+      if (!store(Collections.singletonList(entry))) {
+        return false;
+      }
+      server.getLogger().info("Put: " + data.getTimestamp() + " " + data.getOwner() + 
+          " " + data.getTool() + " " + data.getSensorDataType() + " " + data.getResource());
+    }
+    catch (Exception e) {
+      server.getLogger().warning("Failed to put sensor data " + StackTrace.toString(e));
+    }
+    return true;
+  }
+  
+  /**
+   * Updates the Manager with all of the passed sensor data in a single database operation. 
+   * Defaults are supplied and old definitions overwritten just as for putSensorData.
+   * @param datas The sensor data instances. 
+   * @return False if write-behind is enabled and the queue is full, otherwise true.
+   */
+  public boolean putSensorDatas(SensorDatas datas) {
+    List<SensorData> dataList = datas.getSensorData();
+    List<WriteBehindQueue.Entry> entries = new ArrayList<WriteBehindQueue.Entry>(dataList.size());
+    XMLGregorianCalendar lastMod = Tstamp.makeTimestamp();
+    try {
+      for (SensorData data : dataList) {
+        setDefaults(data);
+        data.setLastMod(lastMod);
+        entries.add(new WriteBehindQueue.Entry(data, this.makeSensorData(data), 
+            this.makeSensorDataRefString(data)));
+      }
+      if (!store(entries)) {
+        return false;
+      }
+      server.getLogger().info("Put batch: " + dataList.size() + " instances"); 
+    }
+    catch (Exception e) {
+      server.getLogger().warning("Failed to put sensor data batch " + StackTrace.toString(e));
+    }
+    return true;
+  }
+  
+  /**
+   * Stores the marshalled sensor data, either by queueing it for the write-behind writer or
+   * directly in the database. Data that cannot be queued because it is larger than the queue,
+   * or because the ingest log cannot be written, is stored directly once the queue has drained
+   * and the older entries it set aside have been superseded.
+   * @param entries The marshalled sensor data. 
+   * @return False if the queue does not currently have room for the entries. 
+   */
+  private boolean store(List<WriteBehindQueue.Entry> entries) {
+    if (this.writeBehindQueue != null) {
+      if (entries.size() <= this.writeBehindQueue.getCapacity()) {
+        try {
+          return this.writeBehindQueue.offer(entries);
+        }
+        catch (IOException e) {
+          server.getLogger().warning("Ingest log failed, storing directly " 
+              + StackTrace.toString(e));
+        }
+      }
+      try {
+        this.writeBehindQueue.supersede(entries);
+      }
+      catch (IOException e) {
+        server.getLogger().warning("Ingest log failed to supersede set aside data " 
+            + StackTrace.toString(e));
+      }
+    }
+    if (entries.size() == 1) {
+      WriteBehindQueue.Entry entry = entries.get(0);
+      this.dbManager.storeSensorData(entry.data, entry.xmlSensorData, entry.xmlSensorDataRef);
+    }
+    else {
+      List<SensorData> dataList = new ArrayList<SensorData>(entries.size());
+      List<String> xmlSensorDatas = new ArrayList<String>(entries.size());
+      List<String> xmlSensorDataRefs = new ArrayList<String>(entries.size());
+      for (WriteBehindQueue.Entry entry : entries) {
+        dataList.add(entry.data);
+        xmlSensorDatas.add(entry.xmlSensorData);
+        xmlSensorDataRefs.add(entry.xmlSensorDataRef);
+      }
+      this.dbManager.storeSensorDataBatch(dataList, xmlSensorDatas, xmlSensorDataRefs);
+    }
+    return true;
+  }
+  
+  /**
+   * Blocks until all sensor data accepted so far has been written to the database. 
+   * Returns immediately if write-behind ingest is not enabled.
+   */
+  public void flush() {
+    if (this.writeBehindQueue != null) {
+      this.writeBehindQueue.flush();
+    }
+  }
+  
+  /**
+   * Called before reading sensor data. Flushes the write-behind queue if reads are required 
+   * to see all acknowledged writes.
+   */
+  public void flushForRead() {
+    if (this.flushOnRead) {
+      flush();
+    }
+  }
+  
+  /**
+   * Supplies default values for the optional fields of the passed sensor data.
+   * If runtime is not specified, it is defaulted to the timestamp.
+   * If tool, resource, or SDT are not specified, they default to "".
+   * @param data The sensor data. 
+   */
+  private void setDefaults(SensorData data) {
     if (data.getRuntime() == null) {
       data.setRuntime(data.getTimestamp());
     }
@@ -298,16 +788,6 @@ public class SensorDataManager {
     if (data.getSensorDataType() == null) { 
       data.setSensorDataType("");
     }
-    try {
-      data.setLastMod(Tstamp.makeTimestamp());
-      this.dbManager.storeSensorData(data, this.makeSensorData(data),
-          this.makeSensorDataRefString(data));
-      server.getLogger().info("Put: " + data.getTimestamp() + " " + data.getOwner() + 
-          " " + data.getTool() + " " + data.getSensorDataType() + " " + data.getResource());
-    }
-    catch (Exception e) {
-      server.getLogger().warning("Failed to put sensor data " + StackTrace.toString(e));
-    }
   }
   
   /**
@@ -319,6 +799,7 @@ public class SensorDataManager {
    * @return True if there is any sensor data for this [user, timestamp].
    */
   public boolean hasSensorData(User user, XMLGregorianCalendar timestamp) {
+    flushForRead();
     return this.dbManager.hasSensorData(user, timestamp);
   }
   
@@ -329,6 +810,7 @@ public class SensorDataManager {
    * @return The SensorData XML String, or null if not found. 
    */
   public String getSensorData(User user, XMLGregorianCalendar timestamp) {
+    flushForRead();
     return this.dbManager.getSensorData(user, timestamp);
   }
   
@@ -339,6 +821,7 @@ public class SensorDataManager {
    * @param timestamp The timestamp associated with this sensor data.
    */
   public void deleteData(User user, XMLGregorianCalendar timestamp) {
+    logDelete(user, timestamp.toXMLFormat());
     this.dbManager.deleteSensorData(user, timestamp);
   }
   
@@ -347,9 +830,29 @@ public class SensorDataManager {
    * @param user The user.
    */
   public void deleteData(User user) {
+    logDelete(user, null);
     this.dbManager.deleteSensorData(user);
   }
   
+  /**
+   * Waits for the write-behind queue to drain, and records the delete in the ingest log, if
+   * there is one, so that neither replaying the log at the next startup nor retrying the data
+   * set aside by the queue brings back the deleted sensor data.
+   * @param user The user.
+   * @param timestamp The timestamp of the deleted instance, or null if all are deleted.
+   */
+  private void logDelete(User user, String timestamp) {
+    if (this.writeBehindQueue != null) {
+      try {
+        this.writeBehindQueue.logDelete(user.getEmail(), timestamp);
+      }
+      catch (IOException e) {
+        server.getLogger().warning("Ingest log failed to record delete " 
+            + StackTrace.toString(e));
+      }
+    }
+  }
+  
 
   /**
    * Takes an XML Document representing a SensorDataIndex and converts it to an instance. 
@@ -359,8 +862,7 @@ public class SensorDataManager {
    * @throws Exception If problems occur during unmarshalling. 
    */
   public SensorDataIndex makeSensorDataIndex(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-    return (SensorDataIndex) unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorDataIndex) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -371,8 +873,7 @@ public class SensorDataManager {
    * @throws Exception If problems occur during unmarshalling.
    */
   public SensorData makeSensorData(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-    return (SensorData)unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorData) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -383,8 +884,7 @@ public class SensorDataManager {
    * @throws Exception If problems occur during unmarshalling.
    */
   public SensorDatas makeSensorDatas(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-    return (SensorDatas)unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorDatas) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -395,22 +895,7 @@ public class SensorDataManager {
    * @throws Exception If problems occur during translation. 
    */
   public final String makeSensorData (SensorData data) throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(data, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return this.serializer.marshal(data);
   }
 
   /**
@@ -422,23 +907,31 @@ public class SensorDataManager {
    * @throws Exception If problems occur during translation. 
    */
   public final String makeSensorDataRefString (SensorData data) throws Exception {
-    SensorDataRef ref = makeSensorDataRef(data);
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(ref, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    XMLGregorianCalendar timestamp = data.getTimestamp();
+    XMLGregorianCalendar lastMod = data.getLastMod();
+    if (!SensorDataRefWriter.isWritable(timestamp) || !SensorDataRefWriter.isWritable(lastMod)) {
+      return this.serializer.marshal(makeSensorDataRef(data));
+    }
+    return makeSensorDataRefString(data.getOwner(), data.getSensorDataType(), timestamp, 
+        data.getTool(), lastMod);
+  }
+  
+  /**
+   * Returns the XML representation of the SensorDataRef for the sensor data with these fields.
+   * This allows a DbImplementation to render index entries from its columns rather than 
+   * storing the strings returned by makeSensorDataRefString(SensorData). 
+   * @param owner The owner, as an email or URI.
+   * @param sdt The sensor data type, as a name or URI.
+   * @param timestamp The timestamp, a complete dateTime such as Tstamp.makeTimestamp returns.
+   * @param tool The tool.
+   * @param lastMod The last modification time, also a complete dateTime.
+   * @return The XML String representation of the SensorDataRef.
+   */
+  public String makeSensorDataRefString(String owner, String sdt, XMLGregorianCalendar timestamp, 
+      String tool, XMLGregorianCalendar lastMod) {
+    String email = convertOwnerToEmail(owner);
+    return SensorDataRefWriter.toXml(email, convertSdtToName(sdt), timestamp, tool, 
+        makeHref(email, timestamp), lastMod);
   }
   
   /**
@@ -455,9 +948,19 @@ public class SensorDataManager {
     ref.setSensorDataType(sdt);
     ref.setTimestamp(timestamp);
     ref.setTool(data.getTool());
-    ref.setHref(this.server.getHostName() + "sensordata/" + email + "/" +  timestamp.toString()); 
+    ref.setHref(makeHref(email, timestamp)); 
     ref.setLastMod(data.getLastMod());
     return ref;
   }
+
+  /**
+   * Returns the URI of the SensorData instance with this owner and timestamp.
+   * @param email The owner's email.
+   * @param timestamp The timestamp.
+   * @return The href.
+   */
+  private String makeHref(String email, XMLGregorianCalendar timestamp) {
+    return this.server.getHostName() + "sensordata/" + email + "/" +  timestamp.toString();
+  }
  
 }
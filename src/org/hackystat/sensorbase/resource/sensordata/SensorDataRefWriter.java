@@ -0,0 +1,84 @@
+package org.hackystat.sensorbase.resource.sensordata;
+
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.sensorbase.XmlFragmentWriter;
+
+/**
+ * Writes the XML representation of a SensorDataRef directly from its field values. 
+ * A SensorDataRef string is built for every SensorData instance that is stored or loaded,
+ * so this avoids creating a SensorDataRef instance and running it through the JAXB 
+ * Marshaller each time.
+ * <p>
+ * The output is the same as that of JaxbSerializer.marshal on the equivalent SensorDataRef:
+ * attributes in order of their names, null attributes omitted, and values escaped by 
+ * XmlFragmentWriter. TestSensorDataRefWriter checks this, and must be extended if the
+ * SensorDataRef schema changes. JAXB prints dates that are not complete dateTimes, and 
+ * years before 1 AD, in its own way, so callers check isWritable and use JAXB for those.
+ *
+ * @author Philip Johnson
+ */
+final class SensorDataRefWriter {
+
+  /** The initial size of the buffer, which holds most refs without growing. */
+  private static final int bufferSize = 320;
+
+  /** Disallow instantiation. */
+  private SensorDataRefWriter() {
+    // Static methods only.
+  }
+
+  /**
+   * Returns true if toXml writes the passed date exactly as JAXB does. 
+   * @param calendar The date, or null.
+   * @return True if it is null or a complete dateTime with a non-negative year.
+   */
+  static boolean isWritable(XMLGregorianCalendar calendar) {
+    if (calendar == null) {
+      return true;
+    }
+    try {
+      return DatatypeConstants.DATETIME.equals(calendar.getXMLSchemaType()) 
+      && (calendar.getEon() == null) && (calendar.getYear() >= 0);
+    }
+    catch (IllegalStateException e) {
+      // The defined fields do not form any schema type.
+      return false;
+    }
+  }
+
+  /**
+   * Returns the XML representation of the SensorDataRef with these fields. The dates must
+   * satisfy isWritable.
+   * @param owner The owner's email.
+   * @param sdt The sensor data type name.
+   * @param timestamp The timestamp.
+   * @param tool The tool.
+   * @param href The href.
+   * @param lastMod The last modification time.
+   * @return The XML string.
+   */
+  static String toXml(String owner, String sdt, XMLGregorianCalendar timestamp, String tool,
+      String href, XMLGregorianCalendar lastMod) {
+    StringBuilder builder = new StringBuilder(bufferSize);
+    builder.append("<SensorDataRef");
+    XmlFragmentWriter.appendAttribute(builder, "Href", href);
+    XmlFragmentWriter.appendAttribute(builder, "LastMod", toXmlFormat(lastMod));
+    XmlFragmentWriter.appendAttribute(builder, "Owner", owner);
+    XmlFragmentWriter.appendAttribute(builder, "SensorDataType", sdt);
+    XmlFragmentWriter.appendAttribute(builder, "Timestamp", toXmlFormat(timestamp));
+    XmlFragmentWriter.appendAttribute(builder, "Tool", tool);
+    builder.append("/>");
+    return builder.toString();
+  }
+
+  /**
+   * Returns the lexical form of the passed dateTime.
+   * @param calendar The dateTime, or null.
+   * @return Its lexical form, or null if calendar is null.
+   */
+  private static String toXmlFormat(XMLGregorianCalendar calendar) {
+    return (calendar == null) ? null : calendar.toXMLFormat();
+  }
+}
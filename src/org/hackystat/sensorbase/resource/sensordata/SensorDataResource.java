@@ -1,6 +1,10 @@
 package org.hackystat.sensorbase.resource.sensordata;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.hackystat.sensorbase.resource.sensorbase.XmlWriterRepresentation;
 import org.restlet.Context;
 import org.restlet.data.MediaType;
 import org.restlet.data.Request;
@@ -38,8 +42,12 @@ public class SensorDataResource extends SensorBaseResource {
         return null;
       }    
       if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
-        String xmlData = super.sensorDataManager.getSensorDataIndex();
-        return super.getStringRepresentation(xmlData);
+        return new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            sensorDataManager.writeSensorDataIndex(writer);
+          }
+        };
       }
     }
     catch (RuntimeException e) {
@@ -0,0 +1,96 @@
+package org.hackystat.sensorbase.resource.sensordata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRows;
+import org.hackystat.utilities.tstamp.Tstamp;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that SensorDataFields parses field lists and writes rows that JAXB reads back.
+ * @author Philip Johnson
+ */
+public class TestSensorDataFields {
+
+  /** The JAXB serializer for SensorData classes. */
+  private static JaxbSerializer serializer;
+
+  /**
+   * Creates the serializer.
+   * @throws Exception If the JAXBContext cannot be created.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    serializer = new JaxbSerializer(
+        JAXBContext.newInstance("org.hackystat.sensorbase.resource.sensordata.jaxb"));
+  }
+
+  /**
+   * Tests the parsing of field lists.
+   */
+  @Test
+  public void testParse() {
+    SensorDataFields fields = SensorDataFields.parse("Timestamp, Resource,Tool");
+    assertEquals("Checking names", 3, fields.getNames().size());
+    assertEquals("Checking trimmed", "Resource", fields.getNames().get(1));
+    assertTrue("Checking contains", fields.contains(SensorDataFields.TOOL));
+    assertFalse("Checking not contains", fields.contains(SensorDataFields.RUNTIME));
+    assertFalse("Checking no properties", fields.hasProperties());
+    assertTrue("Checking properties", SensorDataFields.parse("Tool,Type").hasProperties());
+    String[] badFields = { "", "Tool,", ",Tool", "Tool,,Resource", " " };
+    for (String bad : badFields) {
+      try {
+        SensorDataFields.parse(bad);
+        fail("Parsed " + bad);
+      }
+      catch (IllegalArgumentException e) { //NOPMD
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Tests that rows hold the selected values in order, escaped, with an empty value for a
+   * missing property.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testWriteRow() throws Exception {
+    SensorData data = new SensorData();
+    data.setOwner("foo@hackystat.org");
+    data.setTimestamp(Tstamp.makeTimestamp("2007-04-30T09:00:00.000"));
+    data.setTool("Eclipse");
+    data.setResource("file://foo/<bar> & baz.java");
+    data.addProperty("Type", "Edit");
+    SensorDataFields fields = SensorDataFields.parse("Resource,Type,Missing,Timestamp,Owner");
+    StringWriter writer = new StringWriter();
+    writer.write(fields.getOpenTag());
+    fields.writeRow(writer, data);
+    data.getProperties().getProperty().clear();
+    fields.writeRow(writer, data);
+    writer.write(SensorDataFields.closeTag);
+    SensorDataRows rows = (SensorDataRows) serializer.unmarshal(writer.toString());
+    assertEquals("Checking fields", "Resource,Type,Missing,Timestamp,Owner", rows.getFields());
+    assertEquals("Checking rows", 2, rows.getRow().size());
+    List<String> values = rows.getRow().get(0).getValue();
+    assertEquals("Checking values", 5, values.size());
+    assertEquals("Checking resource", data.getResource(), values.get(0));
+    assertEquals("Checking property", "Edit", values.get(1));
+    assertEquals("Checking missing property", "", values.get(2));
+    assertEquals("Checking timestamp", data.getTimestamp(),
+        Tstamp.makeTimestamp(values.get(3)));
+    assertEquals("Checking owner", data.getOwner(), values.get(4));
+    assertEquals("Checking removed property", "", rows.getRow().get(1).getValue().get(1));
+  }
+}
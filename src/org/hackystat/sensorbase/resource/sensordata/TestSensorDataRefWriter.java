@@ -0,0 +1,105 @@
+package org.hackystat.sensorbase.resource.sensordata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDataRef;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that SensorDataRefWriter produces exactly the XML that JAXB produces.
+ * @author Philip Johnson
+ */
+public class TestSensorDataRefWriter {
+
+  /** The JAXB serializer for SensorData classes. */
+  private static JaxbSerializer serializer;
+
+  /** Creates DatatypeFactory instances. */
+  private static DatatypeFactory factory;
+
+  /**
+   * Creates the serializer.
+   * @throws Exception If the JAXBContext cannot be created.
+   */
+  @BeforeClass
+  public static void setup() throws Exception {
+    serializer = new JaxbSerializer(
+        JAXBContext.newInstance("org.hackystat.sensorbase.resource.sensordata.jaxb"));
+    factory = DatatypeFactory.newInstance();
+  }
+
+  /**
+   * Tests timestamps with and without fractional seconds and time zones.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testTimestamps() throws Exception {
+    String[] timestamps = { "2007-04-30T09:00:00.000-10:00", "2007-04-30T09:00:00Z",
+        "2007-04-30T09:00:00.5+05:30", "2007-04-30T09:00:00", "2007-04-30T09:00:00.100Z", 
+        "2007-04-30T09:00:00.123456789-10:00", "0099-04-30T09:00:00Z", "12007-04-30T09:00:00Z" 
+    };
+    for (String timestamp : timestamps) {
+      XMLGregorianCalendar tstamp = factory.newXMLGregorianCalendar(timestamp);
+      assertTrue("Checking writable " + timestamp, SensorDataRefWriter.isWritable(tstamp));
+      assertSame("foo@hackystat.org", "DevEvent", tstamp, "Eclipse", 
+          "http://localhost:9876/sensorbase/sensordata/foo@hackystat.org/" + timestamp, tstamp);
+    }
+  }
+
+  /**
+   * Tests values that must be escaped, and missing values.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testEscapingAndNulls() throws Exception {
+    XMLGregorianCalendar tstamp = factory.newXMLGregorianCalendar("2007-04-30T09:00:00.000Z");
+    assertSame("a&b<c>\"d'e", "tab\tnewline\ncr\r", tstamp, "\u00e9\ud834\udd1e", 
+        "http://localhost/?a=1&b=2", tstamp);
+    assertSame(null, null, tstamp, null, null, null);
+    assertSame("", "", null, "", "", null);
+  }
+
+  /**
+   * Tests that dates which JAXB prints in its own way are reported as not writable.
+   * @throws Exception If problems occur.
+   */
+  @Test
+  public void testNotWritable() throws Exception {
+    assertTrue("Checking null", SensorDataRefWriter.isWritable(null));
+    assertFalse("Checking negative year", 
+        SensorDataRefWriter.isWritable(factory.newXMLGregorianCalendar("-0044-03-15T12:00:00Z")));
+    assertFalse("Checking date only", 
+        SensorDataRefWriter.isWritable(factory.newXMLGregorianCalendar("2007-04-30")));
+  }
+
+  /**
+   * Asserts that the writer and JAXB produce the same XML for a ref with these fields.
+   * @param owner The owner.
+   * @param sdt The sensor data type.
+   * @param timestamp The timestamp.
+   * @param tool The tool.
+   * @param href The href.
+   * @param lastMod The last modification time.
+   * @throws Exception If JAXB fails.
+   */
+  private static void assertSame(String owner, String sdt, XMLGregorianCalendar timestamp, 
+      String tool, String href, XMLGregorianCalendar lastMod) throws Exception {
+    SensorDataRef ref = new SensorDataRef();
+    ref.setOwner(owner);
+    ref.setSensorDataType(sdt);
+    ref.setTimestamp(timestamp);
+    ref.setTool(tool);
+    ref.setHref(href);
+    ref.setLastMod(lastMod);
+    assertEquals("Checking ref XML", serializer.marshal(ref), 
+        SensorDataRefWriter.toXml(owner, sdt, timestamp, tool, href, lastMod));
+  }
+}
@@ -4,9 +4,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -279,6 +282,36 @@ public class TestSensorDataRestApi extends SensorBaseRestApiHelper {
     client.deleteSensorData(user, tstamp2);
   }
   
+  /**
+   * Test that the asynchronous PUT and GET of sensor data, run concurrently by one client, 
+   * store and return each instance.
+   * @throws Exception If problems occur.
+   */
+  @Test public void putAndGetSensorDataAsync() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), user, user);
+    client.authenticate();
+    XMLGregorianCalendar start = Tstamp.makeTimestamp("2007-04-30T03:00:00.000");
+    List<Future<Void>> puts = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 10; i++) {
+      puts.add(client.putSensorDataAsync(makeSensorData(Tstamp.incrementMinutes(start, i), 
+          user)));
+    }
+    for (Future<Void> put : puts) {
+      put.get();
+    }
+    List<Future<SensorData>> gets = new ArrayList<Future<SensorData>>();
+    for (int i = 0; i < 10; i++) {
+      gets.add(client.getSensorDataAsync(user, Tstamp.incrementMinutes(start, i)));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals("Checking async data timestamp", Tstamp.incrementMinutes(start, i), 
+          gets.get(i).get().getTimestamp());
+    }
+    for (int i = 0; i < 10; i++) {
+      client.deleteSensorData(user, Tstamp.incrementMinutes(start, i));
+    }
+  }
+  
   /**
    * Creates a sample SensorData instance given a timestamp and a user. 
    * @param tstamp The timestamp.
@@ -1,14 +1,19 @@
 package org.hackystat.sensorbase.resource.sensordata;
 
+import static org.hackystat.sensorbase.server.ServerProperties.INGEST_RETRY_AFTER_KEY;
+
 import java.io.IOException;
+import java.io.Writer;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.hackystat.sensorbase.resource.sensorbase.SensorBaseResource;
+import org.hackystat.sensorbase.resource.sensorbase.XmlWriterRepresentation;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
 import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorDatas;
 import org.restlet.Context;
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
@@ -67,6 +72,9 @@ public class UserSensorDataResource extends SensorBaseResource {
    * <p>
    * The user must be defined, and the authenticated user must be the uriUser or the Admin or in a
    * project with the uriUser on that day.
+   * <p>
+   * The indexes carry ETag and Last-Modified validators that change whenever the user's sensor
+   * data changes, and a conditional GET of an unchanged index returns 304 (Not Modified).
    * 
    * @param variant The representational variant requested.
    * @return The representation.
@@ -88,20 +96,36 @@ public class UserSensorDataResource extends SensorBaseResource {
     if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
       // Return index of all data for URI: sensordata/{email}
       if ((this.sdtName == null) && (this.timestamp == null) && (this.lastModStartTime == null)) {
-        String xmlData = super.sensorDataManager.getSensorDataIndex(this.user);
-        return super.getStringRepresentation(xmlData);
+        long lastChange = sensorDataManager.getLastChange(this.user);
+        if (isNotModified(lastChange)) {
+          return null;
+        }
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            sensorDataManager.writeSensorDataIndex(writer, user);
+          }
+        }, lastChange);
       }
       // Return index of data for a given SDT for URI: sensordata/{email}?sdt={sensordatatype}
       if ((this.sdtName != null) && (this.timestamp == null) && (this.lastModStartTime == null)) {
-        String xmlData = super.sensorDataManager.getSensorDataIndex(this.user, this.sdtName);
-        return super.getStringRepresentation(xmlData);
+        long lastChange = sensorDataManager.getLastChange(this.user);
+        if (isNotModified(lastChange)) {
+          return null;
+        }
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            sensorDataManager.writeSensorDataIndex(writer, user, sdtName);
+          }
+        }, lastChange);
       }
       // Return index of data since the tstamp for URI:
       // sensordata/{user}?lastModStartTime={timestamp}&lastModEndTime={timestamp}
       if ((this.sdtName == null) && (this.timestamp == null) && (this.lastModStartTime != null)) {
         // First, check to see that we can convert the lastModStartTime and EndTime into a tstamp.
-        XMLGregorianCalendar lastModStart;
-        XMLGregorianCalendar lastModEnd;
+        final XMLGregorianCalendar lastModStart;
+        final XMLGregorianCalendar lastModEnd;
         try {
           lastModStart = Tstamp.makeTimestamp(this.lastModStartTime);
         }
@@ -116,10 +140,17 @@ public class UserSensorDataResource extends SensorBaseResource {
           setStatusBadTimestamp(lastModEndTime);
           return null;
         }
-        // Now, get the data and return.
-        String xmlData = super.sensorDataManager.getSensorDataIndexLastMod(this.user, lastModStart,
-            lastModEnd);
-        return super.getStringRepresentation(xmlData);
+        long lastChange = sensorDataManager.getLastChange(this.user);
+        if (isNotModified(lastChange)) {
+          return null;
+        }
+        // Now, stream the data as it is retrieved.
+        return setValidators(new XmlWriterRepresentation() {
+          @Override
+          protected void writeXml(Writer writer) throws IOException {
+            sensorDataManager.writeSensorDataIndexLastMod(writer, user, lastModStart, lastModEnd);
+          }
+        }, lastChange);
       }
       // Return sensordata representation for URI: sensordata/{email}/{timestamp}
       if ((this.sdtName == null) && (this.timestamp != null) && (this.lastModStartTime == null)) {
@@ -237,7 +268,10 @@ public class UserSensorDataResource extends SensorBaseResource {
         return;
       }
       // otherwise we add it to the Manager and return success.
-      super.sensorDataManager.putSensorData(data);
+      if (!super.sensorDataManager.putSensorData(data)) {
+        setStatusQueueFull();
+        return;
+      }
       getResponse().setStatus(Status.SUCCESS_CREATED);
     }
     catch (RuntimeException e) {
@@ -271,8 +305,9 @@ public class UserSensorDataResource extends SensorBaseResource {
         }
       }
       // Otherwise we should be OK. Add all of them and return success.
-      for (SensorData data : datas.getSensorData()) {
-        super.sensorDataManager.putSensorData(data);
+      if (!super.sensorDataManager.putSensorDatas(datas)) {
+        setStatusQueueFull();
+        return;
       }
       getResponse().setStatus(Status.SUCCESS_CREATED);
     }
@@ -282,6 +317,19 @@ public class UserSensorDataResource extends SensorBaseResource {
     }
   }
 
+  /**
+   * Called when the write-behind ingest queue has no room for the payload. Returns 503 with a
+   * Retry-After header so that the sensor can back off and resend.
+   */
+  private void setStatusQueueFull() {
+    int retryAfter = super.server.getServerProperties().getInt(INGEST_RETRY_AFTER_KEY, 5);
+    Form headers = new Form();
+    headers.add("Retry-After", String.valueOf(retryAfter));
+    getResponse().getAttributes().put("org.restlet.http.headers", headers);
+    getResponse().setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, 
+        "Sensor data queue is full, retry after " + retryAfter + " seconds");
+  }
+
   /**
    * Indicate the DELETE method is supported.
    * 
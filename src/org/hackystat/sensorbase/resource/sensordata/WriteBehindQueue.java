@@ -0,0 +1,1172 @@
+package org.hackystat.sensorbase.resource.sensordata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.resource.sensordata.jaxb.SensorData;
+import org.hackystat.utilities.stacktrace.StackTrace;
+import org.hackystat.utilities.tstamp.Tstamp;
+
+/**
+ * Accepts sensor data into a bounded in-memory queue and writes it to the database from a
+ * single background thread, so that sensors do not wait for the database to commit.
+ * The writer drains up to batchSize queued instances at a time and stores them with one call
+ * to DbManager.storeSensorDataBatch, which commits them as a group.
+ * <p>
+ * If a log file is supplied, every accepted request is first appended to it and forced to
+ * disk. Requests append under the lock but force the log outside it, and one force covers
+ * everything appended before it started, so concurrent requests share a force rather than
+ * each waiting for its own in turn. The log is written as a series of segment files named
+ * after it, each holding about maxSegmentBytes, and a segment is deleted as soon as the writer
+ * has stored every entry in it, so the log stays small under steady ingest. Deletes are also
+ * recorded in the log, so that replaying it does not bring back sensor data deleted after it
+ * was accepted. Whatever is left in the log when the server stops is replayed by 
+ * SensorDataManager at the next startup. Without a log, acknowledged data still in the queue
+ * when the process dies is lost.
+ * <p>
+ * A group of entries that still cannot be stored after maxAttempts is set aside in the failed
+ * file rather than holding up the log. Every retryInterval the writer renames the failed file
+ * to the retry file and accepts its entries again, a queueful at a time, after the data that
+ * is already waiting. Because set aside entries are older than anything accepted after them,
+ * accepting a newer instance with the same owner and timestamp, or deleting it, appends a kill
+ * record to the failed files, and the entries before a matching kill record are never stored.
+ * <p>
+ * Each accepted instance receives a sequence number. flush() waits until the writer has
+ * processed every instance accepted before the call, which lets readers see all
+ * acknowledged writes.
+ *
+ * @author Philip Johnson
+ */
+class WriteBehindQueue implements Runnable {
+
+  /** A marshalled sensor data instance waiting to be written. */
+  static class Entry {
+    /** The sensor data instance. */
+    final SensorData data;
+    /** The instance as an XML String. */
+    final String xmlSensorData;
+    /** The instance as an XML SensorDataRef String. */
+    final String xmlSensorDataRef;
+
+    /**
+     * Creates a new queue entry.
+     * @param data The sensor data instance.
+     * @param xmlSensorData The instance as an XML String.
+     * @param xmlSensorDataRef The instance as an XML SensorDataRef String.
+     */
+    Entry(SensorData data, String xmlSensorData, String xmlSensorDataRef) {
+      this.data = data;
+      this.xmlSensorData = xmlSensorData;
+      this.xmlSensorDataRef = xmlSensorDataRef;
+    }
+  }
+
+  /** A record read back from the log: either an accepted instance or a delete. */
+  static class LogRecord {
+    /** The XML of the accepted instance, or null for a delete. */
+    final String xmlSensorData;
+    /** The email of the owner whose sensor data was deleted, or null. */
+    final String owner;
+    /** The timestamp of the deleted instance, or null if all of owner's data was deleted. */
+    final String timestamp;
+
+    /**
+     * Creates a new record.
+     * @param xmlSensorData The XML of the accepted instance, or null for a delete.
+     * @param owner The owner of the deleted sensor data, or null.
+     * @param timestamp The timestamp of the deleted instance, or null.
+     */
+    LogRecord(String xmlSensorData, String owner, String timestamp) {
+      this.xmlSensorData = xmlSensorData;
+      this.owner = owner;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns true if this record is a delete.
+     * @return True if this is a delete.
+     */
+    boolean isDelete() {
+      return this.xmlSensorData == null;
+    }
+  }
+
+  /** A log segment that is no longer appended to. */
+  private static class Segment {
+    /** The segment file. */
+    final File file;
+    /** The number of entries accepted when the segment was closed. */
+    final long lastSequence;
+
+    /**
+     * Creates a closed segment.
+     * @param file The segment file.
+     * @param lastSequence The number of entries accepted when it was closed.
+     */
+    Segment(File file, long lastSequence) {
+      this.file = file;
+      this.lastSequence = lastSequence;
+    }
+  }
+
+  /** The size in bytes beyond which a new log segment is started. */
+  private static final long maxSegmentBytes = 1024 * 1024;
+
+  /** The number of times a group of entries is tried before it is set aside. */
+  private static final int maxAttempts = 5;
+
+  /** The record length that marks a delete record. */
+  private static final int deleteRecord = -1;
+
+  /** The suffix of the file holding the entries that could not be stored. */
+  private static final String failedSuffix = ".failed";
+
+  /** The suffix of the failed file while its entries are being accepted again. */
+  private static final String retrySuffix = ".retry";
+
+  /** The time in milliseconds between attempts to store the entries in the failed file. */
+  private static final long retryInterval = 60 * 1000L;
+
+  /** The pending entries. */
+  private final BlockingQueue<Entry> queue;
+
+  /** The maximum number of entries written in one group commit. */
+  private final int batchSize;
+
+  /** The DbManager that the writer stores to. */
+  private final DbManager dbManager;
+
+  /** Converts the XML read back from the failed files into entries. */
+  private final SensorDataManager manager;
+
+  /** The logger. */
+  private final Logger logger;
+
+  /** The log, which names its segments, or null if acknowledged data is only held in memory. */
+  private final File logFile;
+
+  /** The segment currently appended to, or null. Guarded by lock. */
+  private File segmentFile;
+
+  /** The open stream of the current segment, or null. Guarded by lock. */
+  private FileOutputStream logStream;
+
+  /** The number of appends to the log so far. Guarded by lock. */
+  private long numAppended = 0;
+
+  /** The number of appends to the log known to be on disk. Guarded by lock. */
+  private long numSynced = 0;
+
+  /** True while a thread is forcing the log to disk outside the lock. Guarded by lock. */
+  private boolean syncing = false;
+
+  /** The number of bytes in the current segment. Guarded by lock. */
+  private long segmentBytes = 0;
+
+  /** The number of the current segment. Guarded by lock. */
+  private long segmentNumber;
+
+  /** The closed segments, oldest first. Guarded by lock. */
+  private final LinkedList<Segment> closedSegments = new LinkedList<Segment>();
+
+  /** Guards the sequence numbers and the append log. */
+  private final Object lock = new Object();
+
+  /** The number of entries accepted so far. Guarded by lock. */
+  private long numAccepted = 0;
+
+  /** The number of entries processed by the writer so far. Guarded by lock. */
+  private long numWritten = 0;
+
+  /** The entries set aside since the last retry began, or null if there is no log. Guarded by
+   * lock. */
+  private FailedFile failed = null;
+
+  /** The entries set aside before the current retry, or null if none is under way. Guarded by
+   * lock. */
+  private FailedFile retrying = null;
+
+  /** Reads the retry file, or null if it has not been opened. Guarded by lock. */
+  private LogReader retryReader = null;
+
+  /** The number of records read from the retry file. Guarded by lock. */
+  private long retryIndex = 0;
+
+  /** The time at which the failed file may next be retried. Guarded by lock. */
+  private long nextRetry = 0;
+
+  /** False once close() has been called. */
+  private volatile boolean running = true;
+
+  /** The background writer thread. */
+  private final Thread writer;
+
+  /**
+   * Creates the queue and starts its writer thread.
+   * @param manager The SensorDataManager, which converts the XML in the failed files.
+   * @param dbManager The DbManager to store to.
+   * @param capacity The maximum number of sensor data instances waiting to be written.
+   * @param batchSize The maximum number of instances written in one group commit.
+   * @param logFile The log, whose segments are named after it, or null for no log. Segments
+   * left by a previous run are not touched, but the failed files left by it are retried.
+   * @param logger The logger.
+   * @throws IOException If the log file cannot be opened.
+   */
+  WriteBehindQueue(SensorDataManager manager, DbManager dbManager, int capacity, 
+      int batchSize, File logFile, Logger logger) throws IOException {
+    this.queue = new ArrayBlockingQueue<Entry>(capacity);
+    this.batchSize = Math.max(1, batchSize);
+    this.manager = manager;
+    this.dbManager = dbManager;
+    this.logger = logger;
+    this.logFile = logFile;
+    if (logFile != null) {
+      this.failed = loadFailedFile(getFailedFile(logFile));
+      File retryFile = getRetryFile(logFile);
+      if (retryFile.exists()) {
+        this.retrying = loadFailedFile(retryFile);
+      }
+      SortedMap<Long, File> segments = getSegments(logFile);
+      this.segmentNumber = segments.isEmpty() ? 1 : segments.lastKey().longValue() + 1;
+      openSegment();
+    }
+    this.writer = new Thread(this, "SensorBase write-behind writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Returns the maximum number of sensor data instances that can wait to be written.
+   * @return The capacity.
+   */
+  int getCapacity() {
+    return this.queue.size() + this.queue.remainingCapacity();
+  }
+
+  /**
+   * Returns the number of sensor data instances waiting to be written.
+   * @return The queue size.
+   */
+  int size() {
+    return this.queue.size();
+  }
+
+  /**
+   * Accepts all of the entries for writing, or none of them if there is not enough room in
+   * the queue. If there is a log, the entries are on disk when this method returns true.
+   * @param entries The entries.
+   * @return True if the entries were accepted, false if the queue is full or closed.
+   * @throws IOException If the entries could not be appended to the log.
+   */
+  boolean offer(List<Entry> entries) throws IOException {
+    long target;
+    synchronized (this.lock) {
+      // Only the writer removes entries, so the room we see here can only grow.
+      if (!this.running || this.queue.remainingCapacity() < entries.size()) {
+        return false;
+      }
+      if (this.logFile == null) {
+        accept(entries);
+        return true;
+      }
+      // The writer stores these after anything it retries from now on, but not after the 
+      // older entries that are still in the failed files.
+      killFailed(entries);
+      accept(entries);
+      target = this.numAppended;
+    }
+    syncLog(target);
+    return true;
+  }
+
+  /**
+   * Blocks until the first target appends to the log are on disk. If no other thread is 
+   * forcing the log, this one forces it, covering every append made so far, without holding
+   * the lock; otherwise it waits for that force and checks again.
+   * @param target The number of appends.
+   * @throws IOException If the log cannot be forced to disk.
+   */
+  private void syncLog(long target) throws IOException {
+    while (true) {
+      FileOutputStream stream;
+      long syncTarget;
+      synchronized (this.lock) {
+        while (this.syncing && (this.numSynced < target)) {
+          try {
+            this.lock.wait();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while forcing the write-behind log");
+          }
+        }
+        if (this.numSynced >= target) {
+          return;
+        }
+        if (this.logStream == null) {
+          throw new IOException("The write-behind log is closed");
+        }
+        this.syncing = true;
+        stream = this.logStream;
+        syncTarget = this.numAppended;
+      }
+      boolean isSynced = false;
+      try {
+        stream.getFD().sync();
+        isSynced = true;
+      }
+      catch (IOException e) {
+        synchronized (this.lock) {
+          // close() may have forced and closed the log meanwhile.
+          if (this.numSynced < target) {
+            throw e;
+          }
+        }
+      }
+      finally {
+        synchronized (this.lock) {
+          this.syncing = false;
+          if (isSynced) {
+            this.numSynced = Math.max(this.numSynced, syncTarget);
+          }
+          this.lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes sure that the entries set aside before this call are not stored after the passed
+   * entries, which the caller then stores directly rather than through the queue. Blocks until 
+   * every entry accepted before this call has been processed by the writer.
+   * @param entries The entries.
+   * @throws IOException If the kill records cannot be written.
+   */
+  void supersede(List<Entry> entries) throws IOException {
+    synchronized (this.lock) {
+      if (this.logFile == null) {
+        waitForWriter(this.numAccepted);
+        return;
+      }
+      // Stop the writer retrying the entries, wait for the ones it has already accepted again,
+      // and then kill the ones it set aside meanwhile.
+      killFailed(entries);
+      waitForWriter(this.numAccepted);
+      killFailed(entries);
+    }
+  }
+
+  /**
+   * Records in the log that sensor data is being deleted, so that replaying the log does not
+   * bring it back, and kills the matching entries in the failed files. Blocks until every entry
+   * accepted before this call has been processed by the writer, after which the caller deletes
+   * the data. 
+   * @param owner The email of the owner of the sensor data.
+   * @param timestamp The timestamp of the deleted instance, or null to delete all of owner's.
+   * @throws IOException If the delete could not be recorded.
+   */
+  void logDelete(String owner, String timestamp) throws IOException {
+    synchronized (this.lock) {
+      try {
+        if ((this.logFile != null) && this.running) {
+          if (this.logStream == null) {
+            openSegment();
+          }
+          this.segmentBytes += writeDelete(this.logStream, owner, timestamp);
+          killFailed(owner, timestamp);
+        }
+      }
+      finally {
+        waitForWriter(this.numAccepted);
+      }
+      if (this.logFile != null) {
+        killFailed(owner, timestamp);
+      }
+    }
+  }
+
+  /**
+   * Appends the records of a log file that could not be replayed to the failed file, so that
+   * the writer retries its entries, and its deletes kill the entries before them.
+   * @param file The log file.
+   * @throws IOException If the file cannot be read or the failed file written.
+   */
+  void setAside(File file) throws IOException {
+    LogReader reader = new LogReader(file);
+    try {
+      synchronized (this.lock) {
+        List<Entry> entries = new ArrayList<Entry>(this.batchSize);
+        for (LogRecord record = reader.next(); record != null; record = reader.next()) {
+          if (record.isDelete()) {
+            this.failed.append(entries);
+            entries.clear();
+            this.failed.kill(record.owner, record.timestamp);
+          }
+          else {
+            Entry entry = makeEntry(record.xmlSensorData);
+            if (entry != null) {
+              entries.add(entry);
+            }
+            if (entries.size() >= this.batchSize) {
+              this.failed.append(entries);
+              entries.clear();
+            }
+          }
+        }
+        this.failed.append(entries);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Blocks until every entry accepted before this call has been processed by the writer.
+   */
+  void flush() {
+    synchronized (this.lock) {
+      waitForWriter(this.numAccepted);
+    }
+  }
+
+  /**
+   * Blocks until the writer has processed target entries. Caller must hold lock.
+   * @param target The number of entries.
+   */
+  private void waitForWriter(long target) {
+    while (this.numWritten < target) {
+      try {
+        this.lock.wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops accepting entries, waits up to the passed time for the writer to drain the queue,
+   * and forces the log to disk and closes it.
+   * @param maxWait The maximum time to wait in milliseconds.
+   */
+  void close(long maxWait) {
+    this.running = false;
+    try {
+      this.writer.join(maxWait);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this.lock) {
+      closeRetryReader();
+      if (this.logStream != null) {
+        try {
+          this.logStream.getFD().sync();
+          this.numSynced = this.numAppended;
+          this.logStream.close();
+        }
+        catch (IOException e) {
+          this.logger.warning("Failed to close write-behind log " + StackTrace.toString(e));
+        }
+        this.logStream = null;
+        // Leave nothing behind if everything was stored.
+        if (this.numWritten == this.numAccepted) {
+          checkpoint();
+          this.segmentFile.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * The writer loop: takes the next group of entries off the queue and stores them until the
+   * queue has been closed and drained, accepting the entries of the failed file again when it
+   * is time to retry them.
+   */
+  public void run() {
+    List<Entry> batch = new ArrayList<Entry>(this.batchSize);
+    while (this.running || !this.queue.isEmpty()) {
+      if (this.running && (this.logFile != null)) {
+        retryFailed();
+      }
+      Entry first = null;
+      try {
+        first = this.queue.poll(1, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) { //NOPMD
+        // Keep going; the loop exits once close() has been called and the queue is empty.
+      }
+      if (first == null) {
+        continue;
+      }
+      batch.add(first);
+      this.queue.drainTo(batch, this.batchSize - 1);
+      try {
+        if (!storeWithRetries(batch)) {
+          setAside(batch);
+        }
+      }
+      finally {
+        synchronized (this.lock) {
+          this.numWritten += batch.size();
+          checkpoint();
+          this.lock.notifyAll();
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Stores a group of entries, trying again after a growing pause if the database fails, up 
+   * to maxAttempts times or until close() is called.
+   * @param batch The entries.
+   * @return True if the entries were stored.
+   */
+  private boolean storeWithRetries(List<Entry> batch) {
+    for (int attempt = 1; ; attempt++) {
+      if (store(batch)) {
+        return true;
+      }
+      if ((attempt >= maxAttempts) || !this.running) {
+        return false;
+      }
+      try {
+        Thread.sleep(1000L * attempt);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Stores a group of entries in a single database operation.
+   * @param batch The entries.
+   * @return True if the entries were stored.
+   */
+  private boolean store(List<Entry> batch) {
+    List<SensorData> datas = new ArrayList<SensorData>(batch.size());
+    List<String> xmlSensorDatas = new ArrayList<String>(batch.size());
+    List<String> xmlSensorDataRefs = new ArrayList<String>(batch.size());
+    for (Entry entry : batch) {
+      datas.add(entry.data);
+      xmlSensorDatas.add(entry.xmlSensorData);
+      xmlSensorDataRefs.add(entry.xmlSensorDataRef);
+    }
+    try {
+      if (this.dbManager.storeSensorDataBatch(datas, xmlSensorDatas, xmlSensorDataRefs)) {
+        this.logger.fine("Write-behind stored: " + batch.size() + " instances");
+        return true;
+      }
+    }
+    catch (RuntimeException e) {
+      this.logger.warning("Write-behind failed to store sensor data " + StackTrace.toString(e));
+    }
+    return false;
+  }
+
+  /**
+   * Appends a group of entries that could not be stored to the failed file, which is retried
+   * later, so that they no longer keep their log segments from being deleted. An entry is 
+   * dropped if a newer one with the same owner and timestamp is waiting in the queue.
+   * @param batch The entries.
+   */
+  private void setAside(List<Entry> batch) {
+    if (this.logFile == null) {
+      this.logger.warning("Write-behind discarded " + batch.size() + " unstored instances");
+      return;
+    }
+    synchronized (this.lock) {
+      Set<String> queuedKeys = new HashSet<String>();
+      for (Entry entry : this.queue) {
+        queuedKeys.add(getKey(entry.data));
+      }
+      List<Entry> entries = new ArrayList<Entry>(batch.size());
+      for (Entry entry : batch) {
+        if (!queuedKeys.contains(getKey(entry.data))) {
+          entries.add(entry);
+        }
+      }
+      this.nextRetry = Math.max(this.nextRetry, System.currentTimeMillis() + retryInterval);
+      try {
+        this.failed.append(entries);
+        this.logger.warning("Write-behind set aside " + entries.size() + " unstored instances in "
+            + this.failed.file);
+      }
+      catch (IOException e) {
+        this.logger.warning("Write-behind lost " + batch.size() + " unstored instances " 
+            + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Accepts the next entries of the retry file that have not been killed, as many as fit in 
+   * the queue, and deletes the file once all of them have been. If no retry is under way and
+   * retryInterval has passed, the failed file first becomes the retry file. If the retry file
+   * cannot be read or its entries logged, it is read again from the start after retryInterval.
+   */
+  private void retryFailed() {
+    synchronized (this.lock) {
+      long now = System.currentTimeMillis();
+      if ((this.retryReader == null) && (now < this.nextRetry)) {
+        return;
+      }
+      try {
+        if (this.retrying == null) {
+          if (this.failed.numRecords == 0) {
+            return;
+          }
+          File retryFile = getRetryFile(this.logFile);
+          if (!this.failed.file.renameTo(retryFile)) {
+            throw new IOException("Could not rename " + this.failed.file + " to " + retryFile);
+          }
+          this.retrying = this.failed;
+          this.retrying.file = retryFile;
+          this.failed = new FailedFile(getFailedFile(this.logFile));
+        }
+        if (this.retryReader == null) {
+          this.logger.info("Write-behind retrying " + this.retrying.file);
+          this.retryReader = new LogReader(this.retrying.file);
+          this.retryIndex = 0;
+        }
+        int room = Math.min(this.batchSize, this.queue.remainingCapacity());
+        List<Entry> entries = new ArrayList<Entry>(room);
+        LogRecord record = null;
+        while ((entries.size() < room) && ((record = this.retryReader.next()) != null)) {
+          long index = this.retryIndex++;
+          Entry entry = record.isDelete() ? null : makeEntry(record.xmlSensorData);
+          if ((entry != null) && !this.retrying.isKilled(entry.data, index)) {
+            entries.add(entry);
+          }
+        }
+        if (!entries.isEmpty()) {
+          accept(entries);
+        }
+        if ((record == null) && (room > 0)) {
+          closeRetryReader();
+          // The entries accepted again must be on disk before the file they came from goes.
+          if (this.logStream != null) {
+            this.logStream.getFD().sync();
+          }
+          if (!this.retrying.file.delete()) {
+            throw new IOException("Could not delete " + this.retrying.file);
+          }
+          this.retrying = null;
+          this.nextRetry = now + retryInterval;
+        }
+      }
+      catch (IOException e) {
+        this.logger.warning("Write-behind failed to retry set aside instances " 
+            + StackTrace.toString(e));
+        closeRetryReader();
+        this.nextRetry = now + retryInterval;
+      }
+    }
+  }
+
+  /**
+   * Closes the reader of the retry file, if it is open. Caller must hold lock.
+   */
+  private void closeRetryReader() {
+    if (this.retryReader != null) {
+      try {
+        this.retryReader.close();
+      }
+      catch (IOException e) {
+        this.logger.warning("Failed to close write-behind retry file " + StackTrace.toString(e));
+      }
+      this.retryReader = null;
+    }
+  }
+
+  /**
+   * Appends kill records for the passed entries to the failed files that hold older entries
+   * with the same owner and timestamp. Caller must hold lock.
+   * @param entries The entries.
+   * @throws IOException If the kill records cannot be written.
+   */
+  private void killFailed(List<Entry> entries) throws IOException {
+    this.failed.kill(entries);
+    if (this.retrying != null) {
+      this.retrying.kill(entries);
+    }
+  }
+
+  /**
+   * Appends a kill record for a delete to the failed files that hold entries it matches.
+   * Caller must hold lock.
+   * @param owner The email of the owner.
+   * @param timestamp The timestamp of the deleted instance, or null if all of them are.
+   * @throws IOException If the kill records cannot be written.
+   */
+  private void killFailed(String owner, String timestamp) throws IOException {
+    this.failed.kill(owner, timestamp);
+    if (this.retrying != null) {
+      this.retrying.kill(owner, timestamp);
+    }
+  }
+
+  /**
+   * Reads the keys and kill records of a failed file left by a previous run.
+   * @param file The failed file, which need not exist.
+   * @return The failed file.
+   * @throws IOException If the file cannot be read.
+   */
+  private FailedFile loadFailedFile(File file) throws IOException {
+    FailedFile failedFile = new FailedFile(file);
+    if (file.exists()) {
+      LogReader reader = new LogReader(file);
+      try {
+        for (LogRecord record = reader.next(); record != null; record = reader.next()) {
+          if (record.isDelete()) {
+            failedFile.addKill(record.owner, record.timestamp);
+          }
+          else {
+            Entry entry = makeEntry(record.xmlSensorData);
+            failedFile.addEntry((entry == null) ? null : entry.data);
+          }
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    return failedFile;
+  }
+
+  /**
+   * Converts the XML of a set aside instance back into an entry.
+   * @param xmlSensorData The XML.
+   * @return The entry, or null if the XML cannot be converted.
+   */
+  private Entry makeEntry(String xmlSensorData) {
+    try {
+      SensorData data = this.manager.makeSensorData(xmlSensorData);
+      return new Entry(data, xmlSensorData, this.manager.makeSensorDataRefString(data));
+    }
+    catch (Exception e) {
+      this.logger.warning("Write-behind dropped unreadable set aside instance " 
+          + StackTrace.toString(e));
+      return null;
+    }
+  }
+
+  /**
+   * Appends entries to the log, without forcing it to disk, and to the queue, and starts a new
+   * segment if the current one is full and not being forced. Caller must hold lock and have 
+   * checked that the queue has room.
+   * @param entries The entries.
+   * @throws IOException If the entries could not be appended to the log.
+   */
+  private void accept(List<Entry> entries) throws IOException {
+    if (this.logFile != null) {
+      appendToLog(entries);
+    }
+    this.queue.addAll(entries);
+    this.numAccepted += entries.size();
+    if ((this.segmentBytes >= maxSegmentBytes) && !this.syncing) {
+      closeSegment();
+      openSegment();
+    }
+  }
+
+  /**
+   * Deletes the closed segments whose entries have all been stored or set aside, and empties
+   * the current segment if every accepted entry has been. Caller must hold lock.
+   */
+  private void checkpoint() {
+    while (!this.closedSegments.isEmpty() 
+        && (this.closedSegments.getFirst().lastSequence <= this.numWritten)) {
+      File file = this.closedSegments.removeFirst().file;
+      if (!file.delete()) {
+        this.logger.warning("Failed to delete write-behind log segment " + file);
+      }
+    }
+    if ((this.logStream != null) && (this.segmentBytes > 0) 
+        && (this.numWritten == this.numAccepted)) {
+      try {
+        this.logStream.getChannel().truncate(0);
+        this.segmentBytes = 0;
+      }
+      catch (IOException e) {
+        this.logger.warning("Failed to truncate write-behind log " + StackTrace.toString(e));
+      }
+    }
+  }
+
+  /**
+   * Opens the next segment for appending. Caller must hold lock or be the constructor.
+   * @throws IOException If the segment cannot be opened.
+   */
+  private void openSegment() throws IOException {
+    this.segmentFile = new File(this.logFile.getPath() + "." + this.segmentNumber++);
+    this.logStream = new FileOutputStream(this.segmentFile, true);
+    this.segmentBytes = this.segmentFile.length();
+  }
+
+  /**
+   * Forces the current segment to disk and closes it. It is deleted once every entry accepted
+   * so far has been stored. Caller must hold lock, and no thread may be forcing the segment.
+   * @throws IOException If the segment cannot be closed.
+   */
+  private void closeSegment() throws IOException {
+    this.logStream.getFD().sync();
+    this.numSynced = this.numAppended;
+    this.logStream.close();
+    this.logStream = null;
+    this.closedSegments.add(new Segment(this.segmentFile, this.numAccepted));
+  }
+
+  /**
+   * Appends the XML of the entries to the current segment, first opening a new segment if the
+   * last one could not be. The caller forces it to disk with syncLog. Caller must hold lock.
+   * @param entries The entries.
+   * @throws IOException If the log cannot be written.
+   */
+  private void appendToLog(List<Entry> entries) throws IOException {
+    if (this.logStream == null) {
+      openSegment();
+    }
+    this.segmentBytes += writeEntries(this.logStream, entries);
+    this.numAppended++;
+  }
+
+  /**
+   * Appends the XML of the entries to the passed log stream, without forcing it to disk. Each
+   * record is the length of the UTF-8 encoded XML followed by the encoded bytes.
+   * @param stream The stream.
+   * @param entries The entries.
+   * @return The number of bytes written.
+   * @throws IOException If the log cannot be written.
+   */
+  private static int writeEntries(FileOutputStream stream, List<Entry> entries) 
+    throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    for (Entry entry : entries) {
+      byte[] bytes = entry.xmlSensorData.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    out.flush();
+    return out.size();
+  }
+
+  /**
+   * Appends a delete record to the passed log stream and forces it to disk. The record is
+   * deleteRecord followed by the owner and the timestamp, which is empty if all of the owner's
+   * sensor data was deleted.
+   * @param stream The stream.
+   * @param owner The email of the owner.
+   * @param timestamp The timestamp of the deleted instance, or null.
+   * @return The number of bytes written.
+   * @throws IOException If the log cannot be written.
+   */
+  private static int writeDelete(FileOutputStream stream, String owner, String timestamp) 
+    throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(deleteRecord);
+    out.writeUTF(owner);
+    out.writeUTF((timestamp == null) ? "" : timestamp);
+    out.flush();
+    stream.getFD().sync();
+    return out.size();
+  }
+
+  /**
+   * Returns the key that identifies the stored instance of the passed sensor data: its owner
+   * and the time of its timestamp, which may be written in more than one way.
+   * @param data The sensor data.
+   * @return The key.
+   */
+  private static String getKey(SensorData data) {
+    return getKey(data.getOwner(), data.getTimestamp());
+  }
+
+  /**
+   * Returns the key that identifies a stored instance.
+   * @param owner The owner.
+   * @param timestamp The timestamp.
+   * @return The key.
+   */
+  private static String getKey(String owner, XMLGregorianCalendar timestamp) {
+    return owner + " " + timestamp.toGregorianCalendar().getTimeInMillis();
+  }
+
+  /**
+   * Returns the key that identifies the instance named by a delete record.
+   * @param owner The owner.
+   * @param timestamp The timestamp, as recorded by logDelete.
+   * @return The key.
+   */
+  private static String getKey(String owner, String timestamp) {
+    try {
+      return getKey(owner, Tstamp.makeTimestamp(timestamp));
+    }
+    catch (Exception e) {
+      return owner + " " + timestamp;
+    }
+  }
+
+  /**
+   * Returns the file in which entries that could not be stored are set aside.
+   * @param logFile The log.
+   * @return The failed file.
+   */
+  private static File getFailedFile(File logFile) {
+    return new File(logFile.getPath() + failedSuffix);
+  }
+
+  /**
+   * Returns the file to which the failed file is renamed while its entries are retried.
+   * @param logFile The log.
+   * @return The retry file.
+   */
+  private static File getRetryFile(File logFile) {
+    return new File(logFile.getPath() + failedSuffix + retrySuffix);
+  }
+
+  /**
+   * Returns the segments of the passed log that exist, keyed by segment number.
+   * @param logFile The log.
+   * @return The segments.
+   */
+  private static SortedMap<Long, File> getSegments(File logFile) {
+    SortedMap<Long, File> segments = new TreeMap<Long, File>();
+    File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+    String prefix = logFile.getName() + ".";
+    for (int i = 0; (files != null) && (i < files.length); i++) {
+      String name = files[i].getName();
+      if (name.startsWith(prefix)) {
+        try {
+          segments.put(Long.valueOf(name.substring(prefix.length())), files[i]);
+        }
+        catch (NumberFormatException e) { //NOPMD
+          // Not a segment, such as the failed file.
+        }
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Returns the files left by the log that must be replayed, in the order they must be 
+   * replayed: a log written by earlier versions as a single file, and then the segments in the
+   * order they were written. The failed files are retried by the queue instead.
+   * @param logFile The log.
+   * @return The files that exist.
+   */
+  static List<File> getReplayFiles(File logFile) {
+    List<File> files = new ArrayList<File>();
+    if (logFile.exists()) {
+      files.add(logFile);
+    }
+    files.addAll(getSegments(logFile).values());
+    return files;
+  }
+
+  /**
+   * A file of entries that could not be stored, together with the kill records appended to it 
+   * when a newer instance with the same owner and timestamp was accepted or the instance was
+   * deleted. A kill record has the format of a delete record. It is never applied to the 
+   * database, but the entries before it that it matches are not stored. 
+   */
+  private static class FailedFile {
+    /** The file. */
+    File file;
+    /** The number of records in the file. */
+    long numRecords = 0;
+    /** The keys of the entries that no kill record follows. */
+    private final Set<String> keys = new HashSet<String>();
+    /** Maps the key of each killed instance to the index of its last kill record. */
+    private final Map<String, Long> kills = new HashMap<String, Long>();
+    /** Maps each owner all of whose instances were killed to the index of the last such kill. */
+    private final Map<String, Long> ownerKills = new HashMap<String, Long>();
+
+    /**
+     * Creates an empty failed file.
+     * @param file The file, which is created when the first entry is appended.
+     */
+    FailedFile(File file) {
+      this.file = file;
+    }
+
+    /**
+     * Notes that an entry has been appended.
+     * @param data The sensor data of the entry, or null if it could not be read.
+     */
+    void addEntry(SensorData data) {
+      if (data != null) {
+        this.keys.add(getKey(data));
+      }
+      this.numRecords++;
+    }
+
+    /**
+     * Notes that a kill record has been appended.
+     * @param owner The email of the owner.
+     * @param timestamp The timestamp of the killed instance, or null if all of them are.
+     */
+    void addKill(String owner, String timestamp) {
+      if (timestamp == null) {
+        this.ownerKills.put(owner, Long.valueOf(this.numRecords));
+        for (Iterator<String> i = this.keys.iterator(); i.hasNext();) {
+          if (i.next().startsWith(owner + " ")) {
+            i.remove();
+          }
+        }
+      }
+      else {
+        String key = getKey(owner, timestamp);
+        this.kills.put(key, Long.valueOf(this.numRecords));
+        this.keys.remove(key);
+      }
+      this.numRecords++;
+    }
+
+    /**
+     * Returns true if a kill record follows the record at the passed index.
+     * @param data The sensor data of the entry.
+     * @param index The index of its record.
+     * @return True if the entry must not be stored.
+     */
+    boolean isKilled(SensorData data, long index) {
+      Long kill = this.kills.get(getKey(data));
+      Long ownerKill = this.ownerKills.get(data.getOwner());
+      return ((kill != null) && (kill.longValue() > index)) 
+          || ((ownerKill != null) && (ownerKill.longValue() > index));
+    }
+
+    /**
+     * Appends entries to the file and forces them to disk.
+     * @param entries The entries.
+     * @throws IOException If the file cannot be written.
+     */
+    void append(List<Entry> entries) throws IOException {
+      if (entries.isEmpty()) {
+        return;
+      }
+      FileOutputStream stream = new FileOutputStream(this.file, true);
+      try {
+        writeEntries(stream, entries);
+        stream.getFD().sync();
+      }
+      finally {
+        stream.close();
+      }
+      for (Entry entry : entries) {
+        addEntry(entry.data);
+      }
+    }
+
+    /**
+     * Appends a kill record for each of the passed entries that an entry in the file has the
+     * key of.
+     * @param entries The newer entries.
+     * @throws IOException If the file cannot be written.
+     */
+    void kill(List<Entry> entries) throws IOException {
+      for (Entry entry : entries) {
+        if (this.keys.contains(getKey(entry.data))) {
+          kill(entry.data.getOwner(), entry.data.getTimestamp().toXMLFormat());
+        }
+      }
+    }
+
+    /**
+     * Appends a kill record for a delete, unless no entry in the file can match it.
+     * @param owner The email of the owner.
+     * @param timestamp The timestamp of the deleted instance, or null if all of them are.
+     * @throws IOException If the file cannot be written.
+     */
+    void kill(String owner, String timestamp) throws IOException {
+      if (this.keys.isEmpty() 
+          || ((timestamp != null) && !this.keys.contains(getKey(owner, timestamp)))) {
+        return;
+      }
+      FileOutputStream stream = new FileOutputStream(this.file, true);
+      try {
+        writeDelete(stream, owner, timestamp);
+      }
+      finally {
+        stream.close();
+      }
+      addKill(owner, timestamp);
+    }
+  }
+
+  /**
+   * Reads back the records of one log file in order, one at a time, so that a large log can
+   * be replayed in bounded chunks. A partially written record at the end is ignored.
+   */
+  static class LogReader {
+    /** The input stream. */
+    private final DataInputStream in;
+
+    /**
+     * Opens the passed log file.
+     * @param file The file.
+     * @throws IOException If the file cannot be opened.
+     */
+    LogReader(File file) throws IOException {
+      this.in = new DataInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Returns the next record.
+     * @return The record, or null at the end of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    LogRecord next() throws IOException {
+      try {
+        int length = this.in.readInt();
+        if (length == deleteRecord) {
+          String owner = this.in.readUTF();
+          String timestamp = this.in.readUTF();
+          return new LogRecord(null, owner, (timestamp.length() == 0) ? null : timestamp);
+        }
+        byte[] bytes = new byte[length];
+        this.in.readFully(bytes);
+        return new LogRecord(new String(bytes, "UTF-8"), null, null);
+      }
+      catch (EOFException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Closes the file.
+     * @throws IOException If the file cannot be closed.
+     */
+    void close() throws IOException {
+      this.in.close();
+    }
+  }
+}
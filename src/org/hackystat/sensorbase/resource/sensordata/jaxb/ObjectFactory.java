@@ -96,6 +96,22 @@ public class ObjectFactory {
         return new SensorDatas();
     }
 
+    /**
+     * Create an instance of {@link Row }
+     * 
+     */
+    public Row createRow() {
+        return new Row();
+    }
+
+    /**
+     * Create an instance of {@link SensorDataRows }
+     * 
+     */
+    public SensorDataRows createSensorDataRows() {
+        return new SensorDataRows();
+    }
+
     /**
      * Create an instance of {@link JAXBElement }{@code <}{@link String }{@code >}}
      * 
@@ -34,6 +34,7 @@ import javax.xml.datatype.XMLGregorianCalendar;
  *         &lt;element ref="{}SensorDataRef" maxOccurs="unbounded" minOccurs="0"/>
  *       &lt;/sequence>
  *       &lt;attribute ref="{}LastMod use="required""/>
+ *       &lt;attribute ref="{}ContinuationToken"/>
  *     &lt;/restriction>
  *   &lt;/complexContent>
  * &lt;/complexType>
@@ -56,6 +57,8 @@ public class SensorDataIndex
     @XmlAttribute(name = "LastMod", required = true)
     @XmlSchemaType(name = "dateTime")
     protected XMLGregorianCalendar lastMod;
+    @XmlAttribute(name = "ContinuationToken")
+    protected String continuationToken;
 
     /**
      * Gets the value of the sensorDataRef property.
@@ -122,4 +125,32 @@ public class SensorDataIndex
         return (this.lastMod!= null);
     }
 
+    /**
+     * Gets the value of the continuationToken property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Sets the value of the continuationToken property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setContinuationToken(String value) {
+        this.continuationToken = value;
+    }
+
+    public boolean isSetContinuationToken() {
+        return (this.continuationToken!= null);
+    }
+
 }
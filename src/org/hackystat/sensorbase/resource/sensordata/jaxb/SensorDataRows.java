@@ -0,0 +1,114 @@
+package org.hackystat.sensorbase.resource.sensordata.jaxb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+
+/**
+ * <p>Java class for anonymous complex type.
+ * 
+ * <p>The following schema fragment specifies the expected content contained within this class.
+ * 
+ * <pre>
+ * &lt;complexType>
+ *   &lt;complexContent>
+ *     &lt;restriction base="{http://www.w3.org/2001/XMLSchema}anyType">
+ *       &lt;sequence>
+ *         &lt;element ref="{}Row" maxOccurs="unbounded" minOccurs="0"/>
+ *       &lt;/sequence>
+ *       &lt;attribute ref="{}Fields use="required""/>
+ *     &lt;/restriction>
+ *   &lt;/complexContent>
+ * &lt;/complexType>
+ * </pre>
+ * 
+ * 
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "", propOrder = {
+    "row"
+})
+@XmlRootElement(name = "SensorDataRows")
+public class SensorDataRows
+    implements Serializable
+{
+
+    private final static long serialVersionUID = 12343L;
+    @XmlElement(name = "Row")
+    protected List<Row> row;
+    @XmlAttribute(name = "Fields", required = true)
+    protected String fields;
+
+    /**
+     * Gets the value of the row property.
+     * 
+     * <p>
+     * This accessor method returns a reference to the live list,
+     * not a snapshot. Therefore any modification you make to the
+     * returned list will be present inside the JAXB object.
+     * This is why there is not a <CODE>set</CODE> method for the row property.
+     * 
+     * <p>
+     * For example, to add a new item, do as follows:
+     * <pre>
+     *    getRow().add(newItem);
+     * </pre>
+     * 
+     * 
+     * <p>
+     * Objects of the following type(s) are allowed in the list
+     * {@link Row }
+     * 
+     * 
+     */
+    public List<Row> getRow() {
+        if (row == null) {
+            row = new ArrayList<Row>();
+        }
+        return this.row;
+    }
+
+    public boolean isSetRow() {
+        return ((this.row!= null)&&(!this.row.isEmpty()));
+    }
+
+    public void unsetRow() {
+        this.row = null;
+    }
+
+    /**
+     * Gets the value of the fields property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getFields() {
+        return fields;
+    }
+
+    /**
+     * Sets the value of the fields property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setFields(String value) {
+        this.fields = value;
+    }
+
+    public boolean isSetFields() {
+        return (this.fields!= null);
+    }
+
+}
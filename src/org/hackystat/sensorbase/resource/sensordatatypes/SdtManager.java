@@ -3,20 +3,11 @@ package org.hackystat.sensorbase.resource.sensordatatypes;
 import static org.hackystat.sensorbase.server.ServerProperties.XML_DIR_KEY;
 
 import java.io.File;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataType;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataTypeIndex;
@@ -24,9 +15,9 @@ import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataTypeRef;
 import org.hackystat.sensorbase.resource.sensordatatypes.jaxb.SensorDataTypes;
 import org.hackystat.sensorbase.server.Server;
 import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
 import org.hackystat.utilities.stacktrace.StackTrace;
 import org.hackystat.utilities.tstamp.Tstamp;
-import org.w3c.dom.Document;
 
 /**
  * Provides a manager for the SensorDataType resource.
@@ -53,6 +44,9 @@ public class SdtManager {
   /** Holds the class-wide JAXBContext, which is thread-safe. */
   private JAXBContext jaxbContext;
   
+  /** Converts this Manager's resources to and from XML strings. */
+  private JaxbSerializer serializer;
+  
   /** The Server associated with this SdtManager. */
   Server server; 
   
@@ -86,6 +80,7 @@ public class SdtManager {
       this.jaxbContext = 
         JAXBContext.newInstance(
             org.hackystat.sensorbase.resource.sensordatatypes.jaxb.ObjectFactory.class);
+      this.serializer = new JaxbSerializer(this.jaxbContext);
       loadDefaultSensorDataTypes(); //NOPMD it's throwing a false warning. 
       initializeCache();            //NOPMD 
     }
@@ -205,6 +200,15 @@ public class SdtManager {
     return this.name2sdt.containsKey(sdtName);
   }
   
+  /**
+   * Returns the time of the last change to any SDT, which resources use as the validator of 
+   * the SensorDataTypeIndex.
+   * @return The time, in milliseconds.
+   */
+  public synchronized long getLastChange() {
+    return this.dbManager.getSensorDataTypeLastChange();
+  }
+  
   /**
    * Ensures that the passed sdtName is no longer present in this Manager. 
    * @param sdtName The name of the SDT to remove if currently present.
@@ -226,9 +230,8 @@ public class SdtManager {
    * @return The corresponding SensorDataType instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized SensorDataType makeSensorDataType(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    return (SensorDataType)unmarshaller.unmarshal(new StringReader(xmlString));
+  public final SensorDataType makeSensorDataType(String xmlString) throws Exception {
+    return (SensorDataType) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -239,10 +242,9 @@ public class SdtManager {
    * @return The corresponding SensorDataTypeIndex instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized SensorDataTypeIndex makeSensorDataTypeIndex(String xmlString) 
+  public final SensorDataTypeIndex makeSensorDataTypeIndex(String xmlString) 
   throws Exception {
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    return (SensorDataTypeIndex)unmarshaller.unmarshal(new StringReader(xmlString));
+    return (SensorDataTypeIndex) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -252,23 +254,8 @@ public class SdtManager {
    * @return The XML String representation.
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeSensorDataType (SensorDataType sdt) throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(sdt, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+  public final String makeSensorDataType (SensorDataType sdt) throws Exception {
+    return this.serializer.marshal(sdt);
   }
 
   /**
@@ -279,25 +266,10 @@ public class SdtManager {
    * @return The XML String representation of it as a SensorDataTypeRef
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeSensorDataTypeRefString (SensorDataType sdt) 
+  public final String makeSensorDataTypeRefString (SensorDataType sdt) 
   throws Exception {
     SensorDataTypeRef ref = makeSensorDataTypeRef(sdt);
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(ref, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return this.serializer.marshal(ref);
   }
   
   /**
@@ -305,7 +277,7 @@ public class SdtManager {
    * @param sdt The SensorDataType instance. 
    * @return A SensorDataTypeRef instance. 
    */
-  public synchronized SensorDataTypeRef makeSensorDataTypeRef(SensorDataType sdt) {
+  public SensorDataTypeRef makeSensorDataTypeRef(SensorDataType sdt) {
     SensorDataTypeRef ref = new SensorDataTypeRef();
     ref.setName(sdt.getName());
     ref.setHref(this.server.getHostName() + "sensordatatypes/" + sdt.getName()); 
@@ -25,7 +25,8 @@ public class SensorDataTypesResource extends SensorBaseResource {
   }
   
   /**
-   * Returns the representation of the SensorDataTypes resource. 
+   * Returns the representation of the SensorDataTypes resource, or 304 (Not Modified) if the
+   * conditions of the request show that the client's copy is current. 
    * @param variant The representational variant requested.
    * @return The representation. 
    */
@@ -33,8 +34,12 @@ public class SensorDataTypesResource extends SensorBaseResource {
   public Representation represent(Variant variant) {
     try {
       if (variant.getMediaType().equals(MediaType.TEXT_XML)) {
+        long lastChange = super.sdtManager.getLastChange();
+        if (isNotModified(lastChange)) {
+          return null;
+        }
         String xmlData = super.sdtManager.getSensorDataTypeIndex();
-        return super.getStringRepresentation(xmlData);
+        return setValidators(super.getStringRepresentation(xmlData), lastChange);
       }
     }
     catch (RuntimeException e) {
@@ -84,4 +84,32 @@ public class TestSdtRestApi extends SensorBaseRestApiHelper {
     assertEquals("Testing sdt retrieval", sdtName, client.getSensorDataType(sdtName).getName());
     client.deleteSensorDataType(sdtName);
   }
+  
+  /**
+   * Test that a client with caching enabled, whose GETs of the SDT index are conditional, 
+   * gets the same index as before while it is unchanged, and sees SDTs put and deleted since.
+   * @throws Exception If problems occur.
+   */
+  @Test public void getSdtIndexConditional() throws Exception {
+    SensorBaseClient client = new SensorBaseClient(getHostName(), user, user);
+    client.authenticate();
+    client.enableCaching("TestSdtCaching", "TestSdtCaching", 1D, 25L);
+    int numSdts = client.getSensorDataTypeIndex().getSensorDataTypeRef().size();
+    // The second GET is answered from the cache after the server replies Not Modified.
+    assertEquals("Checking unchanged index", numSdts, 
+        client.getSensorDataTypeIndex().getSensorDataTypeRef().size());
+    SensorDataType sdt = new SensorDataType();
+    String sdtName = "TestSdt3";
+    sdt.setName(sdtName);
+    sdt.setDescription("Sample SDT");
+    SensorBaseClient admin = new SensorBaseClient(getHostName(), adminEmail, adminPassword);
+    admin.authenticate();
+    admin.putSensorDataType(sdt);
+    assertEquals("Checking index after put", numSdts + 1, 
+        client.getSensorDataTypeIndex().getSensorDataTypeRef().size());
+    admin.deleteSensorDataType(sdtName);
+    assertEquals("Checking index after delete", numSdts, 
+        client.getSensorDataTypeIndex().getSensorDataTypeRef().size());
+    client.clearCache();
+  }
 }
@@ -7,6 +7,7 @@ import static org.junit.Assert.fail;
 
 import org.hackystat.sensorbase.client.SensorBaseClient;
 import org.hackystat.sensorbase.client.SensorBaseClientException;
+import org.hackystat.sensorbase.resource.projects.jaxb.Project;
 import org.hackystat.sensorbase.resource.users.jaxb.Properties;
 import org.hackystat.sensorbase.resource.users.jaxb.Property;
 import org.hackystat.sensorbase.resource.users.jaxb.User;
@@ -164,4 +165,28 @@ public class TestUsersRestApi extends SensorBaseRestApiHelper {
     // Clean up, get rid of this user. 
     client.deleteUser(testPost);
   }
+  
+  /**
+   * Tests that a user's projects can still be retrieved after their properties are updated.
+   * @throws Exception If problems occur. 
+   */
+  @Test public void postUserPropertiesKeepsProjects () throws Exception {
+    String testPost = "TestPost@" + server.getServerProperties().get(TEST_DOMAIN_KEY);
+    SensorBaseClient.registerUser(getHostName(), testPost);
+    Properties properties = new Properties();
+    Property property = new Property();
+    property.setKey("testKey");
+    property.setValue("testValue");
+    properties.getProperty().add(property);
+    SensorBaseClient client = 
+      new SensorBaseClient(getHostName(), testPost, testPost);
+    client.updateUserProperties(testPost, properties);
+
+    Project project = client.getProject(testPost, "Default");
+    assertEquals("Got the Default project", testPost, project.getOwner());
+    assertEquals("Got the project index", 1, 
+        client.getProjectIndex(testPost).getProjectRef().size());
+    // Clean up, get rid of this user. 
+    client.deleteUser(testPost);
+  }
 }
@@ -1,24 +1,17 @@
 package org.hackystat.sensorbase.resource.users;
 
 import java.io.File;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.datatype.XMLGregorianCalendar;
 
 import org.hackystat.sensorbase.db.DbManager;
+import org.hackystat.sensorbase.resource.sensorbase.JaxbSerializer;
 import org.hackystat.utilities.stacktrace.StackTrace;
 import org.hackystat.utilities.tstamp.Tstamp;
 import org.hackystat.sensorbase.resource.projects.ProjectManager;
@@ -33,7 +26,6 @@ import static org.hackystat.sensorbase.server.ServerProperties.XML_DIR_KEY;
 import static org.hackystat.sensorbase.server.ServerProperties.TEST_DOMAIN_KEY;
 import static org.hackystat.sensorbase.server.ServerProperties.ADMIN_EMAIL_KEY;
 import static org.hackystat.sensorbase.server.ServerProperties.ADMIN_PASSWORD_KEY;
-import org.w3c.dom.Document;
 
 /**
  * Manages access to the User resources. 
@@ -44,6 +36,13 @@ import org.w3c.dom.Document;
  * both invoke methods from UserManager, so if UserManager were to invoke a method from
  * either of these two classes, then we would have multiple locks not being acquired in the
  * same order, which produces the potential for deadlock.)
+ * <p>
+ * Every HTTP request is authenticated through isUser, so methods that only read Users take no
+ * lock. Each User is cached together with its XML representations in a single entry of a
+ * concurrent map, so readers always see a consistent entry. Methods that update Users are
+ * synchronized so that updates to the cache and the database happen in the same order. 
+ * A cached User is never modified once it is published: updates cache a modified copy, 
+ * as ProjectManager does for Projects.
  *   
  * @author Philip Johnson
  */
@@ -52,6 +51,9 @@ public class UserManager {
   /** Holds the class-wide JAXBContext, which is thread-safe. */
   private JAXBContext jaxbContext;
   
+  /** Converts this Manager's resources to and from XML strings. */
+  private JaxbSerializer serializer;
+  
   /** The Server associated with this UserManager. */
   Server server; 
   
@@ -67,14 +69,31 @@ public class UserManager {
   /** The initial size for Collection instances that hold the Users. */
   private static final int userSetSize = 127;
   
-  /** The in-memory repository of Users, keyed by Email. */
-  private Map<String, User> email2user = new HashMap<String, User>(userSetSize);
-  
-  /** The in-memory repository of User XML strings, keyed by User. */
-  private Map<User, String> user2xml = new HashMap<User, String>(userSetSize);
-  
-  /** The in-memory repository of UserRef XML strings, keyed by User. */
-  private Map<User, String> user2ref = new HashMap<User, String>(userSetSize);
+  /** The in-memory repository of Users and their XML representations, keyed by Email. */
+  private final Map<String, CachedUser> email2user = 
+    new ConcurrentHashMap<String, CachedUser>(userSetSize);
+  
+  /** A cached User together with its XML representations. */
+  private static final class CachedUser {
+    /** The User. */
+    private final User user;
+    /** The User as an XML string. */
+    private final String xml;
+    /** The User as an XML UserRef string. */
+    private final String ref;
+    
+    /**
+     * Creates a new cache entry.
+     * @param user The User.
+     * @param xml The User as an XML string.
+     * @param ref The User as an XML UserRef string.
+     */
+    CachedUser(User user, String xml, String ref) {
+      this.user = user;
+      this.xml = xml;
+      this.ref = ref;
+    }
+  }
   
   /** 
    * The constructor for UserManagers. 
@@ -87,6 +106,7 @@ public class UserManager {
       this.jaxbContext = 
         JAXBContext.newInstance(
             org.hackystat.sensorbase.resource.users.jaxb.ObjectFactory.class);
+      this.serializer = new JaxbSerializer(this.jaxbContext);
       loadDefaultUsers(); //NOPMD it's throwing a false warning. 
       initializeCache();  //NOPMD 
       initializeAdminUser(); //NOPMD
@@ -146,12 +166,12 @@ public class UserManager {
     String adminEmail = server.getServerProperties().get(ADMIN_EMAIL_KEY);
     String adminPassword = server.getServerProperties().get(ADMIN_PASSWORD_KEY);
     // First, clear any existing Admin role property.
-    for (User user : this.email2user.values()) {
-      user.setRole("basic");
+    for (CachedUser cached : this.email2user.values()) {
+      cached.user.setRole("basic");
     }
     // Now define the admin user with the admin property.
     if (this.email2user.containsKey(adminEmail)) {
-      User user = this.email2user.get(adminEmail);
+      User user = this.email2user.get(adminEmail).user;
       user.setPassword(adminPassword);
       user.setRole("admin");
     }
@@ -183,9 +203,7 @@ public class UserManager {
    * @param userRef The User as an XML reference. 
    */
   private void updateCache(User user, String userXml, String userRef) {
-    this.email2user.put(user.getEmail(), user);
-    this.user2xml.put(user, userXml);
-    this.user2ref.put(user, userRef);
+    this.email2user.put(user.getEmail(), new CachedUser(user, userXml, userRef));
   }
   
   /**
@@ -206,27 +224,31 @@ public class UserManager {
    * Uses the in-memory cache of UserRef strings.  
    * @return The XML string providing an index to all current Users.
    */
-  public synchronized String getUserIndex() {
+  public String getUserIndex() {
     StringBuilder builder = new StringBuilder(512);
     builder.append(userIndexOpenTag);
-    for (String ref : this.user2ref.values()) {
-      builder.append(ref);
+    for (CachedUser cached : this.email2user.values()) {
+      builder.append(cached.ref);
     }
     builder.append(userIndexCloseTag);
     return builder.toString();
   }
   
   /**
-   * Updates the Manager with this User. Any old definition is overwritten.
-   * @param user The User.
+   * Updates the Manager with a copy of this User. Any old definition is overwritten.
+   * The XML representations are built before the lock is acquired.
+   * @param user The User, which is not modified.
    */
-  public synchronized void putUser(User user) {
+  public void putUser(User user) {
     try {
-      user.setLastMod(Tstamp.makeTimestamp());
-      String xmlUser =  this.makeUser(user);
-      String xmlRef =  this.makeUserRefString(user);
-      this.updateCache(user, xmlUser, xmlRef);
-      this.dbManager.storeUser(user, xmlUser, xmlRef);
+      User copy = copy(user);
+      copy.setLastMod(Tstamp.makeTimestamp());
+      String xmlUser =  this.makeUser(copy);
+      String xmlRef =  this.makeUserRefString(copy);
+      synchronized (this) {
+        this.updateCache(copy, xmlUser, xmlRef);
+        this.dbManager.storeUser(copy, xmlUser, xmlRef);
+      }
     }
     catch (Exception e) {
       server.getLogger().warning("Failed to put User" + StackTrace.toString(e));
@@ -240,7 +262,7 @@ public class UserManager {
    * @param email The email address of the User to remove if currently present.
    */
   public synchronized void deleteUser(String email) {
-    User user = this.email2user.get(email);
+    User user = getUser(email);
     // First, delete all the projects owned by this user.
     ProjectManager projectManager =  
       (ProjectManager)this.server.getContext().getAttributes().get("ProjectManager");
@@ -248,8 +270,6 @@ public class UserManager {
     // Now delete the user
     if (user != null) {
       this.email2user.remove(email);
-      this.user2xml.remove(user);
-      this.user2ref.remove(user);
     }
     this.dbManager.deleteUser(email);
   }
@@ -261,8 +281,9 @@ public class UserManager {
    * @param email The email address
    * @return The User, or null if not found.
    */
-  public synchronized User getUser(String email) {
-    return (email == null) ? null : email2user.get(email);
+  public User getUser(String email) {
+    CachedUser cached = (email == null) ? null : email2user.get(email);
+    return (cached == null) ? null : cached.user;
   }
   
   /**
@@ -271,21 +292,24 @@ public class UserManager {
    * @param email The email address
    * @return The User XML string, or null if not found.
    */
-  public synchronized String getUserString(String email) {
-    User user = email2user.get(email);
-    return (user == null) ? null : user2xml.get(user);
+  public String getUserString(String email) {
+    CachedUser cached = (email == null) ? null : email2user.get(email);
+    return (cached == null) ? null : cached.xml;
   }
   
   /**
-   * Updates the given User with the passed Properties. 
-   * @param user The User whose properties are to be updated.
+   * Updates the given User with the passed Properties, by putting a copy of the User to which
+   * they are added. 
+   * @param user The User whose properties are to be updated, which is not modified.
    * @param properties The Properties. 
    */
   public synchronized void updateProperties(User user, Properties properties) {
-    for (Property property : properties.getProperty()) {
-      user.getProperties().getProperty().add(property);
+    User updated = copy(user);
+    if (updated.getProperties() == null) {
+      updated.setProperties(new Properties());
     }
-    this.putUser(user);
+    updated.getProperties().getProperty().addAll(copy(properties).getProperty());
+    this.putUser(updated);
   }
   
   /**
@@ -293,9 +317,11 @@ public class UserManager {
    * For thread safety, a fresh Set of Users is built each time this is called. 
    * @return A Set containing the current Users. 
    */
-  public synchronized Set<User> getUsers() {
+  public Set<User> getUsers() {
     Set<User> userSet = new HashSet<User>(userSetSize); 
-    userSet.addAll(this.email2user.values());
+    for (CachedUser cached : this.email2user.values()) {
+      userSet.add(cached.user);
+    }
     return userSet;
   }
   
@@ -304,7 +330,7 @@ public class UserManager {
    * @param email The email address of the User of interest.
    * @return True if found in this Manager.
    */
-  public synchronized boolean isUser(String email) {
+  public boolean isUser(String email) {
     return (email != null) && email2user.containsKey(email);
   }
   
@@ -315,8 +341,8 @@ public class UserManager {
    * @param password The password of this user.
    * @return True if found in this Manager.
    */
-  public synchronized boolean isUser(String email, String password) {
-    User user = this.email2user.get(email);
+  public boolean isUser(String email, String password) {
+    User user = getUser(email);
     return (user != null) && (password != null) && (password.equals(user.getPassword()));
   }
   
@@ -325,7 +351,7 @@ public class UserManager {
    * @param email An email address. 
    * @return True if email is a User with Admin privileges. 
    */
-  public synchronized boolean isAdmin(String email) {
+  public boolean isAdmin(String email) {
     return (email != null) &&
            email2user.containsKey(email) && 
            email.equals(server.getServerProperties().get(ADMIN_EMAIL_KEY));
@@ -337,7 +363,7 @@ public class UserManager {
    * @param user The user. 
    * @return True if the user is a test user. 
    */
-  public synchronized boolean isTestUser(User user) {
+  public boolean isTestUser(User user) {
     return user.getEmail().endsWith(server.getServerProperties().get(TEST_DOMAIN_KEY));
   }
   
@@ -352,11 +378,9 @@ public class UserManager {
    * @return The retrieved or newly created User.
    */
   public synchronized User registerUser(String email) {
-    // registering happens rarely, so we'll just iterate through the userMap.
-    for (User user : this.email2user.values()) {
-      if (user.getEmail().equals(email)) {
-        return user;
-      }
+    User existingUser = getUser(email);
+    if (existingUser != null) {
+      return existingUser;
     }
     // if we got here, we need to create a new User.
     User user = new User();
@@ -368,7 +392,8 @@ public class UserManager {
           email : PasswordGenerator.make();
     user.setPassword(password);
     this.putUser(user);
-    return user;
+    User registered = getUser(email);
+    return (registered == null) ? user : registered;
   } 
   
   /**
@@ -378,9 +403,8 @@ public class UserManager {
    * @return The corresponding Properties instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized Properties makeProperties(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    return (Properties)unmarshaller.unmarshal(new StringReader(xmlString));
+  public final Properties makeProperties(String xmlString) throws Exception {
+    return (Properties) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -390,9 +414,8 @@ public class UserManager {
    * @return The corresponding User instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized User makeUser(String xmlString) throws Exception {
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    return (User)unmarshaller.unmarshal(new StringReader(xmlString));
+  public final User makeUser(String xmlString) throws Exception {
+    return (User) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -402,10 +425,9 @@ public class UserManager {
    * @return The corresponding UserIndex instance. 
    * @throws Exception If problems occur during unmarshalling.
    */
-  public final synchronized UserIndex makeUserIndex(String xmlString) 
+  public final UserIndex makeUserIndex(String xmlString) 
   throws Exception {
-    Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-    return (UserIndex)unmarshaller.unmarshal(new StringReader(xmlString));
+    return (UserIndex) this.serializer.unmarshal(xmlString);
   }
   
   /**
@@ -415,23 +437,8 @@ public class UserManager {
    * @return The XML String representation.
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeUser (User user) throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(user, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+  public final String makeUser (User user) throws Exception {
+    return this.serializer.marshal(user);
   }
   
   /**
@@ -440,23 +447,8 @@ public class UserManager {
    * @return The XML String representation.
    * @throws Exception If problems occur during translation. 
    */
-  public synchronized String makeProperties (Properties properties) throws Exception {
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(properties, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+  public String makeProperties (Properties properties) throws Exception {
+    return this.serializer.marshal(properties);
   }
 
   /**
@@ -467,25 +459,10 @@ public class UserManager {
    * @return The XML String representation of it as a UserRef
    * @throws Exception If problems occur during translation. 
    */
-  public final synchronized String makeUserRefString (User user) 
+  public final String makeUserRefString (User user) 
   throws Exception {
     UserRef ref = makeUserRef(user);
-    Marshaller marshaller = jaxbContext.createMarshaller(); 
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-    Document doc = documentBuilder.newDocument();
-    marshaller.marshal(ref, doc);
-    DOMSource domSource = new DOMSource(doc);
-    StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.transform(domSource, result);
-    String xmlString = writer.toString();
-    // Now remove the processing instruction.  This approach seems like a total hack.
-    xmlString = xmlString.substring(xmlString.indexOf('>') + 1);
-    return xmlString;
+    return this.serializer.marshal(ref);
   }
   
   /**
@@ -493,12 +470,48 @@ public class UserManager {
    * @param user The User instance. 
    * @return A UserRef instance. 
    */
-  public synchronized UserRef makeUserRef(User user) {
+  public UserRef makeUserRef(User user) {
     UserRef ref = new UserRef();
     ref.setEmail(user.getEmail());
     ref.setHref(this.server.getHostName() + "users/" + user.getEmail()); 
     return ref;
   }
   
+
+  /**
+   * Returns a deep copy of the passed User, so that the copy can be modified without 
+   * affecting the original. 
+   * @param user The user.
+   * @return A new User instance with the same contents.
+   */
+  private static User copy(User user) {
+    User copy = new User();
+    copy.setEmail(user.getEmail());
+    copy.setPassword(user.getPassword());
+    copy.setRole(user.getRole());
+    if (user.getLastMod() != null) {
+      copy.setLastMod((XMLGregorianCalendar) user.getLastMod().clone());
+    }
+    if (user.getProperties() != null) {
+      copy.setProperties(copy(user.getProperties()));
+    }
+    return copy;
+  }
+  
+  /**
+   * Returns a deep copy of the passed Properties.
+   * @param properties The properties.
+   * @return A new Properties instance with the same contents.
+   */
+  private static Properties copy(Properties properties) {
+    Properties copy = new Properties();
+    for (Property property : properties.getProperty()) {
+      Property propertyCopy = new Property();
+      propertyCopy.setKey(property.getKey());
+      propertyCopy.setValue(property.getValue());
+      copy.getProperty().add(propertyCopy);
+    }
+    return copy;
+  }
 }
 
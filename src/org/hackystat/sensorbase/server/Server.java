@@ -6,7 +6,12 @@ import java.util.Set;
 import org.hackystat.sensorbase.db.DbManager;
 import org.hackystat.sensorbase.mailer.Mailer;
 import org.hackystat.sensorbase.resource.db.CompressResource;
+import org.hackystat.sensorbase.resource.db.DbJobManager;
+import org.hackystat.sensorbase.resource.db.DbJobResource;
+import org.hackystat.sensorbase.resource.db.DbJobsResource;
 import org.hackystat.sensorbase.resource.db.IndexResource;
+import org.hackystat.sensorbase.resource.db.RetentionManager;
+import org.hackystat.sensorbase.resource.db.RetentionResource;
 import org.hackystat.sensorbase.resource.db.RowCountResource;
 import org.hackystat.sensorbase.resource.ping.PingResource;
 import org.hackystat.sensorbase.resource.projects.ProjectManager;
@@ -14,6 +19,7 @@ import org.hackystat.sensorbase.resource.projects.ProjectsResource;
 import org.hackystat.sensorbase.resource.projects.UserProjectInvitationResource;
 import org.hackystat.sensorbase.resource.projects.UserProjectRenameResource;
 import org.hackystat.sensorbase.resource.projects.UserProjectResource;
+import org.hackystat.sensorbase.resource.projects.UserProjectSensorDataBatchResource;
 import org.hackystat.sensorbase.resource.projects.UserProjectSensorDataResource;
 import org.hackystat.sensorbase.resource.projects.UserProjectSnapshotResource;
 import org.hackystat.sensorbase.resource.projects.UserProjectSummaryResource;
@@ -139,6 +145,8 @@ public class Server extends Application {
     attributes.put("UserManager", new UserManager(server));
     attributes.put("ProjectManager", new ProjectManager(server));
     attributes.put("SensorDataManager", new SensorDataManager(server));
+    attributes.put("RetentionManager", new RetentionManager(server));
+    attributes.put("DbJobManager", new DbJobManager(server));
     attributes.put("SensorBaseServer", server);
     attributes.put("ServerProperties", server.serverProperties);
     
@@ -245,15 +253,43 @@ public class Server extends Application {
     authRouter.attach(projectSensorDataUri +
      "?startTime={startTime}&endTime={endTime}&startIndex={startIndex}&maxInstances={maxInstances}",
        UserProjectSensorDataResource.class);
+    authRouter.attach(projectSensorDataUri +
+        "?startTime={startTime}&endTime={endTime}&maxInstances={maxInstances}" + 
+        "&continuationToken={continuationToken}",
+        UserProjectSensorDataResource.class);
+    authRouter.attach(projectSensorDataUri +
+        "?startTime={startTime}&endTime={endTime}&maxInstances={maxInstances}",
+        UserProjectSensorDataResource.class);
+    authRouter.attach(projectSensorDataUri +  
+        "?startTime={startTime}&endTime={endTime}&fields={fields}", 
+        UserProjectSensorDataResource.class);
     authRouter.attach(projectSensorDataUri +  
         "?startTime={startTime}&endTime={endTime}", 
         UserProjectSensorDataResource.class);
+    authRouter.attach(projectSensorDataUri +  
+        "?sdt={sdt}&startTime={startTime}&endTime={endTime}&tool={tool}&fields={fields}",  
+        UserProjectSensorDataResource.class);
     authRouter.attach(projectSensorDataUri +  
         "?sdt={sdt}&startTime={startTime}&endTime={endTime}&tool={tool}",  
         UserProjectSensorDataResource.class);
+    authRouter.attach(projectSensorDataUri +  
+        "?sdt={sdt}&startTime={startTime}&endTime={endTime}&fields={fields}",  
+        UserProjectSensorDataResource.class);
     authRouter.attach(projectSensorDataUri +  
         "?sdt={sdt}&startTime={startTime}&endTime={endTime}",  
         UserProjectSensorDataResource.class);
+    String projectSensorDataBatchUri = projectSensorDataUri + "/batch";
+    authRouter.attach(projectSensorDataBatchUri, 
+        UserProjectSensorDataBatchResource.class);
+    authRouter.attach(projectSensorDataBatchUri +  
+        "?startTime={startTime}&endTime={endTime}", 
+        UserProjectSensorDataBatchResource.class);
+    authRouter.attach(projectSensorDataBatchUri +  
+        "?sdt={sdt}&startTime={startTime}&endTime={endTime}&tool={tool}",  
+        UserProjectSensorDataBatchResource.class);
+    authRouter.attach(projectSensorDataBatchUri +  
+        "?sdt={sdt}&startTime={startTime}&endTime={endTime}",  
+        UserProjectSensorDataBatchResource.class);
     
     // PROJECTS INVITATION 
     authRouter.attach(projectUri + "/invitation/{rsvp}", 
@@ -267,6 +303,9 @@ public class Server extends Application {
     authRouter.attach("/db/table/compress", CompressResource.class);
     authRouter.attach("/db/table/index", IndexResource.class);
     authRouter.attach("/db/table/{table}/rowcount", RowCountResource.class);
+    authRouter.attach("/db/jobs", DbJobsResource.class);
+    authRouter.attach("/db/jobs/{job}", DbJobResource.class);
+    authRouter.attach("/db/retention", RetentionResource.class);
     
     // Here's the Guard that we will place in front of authRouter.
     authRouter.attach("", HomePageResource.class);
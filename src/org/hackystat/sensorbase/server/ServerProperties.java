@@ -57,6 +57,48 @@ public class ServerProperties {
   public static final String SMTP_SERVER_USER =     "sensorbase.smtp.user";
   /** The admin email key. */
   public static final String SMTP_SERVER_PASS =     "sensorbase.smtp.pass";
+  /** The maximum number of pooled database connections. */
+  public static final String DB_POOL_SIZE_KEY =     "sensorbase.db.pool.size";
+  /** The maximum time in milliseconds to wait for a pooled database connection. */
+  public static final String DB_POOL_MAXWAIT_KEY =  "sensorbase.db.pool.maxwait";
+  /** The time in milliseconds after which an idle pooled connection is closed. */
+  public static final String DB_POOL_IDLE_TIMEOUT_KEY = "sensorbase.db.pool.idletimeout";
+  /** Whether pooled connections are validated before being handed out. */
+  public static final String DB_POOL_VALIDATE_KEY = "sensorbase.db.pool.validate";
+  /** The number of prepared statements cached per pooled database connection. */
+  public static final String DB_POOL_STATEMENT_CACHE_KEY = "sensorbase.db.pool.statementcache";
+  /** Whether sensor data is acknowledged before it is written to the database. */
+  public static final String INGEST_WRITEBEHIND_KEY = "sensorbase.ingest.writebehind";
+  /** The maximum number of sensor data instances waiting to be written. */
+  public static final String INGEST_QUEUE_SIZE_KEY = "sensorbase.ingest.queue.size";
+  /** The maximum number of queued sensor data instances written in one commit. */
+  public static final String INGEST_BATCH_SIZE_KEY = "sensorbase.ingest.batch.size";
+  /** Whether queued sensor data is also appended to a log file in the db directory. */
+  public static final String INGEST_LOG_KEY = "sensorbase.ingest.log";
+  /** The Retry-After seconds sent to clients when the ingest queue is full. */
+  public static final String INGEST_RETRY_AFTER_KEY = "sensorbase.ingest.retryafter";
+  /** Whether reads wait for queued sensor data to be written first. */
+  public static final String INGEST_FLUSH_ON_READ_KEY = "sensorbase.ingest.flushonread";
+  /** Whether SensorDataRefs are rendered from the SensorData columns instead of stored. */
+  public static final String DB_LAZY_REFS_KEY = "sensorbase.db.lazyrefs";
+  /** How new SensorData is stored: "xml", "binary", or "deflate" (compressed binary). */
+  public static final String DB_PAYLOAD_KEY = "sensorbase.db.payload";
+  /** The number of months of SensorData in each partition table, or 0 for no new partitions. */
+  public static final String DB_PARTITION_MONTHS_KEY = "sensorbase.db.partition.months";
+  /** The memory size in kilobytes at which the LSM store writes its memtable to a segment. */
+  public static final String DB_LSM_MEMTABLE_KEY = "sensorbase.db.lsm.memtable.kb";
+  /** Whether the LSM store forces each write to disk before acknowledging it. */
+  public static final String DB_LSM_SYNC_KEY = "sensorbase.db.lsm.sync";
+  /** The number of months that SensorData is kept, unless a rule applies, or 0 for forever. */
+  public static final String RETENTION_MONTHS_KEY = "sensorbase.retention.months";
+  /** Per-owner and per-SDT retention, such as "owner:joe@hackystat.org=24, sdt:DevEvent=6". */
+  public static final String RETENTION_RULES_KEY = "sensorbase.retention.rules";
+  /** The number of hours between retention runs, or 0 to run only on request. */
+  public static final String RETENTION_INTERVAL_KEY = "sensorbase.retention.interval.hours";
+  /** The maximum number of SensorData instances expired in one transaction. */
+  public static final String RETENTION_CHUNK_SIZE_KEY = "sensorbase.retention.chunk.size";
+  /** The directory to which expired SensorData is archived, or empty to discard it. */
+  public static final String RETENTION_ARCHIVE_DIR_KEY = "sensorbase.retention.archive.dir";
 
   
   /** Where we store the properties. */
@@ -112,6 +154,27 @@ public class ServerProperties {
     properties.setProperty(TEST_HOSTNAME_KEY, "localhost");
     properties.setProperty(COMPRESS_ON_STARTUP_KEY, FALSE);
     properties.setProperty(REINDEX_ON_STARTUP_KEY, FALSE);
+    properties.setProperty(DB_POOL_SIZE_KEY, "10");
+    properties.setProperty(DB_POOL_MAXWAIT_KEY, "30000");
+    properties.setProperty(DB_POOL_IDLE_TIMEOUT_KEY, "300000");
+    properties.setProperty(DB_POOL_VALIDATE_KEY, "true");
+    properties.setProperty(DB_POOL_STATEMENT_CACHE_KEY, "64");
+    properties.setProperty(INGEST_WRITEBEHIND_KEY, FALSE);
+    properties.setProperty(INGEST_QUEUE_SIZE_KEY, "10000");
+    properties.setProperty(INGEST_BATCH_SIZE_KEY, "500");
+    properties.setProperty(INGEST_LOG_KEY, "true");
+    properties.setProperty(INGEST_RETRY_AFTER_KEY, "5");
+    properties.setProperty(INGEST_FLUSH_ON_READ_KEY, "true");
+    properties.setProperty(DB_LAZY_REFS_KEY, FALSE);
+    properties.setProperty(DB_PAYLOAD_KEY, "xml");
+    properties.setProperty(DB_PARTITION_MONTHS_KEY, "0");
+    properties.setProperty(DB_LSM_MEMTABLE_KEY, "4096");
+    properties.setProperty(DB_LSM_SYNC_KEY, FALSE);
+    properties.setProperty(RETENTION_MONTHS_KEY, "0");
+    properties.setProperty(RETENTION_RULES_KEY, "");
+    properties.setProperty(RETENTION_INTERVAL_KEY, "24");
+    properties.setProperty(RETENTION_CHUNK_SIZE_KEY, "1000");
+    properties.setProperty(RETENTION_ARCHIVE_DIR_KEY, "");
 
     FileInputStream stream = null;
     try {
@@ -267,4 +330,74 @@ public class ServerProperties {
   public boolean reindexOnStartup () {
     return this.properties.getProperty(REINDEX_ON_STARTUP_KEY).equalsIgnoreCase("true");
   }
+  
+  /**
+   * Returns the integer value of the Server Property specified by the key.
+   * @param key One of the public static final strings in this class with an integer value.
+   * @param defaultValue The value to return if the property is missing or not an integer.
+   * @return The value of the key, or defaultValue.
+   */
+  public int getInt(String key, int defaultValue) {
+    try {
+      return Integer.parseInt(this.properties.getProperty(key));
+    }
+    catch (Exception e) {
+      System.out.println("Bad integer value for " + key + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+  
+  /**
+   * True if the sensorbase.properties file indicates that pooled database connections should
+   * be validated before being handed out.
+   * @return True if pooled connections are validated.
+   */
+  public boolean validatePooledConnections() {
+    return this.properties.getProperty(DB_POOL_VALIDATE_KEY).equalsIgnoreCase("true");
+  }
+  
+  /**
+   * True if the sensorbase.properties file indicates that sensor data should be queued and
+   * written to the database in the background.
+   * @return True if write-behind ingest is enabled.
+   */
+  public boolean useWriteBehind() {
+    return this.properties.getProperty(INGEST_WRITEBEHIND_KEY).equalsIgnoreCase("true");
+  }
+  
+  /**
+   * True if the sensorbase.properties file indicates that queued sensor data should also be
+   * appended to a log file so that it survives a crash.
+   * @return True if the ingest log is enabled.
+   */
+  public boolean useIngestLog() {
+    return this.properties.getProperty(INGEST_LOG_KEY).equalsIgnoreCase("true");
+  }
+  
+  /**
+   * True if the sensorbase.properties file indicates that reads should wait for queued sensor
+   * data to be written, so that they see every acknowledged write.
+   * @return True if reads flush the ingest queue.
+   */
+  public boolean flushOnRead() {
+    return this.properties.getProperty(INGEST_FLUSH_ON_READ_KEY).equalsIgnoreCase("true");
+  }
+  
+  /**
+   * True if the sensorbase.properties file indicates that SensorData index entries should be
+   * rendered from the typed SensorData columns rather than stored with each row.
+   * @return True if SensorDataRefs are rendered at read time.
+   */
+  public boolean useLazySensorDataRefs() {
+    return this.properties.getProperty(DB_LAZY_REFS_KEY).equalsIgnoreCase("true");
+  }
+  
+  /**
+   * True if the sensorbase.properties file indicates that the LSM store should force each write
+   * to disk, so that acknowledged sensor data survives a machine failure as well as a crash.
+   * @return True if LSM log writes are synced.
+   */
+  public boolean syncLsmLog() {
+    return this.properties.getProperty(DB_LSM_SYNC_KEY).equalsIgnoreCase("true");
+  }
 }